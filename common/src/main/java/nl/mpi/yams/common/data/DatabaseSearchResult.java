@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.data;
+
+import java.io.Serializable;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The part of a federated search that was run on one database, with the
+ * result count and the time that the search took.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+@XmlRootElement(name = "DatabaseSearchResult")
+public class DatabaseSearchResult implements Serializable {
+
+    public enum SearchStatus {
+
+        completed, timedOut, failed
+    }
+    private String databaseName = null;
+    private SearchStatus searchStatus = SearchStatus.completed;
+    private int resultCount = 0;
+    private long queryTimeMS = -1;
+    private String errorMessage = null;
+    private HighlightableDataNode searchResult = null;
+
+    public DatabaseSearchResult() {
+    }
+
+    public DatabaseSearchResult(String databaseName) {
+        this.databaseName = databaseName;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    @XmlElement(name = "DatabaseName")
+    public void setDatabaseName(String databaseName) {
+        this.databaseName = databaseName;
+    }
+
+    public SearchStatus getSearchStatus() {
+        return searchStatus;
+    }
+
+    @XmlElement(name = "SearchStatus")
+    public void setSearchStatus(SearchStatus searchStatus) {
+        this.searchStatus = searchStatus;
+    }
+
+    /**
+     * @return the total number of results in this database, which is zero
+     * when the search did not complete
+     */
+    public int getResultCount() {
+        return resultCount;
+    }
+
+    @XmlElement(name = "ResultCount")
+    public void setResultCount(int resultCount) {
+        this.resultCount = resultCount;
+    }
+
+    public long getQueryTimeMS() {
+        return queryTimeMS;
+    }
+
+    @XmlElement(name = "QueryTimeMS")
+    public void setQueryTimeMS(long queryTimeMS) {
+        this.queryTimeMS = queryTimeMS;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    @XmlElement(name = "ErrorMessage")
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+    /**
+     * @return the requested page of results in the same form as a search of
+     * this database alone, or null when the search did not complete
+     */
+    public HighlightableDataNode getSearchResult() {
+        return searchResult;
+    }
+
+    @XmlElement(name = "DataNode")
+    public void setSearchResult(HighlightableDataNode searchResult) {
+        this.searchResult = searchResult;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The results of one search run on several databases, with one entry per
+ * database in the order that the databases were requested. The databases
+ * that were too slow or failed are included with their status so that the
+ * results of the others can still be shown.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+@XmlRootElement(name = "FederatedSearchResult")
+public class FederatedSearchResult implements Serializable {
+
+    protected long queryTimeMS = -1;
+    protected List<DatabaseSearchResult> databaseResults = new ArrayList<DatabaseSearchResult>();
+
+    public FederatedSearchResult() {
+    }
+
+    @XmlElement(name = "QueryTimeMS")
+    public void setQueryTimeMS(long queryTimeMS) {
+        this.queryTimeMS = queryTimeMS;
+    }
+
+    public long getQueryTimeMS() {
+        return queryTimeMS;
+    }
+
+    @XmlElement(name = "DatabaseSearchResult")
+    public List<DatabaseSearchResult> getDatabaseResults() {
+        return databaseResults;
+    }
+
+    public void setDatabaseResults(List<DatabaseSearchResult> databaseResults) {
+        this.databaseResults = databaseResults;
+    }
+
+    /**
+     * @return the sum of the result counts of the databases that completed
+     */
+    public int getTotalResultCount() {
+        int totalResultCount = 0;
+        for (DatabaseSearchResult databaseResult : databaseResults) {
+            totalResultCount += databaseResult.getResultCount();
+        }
+        return totalResultCount;
+    }
+
+    /**
+     * @return true if the search did not complete on one or more of the
+     * databases
+     */
+    public boolean isPartial() {
+        for (DatabaseSearchResult databaseResult : databaseResults) {
+            if (databaseResult.getSearchStatus() != DatabaseSearchResult.SearchStatus.completed) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
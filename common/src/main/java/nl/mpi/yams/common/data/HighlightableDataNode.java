@@ -21,6 +21,7 @@ package nl.mpi.yams.common.data;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import nl.mpi.flap.model.SerialisableDataNode;
@@ -34,6 +35,8 @@ import nl.mpi.flap.model.SerialisableDataNode;
 public class HighlightableDataNode extends SerialisableDataNode implements Serializable {
 
     private List<DataNodeHighlight> highlights = new ArrayList<DataNodeHighlight>();
+    private Integer resultCount = null;
+    private Integer resultStart = null;
 
     public List<DataNodeHighlight> getHighlights() {
         return highlights;
@@ -43,4 +46,30 @@ public class HighlightableDataNode extends SerialisableDataNode implements Seria
     public void setHighlights(List<DataNodeHighlight> highlighedLinks) {
         this.highlights = highlighedLinks;
     }
+
+    /**
+     * @return the total number of search results, of which the child links
+     * are one page, or null if the results were not paged
+     */
+    public Integer getResultCount() {
+        return resultCount;
+    }
+
+    @XmlAttribute(name = "ResultCount")
+    public void setResultCount(Integer resultCount) {
+        this.resultCount = resultCount;
+    }
+
+    /**
+     * @return the index of the first result in this page, or null if the
+     * results were not paged
+     */
+    public Integer getResultStart() {
+        return resultStart;
+    }
+
+    @XmlAttribute(name = "ResultStart")
+    public void setResultStart(Integer resultStart) {
+        this.resultStart = resultStart;
+    }
 }
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.data;
+
+import java.io.Serializable;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The label, type and number of child links of a data node, which is enough
+ * to show the node in the tree before its full document is loaded.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+@XmlRootElement(name = "NodeSummary")
+public class NodeSummary implements Serializable {
+
+    private String dataNodeId = null;
+    private String label = null;
+    private String type = null;
+    private Integer childCount = null;
+
+    public NodeSummary() {
+    }
+
+    public NodeSummary(String dataNodeId, String label, String type, Integer childCount) {
+        this.dataNodeId = dataNodeId;
+        this.label = label;
+        this.type = type;
+        this.childCount = childCount;
+    }
+
+    public String getDataNodeId() {
+        return dataNodeId;
+    }
+
+    @XmlAttribute(name = "ID")
+    public void setDataNodeId(String dataNodeId) {
+        this.dataNodeId = dataNodeId;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    @XmlAttribute(name = "Label")
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @XmlAttribute(name = "Type")
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the number of child links or null when the node has not yet
+     * been crawled
+     */
+    public Integer getChildCount() {
+        return childCount;
+    }
+
+    @XmlAttribute(name = "ChildCount")
+    public void setChildCount(Integer childCount) {
+        this.childCount = childCount;
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import nl.mpi.yams.common.data.DataNodeId;
+import nl.mpi.yams.common.data.DatabaseList;
+import nl.mpi.yams.common.data.DatabaseStats;
+import nl.mpi.yams.common.data.IconTable;
+import nl.mpi.yams.common.data.IconTableBase64;
+import nl.mpi.yams.common.data.MetadataFileType;
+import nl.mpi.yams.common.data.QueryDataStructures.CriterionJoinType;
+import nl.mpi.yams.common.data.SearchParameters;
+
+/**
+ * Runs the DataBaseManager queries on an executor so that independent queries
+ * needed for one request can run in parallel rather than one after another.
+ * Each method returns immediately with a Future, the result is then collected
+ * with getResult.
+ *
+ * @param <D> Concrete class of DataNode, as in DataBaseManager
+ * @param <F> Concrete class of DataField, as in DataBaseManager
+ * @param <M> Concrete class of MetadataFileType, as in DataBaseManager
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class AsyncDataBaseManager<D, F, M> {
+
+    final private DataBaseManager<D, F, M> dataBaseManager;
+    final private ExecutorService queryExecutor;
+
+    /**
+     *
+     * @param dataBaseManager the manager that will run the queries
+     * @param queryExecutor the executor that the queries are run on, which is
+     * normally shared by all requests and created by createQueryExecutor
+     */
+    public AsyncDataBaseManager(DataBaseManager<D, F, M> dataBaseManager, ExecutorService queryExecutor) {
+        this.dataBaseManager = dataBaseManager;
+        this.queryExecutor = queryExecutor;
+    }
+
+    /**
+     * Creates a bounded executor for database queries. When all threads are
+     * busy and the queue is full the query is run on the calling thread, so
+     * an overloaded server slows down rather than rejecting requests.
+     *
+     * @param threadCount the maximum number of queries run in parallel
+     * @param queueLength the number of queries that can wait for a thread
+     * @return the executor
+     */
+    public static ExecutorService createQueryExecutor(int threadCount, int queueLength) {
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueLength), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "DataBaseManager-query-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Waits for the result of a query started by this class
+     *
+     * @param <T> the result type
+     * @param queryFuture the future returned when the query was started
+     * @return the result of the query
+     * @throws QueryException the exception thrown by the query or if the wait
+     * was interrupted
+     */
+    public static <T> T getResult(Future<T> queryFuture) throws QueryException {
+        try {
+            return queryFuture.get();
+        } catch (InterruptedException exception) {
+            queryFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new QueryException("Interrupted while waiting for the query result", exception);
+        } catch (ExecutionException exception) {
+            final Throwable cause = exception.getCause();
+            if (cause instanceof QueryException) {
+                throw (QueryException) cause;
+            }
+            throw new QueryException(cause.getMessage(), cause);
+        }
+    }
+
+    public DataBaseManager<D, F, M> getDataBaseManager() {
+        return dataBaseManager;
+    }
+
+    public Future<String[]> getDatabaseList() {
+        return queryExecutor.submit(new Callable<String[]>() {
+            public String[] call() throws Exception {
+                return dataBaseManager.getDatabaseList();
+            }
+        });
+    }
+
+    public Future<DatabaseList> getDatabaseStatsList() {
+        return queryExecutor.submit(new Callable<DatabaseList>() {
+            public DatabaseList call() throws Exception {
+                return dataBaseManager.getDatabaseStatsList();
+            }
+        });
+    }
+
+    public Future<DatabaseStats> getDatabaseStats() {
+        return queryExecutor.submit(new Callable<DatabaseStats>() {
+            public DatabaseStats call() throws Exception {
+                return dataBaseManager.getDatabaseStats();
+            }
+        });
+    }
+
+    public Future<IconTable> getNodeIcons() {
+        return queryExecutor.submit(new Callable<IconTable>() {
+            public IconTable call() throws Exception {
+                return dataBaseManager.getNodeIcons();
+            }
+        });
+    }
+
+    public Future<IconTableBase64> getNodeIconsBase64() {
+        return queryExecutor.submit(new Callable<IconTableBase64>() {
+            public IconTableBase64 call() throws Exception {
+                return dataBaseManager.getNodeIconsBase64();
+            }
+        });
+    }
+
+    public Future<D> getRootNodes() {
+        return queryExecutor.submit(new Callable<D>() {
+            public D call() throws Exception {
+                return dataBaseManager.getRootNodes();
+            }
+        });
+    }
+
+    public Future<M[]> getMetadataTypes(final MetadataFileType metadataFileType) {
+        return queryExecutor.submit(new Callable<M[]>() {
+            public M[] call() throws Exception {
+                return dataBaseManager.getMetadataTypes(metadataFileType);
+            }
+        });
+    }
+
+    public Future<M[]> getMetadataPaths(final MetadataFileType metadataFileType) {
+        return queryExecutor.submit(new Callable<M[]>() {
+            public M[] call() throws Exception {
+                return dataBaseManager.getMetadataPaths(metadataFileType);
+            }
+        });
+    }
+
+    public Future<M[]> getMetadataFieldValues(final MetadataFileType metadataFileType, final int maxResults) {
+        return queryExecutor.submit(new Callable<M[]>() {
+            public M[] call() throws Exception {
+                return dataBaseManager.getMetadataFieldValues(metadataFileType, maxResults);
+            }
+        });
+    }
+
+    public Future<M[]> getTreeFacetTypes(final MetadataFileType[] metadataFileTypes) {
+        return queryExecutor.submit(new Callable<M[]>() {
+            public M[] call() throws Exception {
+                return dataBaseManager.getTreeFacetTypes(metadataFileTypes);
+            }
+        });
+    }
+
+    public Future<D> getChildNodesOfId(final String nodeIdentifier, final int start, final int end) {
+        return queryExecutor.submit(new Callable<D>() {
+            public D call() throws Exception {
+                return dataBaseManager.getChildNodesOfId(nodeIdentifier, start, end);
+            }
+        });
+    }
+
+    public Future<D> getNodeDatasByIDs(final List<DataNodeId> nodeIDs) {
+        return queryExecutor.submit(new Callable<D>() {
+            public D call() throws Exception {
+                return dataBaseManager.getNodeDatasByIDs(nodeIDs);
+            }
+        });
+    }
+
+    public Future<D> getSearchResult(final CriterionJoinType criterionJoinType, final List<SearchParameters> searchParametersList) {
+        return queryExecutor.submit(new Callable<D>() {
+            public D call() throws Exception {
+                return dataBaseManager.getSearchResult(criterionJoinType, searchParametersList);
+            }
+        });
+    }
+
+    public Future<D> getSearchResult(final CriterionJoinType criterionJoinType, final List<SearchParameters> searchParametersList, final int start, final int end) {
+        return queryExecutor.submit(new Callable<D>() {
+            public D call() throws Exception {
+                return dataBaseManager.getSearchResult(criterionJoinType, searchParametersList, start, end);
+            }
+        });
+    }
+}
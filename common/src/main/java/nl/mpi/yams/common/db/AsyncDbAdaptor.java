@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs DbAdaptor queries on an executor and returns a Future for each, the
+ * results can be collected with AsyncDataBaseManager.getResult.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class AsyncDbAdaptor {
+
+    final private DbAdaptor dbAdaptor;
+    final private ExecutorService queryExecutor;
+
+    public AsyncDbAdaptor(DbAdaptor dbAdaptor, ExecutorService queryExecutor) {
+        this.dbAdaptor = dbAdaptor;
+        this.queryExecutor = queryExecutor;
+    }
+
+    public Future<String> executeQuery(final String databaseName, final String queryString) {
+        return queryExecutor.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return dbAdaptor.executeQuery(databaseName, queryString);
+            }
+        });
+    }
+
+    public <T> Future<T> executeQuery(final String databaseName, final String queryString, final QueryResultHandler<T> resultHandler) {
+        return queryExecutor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                return dbAdaptor.executeQuery(databaseName, queryString, resultHandler);
+            }
+        });
+    }
+
+    public Future<String> executeQuery(final String databaseName, final QueryTemplate queryTemplate, final Map<String, String> queryVariables) {
+        return queryExecutor.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return dbAdaptor.executeQuery(databaseName, queryTemplate, queryVariables);
+            }
+        });
+    }
+
+    public <T> Future<T> executeQuery(final String databaseName, final QueryTemplate queryTemplate, final Map<String, String> queryVariables, final QueryResultHandler<T> resultHandler) {
+        return queryExecutor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                return dbAdaptor.executeQuery(databaseName, queryTemplate, queryVariables, resultHandler);
+            }
+        });
+    }
+}
@@ -0,0 +1,476 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import org.basex.core.BaseXException;
+import org.basex.core.cmd.Close;
+import org.basex.core.cmd.CreateDB;
+import org.basex.core.cmd.CreateIndex;
+import org.basex.core.cmd.Delete;
+import org.basex.core.cmd.DropDB;
+import org.basex.core.cmd.Flush;
+import org.basex.core.cmd.Open;
+import org.basex.core.cmd.OptimizeAll;
+import org.basex.core.cmd.Set;
+import org.basex.server.ClientSession;
+import org.basex.server.Query;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects to a stand alone BaseX server using the BaseX client/server
+ * protocol. The sessions are kept open and shared by all adaptors connecting
+ * to the same server as the same user, so creating an adaptor per request is
+ * cheap. A session that has been idle for a while is checked before it is
+ * used again, so that sessions broken by a restart of the server are replaced
+ * rather than failing a query.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class BaseXClientDbAdaptor implements DbAdaptor {
+
+    final static public String urlScheme = "basex";
+    final static public int defaultPort = 1984;
+    final static public int defaultMaxSessions = 10;
+    // a session idle for longer than this is checked with a round trip to the server before it is used
+    static final private long validateAfterIdleMs = 5 * 1000;
+    // a session idle for longer than this is closed rather than kept open on the server
+    static final private long maxIdleMs = 5 * 60 * 1000;
+    // the number of documents sent between each flush to disk by addDocuments
+    static final private int documentBatchSize = 500;
+    final static private ConcurrentMap<String, SessionPool> sessionPools = new ConcurrentHashMap<String, SessionPool>();
+    final private SessionPool sessionPool;
+    final private org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
+
+    private abstract class SessionTask<T> {
+
+        abstract T run(ClientSession clientSession) throws IOException;
+    }
+
+    private static class IdleSession {
+
+        final ClientSession clientSession;
+        final long returnedMs;
+
+        public IdleSession(ClientSession clientSession, long returnedMs) {
+            this.clientSession = clientSession;
+            this.returnedMs = returnedMs;
+        }
+    }
+
+    private static class SessionPool {
+
+        final private String host;
+        final private int port;
+        final private String userName;
+        final private String userPass;
+        final private Semaphore sessionPermits;
+        // the most recently returned session is at the front and used first, so the sessions at the back are the ones left to expire
+        final private BlockingDeque<IdleSession> idleSessions = new LinkedBlockingDeque<IdleSession>();
+
+        public SessionPool(String host, int port, String userName, String userPass, int maxSessions) {
+            this.host = host;
+            this.port = port;
+            this.userName = userName;
+            this.userPass = userPass;
+            this.sessionPermits = new Semaphore(maxSessions, true);
+        }
+
+        ClientSession borrowSession() throws IOException {
+            final long waitStart = System.nanoTime();
+            try {
+                sessionPermits.acquire();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a session on " + host + ":" + port);
+            }
+            QueryMetrics.getSharedMetrics().recordWait("BaseXClientDbAdaptor session " + host + ":" + port, System.nanoTime() - waitStart);
+            IdleSession idleSession;
+            while ((idleSession = idleSessions.pollFirst()) != null) {
+                final long idleMs = System.currentTimeMillis() - idleSession.returnedMs;
+                if (idleMs < validateAfterIdleMs || (idleMs < maxIdleMs && isConnected(idleSession.clientSession))) {
+                    return idleSession.clientSession;
+                }
+                closeSession(idleSession.clientSession);
+            }
+            try {
+                return new ClientSession(host, port, userName, userPass);
+            } catch (IOException exception) {
+                sessionPermits.release();
+                throw exception;
+            }
+        }
+
+        void returnSession(ClientSession clientSession, boolean reusable) {
+            try {
+                if (reusable) {
+                    final long currentMs = System.currentTimeMillis();
+                    idleSessions.offerFirst(new IdleSession(clientSession, currentMs));
+                    IdleSession eldestSession;
+                    while ((eldestSession = idleSessions.peekLast()) != null && currentMs - eldestSession.returnedMs > maxIdleMs) {
+                        if (idleSessions.removeLastOccurrence(eldestSession)) {
+                            closeSession(eldestSession.clientSession);
+                        }
+                    }
+                } else {
+                    closeSession(clientSession);
+                }
+            } finally {
+                sessionPermits.release();
+            }
+        }
+
+        private void closeSession(ClientSession clientSession) {
+            try {
+                clientSession.close();
+            } catch (IOException exception) {
+                // the session is being discarded, most likely because it is already broken
+            }
+        }
+    }
+
+    /**
+     * @return true if the server answered a command on the session, even if
+     * with an error
+     */
+    private static boolean isConnected(ClientSession clientSession) {
+        try {
+            // closing the open database, if any, changes nothing that the tasks rely on since each opens its own database
+            clientSession.execute(new Close());
+            return true;
+        } catch (BaseXException exception) {
+            return true;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param serverUrl the server address in the form basex://host:port
+     * @param userName the database user name
+     * @param userPass the database user password
+     * @throws QueryException if the server address cannot be parsed
+     */
+    public BaseXClientDbAdaptor(String serverUrl, String userName, String userPass) throws QueryException {
+        try {
+            final URI serverUri = new URI(serverUrl);
+            if (!urlScheme.equals(serverUri.getScheme()) || serverUri.getHost() == null) {
+                throw new QueryException("Expected a server address in the form basex://host:port but found: " + serverUrl);
+            }
+            final int port = (serverUri.getPort() < 0) ? defaultPort : serverUri.getPort();
+            sessionPool = getSessionPool(serverUri.getHost(), port, userName, userPass, defaultMaxSessions);
+        } catch (URISyntaxException exception) {
+            throw new QueryException("Failed to parse the server address: " + serverUrl, exception);
+        }
+    }
+
+    /**
+     *
+     * @param host the BaseX server host name
+     * @param port the BaseX server port
+     * @param userName the database user name
+     * @param userPass the database user password
+     * @param maxSessions the maximum number of sessions that can be open on the
+     * server at any one time, this is only used when the sessions for the
+     * server and user are first created
+     */
+    public BaseXClientDbAdaptor(String host, int port, String userName, String userPass, int maxSessions) {
+        sessionPool = getSessionPool(host, port, userName, userPass, maxSessions);
+    }
+
+    /**
+     * @param databaseUrl the URL given as the database server
+     * @return true if the URL refers to a BaseX server rather than the REST
+     * interface or a local directory
+     */
+    public static boolean isServerUrl(String databaseUrl) {
+        return databaseUrl != null && databaseUrl.startsWith(urlScheme + "://");
+    }
+
+    private static SessionPool getSessionPool(String host, int port, String userName, String userPass, int maxSessions) {
+        final String poolKey = userName + "@" + host + ":" + port;
+        SessionPool pool = sessionPools.get(poolKey);
+        if (pool == null) {
+            final SessionPool createdPool = new SessionPool(host, port, userName, userPass, maxSessions);
+            pool = sessionPools.putIfAbsent(poolKey, createdPool);
+            if (pool == null) {
+                pool = createdPool;
+            }
+        }
+        return pool;
+    }
+
+    private <T> T runInSession(SessionTask<T> sessionTask) throws IOException {
+        final ClientSession clientSession = sessionPool.borrowSession();
+        boolean reusable = false;
+        try {
+            final T taskResult = sessionTask.run(clientSession);
+            reusable = true;
+            return taskResult;
+        } catch (BaseXException exception) {
+            // errors reported by the server leave the session usable, but the same exception type is also used by the client for some connection errors
+            reusable = isConnected(clientSession);
+            throw exception;
+        } finally {
+            sessionPool.returnSession(clientSession, reusable);
+        }
+    }
+
+    private String runQuery(ClientSession clientSession, String queryString, Map<String, String> queryVariables) throws IOException {
+        final Query query = clientSession.query(queryString);
+        try {
+            if (queryVariables != null) {
+                for (Map.Entry<String, String> queryVariable : queryVariables.entrySet()) {
+                    query.bind(queryVariable.getKey(), queryVariable.getValue());
+                }
+            }
+            return query.execute();
+        } finally {
+            query.close();
+        }
+    }
+
+    public void checkDbExists(final String databaseName) throws QueryException {
+        logger.debug("databaseName: " + databaseName);
+        try {
+            runInSession(new SessionTask<Void>() {
+                @Override
+                Void run(ClientSession clientSession) throws IOException {
+                    try {
+                        clientSession.execute(new Open(databaseName));
+                        clientSession.execute(new Close());
+                    } catch (BaseXException baseXException) {
+                        clientSession.execute(new CreateDB(databaseName));
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException exception) {
+            logger.error(exception.getMessage());
+            throw new QueryException(exception.getMessage(), exception);
+        }
+    }
+
+    public void dropAndRecreateDb(final String databaseName) throws QueryException {
+        try {
+            runInSession(new SessionTask<Void>() {
+                @Override
+                Void run(ClientSession clientSession) throws IOException {
+                    clientSession.execute(new DropDB(databaseName));
+                    clientSession.execute(new CreateDB(databaseName));
+                    return null;
+                }
+            });
+        } catch (IOException exception) {
+            throw new QueryException(exception.getMessage(), exception);
+        }
+    }
+
+    public void addDocument(final String databaseName, final String documentName, final String documentContents) throws QueryException {
+        try {
+            runInSession(new SessionTask<Void>() {
+                @Override
+                Void run(ClientSession clientSession) throws IOException {
+                    clientSession.execute(new Open(databaseName));
+                    try {
+                        clientSession.replace(documentName, getDocumentStream(documentContents));
+                    } finally {
+                        clientSession.execute(new Close());
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException exception) {
+            logger.debug(exception.getMessage());
+            throw new QueryException("Error adding document: " + documentName, exception);
+        }
+    }
+
+    public void addDocuments(final String databaseName, Iterator<NamedDocument> documents) throws QueryException {
+        while (documents.hasNext()) {
+            final List<NamedDocument> documentBatch = new ArrayList<NamedDocument>();
+            while (documents.hasNext() && documentBatch.size() < documentBatchSize) {
+                documentBatch.add(documents.next());
+            }
+            try {
+                runInSession(new SessionTask<Void>() {
+                    @Override
+                    Void run(ClientSession clientSession) throws IOException {
+                        clientSession.execute(new Open(databaseName));
+                        // with autoflush off the whole batch is written to disk once by the flush rather than after each document
+                        clientSession.execute(new Set("AUTOFLUSH", "false"));
+                        try {
+                            for (NamedDocument namedDocument : documentBatch) {
+                                clientSession.replace(namedDocument.getDocumentName(), getDocumentStream(namedDocument.getDocumentContents()));
+                            }
+                            clientSession.execute(new Flush());
+                        } finally {
+                            clientSession.execute(new Set("AUTOFLUSH", "true"));
+                            clientSession.execute(new Close());
+                        }
+                        return null;
+                    }
+                });
+            } catch (IOException exception) {
+                logger.debug(exception.getMessage());
+                throw new QueryException("Error adding documents", exception);
+            }
+        }
+    }
+
+    private ByteArrayInputStream getDocumentStream(String documentContents) throws UnsupportedEncodingException {
+        return new ByteArrayInputStream(documentContents.getBytes("UTF-8"));
+    }
+
+    public void deleteDocument(final String databaseName, final String documentName) throws QueryException {
+        try {
+            runInSession(new SessionTask<Void>() {
+                @Override
+                Void run(ClientSession clientSession) throws IOException {
+                    clientSession.execute(new Open(databaseName));
+                    try {
+                        clientSession.execute(new Delete(documentName));
+                    } finally {
+                        clientSession.execute(new Close());
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException exception) {
+            logger.debug(exception.getMessage());
+            throw new QueryException("Error deleting document", exception);
+        }
+    }
+
+    public String executeQuery(String databaseName, String queryString) throws QueryException {
+        return executeBoundQuery(queryString, null);
+    }
+
+    public <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler) throws QueryException {
+        return streamQuery(queryString, null, resultHandler, QueryDeadline.none);
+    }
+
+    public <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        return streamQuery(queryString, null, resultHandler, queryDeadline);
+    }
+
+    public String executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables) throws QueryException {
+        queryTemplate.checkVariables(queryVariables);
+        return executeBoundQuery(queryTemplate.getQueryText(), queryVariables);
+    }
+
+    public <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler) throws QueryException {
+        queryTemplate.checkVariables(queryVariables);
+        return streamQuery(queryTemplate.getQueryText(), queryVariables, resultHandler, QueryDeadline.none);
+    }
+
+    public <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        queryTemplate.checkVariables(queryVariables);
+        return streamQuery(queryTemplate.getQueryText(), queryVariables, resultHandler, queryDeadline);
+    }
+
+    private String executeBoundQuery(final String queryString, final Map<String, String> queryVariables) throws QueryException {
+        try {
+            return runInSession(new SessionTask<String>() {
+                @Override
+                String run(ClientSession clientSession) throws IOException {
+                    return runQuery(clientSession, queryString, queryVariables);
+                }
+            });
+        } catch (IOException exception) {
+            logger.debug(exception.getMessage());
+            throw new QueryException("Error executing query", exception);
+        }
+    }
+
+    private <T> T streamQuery(final String queryString, final Map<String, String> queryVariables, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        final AtomicReference<ClientSession> runningSession = new AtomicReference<ClientSession>();
+        return QueryResultPipe.pipeResult(new QueryResultPipe.ResultWriter() {
+            public void writeResult(final OutputStream outputStream) throws IOException {
+                runInSession(new SessionTask<Void>() {
+                    @Override
+                    Void run(ClientSession clientSession) throws IOException {
+                        // the server sends the result straight to this stream rather than returning it as a string
+                        clientSession.setOutputStream(outputStream);
+                        runningSession.set(clientSession);
+                        try {
+                            runQuery(clientSession, queryString, queryVariables);
+                        } finally {
+                            runningSession.set(null);
+                            clientSession.setOutputStream(null);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }, resultHandler, queryDeadline, new Runnable() {
+            public void run() {
+                final ClientSession clientSession = runningSession.get();
+                if (clientSession != null) {
+                    try {
+                        // the protocol has no way to stop a single query, so the session is closed and the broken session is then discarded from the pool
+                        // the query runs on until the server next writes to the closed connection or reaches its own TIMEOUT setting
+                        clientSession.close();
+                    } catch (IOException exception) {
+                        logger.debug(exception.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    public void createIndexes(final String databaseName) throws QueryException {
+        try {
+            runInSession(new SessionTask<Void>() {
+                @Override
+                Void run(ClientSession clientSession) throws IOException {
+                    clientSession.execute(new Open(databaseName));
+                    try {
+                        clientSession.execute(new CreateIndex("text"));
+                        clientSession.execute(new CreateIndex("attribute"));
+                        clientSession.execute(new CreateIndex("fulltext"));
+                        clientSession.execute(new OptimizeAll());
+                    } finally {
+                        clientSession.execute(new Close());
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException exception) {
+            logger.debug(exception.getMessage());
+            throw new QueryException("Error creating indexes", exception);
+        }
+    }
+}
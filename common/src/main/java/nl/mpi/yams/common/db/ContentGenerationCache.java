@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+
+/**
+ * Keeps the content generation of each database for a short time, so that
+ * conditional requests can be answered without a database query for each
+ * one. When a newer generation is read the cached query results of the
+ * database are dropped, so changes made by a crawler in another process are
+ * seen without waiting for those results to expire.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class ContentGenerationCache {
+
+    static final public long defaultRefreshMs = 10 * 1000;
+    static private ContentGenerationCache sharedCache = null;
+    final private long refreshMs;
+    final private ConcurrentMap<String, GenerationEntry> generations = new ConcurrentHashMap<String, GenerationEntry>();
+
+    private static class GenerationEntry {
+
+        final String generation;
+        final long readMs;
+
+        public GenerationEntry(String generation, long readMs) {
+            this.generation = generation;
+            this.readMs = readMs;
+        }
+    }
+
+    /**
+     * @param refreshMs the age at which a generation is read from the
+     * database again
+     */
+    public ContentGenerationCache(long refreshMs) {
+        this.refreshMs = refreshMs;
+    }
+
+    /**
+     * @return the cache shared by all DataBaseManagers in this JVM
+     */
+    public static synchronized ContentGenerationCache getSharedCache() {
+        if (sharedCache == null) {
+            sharedCache = new ContentGenerationCache(defaultRefreshMs);
+        }
+        return sharedCache;
+    }
+
+    /**
+     * @param dataBaseManager the manager of the database, which is only
+     * queried when the cached generation is older than the refresh time
+     * @return the content generation of the database
+     * @throws QueryException
+     */
+    public String getGeneration(DataBaseManager<?, ?, ?> dataBaseManager) throws QueryException {
+        final String databaseName = dataBaseManager.getDatabaseName();
+        final GenerationEntry cachedEntry = generations.get(databaseName);
+        final long currentMs = System.currentTimeMillis();
+        if (cachedEntry != null && currentMs - cachedEntry.readMs < refreshMs) {
+            return cachedEntry.generation;
+        }
+        final String generation = dataBaseManager.getContentGeneration();
+        if (cachedEntry != null && !cachedEntry.generation.equals(generation)) {
+            QueryResultCache.nextGeneration(databaseName);
+        }
+        generations.put(databaseName, new GenerationEntry(generation, currentMs));
+        return generation;
+    }
+
+    /**
+     * Records a generation that this process has stored in the database
+     *
+     * @param databaseName the database that has changed
+     * @param generation the new content generation
+     */
+    public void setGeneration(String databaseName, String generation) {
+        generations.put(databaseName, new GenerationEntry(generation, System.currentTimeMillis()));
+    }
+}
@@ -18,16 +18,36 @@
  */
 package nl.mpi.yams.common.db;
 
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Date;
 import java.util.Set;
-import javax.xml.bind.JAXBContext;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.stream.StreamSource;
 import nl.mpi.flap.kinnate.entityindexer.QueryException;
 import nl.mpi.flap.model.DataField;
@@ -37,14 +57,18 @@ import nl.mpi.flap.model.FieldGroup;
 import nl.mpi.flap.model.ModelException;
 import nl.mpi.flap.model.SerialisableDataNode;
 import nl.mpi.flap.plugin.PluginException;
+import nl.mpi.yams.common.data.DataNodeHighlight;
 import nl.mpi.yams.common.data.DataNodeId;
 import nl.mpi.yams.common.data.DatabaseLinks;
 import nl.mpi.yams.common.data.DatabaseList;
+import nl.mpi.yams.common.data.DatabaseSearchResult;
 import nl.mpi.yams.common.data.DatabaseStats;
+import nl.mpi.yams.common.data.FederatedSearchResult;
 import nl.mpi.yams.common.data.HighlightableDataNode;
 import nl.mpi.yams.common.data.IconTable;
 import nl.mpi.yams.common.data.IconTableBase64;
 import nl.mpi.yams.common.data.MetadataFileType;
+import nl.mpi.yams.common.data.NodeSummary;
 import nl.mpi.yams.common.data.NodeTypeImage;
 import nl.mpi.yams.common.data.QueryDataStructures.CriterionJoinType;
 import nl.mpi.yams.common.data.QueryDataStructures.SearchNegator;
@@ -72,6 +96,8 @@ public class DataBaseManager<D, F, M> {
     final protected DbAdaptor dbAdaptor;
     final private String databaseName;
     final private org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
+    // creating the factory is slow, so one is shared by the search result readers
+    static final private XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
     /**
      * these are two recommended database names, one for testing and the other
      * for production
@@ -82,7 +108,43 @@ public class DataBaseManager<D, F, M> {
     final static public String dbStatsDocument = "DatabaseStats";
     final static private String linksDocument = "DatabaseLinks";
     final static public String iconTableDocument = "IconTable";
+    // holds a stamp that is replaced whenever the crawled data changes, which the REST service uses for its ETags
+    final static public String contentGenerationDocument = "ContentGeneration";
+    // makes the stamps from one process unique when two are made in the same millisecond
+    static final private AtomicInteger contentGenerationCounter = new AtomicInteger();
     final private String crawledDataCollection = "CrawledData";
+    // one small document per data node with its summary and the IDs of its child links, so that a page of children is read by document path
+    final private String childIndexCollection = "ChildIndex";
+    // the query templates are built once per database, only the variable values change between calls
+    final private QueryTemplate rootNodesTemplate;
+    final private QueryTemplate childNodesOfIdTemplate;
+    final private QueryTemplate childNodesOfHdlTemplate;
+    final private QueryTemplate childNodesOfUrlTemplate;
+    final private QueryTemplate childSummariesTemplate;
+    final private QueryTemplate nodesByIdTemplate;
+    final private QueryTemplate nodesInOrderTemplate;
+    final private QueryTemplate nodesByHdlTemplate;
+    final private QueryTemplate nodesByUrlTemplate;
+    final private QueryTemplate existingDocumentTemplate;
+    final private QueryTemplate existingDocumentsTemplate;
+    final private QueryTemplate insertedNodesStatsTemplate;
+    final private QueryTemplate linkedRootsStatsTemplate;
+    final private QueryTemplate branchLevelTemplate;
+    final private QueryTemplate deleteNodesTemplate;
+    final private QueryTemplate contentGenerationTemplate;
+    final private QueryTemplate updateContentGenerationTemplate;
+    // the number of documents removed by each query of deleteBranch
+    private static final int deleteBatchSize = 500;
+    // the number of result nodes read by each query of streamSearchResult
+    private static final int streamBatchSize = 50;
+    // the time that a federated search waits after a database deadline for the cancelled query to return
+    private static final long federatedSearchGraceMs = 1000;
+    // applies to the search and node queries, which are the ones made while a user is waiting
+    private QueryDeadline queryDeadline = QueryDeadline.none;
+    // when set the searches and field value lists use this index rather than the database full text index
+    private FieldValueIndex fieldValueIndex = null;
+    // when set the inserts only ask the database whether a document exists when this filter might contain its ID
+    private KnownIdFilter knownIdFilter = null;
 //    final static public String guestUser = "guestdbuser";
 //    final static public String guestUserPass = "minfc8u4ng6s";
     final static public String guestUser = "admin"; // todo: the user name and password for admin and guest users needs to be determined and set
@@ -108,9 +170,167 @@ public class DataBaseManager<D, F, M> {
         this.fClass = fClass;
         this.mClass = mClass;
         this.databaseName = escapeBadChars(databaseName);
+        rootNodesTemplate = getRootNodesTemplate();
+        childNodesOfIdTemplate = getChildNodesOfAttributeTemplate("ID");
+        childNodesOfHdlTemplate = getChildNodesOfAttributeTemplate("ArchiveHandle");
+        childNodesOfUrlTemplate = getChildNodesOfAttributeTemplate("URI");
+        childSummariesTemplate = getChildSummariesTemplate();
+        nodesByIdTemplate = getNodesByAttributeTemplate("ID");
+        nodesInOrderTemplate = getNodesInOrderTemplate();
+        nodesByHdlTemplate = getNodesByAttributeTemplate("ArchiveHandle");
+        nodesByUrlTemplate = getNodesByAttributeTemplate("URI");
+        existingDocumentTemplate = new QueryTemplate("let $countValue := count(collection(\"" + this.databaseName + "\")/DataNode[@ID = $nodeId])\nreturn $countValue", "nodeId");
+        existingDocumentsTemplate = new QueryTemplate("string-join(distinct-values(collection(\"" + this.databaseName + "\")/DataNode[@ID = tokenize($attributeValues, '&#10;')]/@ID), '&#10;')", "attributeValues");
+        // the stats document is updated in place so that it stays correct without being recalculated after each crawl batch
+        insertedNodesStatsTemplate = new QueryTemplate("let $stats := db:open(\"" + this.databaseName + "\", \"" + dbStatsDocument + "\")/DatabaseStats\n"
+                + "let $insertedIds := tokenize($attributeValues, '&#10;')\n"
+                + "let $adoptedRoots := $stats/RootDocumentID[. = collection(\"" + this.databaseName + "\")/DataNode[@ID = $insertedIds]/ChildLink/@ID]\n"
+                + "return if (empty($stats)) then () else (\n"
+                + "replace value of node $stats/KnownDocuments with xs:integer($stats/KnownDocuments) + count($insertedIds),\n"
+                + "replace value of node $stats/RootDocuments with count($stats/RootDocumentID) - count($adoptedRoots),\n"
+                + "delete node $adoptedRoots)", "attributeValues");
+        linkedRootsStatsTemplate = new QueryTemplate("let $stats := db:open(\"" + this.databaseName + "\", \"" + dbStatsDocument + "\")/DatabaseStats\n"
+                + "let $newRoots := for $rootId in distinct-values(tokenize($attributeValues, '&#10;'))\n"
+                + "where not($rootId = $stats/RootDocumentID) and empty(collection(\"" + this.databaseName + "\")/DataNode/ChildLink[@ID = $rootId])\n"
+                + "return $rootId\n"
+                + "return if (empty($stats)) then () else (\n"
+                + "replace value of node $stats/MissingDocuments with count(db:open(\"" + this.databaseName + "\", \"" + linksDocument + "\")/" + linksDocument + "/MissingDocumentLinks),\n"
+                + "replace value of node $stats/RootDocuments with count($stats/RootDocumentID) + count($newRoots),\n"
+                + "insert node (for $rootId in $newRoots return <RootDocumentID>{$rootId}</RootDocumentID>) into $stats)", "attributeValues");
+        branchLevelTemplate = new QueryTemplate("string-join(for $dataNode in collection(\"" + this.databaseName + "\")/DataNode[@ID = tokenize($attributeValues, '&#10;')]\n"
+                + "return string-join(($dataNode/@ID/string(), $dataNode//ChildLink/@ID/string()), ' '), '&#10;')", "attributeValues");
+        deleteNodesTemplate = new QueryTemplate("let $deleteList := tokenize($attributeValues, '&#10;')\n"
+                + "let $recentLinks := collection(\"" + this.databaseName + "\")/" + linksDocument + "/RecentDocumentLinks[@ID = $deleteList]\n"
+                + "let $stats := db:open(\"" + this.databaseName + "\", \"" + dbStatsDocument + "\")/DatabaseStats\n"
+                // root documents that were only linked from the deleted nodes become root documents again
+                + "let $releasedRoots := for $rootId in distinct-values(collection(\"" + this.databaseName + "\")/DataNode[@ID = $deleteList]/ChildLink/@ID[. = collection(\"" + this.databaseName + "\")/" + linksDocument + "/RootDocumentLinks/@ID])\n"
+                + "where empty(collection(\"" + this.databaseName + "\")/DataNode[ChildLink/@ID = $rootId][not(@ID = $deleteList)])\n"
+                + "return $rootId\n"
+                // update the list of missing documents by moving the relevant IDs to MissingDocumentLinks from RecentDocumentLinks
+                + "return (\n"
+                + "for $n in $recentLinks\n"
+                + "return rename node $n as 'MissingDocumentLinks',\n"
+                // delete the actual documents from the database
+                + "delete node collection(\"" + this.databaseName + "\")/DataNode[@ID = $deleteList],\n"
+                + "for $deletedId in $deleteList\n"
+                + "return db:delete(\"" + this.databaseName + "\", concat(\"" + childIndexCollection + "/\", $deletedId)),\n"
+                // keep the stats document in step with the deletion
+                + "if (empty($stats)) then () else (\n"
+                + "replace value of node $stats/KnownDocuments with xs:integer($stats/KnownDocuments) - count($deleteList),\n"
+                + "replace value of node $stats/MissingDocuments with xs:integer($stats/MissingDocuments) + count($recentLinks),\n"
+                + "replace value of node $stats/RootDocuments with count($stats/RootDocumentID) + count($releasedRoots),\n"
+                + "insert node (for $rootId in $releasedRoots return <RootDocumentID>{$rootId}</RootDocumentID>) into $stats)\n"
+                + ")", "attributeValues");
+        contentGenerationTemplate = new QueryTemplate("string(db:open(\"" + this.databaseName + "\", \"" + contentGenerationDocument + "\")/" + contentGenerationDocument + ")");
+        // the stored facets were calculated from the previous contents, so they are deleted in the same update and calculated again when next requested
+        updateContentGenerationTemplate = new QueryTemplate("(db:replace(\"" + this.databaseName + "\", \"" + contentGenerationDocument + "\", <" + contentGenerationDocument + ">{$generation}</" + contentGenerationDocument + ">),\n"
+                + "db:delete(\"" + this.databaseName + "\", \"" + facetsCollection + "\"))", "generation");
 //        dbAdaptor.checkDbExists(databaseName);
     }
 
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    /**
+     * Sets the deadline for the search and node queries made by this manager,
+     * a query still running when it passes is cancelled and a
+     * QueryTimeoutException is thrown.
+     *
+     * @param queryDeadline normally the time budget of the request that this
+     * manager was created for
+     */
+    public void setQueryDeadline(QueryDeadline queryDeadline) {
+        this.queryDeadline = queryDeadline;
+    }
+
+    public QueryDeadline getQueryDeadline() {
+        return queryDeadline;
+    }
+
+    /**
+     * Sets the Lucene index of field values that is used for the searches and
+     * field value lists. When the index is writable the inserted data nodes
+     * are also added to it.
+     *
+     * @param fieldValueIndex the index for this database or null to search
+     * the database directly
+     */
+    public void setFieldValueIndex(FieldValueIndex fieldValueIndex) {
+        this.fieldValueIndex = fieldValueIndex;
+    }
+
+    public FieldValueIndex getFieldValueIndex() {
+        return fieldValueIndex;
+    }
+
+    /**
+     * Replaces the contents of the field value index with the fields of every
+     * data node in the database, which is needed when the index is added to
+     * a database that was crawled without it.
+     *
+     * @return the number of data nodes indexed
+     * @throws QueryException
+     */
+    public int rebuildFieldValueIndex() throws QueryException {
+        if (fieldValueIndex == null || !fieldValueIndex.isWritable()) {
+            throw new QueryException("No writable field value index has been set");
+        }
+        fieldValueIndex.deleteAll();
+        final List<SerialisableDataNode> pendingNodes = new ArrayList<SerialisableDataNode>();
+        final int nodeCount;
+        try {
+            nodeCount = getNamedAdaptor("index documents").executeQuery(databaseName, "collection('" + databaseName + "/" + crawledDataCollection + "')/DataNode",
+                    new SearchHitReader<SerialisableDataNode>(JaxbCodec.getCodec(SerialisableDataNode.class, fClass, mClass), SerialisableDataNode.class, new SearchHitListener<SerialisableDataNode>() {
+                        public void searchHitFound(SerialisableDataNode dataNode) throws QueryException {
+                            pendingNodes.add(dataNode);
+                            if (pendingNodes.size() >= 1000) {
+                                fieldValueIndex.addDataNodes(pendingNodes);
+                                pendingNodes.clear();
+                            }
+                        }
+                    }, false));
+        } catch (JAXBException exception) {
+            throw new QueryException("Error reading the data nodes to index", exception);
+        }
+        fieldValueIndex.addDataNodes(pendingNodes);
+        return nodeCount;
+    }
+
+    /**
+     * Reads the IDs of all of the data nodes in the database into a filter
+     * that is kept up to date by the inserts, after which an insert only
+     * checks the database for an existing document when the filter might
+     * contain its ID. This is intended for the crawler, where most inserted
+     * documents are new.
+     *
+     * @return the number of IDs read from the database
+     * @throws QueryException
+     */
+    public int loadKnownIdFilter() throws QueryException {
+        final String countResult = getNamedAdaptor("document count").executeQuery(databaseName, "count(collection(\"" + databaseName + "\")/DataNode)");
+        final int knownCount = Integer.parseInt(countResult.trim());
+        // room for the crawl to double the database before the false positives rise
+        final KnownIdFilter loadedFilter = new KnownIdFilter(knownCount * 2);
+        getNamedAdaptor("known IDs").executeQuery(databaseName, "string-join(collection(\"" + databaseName + "\")/DataNode/@ID/string(), '&#10;')", new QueryResultHandler<Object>() {
+            public Object handleResult(InputStream resultStream) throws QueryException {
+                try {
+                    BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(resultStream, "UTF-8"));
+                    for (String line; (line = bufferedReader.readLine()) != null;) {
+                        if (!line.isEmpty()) {
+                            loadedFilter.addLoadedId(line);
+                        }
+                    }
+                } catch (IOException exception) {
+                    throw new QueryException(exception);
+                }
+                return null;
+            }
+        });
+        knownIdFilter = loadedFilter;
+        return knownCount;
+    }
+
     /**
      * Verifies that the database exists and create a new empty database if it
      * does not
@@ -121,6 +341,36 @@ public class DataBaseManager<D, F, M> {
         dbAdaptor.checkDbExists(databaseName);
     }
 
+    /**
+     * Gets the stamp of the current contents of the database, which is
+     * replaced by updateContentGeneration after each change
+     *
+     * @return the content generation, or an empty string if the database
+     * does not have one yet
+     * @throws QueryException
+     */
+    public String getContentGeneration() throws QueryException {
+        return getNamedAdaptor("content generation").executeQuery(databaseName, contentGenerationTemplate, new HashMap<String, String>()).trim();
+    }
+
+    /**
+     * Stores a new content generation stamp in the database, this is called by
+     * the crawler after each batch and after a branch is deleted so that the
+     * clients of the REST service see that their copies are out of date
+     *
+     * @return the new content generation
+     * @throws QueryException
+     */
+    public String updateContentGeneration() throws QueryException {
+        final String contentGeneration = Long.toString(System.currentTimeMillis(), 36) + "-" + Integer.toString(contentGenerationCounter.incrementAndGet(), 36);
+        final Map<String, String> queryVariables = new HashMap<String, String>();
+        queryVariables.put("generation", contentGeneration);
+        getNamedAdaptor("update content generation").executeQuery(databaseName, updateContentGenerationTemplate, queryVariables);
+        QueryResultCache.nextGeneration(databaseName);
+        ContentGenerationCache.getSharedCache().setGeneration(databaseName, contentGeneration);
+        return contentGeneration;
+    }
+
     /**
      * Drop the entire database if it exists and create a new empty database
      *
@@ -128,6 +378,14 @@ public class DataBaseManager<D, F, M> {
      */
     public void dropAllRecords() throws QueryException {
         dbAdaptor.dropAndRecreateDb(databaseName);
+        if (fieldValueIndex != null && fieldValueIndex.isWritable()) {
+            fieldValueIndex.deleteAll();
+        }
+        if (knownIdFilter != null) {
+            knownIdFilter = new KnownIdFilter(0);
+        }
+        // this also drops the cached query results
+        updateContentGeneration();
 //        dbAdaptor.deleteDocument(databaseName, crawledDataCollection);
 //        dbAdaptor.deleteDocument(databaseName, dbStatsDocument);
 //        dbAdaptor.deleteDocument(databaseName, iconTableDocument);
@@ -142,6 +400,7 @@ public class DataBaseManager<D, F, M> {
      */
     public void clearDatabaseStats() throws QueryException {
         dbAdaptor.deleteDocument(databaseName, dbStatsDocument);
+        QueryResultCache.nextGeneration(databaseName);
     }
 
     /**
@@ -159,20 +418,43 @@ public class DataBaseManager<D, F, M> {
         logger.debug(queryTimeString);
     }
 
-    private String getCachedVersion(String cachedDocument, String queryString) throws QueryException {
-        String statsCachedQuery = "for $statsDoc in collection(\"" + databaseName + "\")\n"
-                + "where matches(document-uri($statsDoc), '" + cachedDocument + "')\n"
+    /**
+     * @param queryName the name that the query metrics report the query by
+     * @return the adaptor that records its queries under this name, or the
+     * adaptor itself when it does not record query metrics
+     */
+    private DbAdaptor getNamedAdaptor(String queryName) {
+        return (dbAdaptor instanceof InstrumentedDbAdaptor) ? ((InstrumentedDbAdaptor) dbAdaptor).withQueryName(queryName) : dbAdaptor;
+    }
+
+    private String getCachedVersion(String queryName, String cachedDocument, String queryString) throws QueryException {
+        // reading the content generation first drops the in memory results when another process, such as the crawler, has changed the database
+        final String contentGeneration = ContentGenerationCache.getSharedCache().getGeneration(this);
+        // the in memory cache saves the scan of the document URIs that finding the cached document needs
+        final String queryKey = cachedDocument + "\n" + queryString;
+        final long generation = QueryResultCache.getGeneration(databaseName);
+        final String memoryResult = QueryResultCache.getSharedCache().get(databaseName, queryKey);
+        if (memoryResult != null) {
+            return memoryResult;
+        }
+        // opening the document by its path avoids scanning the URIs of every document in the database
+        String statsCachedQuery = "for $statsDoc in db:open(\"" + databaseName + "\", '" + cachedDocument + "')\n"
+                + "where db:path($statsDoc) eq '" + cachedDocument + "'\n"
                 + "return $statsDoc";
         String queryResult;
-        queryResult = dbAdaptor.executeQuery(databaseName, statsCachedQuery);
+        queryResult = getNamedAdaptor(queryName + " cache lookup").executeQuery(databaseName, statsCachedQuery);
         if (queryResult.length() < 2) {
             // calculate the stats
-            queryResult = dbAdaptor.executeQuery(databaseName, queryString);
+            queryResult = getNamedAdaptor(queryName).executeQuery(databaseName, queryString);
             String resultCacheFlagged = queryResult.replaceFirst("<Cached>false</Cached>", "<Cached>true</Cached>");
-            // insert the stats as a document
-            dbAdaptor.addDocument(databaseName, cachedDocument, resultCacheFlagged);
+            if (contentGeneration.equals(getContentGeneration())) {
+                // insert the stats as a document
+                dbAdaptor.addDocument(databaseName, cachedDocument, resultCacheFlagged);
+            }
+            // otherwise the database changed while the result was calculated, so the result is not stored where it would outlive that change
         }
 //        logger.debug("queryResult: " + queryResult);
+        QueryResultCache.getSharedCache().put(databaseName, queryKey, queryResult, generation);
         return queryResult;
     }
 
@@ -185,7 +467,7 @@ public class DataBaseManager<D, F, M> {
     public String[] getDatabaseList() throws QueryException {
 //        String queryResult = dbAdaptor.executeQuery(databaseName, "for $databaseName in db:list()\n"
 //                + "return <String>{$databaseName}</String>");
-        String queryResult = dbAdaptor.executeQuery(databaseName, "db:list()");
+        String queryResult = getNamedAdaptor("database list").executeQuery(databaseName, "db:list()");
         logger.debug("databaseList: " + queryResult);
         return queryResult.split(" ");
     }
@@ -194,19 +476,17 @@ public class DataBaseManager<D, F, M> {
         long startTime = System.currentTimeMillis();
         String databaseListQuery = "<DatabaseList>{\n"
                 + "for $dbName in db:list() return <DatabaseInfo><DatabaseName>{$dbName}</DatabaseName>{"
-                + "for $statsDoc in collection($dbName)/" + dbStatsDocument + "\n"
+                + "for $statsDoc in db:open($dbName, \"" + dbStatsDocument + "\")/" + dbStatsDocument + "\n"
                 + "return $statsDoc,\n"
-                + "for $iconDoc in collection($dbName)/" + iconTableDocument + "\n"
+                + "for $iconDoc in db:open($dbName, \"" + iconTableDocument + "\")/" + iconTableDocument + "\n"
                 + "return $iconDoc\n"
                 + "}</DatabaseInfo>}</DatabaseList>\n";
         String queryResult;
 //        logger.info("databaseListQuery: " + databaseListQuery);
-        queryResult = dbAdaptor.executeQuery(databaseName, databaseListQuery);
+        queryResult = getNamedAdaptor("database stats list").executeQuery(databaseName, databaseListQuery);
 //        logger.info("databaseList: " + queryResult);
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(DatabaseList.class, DatabaseStats.class, DataNodeId.class);
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-            DatabaseList databaseList = (DatabaseList) unmarshaller.unmarshal(new StreamSource(new StringReader(queryResult)), DatabaseList.class).getValue();
+            DatabaseList databaseList = JaxbCodec.getCodec(DatabaseList.class, DatabaseStats.class, DataNodeId.class).unmarshal(queryResult, DatabaseList.class);
             long queryMils = System.currentTimeMillis() - startTime;
             databaseList.setQueryTimeMS(queryMils);
             return databaseList;
@@ -236,11 +516,9 @@ public class DataBaseManager<D, F, M> {
                 + "<Cached>false</Cached>\n"
                 + "{for $rootDocId in $rootNodes return <RootDocumentID>{$rootDocId}</RootDocumentID>}\n"
                 + "</DatabaseStats>\n";
-        String queryResult = getCachedVersion(dbStatsDocument, statsQuery);
+        String queryResult = getCachedVersion("database stats", dbStatsDocument, statsQuery);
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(DatabaseStats.class, DataNodeId.class);
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-            DatabaseStats databaseStats = (DatabaseStats) unmarshaller.unmarshal(new StreamSource(new StringReader(queryResult)), DatabaseStats.class).getValue();
+            DatabaseStats databaseStats = JaxbCodec.getCodec(DatabaseStats.class, DataNodeId.class).unmarshal(queryResult, DatabaseStats.class);
             long queryMils = System.currentTimeMillis() - startTime;
 //            String queryTimeString = "DatabaseStats Query time: " + queryMils + "ms";
             databaseStats.setQueryTimeMS(queryMils);
@@ -268,7 +546,7 @@ public class DataBaseManager<D, F, M> {
                 + "return $missingIds[matches(., '\\.[icIC][mM][dD][iI]$')][position() le 1000]\n"; // <DataNodeId> </DataNodeId>
         logger.debug("filtering by suffix on cmdi and imdi (this must be removed when a better solution is defined)");// todo: resolve this issue
 //        logger.debug("getHandlesOfMissing: " + queryString);
-        String queryResult = dbAdaptor.executeQuery(databaseName, queryString);
+        String queryResult = getNamedAdaptor("handles of missing").executeQuery(databaseName, queryString);
         long queryMils = System.currentTimeMillis() - startTime;
         String queryTimeString = "Query time: " + queryMils + "ms";
         final String sampleDateTime = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());;
@@ -276,7 +554,7 @@ public class DataBaseManager<D, F, M> {
                 + "let $knownIds := collection(\"" + databaseName + "\")/DataNode/@ID\n"
                 + "return\n"
                 + "<CrawlerStats linkcount='{count($childIds)}' documentcount='{count($knownIds)}' queryms='" + queryMils + "' timestamp='" + sampleDateTime + "'/>";
-        String statsDoc = dbAdaptor.executeQuery(databaseName, statsQuery);
+        String statsDoc = getNamedAdaptor("crawler stats").executeQuery(databaseName, statsQuery);
         logger.debug("stats:" + statsDoc);
         // insert the stats document
         dbAdaptor.addDocument(databaseName, "CrawlerStats/" + sampleDateTime, statsDoc);
@@ -302,17 +580,14 @@ public class DataBaseManager<D, F, M> {
         DatabaseLinks updatedDatabaseLinks;
         try {
             String docTestQueryString = "if(fn:empty(collection(\"" + databaseName + "\")/" + linksDocument + ")) then (0)else(1)";
-            String docTestResult = dbAdaptor.executeQuery(databaseName, docTestQueryString);
+            String docTestResult = getNamedAdaptor("links document exists").executeQuery(databaseName, docTestQueryString);
 
-            JAXBContext jaxbContext = JAXBContext.newInstance(DatabaseLinks.class, DataNodeLink.class);
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            StringWriter stringWriter = new StringWriter();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-            marshaller.marshal(databaseLinks, stringWriter);
+            final JaxbCodec linksCodec = JaxbCodec.getCodec(DatabaseLinks.class, DataNodeLink.class);
+            final String linksDocumentString = linksCodec.marshal(databaseLinks);
             if (docTestResult.equals("1")) {
                 // update the document
                 String insertString = "let $updatedLinks := "
-                        + stringWriter.toString().replaceFirst("^\\<\\?[^\\?]*\\?\\>", "") // remove the xml header that xquery cant have in a variable
+                        + linksDocumentString.replaceFirst("^\\<\\?[^\\?]*\\?\\>", "") // remove the xml header that xquery cant have in a variable
                         + "\n"
                         + "return (\n"
                         // delete any recently added documents from the missing list
@@ -321,17 +596,22 @@ public class DataBaseManager<D, F, M> {
                         + ",\ninsert node $updatedLinks/RootDocumentLinks[not(@ID=collection(\"" + databaseName + "\")/" + linksDocument + "/RootDocumentLinks/@ID)][not(@ID=collection(\"" + databaseName + "\")/DataNode/ChildLink)] into collection(\"" + databaseName + "\")/" + linksDocument
                         // update the list of missing documents
                         + ",\ninsert node $updatedLinks/MissingDocumentLinks[not(@ID=collection(\"" + databaseName + "\")/" + linksDocument + "/MissingDocumentLinks/@ID)] into collection(\"" + databaseName + "\")/" + linksDocument + ")";
-                dbAdaptor.executeQuery(databaseName, insertString);
+                getNamedAdaptor("merge database links").executeQuery(databaseName, insertString);
                 // this seems be slow with the following stats: stats:<CrawlerStats linkcount="215516" documentcount="45955" queryms="8114061" timestamp="20130903132702"/> Query time: 8114061ms
                 // instead we now delete via the list of newly added nodes and filter the inbound list of links
 //                String deleteQuery = "delete node collection(\"" + databaseName + "\")/" + linksDocument + "/MissingDocumentLinks[@ID = collection(\"" + databaseName + "\")/DataNode/@ID]";
 //                dbAdaptor.executeQuery(databaseName, deleteQuery);
             } else if (docTestResult.equals("0")) {
                 // add the document
-                dbAdaptor.addDocument(databaseName, linksDocument, stringWriter.toString());
+                dbAdaptor.addDocument(databaseName, linksDocument, linksDocumentString);
             } else {
                 throw new QueryException("unexpected state for DatabaseLinks document");
             }
+            final List<String> rootIds = new ArrayList<String>();
+            for (DataNodeLink rootLink : databaseLinks.getRootLinks()) {
+                rootIds.add(rootLink.getIdString());
+            }
+            getNamedAdaptor("linked roots stats").executeQuery(databaseName, linkedRootsStatsTemplate, getAttributeValuesVariables(rootIds));
             final String filterQuery;
             if (selectionFilter != null) {
                 filterQuery = "[@URI contains text '" + selectionFilter + "']";
@@ -340,10 +620,9 @@ public class DataBaseManager<D, F, M> {
             }
             final String queryString = "<DatabaseLinks>{collection(\"" + databaseName + "\")/" + linksDocument + "/MissingDocumentLinks" + filterQuery + "[position() le " + numberToGet + "]}</DatabaseLinks>";
             System.out.println(queryString);
-            String queryResult = dbAdaptor.executeQuery(databaseName, queryString);
+            String queryResult = getNamedAdaptor("missing links").executeQuery(databaseName, queryString);
             logger.debug("updatedDatabaseLinks: " + queryResult);
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-            updatedDatabaseLinks = (DatabaseLinks) unmarshaller.unmarshal(new StreamSource(new StringReader(queryResult)), DatabaseLinks.class).getValue();
+            updatedDatabaseLinks = linksCodec.unmarshal(queryResult, DatabaseLinks.class);
         } catch (JAXBException exception) {
             System.err.println("jaxb error:" + exception.getMessage());
             throw new PluginException(exception);
@@ -359,14 +638,66 @@ public class DataBaseManager<D, F, M> {
                 + "let $knownIds := collection(\"" + databaseName + "\")/DataNode/@ID\n"
                 + "return\n"
                 + "<CrawlerStats linkcount='{count($childIds)}' documentcount='{count($knownIds)}' queryms='" + queryMils + "' timestamp='" + sampleDateTime + "' freebytes='" + freeMemory + "' totalbytes='" + totalMemory + "' maxMemory='" + maxMemory + "'/>";
-        String statsDoc = dbAdaptor.executeQuery(databaseName, statsQuery);
+        String statsDoc = getNamedAdaptor("crawler stats").executeQuery(databaseName, statsQuery);
         logger.debug("stats:" + statsDoc);
         // insert the stats document
         dbAdaptor.addDocument(databaseName, "CrawlerStats/" + sampleDateTime, statsDoc);
+        // the links document has changed which changes the database stats
+        QueryResultCache.nextGeneration(databaseName);
         logger.debug(queryTimeString);
         return updatedDatabaseLinks.getChildLinks(); // the results here need to be split on " ", but the string can be very long so it should not be done by String.split().
     }
 
+    /**
+     * Reads the whole DatabaseLinks document, for use by a crawler that keeps
+     * its own record of the links while it runs
+     *
+     * @return the links stored in the database, which are empty if the
+     * document does not exist yet
+     * @throws PluginException
+     * @throws QueryException
+     */
+    public DatabaseLinks getDatabaseLinks() throws PluginException, QueryException {
+        final String queryString = "db:open(\"" + databaseName + "\", \"" + linksDocument + "\")/" + linksDocument;
+        final String queryResult = getNamedAdaptor("database links").executeQuery(databaseName, queryString);
+        if (queryResult.trim().isEmpty()) {
+            return new DatabaseLinks();
+        }
+        try {
+            return JaxbCodec.getCodec(DatabaseLinks.class, DataNodeLink.class).unmarshal(queryResult, DatabaseLinks.class);
+        } catch (JAXBException exception) {
+            System.err.println("jaxb error:" + exception.getMessage());
+            throw new PluginException(exception);
+        }
+    }
+
+    /**
+     * Replaces the DatabaseLinks document with the current links of a
+     * crawler, which is written once at the end of a crawl rather than being
+     * merged with each batch as getHandlesOfMissing does
+     *
+     * @param databaseLinks the complete set of root, missing and recent links
+     * @throws PluginException
+     * @throws QueryException
+     */
+    public void replaceDatabaseLinks(DatabaseLinks databaseLinks) throws PluginException, QueryException {
+        final String linksDocumentString;
+        try {
+            linksDocumentString = JaxbCodec.getCodec(DatabaseLinks.class, DataNodeLink.class).marshal(databaseLinks);
+        } catch (JAXBException exception) {
+            System.err.println("jaxb error:" + exception.getMessage());
+            throw new PluginException(exception);
+        }
+        dbAdaptor.deleteDocument(databaseName, linksDocument);
+        dbAdaptor.addDocument(databaseName, linksDocument, linksDocumentString);
+        final List<String> rootIds = new ArrayList<String>();
+        for (DataNodeLink rootLink : databaseLinks.getRootLinks()) {
+            rootIds.add(rootLink.getIdString());
+        }
+        getNamedAdaptor("linked roots stats").executeQuery(databaseName, linkedRootsStatsTemplate, getAttributeValuesVariables(rootIds));
+        QueryResultCache.nextGeneration(databaseName);
+    }
+
     /**
      * Retrieves the document of all the known node types and the icons for each
      * type from the database in base 64 format
@@ -381,12 +712,11 @@ public class DataBaseManager<D, F, M> {
                 + "where matches(document-uri($statsDoc), '" + iconTableDocument + "')\n"
                 + "return $statsDoc";
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(IconTableBase64.class);
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+            final JaxbCodec iconCodec = JaxbCodec.getCodec(IconTableBase64.class);
             String queryResult;
-            queryResult = dbAdaptor.executeQuery(databaseName, iconTableQuery);
+            queryResult = getNamedAdaptor("icon table").executeQuery(databaseName, iconTableQuery);
 //            logger.debug("queryResult: " + queryResult);
-            return (IconTableBase64) unmarshaller.unmarshal(new StreamSource(new StringReader(queryResult)), IconTableBase64.class).getValue();
+            return iconCodec.unmarshal(queryResult, IconTableBase64.class);
         } catch (JAXBException exception) {
             throw new PluginException(exception);
         }
@@ -405,12 +735,11 @@ public class DataBaseManager<D, F, M> {
                 + "where matches(document-uri($iconTable), '" + iconTableDocument + "')\n"
                 + "return $iconTable";
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(IconTable.class);
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+            final JaxbCodec iconCodec = JaxbCodec.getCodec(IconTable.class);
             String queryResult;
-            queryResult = dbAdaptor.executeQuery(databaseName, iconTableQuery);
+            queryResult = getNamedAdaptor("icon table").executeQuery(databaseName, iconTableQuery);
             //logger.debug("queryResult: " + queryResult);
-            return (IconTable) unmarshaller.unmarshal(new StreamSource(new StringReader(queryResult)), IconTable.class).getValue();
+            return iconCodec.unmarshal(queryResult, IconTable.class);
         } catch (JAXBException exception) {
             throw new PluginException(exception);
         }
@@ -439,13 +768,10 @@ public class DataBaseManager<D, F, M> {
         dbAdaptor.deleteDocument(databaseName, iconTableDocument);
         // use JAXB to serialise and insert the IconTable into the database
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(IconTable.class);
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            StringWriter stringWriter = new StringWriter();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-            marshaller.marshal(iconTable, stringWriter);
-            //logger.debug("NodeIcons to be inserted:\n" + stringWriter.toString());
-            dbAdaptor.addDocument(databaseName, iconTableDocument, stringWriter.toString());
+            final String iconTableString = JaxbCodec.getCodec(IconTable.class).marshal(iconTable);
+            //logger.debug("NodeIcons to be inserted:\n" + iconTableString);
+            dbAdaptor.addDocument(databaseName, iconTableDocument, iconTableString);
+            QueryResultCache.nextGeneration(databaseName);
             getNodeIcons(); // do we really need to be calling getNodeIcons at this point?
         } catch (JAXBException exception) {
             System.err.println("jaxb error:" + exception.getMessage());
@@ -467,7 +793,7 @@ public class DataBaseManager<D, F, M> {
                 + "count(collection(\"unit-test-database\")/DatabaseLinks/RecentDocumentLinks),\n"
                 + "count(collection(\"unit-test-database\")/DataNode)\n"; // <DataNodeId> </DataNodeId>
         logger.debug("getHandlesOfMissing: " + queryString);
-        String queryResult = dbAdaptor.executeQuery(databaseName, queryString);
+        String queryResult = getNamedAdaptor("database links counts").executeQuery(databaseName, queryString);
         return queryResult; // the results here could to be split on " " but a string comparison of the expected will do the job in the unit test for which this is intended
     }
 
@@ -475,29 +801,100 @@ public class DataBaseManager<D, F, M> {
      * Takes a node id and deletes it and all of its children from the database, starting with the leaves first.
      * When each node is deleted it's ID must be removed from the RecentDocumentLinks and added to the MissingDocumentLinks in the database.
      * Once this is run, the database can be updated with a standard append in the command line tool and the deleted nodes will be recrawled.    
+     * The branch is found with one query per level of the tree and is then deleted in batches, each in its own query so that readers are not blocked for the whole deletion.
      * @param nodeId the ID of the data node that will with all its child nodes be deleted from the database so that it can be recrawled
      * @returns affectedDocumentCount which is the number of deleted documents. 
      */
-    public void deleteBranch(String nodeId) throws NumberFormatException, QueryException {
+    public int deleteBranch(String nodeId) throws NumberFormatException, QueryException {
         logger.debug("Deleting branch {}", nodeId);
-        String deleteBranchQuery = //"collection(\"" + databaseName + "\")/DataNode[@ID eq \"" + nodeId + "\"]//ChildLink";
-                "declare function local:branchDelete($nodeId as xs:string)\n"
-                + "{\n"
-                + " for $childId in collection(\"" + databaseName + "\")/DataNode[@ID eq $nodeId]//ChildLink/@ID/string()\n"
-                + " return local:branchDelete($childId)\n"
-                + ",\n"
-                + "collection(\"" + databaseName + "\")/DataNode[@ID eq $nodeId]/@ID/string()\n"
-                + "};\n"
-                + "let $deleteList := local:branchDelete(\"" + nodeId + "\")\n"
-                // update the list of missing documents by moving the relevant IDs to MissingDocumentLinks from RecentDocumentLinks
-                + "return (\n"
-                + "for $n in collection(\"" + databaseName + "\")/DatabaseLinks/RecentDocumentLinks[@ID = $deleteList]\n"
-                + "return rename node $n as 'MissingDocumentLinks',\n"
-                // delete the actual documents from the database
-                + "delete node collection(\"" + databaseName + "\")/DataNode[@ID = $deleteList]\n"
-                + ")\n";
-        logger.trace(deleteBranchQuery);
-        dbAdaptor.executeQuery(databaseName, deleteBranchQuery);
+        final List<List<String>> branchLevels = getBranchLevels(nodeId);
+        int branchSize = 0;
+        for (List<String> branchLevel : branchLevels) {
+            branchSize += branchLevel.size();
+        }
+        int deletedCount = 0;
+        final List<String> deleteBatch = new ArrayList<String>();
+        // the deepest level is deleted first so that an interrupted delete can be run again from the same node
+        for (int levelIndex = branchLevels.size() - 1; levelIndex >= 0; levelIndex--) {
+            for (String deleteId : branchLevels.get(levelIndex)) {
+                deleteBatch.add(deleteId);
+                if (deleteBatch.size() >= deleteBatchSize) {
+                    deletedCount += deleteNodes(deleteBatch);
+                    logger.info("Deleted {} of {} documents in branch {}", new Object[]{deletedCount, branchSize, nodeId});
+                }
+            }
+        }
+        deletedCount += deleteNodes(deleteBatch);
+        logger.info("Deleted {} of {} documents in branch {}", new Object[]{deletedCount, branchSize, nodeId});
+        updateContentGeneration();
+        return deletedCount;
+    }
+
+    /**
+     * Walks the child links of a branch one level at a time, each data node is
+     * only included once even if it is linked from more than one parent
+     *
+     * @param nodeId the ID of the data node at the top of the branch
+     * @return the IDs of the data nodes in the branch that are in the
+     * database, grouped by their depth in the branch
+     * @throws QueryException
+     */
+    private List<List<String>> getBranchLevels(String nodeId) throws QueryException {
+        final List<List<String>> branchLevels = new ArrayList<List<String>>();
+        final Set<String> visitedIds = new HashSet<String>();
+        visitedIds.add(nodeId);
+        List<String> levelIds = Collections.singletonList(nodeId);
+        while (!levelIds.isEmpty()) {
+            final List<String> foundIds = new ArrayList<String>();
+            final List<String> childIds = new ArrayList<String>();
+            // each line of the result is the ID of a data node followed by the IDs of its child links
+            final String queryResult = getNamedAdaptor("branch levels").executeQuery(databaseName, branchLevelTemplate, getAttributeValuesVariables(levelIds));
+            for (String resultLine : queryResult.split("\n")) {
+                final String[] lineIds = resultLine.trim().split(" ");
+                if (lineIds[0].isEmpty()) {
+                    continue;
+                }
+                foundIds.add(lineIds[0]);
+                for (int childIndex = 1; childIndex < lineIds.length; childIndex++) {
+                    if (visitedIds.add(lineIds[childIndex])) {
+                        childIds.add(lineIds[childIndex]);
+                    }
+                }
+            }
+            if (!foundIds.isEmpty()) {
+                branchLevels.add(foundIds);
+            }
+            levelIds = childIds;
+        }
+        return branchLevels;
+    }
+
+    /**
+     * Deletes one batch of a branch and moves the links of the deleted
+     * documents from the RecentDocumentLinks to the MissingDocumentLinks
+     *
+     * @param deleteBatch the IDs to delete, which is cleared once they have
+     * been deleted
+     * @return the number of deleted documents
+     * @throws QueryException
+     */
+    private int deleteNodes(List<String> deleteBatch) throws QueryException {
+        if (deleteBatch.isEmpty()) {
+            return 0;
+        }
+        getNamedAdaptor("delete nodes").executeQuery(databaseName, deleteNodesTemplate, getAttributeValuesVariables(deleteBatch));
+        if (knownIdFilter != null) {
+            for (String deletedId : deleteBatch) {
+                knownIdFilter.removeId(deletedId);
+            }
+        }
+        if (fieldValueIndex != null && fieldValueIndex.isWritable()) {
+            fieldValueIndex.deleteDataNodes(deleteBatch);
+        }
+        QueryResultCache.nextGeneration(databaseName);
+        final int deletedCount = deleteBatch.size();
+        deleteBatch.clear();
+        return deletedCount;
     }
 
     /**
@@ -512,18 +909,31 @@ public class DataBaseManager<D, F, M> {
      */
     public void insertIntoDatabase(SerialisableDataNode dataNode, boolean throwOnDuplicate) throws PluginException, QueryException, ModelException {
         // test for existing documents with the same ID and optionally throw if one is found
-        String existingDocumentQuery = "let $countValue := count(collection(\"" + databaseName + "\")/DataNode[@ID = \"" + dataNode.getID() + "\"])\nreturn $countValue";
-        String existingDocumentResult = dbAdaptor.executeQuery(databaseName, existingDocumentQuery);
+        final String existingDocumentResult;
+        if (knownIdFilter != null && knownIdFilter.isKnown(dataNode.getID())) {
+            existingDocumentResult = "1";
+        } else if (knownIdFilter != null && !knownIdFilter.mightBeKnown(dataNode.getID())) {
+            existingDocumentResult = "0";
+        } else {
+            final Map<String, String> queryVariables = new HashMap<String, String>();
+            queryVariables.put("nodeId", dataNode.getID());
+            existingDocumentResult = getNamedAdaptor("existing document").executeQuery(databaseName, existingDocumentTemplate, queryVariables);
+        }
         if (existingDocumentResult.equals("0")) {
             // use JAXB to serialise and insert the data node into the database
             try {
-                JAXBContext jaxbContext = JAXBContext.newInstance(dClass, fClass, mClass);
-                Marshaller marshaller = jaxbContext.createMarshaller();
-                StringWriter stringWriter = new StringWriter();
-                marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-                marshaller.marshal(dataNode, stringWriter);
-//            logger.debug("Data to be inserted:\n" + stringWriter.toString());
-                dbAdaptor.addDocument(databaseName, crawledDataCollection + "/" + dataNode.getID(), stringWriter.toString());
+                final String dataNodeString = getNodeCodec().marshal(dataNode);
+//            logger.debug("Data to be inserted:\n" + dataNodeString);
+                dbAdaptor.addDocument(databaseName, crawledDataCollection + "/" + dataNode.getID(), dataNodeString);
+                dbAdaptor.addDocument(databaseName, childIndexCollection + "/" + dataNode.getID(), getChildIndexDocument(dataNode));
+                getNamedAdaptor("inserted nodes stats").executeQuery(databaseName, insertedNodesStatsTemplate, getAttributeValuesVariables(Collections.singletonList(dataNode.getID())));
+                if (fieldValueIndex != null && fieldValueIndex.isWritable()) {
+                    fieldValueIndex.addDataNodes(Collections.singletonList(dataNode));
+                }
+                if (knownIdFilter != null) {
+                    knownIdFilter.addInsertedId(dataNode.getID());
+                }
+                QueryResultCache.nextGeneration(databaseName);
             } catch (JAXBException exception) {
                 System.err.println("jaxb error:" + exception.getMessage());
                 throw new PluginException(exception);
@@ -536,6 +946,109 @@ public class DataBaseManager<D, F, M> {
         }
     }
 
+    /**
+     * Inserts a collection of documents into the database using one query to
+     * find the existing documents and batched commits for the new ones, which
+     * is much faster than calling insertIntoDatabase for each document
+     *
+     * @param dataNodes the data nodes to be inserted into the database
+     * @param throwOnDuplicate if true nothing is inserted when any of the
+     * documents already exist in the database
+     * @throws PluginException
+     * @throws QueryException
+     */
+    public void insertAllIntoDatabase(Collection<? extends SerialisableDataNode> dataNodes, boolean throwOnDuplicate) throws PluginException, QueryException, ModelException {
+        if (dataNodes.isEmpty()) {
+            return;
+        }
+        // find all of the existing documents for this batch in one query
+        final List<String> dataNodeIds = new ArrayList<String>();
+        final Set<String> knownIds = new HashSet<String>();
+        for (SerialisableDataNode dataNode : dataNodes) {
+            if (knownIdFilter == null || (knownIdFilter.mightBeKnown(dataNode.getID()) && !knownIdFilter.isKnown(dataNode.getID()))) {
+                dataNodeIds.add(dataNode.getID());
+            } else if (knownIdFilter.isKnown(dataNode.getID())) {
+                knownIds.add(dataNode.getID());
+            }
+        }
+        final Set<String> existingIds = (dataNodeIds.isEmpty()) ? knownIds : getNamedAdaptor("existing documents").executeQuery(databaseName, existingDocumentsTemplate, getAttributeValuesVariables(dataNodeIds), new QueryResultHandler<Set<String>>() {
+            public Set<String> handleResult(InputStream resultStream) throws QueryException {
+                final Set<String> resultIds = new HashSet<String>();
+                try {
+                    BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(resultStream, "UTF-8"));
+                    for (String line; (line = bufferedReader.readLine()) != null;) {
+                        if (!line.isEmpty()) {
+                            resultIds.add(line);
+                        }
+                    }
+                } catch (IOException exception) {
+                    throw new QueryException(exception);
+                }
+                resultIds.addAll(knownIds);
+                return resultIds;
+            }
+        });
+        if (throwOnDuplicate && !existingIds.isEmpty()) {
+            throw new QueryException("Existing documents found, count: " + existingIds.size() + " IDs: " + existingIds);
+        }
+        // use JAXB to serialise the new data nodes
+        final List<NamedDocument> namedDocuments = new ArrayList<NamedDocument>();
+        final List<SerialisableDataNode> insertedNodes = new ArrayList<SerialisableDataNode>();
+        try {
+            final JaxbCodec nodeCodec = getNodeCodec();
+            for (SerialisableDataNode dataNode : dataNodes) {
+                // adding the ID also skips any duplicates within this batch
+                if (existingIds.add(dataNode.getID())) {
+                    namedDocuments.add(new NamedDocument(crawledDataCollection + "/" + dataNode.getID(), nodeCodec.marshal(dataNode)));
+                    namedDocuments.add(new NamedDocument(childIndexCollection + "/" + dataNode.getID(), getChildIndexDocument(dataNode)));
+                    insertedNodes.add(dataNode);
+                } else {
+                    logger.debug("Existing document found: " + dataNode.getURI());
+                }
+            }
+        } catch (JAXBException exception) {
+            System.err.println("jaxb error:" + exception.getMessage());
+            throw new PluginException(exception);
+        }
+        dbAdaptor.addDocuments(databaseName, namedDocuments.iterator());
+        if (!insertedNodes.isEmpty()) {
+            final List<String> insertedIds = new ArrayList<String>();
+            for (SerialisableDataNode dataNode : insertedNodes) {
+                insertedIds.add(dataNode.getID());
+            }
+            getNamedAdaptor("inserted nodes stats").executeQuery(databaseName, insertedNodesStatsTemplate, getAttributeValuesVariables(insertedIds));
+        }
+        if (fieldValueIndex != null && fieldValueIndex.isWritable()) {
+            fieldValueIndex.addDataNodes(insertedNodes);
+        }
+        if (knownIdFilter != null) {
+            for (SerialisableDataNode dataNode : insertedNodes) {
+                knownIdFilter.addInsertedId(dataNode.getID());
+            }
+        }
+        QueryResultCache.nextGeneration(databaseName);
+    }
+
+    private String getChildIndexDocument(SerialisableDataNode dataNode) throws ModelException {
+        final List<DataNodeLink> childIds = dataNode.getChildIds();
+        final StringBuilder documentBuilder = new StringBuilder();
+        documentBuilder.append("<ChildIndex ID=\"").append(escapeAttributeValue(dataNode.getID())).append("\"");
+        if (dataNode.getLabel() != null) {
+            documentBuilder.append(" Label=\"").append(escapeAttributeValue(dataNode.getLabel())).append("\"");
+        }
+        if (dataNode.getType() != null && dataNode.getType().getLabel() != null) {
+            documentBuilder.append(" Type=\"").append(escapeAttributeValue(dataNode.getType().getLabel())).append("\"");
+        }
+        documentBuilder.append(" ChildCount=\"").append((childIds == null) ? 0 : childIds.size()).append("\">");
+        if (childIds != null) {
+            for (DataNodeLink childLink : childIds) {
+                documentBuilder.append("<Child ID=\"").append(escapeAttributeValue(childLink.getIdString())).append("\"/>");
+            }
+        }
+        documentBuilder.append("</ChildIndex>");
+        return documentBuilder.toString();
+    }
+
     private String getTypeClause(MetadataFileType metadataFileType) {
         String typeClause = "";
         if (metadataFileType != null) {
@@ -688,70 +1201,77 @@ public class DataBaseManager<D, F, M> {
         }
     }
 
-    private String getRootNodesQuery() {
-        return "<DataNode>\n"
+    private QueryTemplate getRootNodesTemplate() {
+        return new QueryTemplate("<DataNode>\n"
                 + "{for $dataNodeId in string(collection('" + databaseName + "')/DatabaseLinks/RootDocumentLinks/@ID)\n"
                 + " return \n"
-                + " collection('" + databaseName + "')/DataNode[@ID eq $dataNodeId]}</DataNode>";
+                + " collection('" + databaseName + "')/DataNode[@ID eq $dataNodeId]}</DataNode>");
+    }
+
+    private QueryTemplate getChildNodesOfAttributeTemplate(final String attributeName) {
+        // the parent is only searched for by attribute when it is not identified by ID, after which the child index and the child documents are opened by path
+        final String parentId = ("ID".equals(attributeName)) ? "$nodeIdentifier" : "(collection('" + databaseName + "')/DataNode[@" + attributeName + " eq $nodeIdentifier]/@ID/string())[1]";
+        return new QueryTemplate("let $parentId := " + parentId + "\n"
+                + getChildIdsClause("$parentId")
+                + "return <DataNode>{for $childNodeId in subsequence($childIds, xs:integer($start) + 1, xs:integer($end) - xs:integer($start))\n"
+                + "return db:open('" + databaseName + "', concat('" + crawledDataCollection + "/', $childNodeId))/DataNode[@ID eq $childNodeId]}</DataNode>", "nodeIdentifier", "start", "end");
     }
 
-    private String getChildNodesOfAttributeQuery(final String attributeName, String id, int start, int end) {
-        return "<DataNode>{for $childNodeId in collection('" + databaseName + "')/DataNode[@" + attributeName + " eq '" + escapeBadChars(id) + "']/ChildLink[position() gt " + start + " and position() le " + end + "]/@ID\n"
-                + "return collection('" + databaseName + "')/DataNode[@ID eq $childNodeId]}</DataNode>";
+    private QueryTemplate getChildSummariesTemplate() {
+        return new QueryTemplate(getChildIdsClause("$nodeIdentifier")
+                + "return <NodeSummaries>{for $childNodeId in subsequence($childIds, xs:integer($start) + 1, xs:integer($end) - xs:integer($start))\n"
+                + "let $childIndex := db:open('" + databaseName + "', concat('" + childIndexCollection + "/', $childNodeId))/ChildIndex[@ID eq $childNodeId]\n"
+                + "return if (exists($childIndex)) then <NodeSummary>{$childIndex/@*}</NodeSummary>\n"
+                // nodes crawled before the child index existed are summarised from their documents
+                + "else for $childNode in db:open('" + databaseName + "', concat('" + crawledDataCollection + "/', $childNodeId))/DataNode[@ID eq $childNodeId]\n"
+                + "return <NodeSummary>{$childNode/@ID, $childNode/@Label, if (exists($childNode/Type/@Label)) then attribute Type {$childNode/Type/@Label} else (), attribute ChildCount {count($childNode/ChildLink)}}</NodeSummary>\n"
+                + "}</NodeSummaries>", "nodeIdentifier", "start", "end");
     }
 
-    private String getNodesByUrlQuery(final List<String> nodeIDs) {
-        return getNodesByAttributeQuery("URI", nodeIDs);
+    /**
+     * @return let clauses that put the ordered child IDs of the parent in
+     * $childIds, from the child index or from the parent document when the
+     * parent was crawled before the child index existed
+     */
+    private String getChildIdsClause(String parentIdVariable) {
+        return "let $childIndex := db:open('" + databaseName + "', concat('" + childIndexCollection + "/', " + parentIdVariable + "))/ChildIndex[@ID eq " + parentIdVariable + "]\n"
+                + "let $childIds := if (exists($childIndex)) then $childIndex/Child/@ID/string()\n"
+                + "else collection('" + databaseName + "')/DataNode[@ID eq " + parentIdVariable + "]/ChildLink/@ID/string()\n";
     }
 
-    private String getNodesByHdlQuery(final List<String> nodeIDs) {
-        return getNodesByAttributeQuery("ArchiveHandle", nodeIDs);
+    private QueryTemplate getNodesByAttributeTemplate(final String attributeName) {
+        // the values are passed as one variable with a value per line
+        return new QueryTemplate("<DataNode>\n"
+                + "{for $dataNode in collection('" + databaseName + "')/DataNode where $dataNode/@" + attributeName + " = tokenize($attributeValues, '&#10;')\n"
+                + " return $dataNode}"
+                + "</DataNode>", "attributeValues");
     }
 
-    private String getNodesByAttributeQuery(final String attributeName, final List<String> attributeValues) {
-        StringBuilder queryStringBuilder = new StringBuilder();
-        queryStringBuilder.append("<DataNode>\n");
-        queryStringBuilder.append("{for $dataNode in collection('");
-        queryStringBuilder.append(databaseName);
-        queryStringBuilder.append("')/DataNode where $dataNode/@");
-        queryStringBuilder.append(attributeName);
-        queryStringBuilder.append(" = (\n");
-        boolean firstLoop = true;
+    private QueryTemplate getNodesInOrderTemplate() {
+        // returns the nodes in the order of the IDs given rather than the order of the database
+        return new QueryTemplate("for $nodeId in tokenize($attributeValues, '&#10;')\n"
+                + "return collection('" + databaseName + "')/DataNode[@ID eq $nodeId]", "attributeValues");
+    }
+
+    private Map<String, String> getAttributeValuesVariables(final List<String> attributeValues) {
+        StringBuilder valuesBuilder = new StringBuilder();
         for (String value : attributeValues) {
-            if (!firstLoop) {
-                queryStringBuilder.append(",");
-            }
-            firstLoop = false;
-            queryStringBuilder.append("'");
-            queryStringBuilder.append(escapeBadChars(value));
-            queryStringBuilder.append("'");
-        }
-        queryStringBuilder.append(") return $dataNode}");
-        queryStringBuilder.append("</DataNode>");
-        return queryStringBuilder.toString();
-    }
-
-    private String getNodesByIdQuery(final List<DataNodeId> nodeIDs) {
-        //logger.info("getNodesByIdQuery");
-        StringBuilder queryStringBuilder = new StringBuilder();
-        queryStringBuilder.append("<DataNode>\n");
-        queryStringBuilder.append("{for $dataNode in collection('");
-        queryStringBuilder.append(databaseName);
-        queryStringBuilder.append("')/DataNode where $dataNode/@ID = (\n");
-        boolean firstLoop = true;
-        for (DataNodeId dataNodeId : nodeIDs) {
-            //logger.info(dataNodeId.getIdString());
-            if (!firstLoop) {
-                queryStringBuilder.append(",");
+            if (valuesBuilder.length() > 0) {
+                valuesBuilder.append("\n");
             }
-            firstLoop = false;
-            queryStringBuilder.append("'");
-            queryStringBuilder.append(escapeBadChars(dataNodeId.getIdString()));
-            queryStringBuilder.append("'");
+            valuesBuilder.append(value);
         }
-        queryStringBuilder.append(") return $dataNode}");
-        queryStringBuilder.append("</DataNode>");
-        return queryStringBuilder.toString();
+        final Map<String, String> queryVariables = new HashMap<String, String>();
+        queryVariables.put("attributeValues", valuesBuilder.toString());
+        return queryVariables;
+    }
+
+    private Map<String, String> getChildNodesVariables(String id, int start, int end) {
+        final Map<String, String> queryVariables = new HashMap<String, String>();
+        queryVariables.put("nodeIdentifier", id);
+        queryVariables.put("start", Integer.toString(start));
+        queryVariables.put("end", Integer.toString(end));
+        return queryVariables;
     }
 
 //    private String getSearchFieldConstraint(SearchParameters searchParameters) {
@@ -759,8 +1279,13 @@ public class DataBaseManager<D, F, M> {
 //        String searchTextConstraint = getSearchTextConstraint(searchParameters.getSearchType(), searchParameters.getSearchString(), "//FieldGroup/FieldData/");
 //        return fieldConstraint + searchTextConstraint;
 //    }
-    private String getSearchConstraint(SearchParameters searchParameters) {
-        String typeClause = "/DataNode";
+
+    /**
+     * @return the predicates that a data node must match to be found by the
+     * search parameters
+     */
+    private String getSearchNodePredicate(SearchParameters searchParameters) {
+        String typeClause = "";
         String pathClause = "";
         if (searchParameters.getFileType() != null) {
             if (searchParameters.getFileType().getType() != null) {
@@ -770,42 +1295,33 @@ public class DataBaseManager<D, F, M> {
                 pathClause += "[@Label = '" + escapeBadChars(searchParameters.getFieldType().getPath()) + "']";
             }
         }
-        String fieldsQuery = "";
-        if (searchParameters.getSearchNegator() == SearchNegator.is) {
-            fieldsQuery = "for $field in $foundNode"
-                    + getSearchTextConstraint(searchParameters.getSearchType(), searchParameters.getSearchString(), "//FieldGroup/FieldData[")
-                    + "]\n"
-                    + "return \n"
-                    + "<Highlight>{$nodeId, $field/@Path}</Highlight>\n";
-        } else {
-            fieldsQuery = "<Exclude>{$nodeId}</Exclude>\n";
-        }
-        return "for $foundNode in collection('" + databaseName + "/" + crawledDataCollection + "')" + typeClause + "[//DataNode/FieldGroup" + pathClause + "["
+        return typeClause + "[//DataNode/FieldGroup" + pathClause + "["
                 + getSearchTextConstraint(searchParameters.getSearchType(), searchParameters.getSearchString(), "FieldData/")
-                + "]]\n"
-                + "let $nodeId := $foundNode/@ID\n"
-                + "return\n"
-                + "(\n"
-                + fieldsQuery
-                + ")";
+                + "]]";
+    }
+
+    /**
+     * @return the path from a found data node to the fields that are
+     * highlighted for the search parameters
+     */
+    private String getSearchFieldConstraint(SearchParameters searchParameters) {
+        return getSearchTextConstraint(searchParameters.getSearchType(), searchParameters.getSearchString(), "//FieldGroup/FieldData[") + "]";
     }
 
-    private String getTreeFacetsQuery(MetadataFileType[] metadataFileTypes) {
+    private String getTreeFacetsQuery(MetadataFileType[] metadataFileTypes, int minCount, int maxGroups) {
         String typeClause = "";
         for (MetadataFileType type : metadataFileTypes) {
             typeClause += getTypeClause(type);
         }
         String typeNodes = getTypeNodes(metadataFileTypes[metadataFileTypes.length - 1]);
-        return "let $fieldValues := collection('" + databaseName + "/" + crawledDataCollection + "')" + typeClause + "//FieldData/@FieldValue/string()\n"
-                + "return <MetadataFileType>\n"
+        final GroupedCountQuery groupedCountQuery = new GroupedCountQuery("collection('" + databaseName + "/" + crawledDataCollection + "')" + typeClause + "//FieldData/@FieldValue/string()", minCount, maxGroups);
+        return "<MetadataFileType>\n"
                 + "{\n"
-                + "for $label in distinct-values($fieldValues)\n"
-                + "order by $label\n"
-                + "return <MetadataFileType>"
-                + "<Label>{$label}</Label>\n"
-                + "<Value>{$label}</Value>\n"
-                + typeNodes
-                + "<Count>{count($fieldValues[. = $label])}</Count></MetadataFileType>\n"
+                + groupedCountQuery.getQuery("<MetadataFileType>"
+                        + "<Label>{$label}</Label>\n"
+                        + "<Value>{$label}</Value>\n"
+                        + typeNodes
+                        + "<Count>{$count}</Count></MetadataFileType>\n")
                 + "}</MetadataFileType>";
     }
 
@@ -876,15 +1392,12 @@ public class DataBaseManager<D, F, M> {
                 //                //                + "<ValueCount>{count($profileInfo/entry)}</ValueCount>\n"
                 //                + "</MetadataFileType>\n"
 
-                + "let $allNodeTypes := collection('" + databaseName + "/" + crawledDataCollection + "')/DataNode/Type/@Label/string()\n"
-                + "for $nodeType in distinct-values($allNodeTypes)\n"
-                + "order by $nodeType\n"
-                + "return\n"
-                + "<MetadataFileType>\n"
-                + "<Label>{$nodeType}</Label>\n"
-                + "<Type>{$nodeType}</Type>\n"
-                + "<Count>{count($allNodeTypes[. = $nodeType])}</Count>\n"
-                + "</MetadataFileType>\n"
+                + new GroupedCountQuery("collection('" + databaseName + "/" + crawledDataCollection + "')/DataNode/Type/@Label/string()").getQuery("\n"
+                        + "<MetadataFileType>\n"
+                        + "<Label>{$label}</Label>\n"
+                        + "<Type>{$label}</Type>\n"
+                        + "<Count>{$count}</Count>\n"
+                        + "</MetadataFileType>\n")
                 + "}</MetadataFileType>";
     }
 
@@ -897,13 +1410,11 @@ public class DataBaseManager<D, F, M> {
                 + typeNodes
                 + "<Count>{count($fieldLabels)}</Count></MetadataFileType>\n"
                 + "{\n"
-                + "for $label in distinct-values($fieldLabels)\n"
-                + "order by $label\n"
-                + "return <MetadataFileType>"
-                + "<Label>{$label}</Label>\n"
-                + typeNodes
-                + "<Path>{$label}</Path>\n"
-                + "<Count>{count($fieldLabels[. = $label and $label != ''])}</Count></MetadataFileType>\n"
+                + new GroupedCountQuery("$fieldLabels[. != '']").getQuery("<MetadataFileType>"
+                        + "<Label>{$label}</Label>\n"
+                        + typeNodes
+                        + "<Path>{$label}</Path>\n"
+                        + "<Count>{$count}</Count></MetadataFileType>\n")
                 + "}</MetadataFileType>";
     }
 
@@ -917,123 +1428,387 @@ public class DataBaseManager<D, F, M> {
      * @throws QueryException
      */
     public D getSearchResult(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) throws QueryException {
-        StringBuilder queryStringBuilder = new StringBuilder();
-        queryStringBuilder.append("<DataNode ID=\"Search Results\" Label=\"Search Results: ");
+        return getSearchResult(criterionJoinType, searchParametersList, 0, -1);
+    }
+
+    /**
+     * Searches the database and returns one page of the results. The results
+     * are ordered by node ID so that the pages are stable between calls and
+     * the data node carries the total number of results.
+     *
+     * @param criterionJoinType the type of join that the query will perform
+     * @param searchParametersList the parameters of the search
+     * @param start the index of the first result to return
+     * @param end the index after the last result to return, or -1 to return
+     * links to every result without the full nodes
+     * @return A data node with the child links, highlights and full nodes of
+     * the requested page
+     * @throws QueryException
+     */
+    public D getSearchResult(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, int start, int end) throws QueryException {
+        return getSearchResult(criterionJoinType, searchParametersList, start, end, true);
+    }
+
+    /**
+     * Gets one page of the search results as getSearchResult does but without
+     * reading the full nodes, which can then be streamed with
+     * streamNodeDatasInOrder using the IDs of the child links.
+     *
+     * @param criterionJoinType the type of join that the query will perform
+     * @param searchParametersList the parameters of the search
+     * @param start the index of the first result to return
+     * @param end the index after the last result to return
+     * @return A data node with the child links and highlights of the
+     * requested page
+     * @throws QueryException
+     */
+    public D getSearchResultLinks(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, int start, int end) throws QueryException {
+        return getSearchResult(criterionJoinType, searchParametersList, start, end, false);
+    }
+
+    private D getSearchResult(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, int start, int end, boolean includeNodes) throws QueryException {
+        final SearchResultSet resultSet = getSearchResultSet(criterionJoinType, searchParametersList);
+        final boolean paged = end >= 0;
+        final int pageStart = Math.max(0, start);
+        final List<String> pageIds = (paged) ? resultSet.getResultIds(pageStart, end) : resultSet.getResultIds();
+        final StringBuilder resultBuilder = new StringBuilder();
+        resultBuilder.append("<DataNode ID=\"Search Results\" Label=\"");
+        resultBuilder.append(escapeAttributeValue(getSearchLabel(criterionJoinType, searchParametersList)));
+        resultBuilder.append("\"");
+        if (paged) {
+            resultBuilder.append(" ResultCount=\"").append(resultSet.getResultCount()).append("\"");
+            resultBuilder.append(" ResultStart=\"").append(pageStart).append("\"");
+        }
+        resultBuilder.append(">");
+        for (String nodeId : pageIds) {
+            for (String highlightPath : resultSet.getHighlightPaths(nodeId)) {
+                resultBuilder.append("<Highlight ID=\"").append(escapeAttributeValue(nodeId)).append("\"");
+                if (highlightPath != null) {
+                    resultBuilder.append(" Path=\"").append(escapeAttributeValue(highlightPath)).append("\"");
+                }
+                resultBuilder.append("/>");
+            }
+        }
+        for (String nodeId : pageIds) {
+            resultBuilder.append("<ChildLink ID=\"").append(escapeAttributeValue(nodeId)).append("\"/>");
+        }
+        if (includeNodes && paged && !pageIds.isEmpty()) {
+            // only the nodes on this page are read from the database, the search itself can come from the cache
+            resultBuilder.append(getNamedAdaptor("search result page").executeQuery(databaseName, nodesInOrderTemplate, getAttributeValuesVariables(pageIds), new StringResultReader(), queryDeadline));
+        }
+        resultBuilder.append("</DataNode>");
+        try {
+            return getNodeCodec().unmarshal(resultBuilder.toString(), dClass);
+        } catch (JAXBException exception) {
+            throw new QueryException("Error reading the search results", exception);
+        }
+    }
+
+    /**
+     * Runs the same search on each of the databases in parallel and collects
+     * one page of results from each with its result count and query time.
+     * Each database gets its own deadline, which is the time allowed per
+     * database limited by the deadline already set on its manager. A database
+     * that has not answered by then is reported as timed out and the results
+     * of the other databases are still returned.
+     *
+     * @param <F> as in DataBaseManager
+     * @param <M> as in DataBaseManager
+     * @param databaseManagers one manager for each database to search
+     * @param queryExecutor the executor that the searches are run on
+     * @param databaseTimeoutMs the time allowed for each database, zero or
+     * less to only use the deadlines of the managers
+     * @param criterionJoinType the type of join that the query will perform
+     * @param searchParametersList the parameters of the search
+     * @param start the index of the first result to return from each database
+     * @param end the index after the last result to return from each database
+     * @return the results of each database in the order of the managers
+     */
+    public static <F, M> FederatedSearchResult getFederatedSearchResult(List<DataBaseManager<HighlightableDataNode, F, M>> databaseManagers, ExecutorService queryExecutor, long databaseTimeoutMs, final CriterionJoinType criterionJoinType, final List<SearchParameters> searchParametersList, final int start, final int end) {
+        final long startTime = System.currentTimeMillis();
+        final List<Future<DatabaseSearchResult>> searchFutures = new ArrayList<Future<DatabaseSearchResult>>();
+        // every search is started before waiting on any of them
+        for (final DataBaseManager<HighlightableDataNode, F, M> databaseManager : databaseManagers) {
+            databaseManager.setQueryDeadline(databaseManager.getQueryDeadline().limitTo(databaseTimeoutMs));
+            searchFutures.add(queryExecutor.submit(new Callable<DatabaseSearchResult>() {
+                public DatabaseSearchResult call() {
+                    return databaseManager.getDatabaseSearchResult(criterionJoinType, searchParametersList, start, end);
+                }
+            }));
+        }
+        final FederatedSearchResult federatedSearchResult = new FederatedSearchResult();
+        for (int index = 0; index < databaseManagers.size(); index++) {
+            final DataBaseManager<HighlightableDataNode, F, M> databaseManager = databaseManagers.get(index);
+            final Future<DatabaseSearchResult> searchFuture = searchFutures.get(index);
+            DatabaseSearchResult databaseSearchResult;
+            try {
+                final QueryDeadline databaseDeadline = databaseManager.getQueryDeadline();
+                if (databaseDeadline.isNone()) {
+                    databaseSearchResult = searchFuture.get();
+                } else {
+                    // the query is cancelled at its deadline, the grace period allows for the cancelled query to return
+                    databaseSearchResult = searchFuture.get(databaseDeadline.getRemainingMillis() + federatedSearchGraceMs, TimeUnit.MILLISECONDS);
+                }
+            } catch (TimeoutException exception) {
+                searchFuture.cancel(true);
+                databaseSearchResult = new DatabaseSearchResult(databaseManager.databaseName);
+                databaseSearchResult.setSearchStatus(DatabaseSearchResult.SearchStatus.timedOut);
+                databaseSearchResult.setQueryTimeMS(System.currentTimeMillis() - startTime);
+            } catch (InterruptedException exception) {
+                searchFuture.cancel(true);
+                Thread.currentThread().interrupt();
+                databaseSearchResult = new DatabaseSearchResult(databaseManager.databaseName);
+                databaseSearchResult.setSearchStatus(DatabaseSearchResult.SearchStatus.failed);
+                databaseSearchResult.setErrorMessage("Interrupted while waiting for the search result");
+            } catch (ExecutionException exception) {
+                databaseSearchResult = new DatabaseSearchResult(databaseManager.databaseName);
+                databaseSearchResult.setSearchStatus(DatabaseSearchResult.SearchStatus.failed);
+                databaseSearchResult.setErrorMessage(exception.getCause().getMessage());
+            }
+            federatedSearchResult.getDatabaseResults().add(databaseSearchResult);
+        }
+        federatedSearchResult.setQueryTimeMS(System.currentTimeMillis() - startTime);
+        return federatedSearchResult;
+    }
+
+    private DatabaseSearchResult getDatabaseSearchResult(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, int start, int end) {
+        final DatabaseSearchResult databaseSearchResult = new DatabaseSearchResult(databaseName);
+        final long startTime = System.currentTimeMillis();
+        try {
+            final HighlightableDataNode searchResult = (HighlightableDataNode) getSearchResult(criterionJoinType, searchParametersList, start, end);
+            databaseSearchResult.setSearchResult(searchResult);
+            if (searchResult.getResultCount() != null) {
+                databaseSearchResult.setResultCount(searchResult.getResultCount());
+            } else if (searchResult.getChildIds() != null) {
+                databaseSearchResult.setResultCount(searchResult.getChildIds().size());
+            }
+        } catch (QueryTimeoutException exception) {
+            databaseSearchResult.setSearchStatus(DatabaseSearchResult.SearchStatus.timedOut);
+        } catch (QueryException exception) {
+            logger.warn("Federated search failed on " + databaseName + ": " + exception.getMessage());
+            databaseSearchResult.setSearchStatus(DatabaseSearchResult.SearchStatus.failed);
+            databaseSearchResult.setErrorMessage(exception.getMessage());
+        } catch (ModelException exception) {
+            databaseSearchResult.setSearchStatus(DatabaseSearchResult.SearchStatus.failed);
+            databaseSearchResult.setErrorMessage(exception.getMessage());
+        }
+        databaseSearchResult.setQueryTimeMS(System.currentTimeMillis() - startTime);
+        return databaseSearchResult;
+    }
+
+    private String getSearchLabel(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) {
+        StringBuilder labelBuilder = new StringBuilder();
+        labelBuilder.append("Search Results: ");
         if (searchParametersList.size() > 1) {
-            queryStringBuilder.append(criterionJoinType.name());
-            queryStringBuilder.append(" ");
+            labelBuilder.append(criterionJoinType.name());
+            labelBuilder.append(" ");
         }
         for (SearchParameters parameters : searchParametersList) {
-            queryStringBuilder.append("(");
-            final String type = escapeBadChars(parameters.getFileType().getType());
+            labelBuilder.append("(");
+            final String type = parameters.getFileType().getType();
             if (type != null) {
-                queryStringBuilder.append(type);
-                queryStringBuilder.append(" ");
+                labelBuilder.append(type);
+                labelBuilder.append(" ");
             }
-            final String path = escapeBadChars(parameters.getFieldType().getPath());
+            final String path = parameters.getFieldType().getPath();
             if (path != null) {
-                queryStringBuilder.append(path);
-                queryStringBuilder.append(" ");
+                labelBuilder.append(path);
+                labelBuilder.append(" ");
             }
             for (SearchOption option : SearchOption.values()) {
                 if (option.getSearchNegator() == parameters.getSearchNegator() && option.getSearchType() == parameters.getSearchType()) {
-                    queryStringBuilder.append(option.toString());
+                    labelBuilder.append(option.toString());
                 }
             }
-            queryStringBuilder.append(" ");
-            queryStringBuilder.append(escapeBadChars(parameters.getSearchString()));
-            queryStringBuilder.append(") ");
-        }
-        queryStringBuilder.append("\">");
-        queryStringBuilder.append("{\n");
-        int parameterCounter = 0;
-        int exclusionCounter = 0;
+            labelBuilder.append(" ");
+            labelBuilder.append(parameters.getSearchString());
+            labelBuilder.append(") ");
+        }
+        return labelBuilder.toString();
+    }
+
+    private String escapeAttributeValue(String attributeValue) {
+        return attributeValue.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Gets the IDs and highlights of every result of a search, from the
+     * search result cache when the same search has been run since the
+     * database last changed.
+     */
+    private SearchResultSet getSearchResultSet(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) throws QueryException {
+        // the index and the database can find different matches for the same search, so the key includes the one that is used
+        final SearchResultCache.SearchMode searchMode = (fieldValueIndex != null) ? SearchResultCache.SearchMode.fieldValueIndex : SearchResultCache.SearchMode.database;
+        final String searchKey = SearchResultCache.getSearchKey(searchMode, criterionJoinType, searchParametersList);
+        // reading the content generation first drops the cached results when another process, such as the crawler, has changed the database
+        ContentGenerationCache.getSharedCache().getGeneration(this);
+        final long generation = QueryResultCache.getGeneration(databaseName);
+        final SearchResultSet cachedResult = SearchResultCache.getSharedCache().get(databaseName, searchKey);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+        final SearchResultSet resultSet;
+        if (searchMode == SearchResultCache.SearchMode.fieldValueIndex) {
+            resultSet = getIndexedSearchResultSet(criterionJoinType, searchParametersList);
+        } else {
+            resultSet = getDatabaseSearchResultSet(criterionJoinType, searchParametersList);
+        }
+        SearchResultCache.getSharedCache().put(databaseName, searchKey, resultSet, generation);
+        return resultSet;
+    }
+
+    private SearchResultSet getIndexedSearchResultSet(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) throws QueryException {
+        // the node IDs are numbered for this search only so that the criteria can be joined in the same way as the database ordinals
+        final Map<String, Integer> idOrdinals = new HashMap<String, Integer>();
+        final List<String> ordinalIds = new ArrayList<String>();
+        final List<OrdinalSet> includedSets = new ArrayList<OrdinalSet>();
+        final List<OrdinalSet> excludedSets = new ArrayList<OrdinalSet>();
+        final List<Map<String, List<String>>> includedMatches = new ArrayList<Map<String, List<String>>>();
         for (SearchParameters searchParameters : searchParametersList) {
-            switch (searchParameters.getSearchNegator()) {
-                case is:
-                    queryStringBuilder.append("let $documentSet");
-                    queryStringBuilder.append(parameterCounter);
-                    parameterCounter++;
-                    break;
-                case not:
-                    queryStringBuilder.append("let $exclusionSet");
-                    queryStringBuilder.append(exclusionCounter);
-                    exclusionCounter++;
-                    break;
-            }
-            queryStringBuilder.append(" := ");
-            queryStringBuilder.append(getSearchConstraint(searchParameters));
-        }
-        queryStringBuilder.append("\nlet $highlightSet := $documentSet0");
-        switch (criterionJoinType) {
-            case intersect:
-                for (int setCount = 1; setCount < parameterCounter; setCount++) {
-                    queryStringBuilder.append("[@ID = $documentSet");
-                    queryStringBuilder.append(setCount);
-                    queryStringBuilder.append("/@ID]");
+            final Map<String, List<String>> matches = fieldValueIndex.search(searchParameters);
+            final int[] ordinals = new int[matches.size()];
+            int ordinalCount = 0;
+            for (String nodeId : matches.keySet()) {
+                Integer ordinal = idOrdinals.get(nodeId);
+                if (ordinal == null) {
+                    ordinal = ordinalIds.size();
+                    idOrdinals.put(nodeId, ordinal);
+                    ordinalIds.add(nodeId);
                 }
-                break;
-            case union:
-                for (int setCount = 1; setCount < parameterCounter; setCount++) {
-                    queryStringBuilder.append(" ");
-                    queryStringBuilder.append(criterionJoinType.name());
-                    queryStringBuilder.append(" $documentSet");
-                    queryStringBuilder.append(setCount);
+                ordinals[ordinalCount++] = ordinal;
+            }
+            if (searchParameters.getSearchNegator() == SearchNegator.is) {
+                includedSets.add(OrdinalSet.fromUnsorted(ordinals, ordinalCount));
+                includedMatches.add(matches);
+            } else {
+                excludedSets.add(OrdinalSet.fromUnsorted(ordinals, ordinalCount));
+            }
+        }
+        final List<String> resultIds = new ArrayList<String>();
+        for (int ordinal : OrdinalSet.join(criterionJoinType, includedSets, excludedSets).toArray()) {
+            resultIds.add(ordinalIds.get(ordinal));
+        }
+        Collections.sort(resultIds);
+        final Map<String, List<String>> highlightPaths = new HashMap<String, List<String>>();
+        for (String nodeId : resultIds) {
+            final List<String> pathList = new ArrayList<String>();
+            for (Map<String, List<String>> matches : includedMatches) {
+                final List<String> matchedPaths = matches.get(nodeId);
+                if (matchedPaths != null) {
+                    pathList.addAll(matchedPaths);
                 }
-                break;
+            }
+            highlightPaths.put(nodeId, pathList);
+        }
+        return new SearchResultSet(resultIds, highlightPaths);
+    }
+
+    private SearchResultSet getDatabaseSearchResultSet(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) throws QueryException {
+        // each criterion only returns the ordinals of the nodes it matches, these are joined here rather than by comparing node IDs in the query
+        final List<OrdinalSet> includedSets = new ArrayList<OrdinalSet>();
+        final List<OrdinalSet> excludedSets = new ArrayList<OrdinalSet>();
+        final List<SearchParameters> includedParameters = new ArrayList<SearchParameters>();
+        for (SearchParameters searchParameters : searchParametersList) {
+            final OrdinalSet ordinalSet = getNamedAdaptor("search ordinals").executeQuery(databaseName, getSearchOrdinalsQuery(searchParameters), new OrdinalSetReader(), queryDeadline);
+            if (searchParameters.getSearchNegator() == SearchNegator.is) {
+                includedSets.add(ordinalSet);
+                includedParameters.add(searchParameters);
+            } else {
+                excludedSets.add(ordinalSet);
+            }
         }
-        queryStringBuilder.append("\nlet $exclusionSet := (()");
-        for (int setCount = 0; setCount < exclusionCounter; setCount++) {
-            queryStringBuilder.append(",$exclusionSet");
-            queryStringBuilder.append(setCount);
+        final OrdinalSet resultOrdinals = OrdinalSet.join(criterionJoinType, includedSets, excludedSets);
+        final SearchResultSet resultSet;
+        if (resultOrdinals.isEmpty()) {
+            resultSet = new SearchResultSet(new ArrayList<String>(), new HashMap<String, List<String>>());
+        } else {
+            // only the nodes that remain after the join are read to get their IDs and the fields to highlight
+            final Map<String, String> queryVariables = new HashMap<String, String>();
+            queryVariables.put("ordinals", getOrdinalsString(resultOrdinals));
+            resultSet = getNamedAdaptor("search result set").executeQuery(databaseName, getSearchResultSetTemplate(includedParameters), queryVariables, new SearchResultSetReader(), queryDeadline);
         }
-        queryStringBuilder.append(")\n");
-        queryStringBuilder.append("\n"
-                + "let $nodeIdSet := for $nodeId in distinct-values($highlightSet[not (@ID = $exclusionSet/@ID)]/@ID) return <ChildLink ID='{$nodeId}'/>\n"
-                //                + "for $documentNode in $returnSet\n"
-                + "return\n"
-                /*
-                 * This query currently takes 18348.54 ms
-                 * the loop over the return set takes 15000 ms or so
-                 * With two search values and union it takes 13810.04ms
-                 * With two search values and union and one field name specified it takes 9086.76ms
-                 * 
-                 */
-                /*
-                 * 15041
-                 * <TreeNode>{
-                 for $fieldNode in collection('" + databaseName + "')//.[(text() contains text 'pu6') or (name() = 'Name' and text() contains text 'pu8')]
-                 let $documentFile := base-uri($fieldNode)
-                 group by $documentFile
-                 return
-                 <MetadataTreeNode>
-                 <FileUri>{$documentFile}</FileUri>
-                 {
-                 for $entityNode in $fieldNode
-                 return <FileUriPath>{path($entityNode)}</FileUriPath>
-                 }
-                 </MetadataTreeNode>
-                 }</TreeNode>
-                 */
-                // todo: add back in the set functions
-                //                + "for $entityNode in $documentNode[");
-                //        boolean firstConstraint = true;
-                //        for (SearchParameters searchParameters : searchParametersList) {
-                //            if (firstConstraint) {
-                //                firstConstraint = false;
-                //            } else {
-                //                queryStringBuilder.append(" or ");
-                //            }
-                //            queryStringBuilder.append(getSearchFieldConstraint(searchParameters));
-                //        }
-                //        queryStringBuilder.append("]\n"
-                //                + "return $entityNode\n"
-                + "($highlightSet[not (@ID = $exclusionSet/@ID)], $nodeIdSet)"
-                + "}</DataNode>\n");
-        // todo: this would be better getting the nodes and doing an instersect on the nodes and only then extracting the fields to highlight
-//         logger.debug("Query: " + queryStringBuilder);
-        final D metadataTypesString = getDbTreeNode(queryStringBuilder.toString());
-        return metadataTypesString;
+        return resultSet;
+    }
+
+    private String getSearchOrdinalsQuery(SearchParameters searchParameters) {
+        // node IDs rather than pre values because the pre values move when the crawler updates or deletes documents between these queries
+        return "string-join(for $foundNode in collection('" + databaseName + "/" + crawledDataCollection + "')/DataNode" + getSearchNodePredicate(searchParameters) + "\n"
+                + "return string(db:node-id($foundNode)), ' ')";
+    }
+
+    private QueryTemplate getSearchResultSetTemplate(List<SearchParameters> includedParameters) {
+        final StringBuilder queryStringBuilder = new StringBuilder();
+        queryStringBuilder.append("<SearchResultSet>{\n"
+                + "for $ordinal in tokenize($ordinals, ' ')\n"
+                // a node ID is never reused, so a node deleted since the criteria were run is skipped rather than replaced by another
+                + "let $foundNode := try { db:open-id('").append(databaseName).append("', xs:integer($ordinal)) } catch * { () }\n"
+                + "where $foundNode instance of element(DataNode)\n"
+                + "let $nodeId := string($foundNode/@ID)\n"
+                + "order by $nodeId\n"
+                + "return (<Result ID='{$nodeId}'/>");
+        for (SearchParameters searchParameters : includedParameters) {
+            // the highlights of a criterion are only added to the nodes that it matched
+            queryStringBuilder.append(",\nif ($foundNode").append(getSearchNodePredicate(searchParameters)).append(")\n"
+                    + "then for $field in $foundNode").append(getSearchFieldConstraint(searchParameters)).append(" return <Highlight ID='{$nodeId}'>{$field/@Path}</Highlight>\n"
+                    + "else ()");
+        }
+        queryStringBuilder.append(")\n}</SearchResultSet>\n");
+        return new QueryTemplate(queryStringBuilder.toString(), "ordinals");
+    }
+
+    private String getOrdinalsString(OrdinalSet ordinalSet) {
+        final StringBuilder ordinalsBuilder = new StringBuilder();
+        for (int ordinal : ordinalSet.toArray()) {
+            if (ordinalsBuilder.length() > 0) {
+                ordinalsBuilder.append(' ');
+            }
+            ordinalsBuilder.append(ordinal);
+        }
+        return ordinalsBuilder.toString();
+    }
+
+    /**
+     * Searches the database and passes each matching node to the listener as
+     * it is read, so that the first results can be used before the rest have
+     * been read. The matches are found as for getSearchResult, so they can
+     * come from the search result cache, after which the nodes are read in
+     * batches in the order of the results.
+     *
+     * @param criterionJoinType the type of join that the query will perform
+     * @param searchParametersList the parameters of the search
+     * @param searchHitListener receives each matching data node with its
+     * highlights
+     * @return the number of matching nodes
+     * @throws QueryException
+     */
+    public int streamSearchResult(CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, final SearchHitListener<D> searchHitListener) throws QueryException {
+        final SearchResultSet resultSet = getSearchResultSet(criterionJoinType, searchParametersList);
+        final SearchHitListener<D> highlightListener = new SearchHitListener<D>() {
+            public void searchHitFound(D dataNode) throws QueryException {
+                if (dataNode instanceof HighlightableDataNode) {
+                    final HighlightableDataNode highlightableDataNode = (HighlightableDataNode) dataNode;
+                    try {
+                        final String nodeId = highlightableDataNode.getID();
+                        for (String highlightPath : resultSet.getHighlightPaths(nodeId)) {
+                            final DataNodeHighlight dataNodeHighlight = new DataNodeHighlight();
+                            dataNodeHighlight.setDataNodeId(nodeId);
+                            dataNodeHighlight.setHighlightPath(highlightPath);
+                            highlightableDataNode.getHighlights().add(dataNodeHighlight);
+                        }
+                    } catch (ModelException exception) {
+                        throw new QueryException("Error reading the search results", exception);
+                    }
+                }
+                searchHitListener.searchHitFound(dataNode);
+            }
+        };
+        final List<String> resultIds = resultSet.getResultIds();
+        int streamedCount = 0;
+        for (int batchStart = 0; batchStart < resultIds.size(); batchStart += streamBatchSize) {
+            // each batch is one query whose nodes are passed on as they arrive, so the first hits are not held back by the later ones
+            streamedCount += streamNodeDatasInOrder(resultIds.subList(batchStart, Math.min(batchStart + streamBatchSize, resultIds.size())), highlightListener);
+        }
+        return streamedCount;
     }
 
 //    public DbTreeNode getSearchResultX(CriterionJoinType criterionJoinType, ArrayList<SearchParameters> searchParametersList) {
@@ -1077,27 +1852,66 @@ public class DataBaseManager<D, F, M> {
 //    }
     public M[] getMetadataPaths(MetadataFileType metadataFileType) throws QueryException {
         final String queryString = getMetadataPathsQuery(metadataFileType);
-        return getMetadataTypes(queryString, getDocumentName(metadataFileType, "paths"), true);
+        return getMetadataTypes("metadata paths", queryString, getDocumentName(metadataFileType, "paths"), true);
     }
 
     public M[] getMetadataFieldValues(MetadataFileType metadataFileType, int maxResults) throws QueryException {
+        if (fieldValueIndex != null) {
+            return getIndexedFieldValues(metadataFileType, maxResults);
+        }
         final String queryString = getMetadataFieldValuesQuery(metadataFileType, maxResults);
         //logger.debug("getMetadataFieldValues: " + queryString);
-        return getMetadataTypes(queryString, getDocumentName(metadataFileType, "values"), false);
+        return getMetadataTypes("metadata field values", queryString, getDocumentName(metadataFileType, "values"), false);
+    }
+
+    private M[] getIndexedFieldValues(MetadataFileType metadataFileType, int maxResults) throws QueryException {
+        final List<String> fieldValues = (metadataFileType == null)
+                ? fieldValueIndex.getFieldValues(null, null, null, maxResults)
+                : fieldValueIndex.getFieldValues(metadataFileType.getType(), metadataFileType.getPath(), metadataFileType.getValue(), maxResults);
+        final String typeNodes = getTypeNodes(metadataFileType);
+        final StringBuilder resultBuilder = new StringBuilder();
+        resultBuilder.append("<MetadataFileType>");
+        for (String fieldValue : fieldValues) {
+            final String escapedValue = escapeAttributeValue(fieldValue);
+            resultBuilder.append("<MetadataFileType><Label>").append(escapedValue).append("</Label><Value>").append(escapedValue).append("</Value>");
+            resultBuilder.append(typeNodes).append("</MetadataFileType>");
+        }
+        resultBuilder.append("</MetadataFileType>");
+        try {
+            return (M[]) JaxbCodec.getCodec(mClass).unmarshal(resultBuilder.toString(), MetadataFileType.class).getChildMetadataTypes();
+        } catch (JAXBException exception) {
+            throw new QueryException("Error reading the indexed field values", exception);
+        }
     }
 
     public M[] getMetadataTypes(MetadataFileType metadataFileType) throws QueryException {
         final String queryString = getMetadataTypes();
         //logger.debug("getMetadataTypes: " + queryString);
-        return getMetadataTypes(queryString, getDocumentName(metadataFileType, "types"), true);
+        return getMetadataTypes("metadata types", queryString, getDocumentName(metadataFileType, "types"), true);
     }
 
     public M[] getTreeFacetTypes(MetadataFileType[] metadataFileTypes) throws QueryException {
+        return getTreeFacetTypes(metadataFileTypes, 1, 0);
+    }
+
+    /**
+     * Gets the values and their counts for the last facet in the tree path
+     *
+     * @param metadataFileTypes the facets selected so far
+     * @param minCount values that occur fewer times than this are left out
+     * @param maxGroups when greater than zero only this many of the most
+     * frequent values are returned, ordered by count
+     * @return the facet values
+     * @throws QueryException
+     */
+    public M[] getTreeFacetTypes(MetadataFileType[] metadataFileTypes, int minCount, int maxGroups) throws QueryException {
         for (MetadataFileType type : metadataFileTypes) {
             //logger.debug("Type: " + type); // todo: comment this out when done
         }
-        final String queryString = getTreeFacetsQuery(metadataFileTypes);
-        return getMetadataTypes(queryString, getDocumentName(metadataFileTypes, "tree"), true);
+        final String queryString = getTreeFacetsQuery(metadataFileTypes, minCount, maxGroups);
+        // the limits are part of the document name so that limited and complete results are cached separately
+        final String queryType = (minCount > 1 || maxGroups > 0) ? "tree-" + minCount + "-" + maxGroups : "tree";
+        return getMetadataTypes("tree facets", queryString, getDocumentName(metadataFileTypes, queryType), true);
     }
 
 //    public DbTreeNode getSearchTreeData() {
@@ -1105,45 +1919,138 @@ public class DataBaseManager<D, F, M> {
 //        return getDbTreeNode(queryString);
 //    }
     public D getRootNodes() throws QueryException {
-        final String queryString = getRootNodesQuery();
-        //logger.debug("getRootNodes: " + queryString);
-        return getDbTreeNode(queryString);
+        //logger.debug("getRootNodes: " + rootNodesTemplate);
+        return getDbTreeNode("root nodes", rootNodesTemplate, new HashMap<String, String>());
     }
 
     public D getChildNodesOfHdl(final String nodeIdentifier, int start, int end) throws QueryException {
-        final String queryString = getChildNodesOfAttributeQuery("ArchiveHandle", nodeIdentifier, start, end);
-        //logger.debug("getMetadataTypes: " + queryString);
-        return getDbTreeNode(queryString);
+        return getDbTreeNode("child nodes of hdl", childNodesOfHdlTemplate, getChildNodesVariables(nodeIdentifier, start, end));
     }
 
     public D getChildNodesOfId(final String nodeIdentifier, int start, int end) throws QueryException {
-        final String queryString = getChildNodesOfAttributeQuery("ID", nodeIdentifier, start, end);
-        //logger.debug("getMetadataTypes: " + queryString);
-        return getDbTreeNode(queryString);
+        return getDbTreeNode("child nodes of id", childNodesOfIdTemplate, getChildNodesVariables(nodeIdentifier, start, end));
     }
 
     public D getChildNodesOfUrl(final String nodeIdentifier, int start, int end) throws QueryException {
-        final String queryString = getChildNodesOfAttributeQuery("URI", nodeIdentifier, start, end);
-        //logger.debug("getMetadataTypes: " + queryString);
-        return getDbTreeNode(queryString);
+        return getDbTreeNode("child nodes of url", childNodesOfUrlTemplate, getChildNodesVariables(nodeIdentifier, start, end));
+    }
+
+    /**
+     * Gets the summaries of a page of the children of a data node, which are
+     * read from the child index without loading the child documents.
+     *
+     * @param nodeIdentifier the ID of the parent data node
+     * @param start the index of the first child to return
+     * @param end the index after the last child to return
+     * @return the summaries of the children on the page that are in the
+     * database
+     * @throws QueryException
+     */
+    public List<NodeSummary> getChildSummariesOfId(final String nodeIdentifier, int start, int end) throws QueryException {
+        return getNamedAdaptor("child summaries").executeQuery(databaseName, childSummariesTemplate, getChildNodesVariables(nodeIdentifier, start, end), new NodeSummaryReader(), queryDeadline);
     }
 
     public D getNodeDatasByHdls(final List<String> nodeHdls) throws QueryException {
-        final String queryString = getNodesByHdlQuery(nodeHdls);
-        //logger.debug("getMetadataTypes: " + queryString);
-        return getDbTreeNode(queryString);
+        return getDbTreeNode("nodes by hdl", nodesByHdlTemplate, getAttributeValuesVariables(nodeHdls));
     }
 
     public D getNodeDatasByUrls(final List<String> nodeUrls) throws QueryException {
-        final String queryString = getNodesByUrlQuery(nodeUrls);
-        return getDbTreeNode(queryString);
+        return getDbTreeNode("nodes by url", nodesByUrlTemplate, getAttributeValuesVariables(nodeUrls));
     }
 
     public D getNodeDatasByIDs(final List<DataNodeId> nodeIDs) throws QueryException {
-        final String queryString = getNodesByIdQuery(nodeIDs);
-        //logger.info(queryString);
+        final List<String> idStrings = new ArrayList<String>();
+        for (DataNodeId dataNodeId : nodeIDs) {
+            idStrings.add(dataNodeId.getIdString());
+        }
         //logger.info("getDbTreeNode");
-        return getDbTreeNode(queryString);
+        return getDbTreeNode("nodes by id", nodesByIdTemplate, getAttributeValuesVariables(idStrings));
+    }
+
+    /**
+     * Streams the root nodes to the listener as they are read from the query
+     * result, so that the nodes do not have to be held in memory together.
+     *
+     * @param searchHitListener receives each root node
+     * @return the number of nodes
+     * @throws QueryException
+     */
+    public int streamRootNodes(SearchHitListener<D> searchHitListener) throws QueryException {
+        return streamDbTreeNode("root nodes", rootNodesTemplate, new HashMap<String, String>(), searchHitListener);
+    }
+
+    public int streamChildNodesOfHdl(final String nodeIdentifier, int start, int end, SearchHitListener<D> searchHitListener) throws QueryException {
+        return streamDbTreeNode("child nodes of hdl", childNodesOfHdlTemplate, getChildNodesVariables(nodeIdentifier, start, end), searchHitListener);
+    }
+
+    public int streamChildNodesOfId(final String nodeIdentifier, int start, int end, SearchHitListener<D> searchHitListener) throws QueryException {
+        return streamDbTreeNode("child nodes of id", childNodesOfIdTemplate, getChildNodesVariables(nodeIdentifier, start, end), searchHitListener);
+    }
+
+    public int streamChildNodesOfUrl(final String nodeIdentifier, int start, int end, SearchHitListener<D> searchHitListener) throws QueryException {
+        return streamDbTreeNode("child nodes of url", childNodesOfUrlTemplate, getChildNodesVariables(nodeIdentifier, start, end), searchHitListener);
+    }
+
+    public int streamNodeDatasByHdls(final List<String> nodeHdls, SearchHitListener<D> searchHitListener) throws QueryException {
+        return streamDbTreeNode("nodes by hdl", nodesByHdlTemplate, getAttributeValuesVariables(nodeHdls), searchHitListener);
+    }
+
+    public int streamNodeDatasByUrls(final List<String> nodeUrls, SearchHitListener<D> searchHitListener) throws QueryException {
+        return streamDbTreeNode("nodes by url", nodesByUrlTemplate, getAttributeValuesVariables(nodeUrls), searchHitListener);
+    }
+
+    public int streamNodeDatasByIDs(final List<DataNodeId> nodeIDs, SearchHitListener<D> searchHitListener) throws QueryException {
+        final List<String> idStrings = new ArrayList<String>();
+        for (DataNodeId dataNodeId : nodeIDs) {
+            idStrings.add(dataNodeId.getIdString());
+        }
+        return streamDbTreeNode("nodes by id", nodesByIdTemplate, getAttributeValuesVariables(idStrings), searchHitListener);
+    }
+
+    /**
+     * Streams the nodes with the given IDs in the order of the IDs, as for the
+     * pages of search results
+     *
+     * @param nodeIds the IDs of the nodes
+     * @param searchHitListener receives each node that is in the database
+     * @return the number of nodes
+     * @throws QueryException
+     */
+    public int streamNodeDatasInOrder(final List<String> nodeIds, SearchHitListener<D> searchHitListener) throws QueryException {
+        if (nodeIds.isEmpty()) {
+            return 0;
+        }
+        try {
+            return getNamedAdaptor("nodes in order").executeQuery(databaseName, nodesInOrderTemplate, getAttributeValuesVariables(nodeIds), new SearchHitReader<D>(getNodeCodec(), dClass, searchHitListener, false), queryDeadline);
+        } catch (JAXBException exception) {
+            throw new QueryException("Error reading the data nodes", exception);
+        }
+    }
+
+    /**
+     * @return the codec for the data node classes of this manager, which is
+     * shared with every other manager using the same classes
+     */
+    private JaxbCodec getNodeCodec() throws JAXBException {
+        return JaxbCodec.getCodec(dClass, fClass, mClass);
+    }
+
+    private D getDbTreeNode(String queryName, QueryTemplate queryTemplate, Map<String, String> queryVariables) throws QueryException {
+        try {
+            return getNamedAdaptor(queryName).executeQuery(databaseName, queryTemplate, queryVariables, new StreamUnmarshaller<D>(getNodeCodec(), dClass), queryDeadline);
+        } catch (JAXBException exception) {
+            logger.debug(exception.getMessage());
+            throw new QueryException("Error getting search options");
+        }
+    }
+
+    private int streamDbTreeNode(String queryName, QueryTemplate queryTemplate, Map<String, String> queryVariables, SearchHitListener<D> searchHitListener) throws QueryException {
+        try {
+            // these queries wrap the nodes in one DataNode element, which the reader steps into
+            return getNamedAdaptor(queryName).executeQuery(databaseName, queryTemplate, queryVariables, new SearchHitReader<D>(getNodeCodec(), dClass, searchHitListener, true), queryDeadline);
+        } catch (JAXBException exception) {
+            throw new QueryException("Error reading the data nodes", exception);
+        }
     }
 
     private D getDbTreeNode(String queryString) throws QueryException {
@@ -1171,14 +2078,8 @@ public class DataBaseManager<D, F, M> {
 //            JAXBContext jaxbContext2 = JAXBContext.newInstance(HighlightableDataNode.class);
 //            logger.info("jaxbContext.createUnmarshaller()HighlightableDataNode");
 //            Unmarshaller unmarshaller2 = jaxbContext2.createUnmarshaller();
-            String queryResult;
 //            logger.debug("queryString: " + queryString);
-            queryResult = dbAdaptor.executeQuery(databaseName, queryString);
-            //logger.debug("queryResult: " + queryResult);
-            JAXBContext jaxbContext = JAXBContext.newInstance(dClass);
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-
-            D rootTreeNode = (D) unmarshaller.unmarshal(new StreamSource(new StringReader(queryResult)), dClass).getValue();
+            D rootTreeNode = getNamedAdaptor("tree node").executeQuery(databaseName, queryString, new StreamUnmarshaller<D>(getNodeCodec(), dClass), queryDeadline);
 //            long queryMils = System.currentTimeMillis() - startTime;
 //            int resultCount = 0;
 //            if (rootTreeNode != null) {
@@ -1195,23 +2096,22 @@ public class DataBaseManager<D, F, M> {
         }
     }
 
-    private M[] getMetadataTypes(final String queryString, String documentName, boolean allowCaching) throws QueryException {
+    private M[] getMetadataTypes(String queryName, final String queryString, String documentName, boolean allowCaching) throws QueryException {
         long startTime = System.currentTimeMillis();
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(mClass);
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-            final String queryResult;
+            final JaxbCodec metadataCodec = JaxbCodec.getCodec(mClass);
+            final MetadataFileType foundEntities;
             if (allowCaching) {
-                queryResult = getCachedVersion(documentName, queryString);
+                final String queryResult = getCachedVersion(queryName, documentName, queryString);
+                foundEntities = metadataCodec.unmarshal(queryResult, MetadataFileType.class);
             } else {
-                queryResult = dbAdaptor.executeQuery(databaseName, queryString);
+                foundEntities = getNamedAdaptor(queryName).executeQuery(databaseName, queryString, new StreamUnmarshaller<MetadataFileType>(metadataCodec, MetadataFileType.class), queryDeadline);
             }
 //            logger.debug("queryString: " + queryString);
 //            queryResult = dbAdaptor.executeQuery(databaseName, queryString);
 //            logger.debug("queryResult: " + queryResult);
-            M foundEntities = (M) unmarshaller.unmarshal(new StreamSource(new StringReader(queryResult)), MetadataFileType.class).getValue();
             long queryMils = System.currentTimeMillis() - startTime;
-            final M[] entityDataArray = (M[]) ((MetadataFileType) foundEntities).getChildMetadataTypes();
+            final M[] entityDataArray = (M[]) foundEntities.getChildMetadataTypes();
             int resultCount = 0;
             if (entityDataArray != null) {
                 resultCount = entityDataArray.length;
@@ -1219,10 +2119,193 @@ public class DataBaseManager<D, F, M> {
             String queryTimeString = "Query time: " + queryMils + "ms for " + resultCount + " entities";
             logger.debug(queryTimeString);
 //            selectedEntity.appendTempLabel(queryTimeString);
-            return (M[]) ((MetadataFileType) foundEntities).getChildMetadataTypes();
+            return (M[]) foundEntities.getChildMetadataTypes();
         } catch (JAXBException exception) {
             logger.debug(exception.getMessage());
             throw new QueryException("Error getting search options");
         }
     }
+
+    private static class StringResultReader implements QueryResultHandler<String> {
+
+        public String handleResult(InputStream resultStream) throws QueryException {
+            final StringBuilder resultBuilder = new StringBuilder();
+            try {
+                final InputStreamReader resultReader = new InputStreamReader(resultStream, "UTF-8");
+                final char[] buffer = new char[8192];
+                for (int readCount; (readCount = resultReader.read(buffer)) != -1;) {
+                    resultBuilder.append(buffer, 0, readCount);
+                }
+            } catch (IOException exception) {
+                throw new QueryException("Error reading the query result", exception);
+            }
+            return resultBuilder.toString();
+        }
+    }
+
+    private static class OrdinalSetReader implements QueryResultHandler<OrdinalSet> {
+
+        public OrdinalSet handleResult(InputStream resultStream) throws QueryException {
+            int[] ordinals = new int[1024];
+            int ordinalCount = 0;
+            try {
+                final InputStreamReader resultReader = new InputStreamReader(resultStream, "UTF-8");
+                int currentOrdinal = 0;
+                boolean inOrdinal = false;
+                for (int readChar; (readChar = resultReader.read()) != -1;) {
+                    if (readChar >= '0' && readChar <= '9') {
+                        currentOrdinal = currentOrdinal * 10 + (readChar - '0');
+                        inOrdinal = true;
+                    } else if (inOrdinal) {
+                        if (ordinalCount == ordinals.length) {
+                            ordinals = Arrays.copyOf(ordinals, ordinalCount * 2);
+                        }
+                        ordinals[ordinalCount++] = currentOrdinal;
+                        currentOrdinal = 0;
+                        inOrdinal = false;
+                    }
+                }
+                if (inOrdinal) {
+                    if (ordinalCount == ordinals.length) {
+                        ordinals = Arrays.copyOf(ordinals, ordinalCount + 1);
+                    }
+                    ordinals[ordinalCount++] = currentOrdinal;
+                }
+            } catch (IOException exception) {
+                throw new QueryException("Error reading the search ordinals", exception);
+            }
+            return OrdinalSet.fromUnsorted(ordinals, ordinalCount);
+        }
+    }
+
+    private static class NodeSummaryReader implements QueryResultHandler<List<NodeSummary>> {
+
+        public List<NodeSummary> handleResult(InputStream resultStream) throws QueryException {
+            final List<NodeSummary> nodeSummaries = new ArrayList<NodeSummary>();
+            try {
+                final XMLStreamReader streamReader = xmlInputFactory.createXMLStreamReader(resultStream, "UTF-8");
+                try {
+                    while (streamReader.hasNext()) {
+                        if (streamReader.next() == XMLStreamReader.START_ELEMENT && "NodeSummary".equals(streamReader.getLocalName())) {
+                            final String childCount = streamReader.getAttributeValue(null, "ChildCount");
+                            nodeSummaries.add(new NodeSummary(streamReader.getAttributeValue(null, "ID"), streamReader.getAttributeValue(null, "Label"),
+                                    streamReader.getAttributeValue(null, "Type"), (childCount == null) ? null : Integer.valueOf(childCount)));
+                        }
+                    }
+                } finally {
+                    streamReader.close();
+                }
+            } catch (XMLStreamException exception) {
+                throw new QueryException("Error reading the node summaries", exception);
+            }
+            return nodeSummaries;
+        }
+    }
+
+    private static class SearchResultSetReader implements QueryResultHandler<SearchResultSet> {
+
+        public SearchResultSet handleResult(InputStream resultStream) throws QueryException {
+            final List<String> resultIds = new ArrayList<String>();
+            final Map<String, List<String>> highlightPaths = new HashMap<String, List<String>>();
+            try {
+                final XMLStreamReader streamReader = xmlInputFactory.createXMLStreamReader(resultStream, "UTF-8");
+                try {
+                    while (streamReader.hasNext()) {
+                        if (streamReader.next() == XMLStreamReader.START_ELEMENT) {
+                            final String nodeId = streamReader.getAttributeValue(null, "ID");
+                            if ("Result".equals(streamReader.getLocalName())) {
+                                resultIds.add(nodeId);
+                            } else if ("Highlight".equals(streamReader.getLocalName())) {
+                                List<String> pathList = highlightPaths.get(nodeId);
+                                if (pathList == null) {
+                                    pathList = new ArrayList<String>();
+                                    highlightPaths.put(nodeId, pathList);
+                                }
+                                pathList.add(streamReader.getAttributeValue(null, "Path"));
+                            }
+                        }
+                    }
+                } finally {
+                    streamReader.close();
+                }
+            } catch (XMLStreamException exception) {
+                throw new QueryException("Error reading the search results", exception);
+            }
+            return new SearchResultSet(resultIds, highlightPaths);
+        }
+    }
+
+    private static class SearchHitReader<T> implements QueryResultHandler<Integer> {
+
+        final private JaxbCodec jaxbCodec;
+        final private Class<T> resultClass;
+        final private SearchHitListener<T> searchHitListener;
+        // true when the query result is already one element with the nodes as its children
+        final private boolean resultIsWrapped;
+
+        public SearchHitReader(JaxbCodec jaxbCodec, Class<T> resultClass, SearchHitListener<T> searchHitListener, boolean resultIsWrapped) {
+            this.jaxbCodec = jaxbCodec;
+            this.resultClass = resultClass;
+            this.searchHitListener = searchHitListener;
+            this.resultIsWrapped = resultIsWrapped;
+        }
+
+        public Integer handleResult(InputStream resultStream) throws QueryException {
+            int hitCount = 0;
+            try {
+                // a query result that is a sequence of elements is given a root element to make it one document
+                final InputStream documentStream = (resultIsWrapped) ? resultStream : new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                        new ByteArrayInputStream("<SearchHits>".getBytes("UTF-8")),
+                        resultStream,
+                        new ByteArrayInputStream("</SearchHits>".getBytes("UTF-8")))));
+                final XMLStreamReader streamReader = xmlInputFactory.createXMLStreamReader(documentStream, "UTF-8");
+                final Unmarshaller unmarshaller = jaxbCodec.borrowUnmarshaller();
+                try {
+                    streamReader.nextTag();
+                    streamReader.nextTag();
+                    while (streamReader.isStartElement()) {
+                        searchHitListener.searchHitFound(unmarshaller.unmarshal(streamReader, resultClass).getValue());
+                        hitCount++;
+                        // the unmarshaller leaves the reader after the end of the node, which can be followed by white space
+                        while (!streamReader.isStartElement() && !streamReader.isEndElement()) {
+                            streamReader.next();
+                        }
+                    }
+                } finally {
+                    jaxbCodec.returnUnmarshaller(unmarshaller);
+                    streamReader.close();
+                }
+            } catch (UnsupportedEncodingException exception) {
+                throw new QueryException("Error reading the search results", exception);
+            } catch (XMLStreamException exception) {
+                throw new QueryException("Error reading the search results after " + hitCount + " results", exception);
+            } catch (JAXBException exception) {
+                throw new QueryException("Error reading the search results after " + hitCount + " results", exception);
+            }
+            return hitCount;
+        }
+    }
+
+    /**
+     * Unmarshals a query result directly from the stream provided by the
+     * adaptor so that the serialised result is never held in memory.
+     */
+    private static class StreamUnmarshaller<T> implements QueryResultHandler<T> {
+
+        final private JaxbCodec jaxbCodec;
+        final private Class<T> resultClass;
+
+        public StreamUnmarshaller(JaxbCodec jaxbCodec, Class<T> resultClass) {
+            this.jaxbCodec = jaxbCodec;
+            this.resultClass = resultClass;
+        }
+
+        public T handleResult(InputStream resultStream) throws QueryException {
+            try {
+                return jaxbCodec.unmarshal(new StreamSource(resultStream), resultClass);
+            } catch (JAXBException exception) {
+                throw new QueryException("Error reading the query result", exception);
+            }
+        }
+    }
 }
@@ -17,6 +17,8 @@
  */
 package nl.mpi.yams.common.db;
 
+import java.util.Iterator;
+import java.util.Map;
 import nl.mpi.flap.kinnate.entityindexer.QueryException;
 
 /**
@@ -32,10 +34,39 @@ public interface DbAdaptor {
 
     void addDocument(String databaseName, String documentName, String documentContents) throws QueryException;
 
+    /**
+     * Adds or replaces all of the documents, committing them in batches rather
+     * than one document at a time.
+     */
+    void addDocuments(String databaseName, Iterator<NamedDocument> documents) throws QueryException;
+
     void deleteDocument(String databaseName, String documentName) throws QueryException;
 
     String executeQuery(String databaseName, String queryString) throws QueryException;
 
+    /**
+     * Runs the query and passes the result stream to the handler as it
+     * arrives rather than collecting it into a string first.
+     */
+    <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler) throws QueryException;
+
+    /**
+     * Runs the query template with the values bound to its external variables.
+     */
+    String executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables) throws QueryException;
+
+    <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler) throws QueryException;
+
+    /**
+     * Runs the query as above but cancels it when the deadline passes.
+     *
+     * @throws QueryTimeoutException if the query was cancelled because the
+     * deadline passed
+     */
+    <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException;
+
+    <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException;
+
     void createIndexes(String databaseName) throws QueryException;
     // todo: the use of QueryProcessor is not compatable with the rest interface so will have to go
 //    public QueryProcessor getQueryProcessor(String queryString) throws QueryException;
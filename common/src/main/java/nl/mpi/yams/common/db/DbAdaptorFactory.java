@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects the remote database adaptor from the form of the database URL, a
+ * basex://host:port address uses the BaseX client/server protocol and any
+ * other URL is taken to be the BaseX REST interface. Anything that is not a
+ * URL is taken to be a local BaseX directory that is opened in this JVM.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class DbAdaptorFactory {
+
+    final static private org.slf4j.Logger logger = LoggerFactory.getLogger(DbAdaptorFactory.class);
+    // the local adaptors all use the one static BaseX context, so only one local adaptor is kept
+    static private LocalDbAdaptor localDbAdaptor = null;
+    static private String localAdaptorDirectory = null;
+    static private int localAdaptorSessions = 0;
+
+    /**
+     * @param localSessionCount the number of session contexts used when the
+     * URL is a local BaseX directory, more than one runs read only queries in
+     * parallel
+     * @return an adaptor for the database at the URL, its queries are
+     * recorded in QueryMetrics.getSharedMetrics()
+     */
+    public static DbAdaptor getDbAdaptor(String databaseUrl, String userName, String userPass, int localSessionCount) throws QueryException {
+        if (BaseXClientDbAdaptor.isServerUrl(databaseUrl) || databaseUrl.startsWith("http://") || databaseUrl.startsWith("https://")) {
+            return getRemoteDbAdaptor(databaseUrl, userName, userPass);
+        }
+        return new InstrumentedDbAdaptor(getLocalDbAdaptor(databaseUrl, localSessionCount), QueryMetrics.getSharedMetrics());
+    }
+
+    /**
+     * The BaseX directory is read when the shared context is first created,
+     * so the adaptor is created once and then returned on each call.
+     *
+     * @param databaseDirectory the BaseX directory, or an empty string for the
+     * default BaseX directory
+     * @param sessionCount the number of session contexts, one serialises every
+     * call on the shared context
+     * @return the local adaptor
+     * @throws QueryException if the local adaptor was already created for a
+     * different directory or session count
+     */
+    public static synchronized LocalDbAdaptor getLocalDbAdaptor(String databaseDirectory, int sessionCount) throws QueryException {
+        if (localDbAdaptor != null) {
+            if (!localAdaptorDirectory.equals(databaseDirectory) || localAdaptorSessions != sessionCount) {
+                throw new QueryException("The local database is already open in \"" + localAdaptorDirectory + "\" with " + localAdaptorSessions + " sessions");
+            }
+            return localDbAdaptor;
+        }
+        if (!databaseDirectory.isEmpty()) {
+            // be Unix friendly and replace ~/ with actual home dir
+            final File basexDirectory = new File(databaseDirectory.replaceAll("^~/", System.getProperty("user.home") + "/"));
+            try {
+                if (new File(basexDirectory, ".basexhome").createNewFile()) {
+                    logger.info("Created .basexhome in {}", basexDirectory);
+                }
+            } catch (IOException exception) {
+                throw new QueryException("Could not use the local database directory: " + basexDirectory, exception);
+            }
+            System.setProperty("org.basex.path", basexDirectory.getAbsolutePath());
+        }
+        localDbAdaptor = (sessionCount > 1) ? new LocalDbAdaptor(sessionCount) : new LocalDbAdaptor();
+        localAdaptorDirectory = databaseDirectory;
+        localAdaptorSessions = sessionCount;
+        return localDbAdaptor;
+    }
+
+    /**
+     * @return an adaptor for the server at the URL, its queries are recorded
+     * in QueryMetrics.getSharedMetrics()
+     */
+    public static DbAdaptor getRemoteDbAdaptor(String databaseUrl, String userName, String userPass) throws QueryException {
+        final DbAdaptor dbAdaptor;
+        if (BaseXClientDbAdaptor.isServerUrl(databaseUrl)) {
+            dbAdaptor = new BaseXClientDbAdaptor(databaseUrl, userName, userPass);
+        } else {
+            try {
+                dbAdaptor = new RestDbAdaptor(new URL(databaseUrl), userName, userPass);
+            } catch (MalformedURLException exception) {
+                throw new QueryException("Failed to open the database connection at: " + databaseUrl, exception);
+            }
+        }
+        return new InstrumentedDbAdaptor(dbAdaptor, QueryMetrics.getSharedMetrics());
+    }
+}
@@ -0,0 +1,487 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import nl.mpi.flap.model.DataField;
+import nl.mpi.flap.model.FieldGroup;
+import nl.mpi.flap.model.ModelException;
+import nl.mpi.flap.model.SerialisableDataNode;
+import nl.mpi.yams.common.data.QueryDataStructures.SearchType;
+import nl.mpi.yams.common.data.SearchParameters;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An optional Lucene index of the field values of the crawled data nodes,
+ * kept alongside the database so that contains, equals and fuzzy searches
+ * do not depend on the BaseX full text index, which is only rebuilt by
+ * createIndexes. There is one index document per field, holding the ID and
+ * type of the data node document that it is in. The crawler opens the index
+ * for writing while the services open it read only and see each commit.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class FieldValueIndex {
+
+    final static private org.slf4j.Logger logger = LoggerFactory.getLogger(FieldValueIndex.class);
+    final static private Version luceneVersion = Version.LUCENE_46;
+    final static private String idField = "ID";
+    final static private String typeField = "Type";
+    final static private String labelField = "Label";
+    final static private String pathField = "Path";
+    final static private String valueField = "Value";
+    final static private String exactValueField = "ExactValue";
+    // longer values are still searchable by their words but are too long to be a single term
+    final static private int maxExactValueLength = 8000;
+    final static private Map<String, FieldValueIndex> sharedIndexes = new HashMap<String, FieldValueIndex>();
+    final private Directory directory;
+    final private Analyzer analyzer;
+    final private IndexWriter indexWriter;
+    final private SearcherManager searcherManager;
+
+    private FieldValueIndex(File indexDirectory, boolean writable) throws IOException {
+        directory = FSDirectory.open(indexDirectory);
+        analyzer = new FieldValueAnalyzer();
+        if (writable) {
+            final IndexWriterConfig writerConfig = new IndexWriterConfig(luceneVersion, analyzer);
+            writerConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            indexWriter = new IndexWriter(directory, writerConfig);
+            // an initial commit lets the read only services open a new index before the first batch has been added
+            indexWriter.commit();
+            searcherManager = new SearcherManager(indexWriter, true, null);
+        } else {
+            indexWriter = null;
+            searcherManager = new SearcherManager(directory, null);
+        }
+    }
+
+    /**
+     * Gets the index in the directory, which is opened once and shared by
+     * every database manager in this JVM.
+     *
+     * @param indexDirectory the directory of the index for one database
+     * @param writable true for the crawler, which adds the documents, and
+     * false for the services, which only search
+     * @return the index or null when a read only index has not yet been
+     * created by the crawler
+     * @throws QueryException
+     */
+    public static synchronized FieldValueIndex getSharedIndex(File indexDirectory, boolean writable) throws QueryException {
+        final String indexKey = indexDirectory.getAbsolutePath();
+        FieldValueIndex fieldValueIndex = sharedIndexes.get(indexKey);
+        if (fieldValueIndex != null && writable && fieldValueIndex.indexWriter == null) {
+            throw new QueryException("The field value index is already open read only: " + indexKey);
+        }
+        if (fieldValueIndex == null) {
+            try {
+                if (!writable) {
+                    final Directory existingDirectory = FSDirectory.open(indexDirectory);
+                    try {
+                        if (!DirectoryReader.indexExists(existingDirectory)) {
+                            return null;
+                        }
+                    } finally {
+                        existingDirectory.close();
+                    }
+                }
+                fieldValueIndex = new FieldValueIndex(indexDirectory, writable);
+            } catch (IOException exception) {
+                throw new QueryException("Could not open the field value index: " + indexKey, exception);
+            }
+            sharedIndexes.put(indexKey, fieldValueIndex);
+        }
+        return fieldValueIndex;
+    }
+
+    /**
+     * Closes and forgets the shared index in the directory, committing any
+     * documents that have been added.
+     *
+     * @param indexDirectory the directory of the index for one database
+     * @throws QueryException
+     */
+    public static synchronized void closeSharedIndex(File indexDirectory) throws QueryException {
+        final FieldValueIndex fieldValueIndex = sharedIndexes.remove(indexDirectory.getAbsolutePath());
+        if (fieldValueIndex != null) {
+            try {
+                fieldValueIndex.searcherManager.close();
+                if (fieldValueIndex.indexWriter != null) {
+                    fieldValueIndex.indexWriter.close();
+                }
+                fieldValueIndex.directory.close();
+            } catch (IOException exception) {
+                throw new QueryException("Could not close the field value index", exception);
+            }
+        }
+    }
+
+    public boolean isWritable() {
+        return indexWriter != null;
+    }
+
+    /**
+     * @return the number of fields in the index
+     * @throws QueryException
+     */
+    public int getFieldCount() throws QueryException {
+        final IndexSearcher indexSearcher = acquireSearcher();
+        try {
+            return indexSearcher.getIndexReader().numDocs();
+        } finally {
+            releaseSearcher(indexSearcher);
+        }
+    }
+
+    /**
+     * Adds the fields of the data nodes, replacing any that were indexed for
+     * the same node IDs, and commits them so that they can be searched.
+     *
+     * @param dataNodes data nodes that are stored as documents in the
+     * database
+     * @throws QueryException
+     */
+    public void addDataNodes(Collection<? extends SerialisableDataNode> dataNodes) throws QueryException {
+        if (indexWriter == null) {
+            throw new QueryException("The field value index is read only");
+        }
+        try {
+            for (SerialisableDataNode dataNode : dataNodes) {
+                final String nodeId = dataNode.getID();
+                final String nodeType = (dataNode.getType() == null) ? null : dataNode.getType().getLabel();
+                indexWriter.deleteDocuments(new Term(idField, nodeId));
+                addFields(nodeId, nodeType, dataNode);
+            }
+            indexWriter.commit();
+            searcherManager.maybeRefresh();
+        } catch (ModelException exception) {
+            throw new QueryException("Could not index the data nodes", exception);
+        } catch (IOException exception) {
+            throw new QueryException("Could not index the data nodes", exception);
+        }
+    }
+
+    /**
+     * Removes the fields of the data nodes with these IDs, used when
+     * documents are deleted from the database.
+     *
+     * @param nodeIds IDs of the data nodes that were deleted
+     * @throws QueryException
+     */
+    public void deleteDataNodes(Collection<String> nodeIds) throws QueryException {
+        if (indexWriter == null) {
+            throw new QueryException("The field value index is read only");
+        }
+        try {
+            for (String nodeId : nodeIds) {
+                indexWriter.deleteDocuments(new Term(idField, nodeId));
+            }
+            indexWriter.commit();
+            searcherManager.maybeRefresh();
+        } catch (IOException exception) {
+            throw new QueryException("Could not remove the data nodes from the index", exception);
+        }
+    }
+
+    private void addFields(String nodeId, String nodeType, SerialisableDataNode dataNode) throws IOException {
+        // the fields of child nodes within the document are indexed against the document node, as the database searches do with //DataNode
+        if (dataNode.getFieldGroups() != null) {
+            for (FieldGroup fieldGroup : dataNode.getFieldGroups()) {
+                for (DataField dataField : fieldGroup.getFields()) {
+                    final String fieldValue = (dataField.getFieldValue() == null) ? "" : dataField.getFieldValue();
+                    final Document document = new Document();
+                    document.add(new StringField(idField, nodeId, Field.Store.YES));
+                    if (nodeType != null) {
+                        document.add(new StringField(typeField, nodeType, Field.Store.NO));
+                    }
+                    if (fieldGroup.getFieldName() != null) {
+                        document.add(new StringField(labelField, fieldGroup.getFieldName(), Field.Store.YES));
+                    }
+                    if (dataField.getPath() != null) {
+                        document.add(new StringField(pathField, dataField.getPath(), Field.Store.YES));
+                    }
+                    document.add(new TextField(valueField, fieldValue, Field.Store.YES));
+                    if (fieldValue.length() <= maxExactValueLength) {
+                        document.add(new StringField(exactValueField, fieldValue, Field.Store.NO));
+                    }
+                    indexWriter.addDocument(document);
+                }
+            }
+        }
+        if (dataNode.getChildList() != null) {
+            for (SerialisableDataNode childNode : dataNode.getChildList()) {
+                addFields(nodeId, nodeType, childNode);
+            }
+        }
+    }
+
+    /**
+     * Removes every field from the index, used when the database is dropped.
+     *
+     * @throws QueryException
+     */
+    public void deleteAll() throws QueryException {
+        if (indexWriter == null) {
+            throw new QueryException("The field value index is read only");
+        }
+        try {
+            indexWriter.deleteAll();
+            indexWriter.commit();
+            searcherManager.maybeRefresh();
+        } catch (IOException exception) {
+            throw new QueryException("Could not clear the field value index", exception);
+        }
+    }
+
+    /**
+     * Finds the data nodes that match the search parameters in the same way
+     * as the database search: the type must match the document node and the
+     * field label only limits which fields can match, while every field of a
+     * matching node that contains the search string is highlighted.
+     *
+     * @param searchParameters the parameters of one search criterion
+     * @return the paths of the fields to highlight for each matching node ID
+     * @throws QueryException
+     */
+    public Map<String, List<String>> search(SearchParameters searchParameters) throws QueryException {
+        String type = null;
+        String label = null;
+        if (searchParameters.getFileType() != null) {
+            type = searchParameters.getFileType().getType();
+            label = searchParameters.getFieldType().getPath();
+        }
+        final BooleanQuery query = new BooleanQuery();
+        query.add(getValueQuery(searchParameters.getSearchType(), searchParameters.getSearchString()), BooleanClause.Occur.MUST);
+        if (type != null) {
+            query.add(new TermQuery(new Term(typeField, type)), BooleanClause.Occur.MUST);
+        }
+        final List<Document> foundFields = findFields(query);
+        final Set<String> matchingIds = new HashSet<String>();
+        for (Document foundField : foundFields) {
+            if (label == null || label.equals(foundField.get(labelField))) {
+                matchingIds.add(foundField.get(idField));
+            }
+        }
+        final Map<String, List<String>> highlightPaths = new HashMap<String, List<String>>();
+        for (Document foundField : foundFields) {
+            final String nodeId = foundField.get(idField);
+            if (matchingIds.contains(nodeId)) {
+                List<String> pathList = highlightPaths.get(nodeId);
+                if (pathList == null) {
+                    pathList = new ArrayList<String>();
+                    highlightPaths.put(nodeId, pathList);
+                }
+                pathList.add(foundField.get(pathField));
+            }
+        }
+        return highlightPaths;
+    }
+
+    /**
+     * Gets the distinct values of the fields that match the type, field label
+     * and value when each is provided.
+     *
+     * @param type the type of the data node documents or null for any
+     * @param label the label of the field group or null for any
+     * @param value text that the field values must contain or null for any
+     * @param maxResults the maximum number of values to return
+     * @return the first values in alphabetical order
+     * @throws QueryException
+     */
+    public List<String> getFieldValues(String type, String label, String value, int maxResults) throws QueryException {
+        final BooleanQuery query = new BooleanQuery();
+        query.add(getValueQuery(SearchType.contains, (value == null) ? "" : value), BooleanClause.Occur.MUST);
+        if (type != null && !type.isEmpty()) {
+            query.add(new TermQuery(new Term(typeField, type)), BooleanClause.Occur.MUST);
+        }
+        if (label != null && !label.isEmpty()) {
+            query.add(new TermQuery(new Term(labelField, label)), BooleanClause.Occur.MUST);
+        }
+        final TreeSet<String> fieldValues = new TreeSet<String>();
+        for (Document foundField : findFields(query)) {
+            fieldValues.add(foundField.get(valueField));
+        }
+        final List<String> valueList = new ArrayList<String>();
+        for (String fieldValue : fieldValues) {
+            if (valueList.size() >= maxResults) {
+                break;
+            }
+            valueList.add(fieldValue);
+        }
+        return valueList;
+    }
+
+    private Query getValueQuery(SearchType searchType, String searchString) throws QueryException {
+        switch (searchType) {
+            case equals:
+                return new TermQuery(new Term(exactValueField, searchString));
+            case fuzzy: {
+                // as with the database fuzzy search, one error is allowed for each four characters
+                final BooleanQuery fuzzyQuery = new BooleanQuery();
+                for (String token : getTokens(searchString)) {
+                    fuzzyQuery.add(new FuzzyQuery(new Term(valueField, token), Math.min(2, token.length() / 4)), BooleanClause.Occur.MUST);
+                }
+                return fuzzyQuery;
+            }
+            default: {
+                if (searchString.isEmpty()) {
+                    // when the user has not entered any string then return all, but allow the negator to still be used
+                    return new MatchAllDocsQuery();
+                }
+                final List<String> tokens = getTokens(searchString);
+                if (tokens.size() == 1) {
+                    return new TermQuery(new Term(valueField, tokens.get(0)));
+                }
+                // an empty phrase matches nothing, as does a search string without any words
+                final PhraseQuery phraseQuery = new PhraseQuery();
+                for (String token : tokens) {
+                    phraseQuery.add(new Term(valueField, token));
+                }
+                return phraseQuery;
+            }
+        }
+    }
+
+    private List<String> getTokens(String searchString) throws QueryException {
+        final List<String> tokens = new ArrayList<String>();
+        try {
+            final TokenStream tokenStream = analyzer.tokenStream(valueField, new StringReader(searchString));
+            try {
+                final CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+                tokenStream.reset();
+                while (tokenStream.incrementToken()) {
+                    tokens.add(termAttribute.toString());
+                }
+                tokenStream.end();
+            } finally {
+                tokenStream.close();
+            }
+        } catch (IOException exception) {
+            throw new QueryException("Could not read the search string", exception);
+        }
+        return tokens;
+    }
+
+    private List<Document> findFields(Query query) throws QueryException {
+        final List<Document> foundFields = new ArrayList<Document>();
+        final IndexSearcher indexSearcher = acquireSearcher();
+        try {
+            // every match is needed rather than the best scoring ones, so the stored fields are collected directly
+            indexSearcher.search(query, new Collector() {
+                private AtomicReader segmentReader;
+
+                @Override
+                public void setScorer(Scorer scorer) {
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    foundFields.add(segmentReader.document(doc));
+                }
+
+                @Override
+                public void setNextReader(AtomicReaderContext context) {
+                    segmentReader = context.reader();
+                }
+
+                @Override
+                public boolean acceptsDocsOutOfOrder() {
+                    return true;
+                }
+            });
+        } catch (IOException exception) {
+            throw new QueryException("Could not search the field value index", exception);
+        } finally {
+            releaseSearcher(indexSearcher);
+        }
+        return foundFields;
+    }
+
+    private IndexSearcher acquireSearcher() throws QueryException {
+        try {
+            // picks up any commits made since the last search, including those of the crawler in another process
+            searcherManager.maybeRefresh();
+            return searcherManager.acquire();
+        } catch (IOException exception) {
+            throw new QueryException("Could not open the field value index", exception);
+        }
+    }
+
+    private void releaseSearcher(IndexSearcher indexSearcher) {
+        try {
+            searcherManager.release(indexSearcher);
+        } catch (IOException exception) {
+            logger.warn("Could not release the field value index searcher", exception);
+        }
+    }
+
+    /**
+     * Splits the field values into words that are matched regardless of case
+     * and diacritics, as the database full text search does by default.
+     */
+    private static class FieldValueAnalyzer extends Analyzer {
+
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+            final Tokenizer tokenizer = new StandardTokenizer(luceneVersion, reader);
+            return new TokenStreamComponents(tokenizer, new ASCIIFoldingFilter(new LowerCaseFilter(luceneVersion, tokenizer)));
+        }
+    }
+}
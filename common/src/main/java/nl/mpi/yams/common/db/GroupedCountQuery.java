@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+/**
+ * Builds the XQuery that counts how often each distinct value occurs in a
+ * sequence. The values are counted in one pass with a group by clause rather
+ * than by filtering the whole sequence again for each distinct value, which
+ * took time proportional to the square of the number of values. Groups below
+ * the minimum count are dropped and, when a maximum is set, only the most
+ * frequent groups are returned.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class GroupedCountQuery {
+
+    private final String valuesExpression;
+    private final int minCount;
+    private final int maxGroups;
+
+    /**
+     * @param valuesExpression an XQuery expression that returns the string
+     * values to be counted
+     */
+    public GroupedCountQuery(String valuesExpression) {
+        this(valuesExpression, 1, 0);
+    }
+
+    /**
+     * @param valuesExpression an XQuery expression that returns the string
+     * values to be counted
+     * @param minCount groups with fewer values than this are left out
+     * @param maxGroups when greater than zero only this many groups are
+     * returned, taking those with the highest counts first
+     */
+    public GroupedCountQuery(String valuesExpression, int minCount, int maxGroups) {
+        this.valuesExpression = valuesExpression;
+        this.minCount = minCount;
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * @param returnClause the expression returned for each group, which can
+     * refer to the group value as $label and to its size as $count
+     * @return the query text, ordered by label or, when the number of groups
+     * is limited, by count and then label
+     */
+    public String getQuery(String returnClause) {
+        final StringBuilder queryBuilder = new StringBuilder();
+        queryBuilder.append("for $value in ").append(valuesExpression).append("\n");
+        queryBuilder.append("let $label := $value\n");
+        queryBuilder.append("group by $label\n");
+        queryBuilder.append("let $count := count($value)\n");
+        if (minCount > 1) {
+            queryBuilder.append("where $count ge ").append(minCount).append("\n");
+        }
+        if (maxGroups > 0) {
+            queryBuilder.append("order by $count descending, $label\n");
+        } else {
+            queryBuilder.append("order by $label\n");
+        }
+        queryBuilder.append("return ").append(returnClause);
+        if (maxGroups > 0) {
+            return "subsequence((\n" + queryBuilder.toString() + "\n), 1, " + maxGroups + ")";
+        } else {
+            return queryBuilder.toString();
+        }
+    }
+}
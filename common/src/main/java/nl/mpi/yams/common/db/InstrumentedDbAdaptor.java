@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Pattern;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+
+/**
+ * Wraps another DbAdaptor and records the time, result size and outcome of
+ * each call in QueryMetrics. Queries are reported by the name that the
+ * caller gives with withQueryName, or otherwise by their shape, which is the
+ * query text with the string and number literals replaced, so that for
+ * example every search for a different word with the same criteria is
+ * counted together.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class InstrumentedDbAdaptor implements DbAdaptor {
+
+    // the length that query shapes are cut to in the report
+    static final private int maxQueryNameLength = 120;
+    static final private Pattern stringLiteralPattern = Pattern.compile("\"[^\"]*\"|'[^']*'");
+    static final private Pattern numberLiteralPattern = Pattern.compile("\\b\\d+\\b");
+    static final private Pattern whiteSpacePattern = Pattern.compile("\\s+");
+    final private DbAdaptor dbAdaptor;
+    final private QueryMetrics queryMetrics;
+    // null when the queries are reported by their shape
+    final private String queryName;
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long byteCount = 0;
+
+        public CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int readByte = super.read();
+            if (readByte != -1) {
+                byteCount++;
+            }
+            return readByte;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int readCount = super.read(buffer, offset, length);
+            if (readCount > 0) {
+                byteCount += readCount;
+            }
+            return readCount;
+        }
+
+        @Override
+        public long skip(long skipCount) throws IOException {
+            final long skipped = super.skip(skipCount);
+            byteCount += skipped;
+            return skipped;
+        }
+    }
+
+    private class CountingResultHandler<T> implements QueryResultHandler<T> {
+
+        final private QueryResultHandler<T> resultHandler;
+        private CountingInputStream countingStream = null;
+
+        public CountingResultHandler(QueryResultHandler<T> resultHandler) {
+            this.resultHandler = resultHandler;
+        }
+
+        public T handleResult(InputStream resultStream) throws QueryException {
+            countingStream = new CountingInputStream(resultStream);
+            return resultHandler.handleResult(countingStream);
+        }
+
+        long getByteCount() {
+            return (countingStream == null) ? 0 : countingStream.byteCount;
+        }
+    }
+
+    /**
+     *
+     * @param dbAdaptor the adaptor that runs the queries
+     * @param queryMetrics where the measurements are recorded, normally
+     * QueryMetrics.getSharedMetrics()
+     */
+    public InstrumentedDbAdaptor(DbAdaptor dbAdaptor, QueryMetrics queryMetrics) {
+        this(dbAdaptor, queryMetrics, null);
+    }
+
+    private InstrumentedDbAdaptor(DbAdaptor dbAdaptor, QueryMetrics queryMetrics, String queryName) {
+        this.dbAdaptor = dbAdaptor;
+        this.queryMetrics = queryMetrics;
+        this.queryName = queryName;
+    }
+
+    /**
+     * @param queryName the name to report the queries by, so that a query
+     * built from changing text is still counted under one name
+     * @return an adaptor that shares the wrapped adaptor and metrics of this
+     * one and reports each query it runs under the name
+     */
+    public InstrumentedDbAdaptor withQueryName(String queryName) {
+        return new InstrumentedDbAdaptor(dbAdaptor, queryMetrics, queryName);
+    }
+
+    public QueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+
+    /**
+     * @param queryString the query text
+     * @return the query with its literals and white space normalised so that
+     * queries that differ only in their values share a name
+     */
+    static String getQueryName(String queryString) {
+        String queryName = stringLiteralPattern.matcher(queryString).replaceAll("?");
+        queryName = numberLiteralPattern.matcher(queryName).replaceAll("#");
+        queryName = whiteSpacePattern.matcher(queryName).replaceAll(" ").trim();
+        if (queryName.length() > maxQueryNameLength) {
+            queryName = queryName.substring(0, maxQueryNameLength);
+        }
+        return queryName;
+    }
+
+    static String getQueryName(QueryTemplate queryTemplate) {
+        return "template " + queryTemplate.getVariableNames() + " " + getQueryName(queryTemplate.getQueryBody());
+    }
+
+    private String getRecordedName(String queryString) {
+        return (queryName != null) ? queryName : getQueryName(queryString);
+    }
+
+    private String getRecordedName(QueryTemplate queryTemplate) {
+        return (queryName != null) ? queryName : getQueryName(queryTemplate);
+    }
+
+    private void recordQuery(String queryName, long startTime, long resultBytes, QueryException queryException) {
+        queryMetrics.recordQuery(queryName, System.nanoTime() - startTime, resultBytes, queryException != null, queryException instanceof QueryTimeoutException);
+    }
+
+    public void checkDbExists(String databaseName) throws QueryException {
+        final long startTime = System.nanoTime();
+        QueryException queryException = null;
+        try {
+            dbAdaptor.checkDbExists(databaseName);
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery("checkDbExists", startTime, 0, queryException);
+        }
+    }
+
+    public void dropAndRecreateDb(String databaseName) throws QueryException {
+        final long startTime = System.nanoTime();
+        QueryException queryException = null;
+        try {
+            dbAdaptor.dropAndRecreateDb(databaseName);
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery("dropAndRecreateDb", startTime, 0, queryException);
+        }
+    }
+
+    public void addDocument(String databaseName, String documentName, String documentContents) throws QueryException {
+        final long startTime = System.nanoTime();
+        QueryException queryException = null;
+        try {
+            dbAdaptor.addDocument(databaseName, documentName, documentContents);
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery("addDocument", startTime, 0, queryException);
+        }
+    }
+
+    public void addDocuments(String databaseName, Iterator<NamedDocument> documents) throws QueryException {
+        final long startTime = System.nanoTime();
+        QueryException queryException = null;
+        try {
+            dbAdaptor.addDocuments(databaseName, documents);
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery("addDocuments", startTime, 0, queryException);
+        }
+    }
+
+    public void deleteDocument(String databaseName, String documentName) throws QueryException {
+        final long startTime = System.nanoTime();
+        QueryException queryException = null;
+        try {
+            dbAdaptor.deleteDocument(databaseName, documentName);
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery("deleteDocument", startTime, 0, queryException);
+        }
+    }
+
+    public String executeQuery(String databaseName, String queryString) throws QueryException {
+        final long startTime = System.nanoTime();
+        QueryException queryException = null;
+        String queryResult = null;
+        try {
+            queryResult = dbAdaptor.executeQuery(databaseName, queryString);
+            return queryResult;
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            // the string length is used as the size because converting it back to bytes would cost more than it is worth
+            recordQuery(getRecordedName(queryString), startTime, (queryResult == null) ? 0 : queryResult.length(), queryException);
+        }
+    }
+
+    public <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler) throws QueryException {
+        return executeQuery(databaseName, queryString, resultHandler, QueryDeadline.none);
+    }
+
+    public String executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables) throws QueryException {
+        final long startTime = System.nanoTime();
+        QueryException queryException = null;
+        String queryResult = null;
+        try {
+            queryResult = dbAdaptor.executeQuery(databaseName, queryTemplate, queryVariables);
+            return queryResult;
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery(getRecordedName(queryTemplate), startTime, (queryResult == null) ? 0 : queryResult.length(), queryException);
+        }
+    }
+
+    public <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler) throws QueryException {
+        return executeQuery(databaseName, queryTemplate, queryVariables, resultHandler, QueryDeadline.none);
+    }
+
+    public <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        final long startTime = System.nanoTime();
+        final CountingResultHandler<T> countingHandler = new CountingResultHandler<T>(resultHandler);
+        QueryException queryException = null;
+        try {
+            return dbAdaptor.executeQuery(databaseName, queryString, countingHandler, queryDeadline);
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery(getRecordedName(queryString), startTime, countingHandler.getByteCount(), queryException);
+        }
+    }
+
+    public <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        final long startTime = System.nanoTime();
+        final CountingResultHandler<T> countingHandler = new CountingResultHandler<T>(resultHandler);
+        QueryException queryException = null;
+        try {
+            return dbAdaptor.executeQuery(databaseName, queryTemplate, queryVariables, countingHandler, queryDeadline);
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery(getRecordedName(queryTemplate), startTime, countingHandler.getByteCount(), queryException);
+        }
+    }
+
+    public void createIndexes(String databaseName) throws QueryException {
+        final long startTime = System.nanoTime();
+        QueryException queryException = null;
+        try {
+            dbAdaptor.createIndexes(databaseName);
+        } catch (QueryException exception) {
+            queryException = exception;
+            throw exception;
+        } finally {
+            recordQuery("createIndexes", startTime, 0, queryException);
+        }
+    }
+}
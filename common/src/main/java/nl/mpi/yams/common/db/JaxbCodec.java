@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Holds one JAXBContext for each set of bound classes along with pools of its
+ * marshallers and unmarshallers. Creating a JAXBContext is slow and the
+ * marshallers are not thread safe, so each codec is created once and then
+ * shared, while each marshaller is only used by one thread at a time. The
+ * output is compact rather than formatted because the database discards the
+ * white space anyway.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class JaxbCodec {
+
+    // the number of idle marshallers and unmarshallers kept for reuse, any more than this are left to the garbage collector
+    static final private int maxPooled = 16;
+    static final private ConcurrentMap<List<Class<?>>, JaxbCodec> codecMap = new ConcurrentHashMap<List<Class<?>>, JaxbCodec>();
+    final private JAXBContext jaxbContext;
+    final private BlockingQueue<Marshaller> marshallerPool = new ArrayBlockingQueue<Marshaller>(maxPooled);
+    final private BlockingQueue<Unmarshaller> unmarshallerPool = new ArrayBlockingQueue<Unmarshaller>(maxPooled);
+
+    private JaxbCodec(Class<?>... boundClasses) throws JAXBException {
+        jaxbContext = JAXBContext.newInstance(boundClasses);
+    }
+
+    /**
+     * @param boundClasses the classes to be bound, in the same order each time
+     * so that the codec is found again
+     * @return the codec for these classes, which is created on first use
+     * @throws JAXBException if the JAXBContext cannot be created
+     */
+    public static JaxbCodec getCodec(Class<?>... boundClasses) throws JAXBException {
+        final List<Class<?>> codecKey = new ArrayList<Class<?>>(Arrays.asList(boundClasses));
+        JaxbCodec jaxbCodec = codecMap.get(codecKey);
+        if (jaxbCodec == null) {
+            // two threads may both create a codec here, only the first one is kept
+            final JaxbCodec createdCodec = new JaxbCodec(boundClasses);
+            jaxbCodec = codecMap.putIfAbsent(codecKey, createdCodec);
+            if (jaxbCodec == null) {
+                jaxbCodec = createdCodec;
+            }
+        }
+        return jaxbCodec;
+    }
+
+    public JAXBContext getJaxbContext() {
+        return jaxbContext;
+    }
+
+    /**
+     * The unmarshaller must be handed back with returnUnmarshaller once done
+     */
+    public Unmarshaller borrowUnmarshaller() throws JAXBException {
+        final Unmarshaller unmarshaller = unmarshallerPool.poll();
+        if (unmarshaller != null) {
+            return unmarshaller;
+        }
+        return jaxbContext.createUnmarshaller();
+    }
+
+    public void returnUnmarshaller(Unmarshaller unmarshaller) {
+        unmarshallerPool.offer(unmarshaller);
+    }
+
+    private Marshaller borrowMarshaller() throws JAXBException {
+        final Marshaller marshaller = marshallerPool.poll();
+        if (marshaller != null) {
+            return marshaller;
+        }
+        final Marshaller createdMarshaller = jaxbContext.createMarshaller();
+        createdMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+        return createdMarshaller;
+    }
+
+    /**
+     * @param boundObject an instance of one of the bound classes
+     * @return the XML document including its XML declaration
+     * @throws JAXBException
+     */
+    public String marshal(Object boundObject) throws JAXBException {
+        final Marshaller marshaller = borrowMarshaller();
+        try {
+            final StringWriter stringWriter = new StringWriter();
+            marshaller.marshal(boundObject, stringWriter);
+            return stringWriter.toString();
+        } finally {
+            marshallerPool.offer(marshaller);
+        }
+    }
+
+    public <T> T unmarshal(Source source, Class<T> resultClass) throws JAXBException {
+        final Unmarshaller unmarshaller = borrowUnmarshaller();
+        try {
+            return unmarshaller.unmarshal(source, resultClass).getValue();
+        } finally {
+            returnUnmarshaller(unmarshaller);
+        }
+    }
+
+    public <T> T unmarshal(String xmlString, Class<T> resultClass) throws JAXBException {
+        return unmarshal(new StreamSource(new StringReader(xmlString)), resultClass);
+    }
+}
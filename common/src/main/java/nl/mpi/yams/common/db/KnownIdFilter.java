@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A Bloom filter of the data node IDs in a database, so that an insert only
+ * needs to ask the database whether the document exists when the ID might
+ * already be known. The IDs added since the filter was loaded are also kept
+ * exactly, because those documents are known to exist without asking. This
+ * class is not thread safe.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class KnownIdFilter {
+
+    // about one percent false positives while the filter holds its expected number of IDs
+    private static final int bitsPerId = 10;
+    private static final int hashCount = 7;
+    private static final int minimumExpectedCount = 10000;
+    final private BitSet filterBits;
+    final private int bitCount;
+    final private Set<String> addedIds = new HashSet<String>();
+
+    /**
+     * @param expectedCount the number of IDs that the filter is expected to
+     * hold, more can be added but the rate of false positives then rises
+     */
+    public KnownIdFilter(int expectedCount) {
+        bitCount = Math.max(expectedCount, minimumExpectedCount) * bitsPerId;
+        filterBits = new BitSet(bitCount);
+    }
+
+    /**
+     * Adds an ID that was read from the database
+     *
+     * @param nodeId the data node ID
+     */
+    public void addLoadedId(String nodeId) {
+        final int firstHash = nodeId.hashCode();
+        final int secondHash = getSecondHash(nodeId);
+        for (int hashIndex = 0; hashIndex < hashCount; hashIndex++) {
+            filterBits.set(getBitIndex(firstHash, secondHash, hashIndex));
+        }
+    }
+
+    /**
+     * Adds the ID of a document that has just been inserted
+     *
+     * @param nodeId the data node ID
+     */
+    public void addInsertedId(String nodeId) {
+        addLoadedId(nodeId);
+        addedIds.add(nodeId);
+    }
+
+    /**
+     * Removes an ID from the exact set, the filter bits cannot be cleared so
+     * the ID will still be checked in the database
+     *
+     * @param nodeId the data node ID
+     */
+    public void removeId(String nodeId) {
+        addedIds.remove(nodeId);
+    }
+
+    /**
+     * @param nodeId the data node ID
+     * @return true if the document was inserted since the filter was loaded
+     */
+    public boolean isKnown(String nodeId) {
+        return addedIds.contains(nodeId);
+    }
+
+    /**
+     * @param nodeId the data node ID
+     * @return false if the ID is certainly not in the database, otherwise the
+     * database needs to be checked
+     */
+    public boolean mightBeKnown(String nodeId) {
+        if (addedIds.contains(nodeId)) {
+            return true;
+        }
+        final int firstHash = nodeId.hashCode();
+        final int secondHash = getSecondHash(nodeId);
+        for (int hashIndex = 0; hashIndex < hashCount; hashIndex++) {
+            if (!filterBits.get(getBitIndex(firstHash, secondHash, hashIndex))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getBitIndex(int firstHash, int secondHash, int hashIndex) {
+        // the double hashing of Kirsch and Mitzenmacher gives the k hash functions from two
+        final int combinedHash = firstHash + hashIndex * secondHash;
+        return (combinedHash & Integer.MAX_VALUE) % bitCount;
+    }
+
+    private int getSecondHash(String nodeId) {
+        // FNV-1a, which is independent of String.hashCode
+        int hash = 0x811c9dc5;
+        for (int charIndex = 0; charIndex < nodeId.length(); charIndex++) {
+            hash ^= nodeId.charAt(charIndex);
+            hash *= 0x01000193;
+        }
+        // a step of zero would make all of the hash functions the same
+        return hash | 1;
+    }
+}
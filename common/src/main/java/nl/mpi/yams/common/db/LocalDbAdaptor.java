@@ -19,6 +19,19 @@
 package nl.mpi.yams.common.db;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import nl.mpi.flap.kinnate.entityindexer.QueryException;
 import org.basex.core.BaseXException;
 import org.basex.core.Context;
@@ -28,10 +41,12 @@ import org.basex.core.cmd.CreateDB;
 import org.basex.core.cmd.CreateIndex;
 import org.basex.core.cmd.Delete;
 import org.basex.core.cmd.DropDB;
+import org.basex.core.cmd.Flush;
 import org.basex.core.cmd.Get;
 import org.basex.core.cmd.InfoDB;
 import org.basex.core.cmd.Open;
 import org.basex.core.cmd.OptimizeAll;
+import org.basex.core.cmd.Replace;
 import org.basex.core.cmd.Set;
 import org.basex.core.cmd.XQuery;
 import org.slf4j.LoggerFactory;
@@ -39,15 +54,31 @@ import org.slf4j.LoggerFactory;
 /**
  * Created on : Apr 8, 2013, 10:48:27 AM
  *
+ * By default all calls are serialised on one shared context. When constructed
+ * with a session count the adaptor runs in multi session mode, each call then
+ * borrows its own session context from a pool and only waits on calls that
+ * write to the same database.
+ *
  * @author Peter Withers <peter.withers@mpi.nl>
  */
 public class LocalDbAdaptor implements DbAdaptor {
 
     static final private Context context = new Context();
     static final private Object databaseLock = new Object();
+    // one reader/writer lock per database, shared by all multi session adaptors because they share the same static context
+    static final private ConcurrentMap<String, ReadWriteLock> databaseLocks = new ConcurrentHashMap<String, ReadWriteLock>();
+    // the number of documents added between each flush to disk by addDocuments
+    static final private int documentBatchSize = 500;
+    final private BlockingQueue<Context> sessionPool;
     final private org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
 
+    private abstract class ContextTask<T> {
+
+        abstract T run(Context sessionContext) throws BaseXException;
+    }
+
     public LocalDbAdaptor() throws QueryException {
+        this.sessionPool = null;
         try {
             synchronized (databaseLock) {
                 logger.info(new Get("dbpath").execute(context));
@@ -58,19 +89,140 @@ public class LocalDbAdaptor implements DbAdaptor {
         }
     }
 
-    @Override
-    public void checkDbExists(String databaseName) throws QueryException {
-        logger.debug("databaseName: " + databaseName);
+    /**
+     * Creates an adaptor in multi session mode, read only queries then run in
+     * parallel and writes are only serialised against the database they change
+     *
+     * @param sessionCount the number of session contexts in the pool, which is
+     * also the maximum number of concurrent calls on this adaptor
+     * @throws QueryException
+     */
+    public LocalDbAdaptor(int sessionCount) throws QueryException {
+        if (sessionCount < 1) {
+            throw new QueryException("The session count must be at least one: " + sessionCount);
+        }
+        this.sessionPool = new ArrayBlockingQueue<Context>(sessionCount);
         try {
             synchronized (databaseLock) {
-                new Open(databaseName).execute(context);
-                new Close().execute(context);
+                logger.info(new Get("dbpath").execute(context));
+                for (int sessionIndex = 0; sessionIndex < sessionCount; sessionIndex++) {
+                    // each session context shares the databases and the BaseX lock manager of the main context
+                    sessionPool.add(new Context(context, null));
+                }
             }
+        } catch (BaseXException baseXException2) {
+            logger.error(baseXException2.getMessage());
+            throw new QueryException(baseXException2.getMessage(), baseXException2);
+        }
+        logger.info("Multi session mode with {} sessions", sessionCount);
+    }
+
+    private ReadWriteLock getDatabaseLock(String databaseName) {
+        ReadWriteLock readWriteLock = databaseLocks.get(databaseName);
+        if (readWriteLock == null) {
+            final ReadWriteLock createdLock = new ReentrantReadWriteLock();
+            readWriteLock = databaseLocks.putIfAbsent(databaseName, createdLock);
+            if (readWriteLock == null) {
+                readWriteLock = createdLock;
+            }
+        }
+        return readWriteLock;
+    }
+
+    private <T> T runQueryTask(String databaseName, XQuery xQuery, ContextTask<T> contextTask) throws BaseXException {
+        if (sessionPool == null) {
+            // the shared context serialises every call so the query does not need to be parsed to choose a lock
+            return runShared(contextTask);
+        }
+        final long waitStart = System.nanoTime();
+        final Context sessionContext = takeSession();
+        try {
+            // the command parses the query on the borrowed session and keeps that parse for when it is executed
+            // the parser decides, so text such as a search term in a string literal cannot change the lock taken
+            // a query that does not parse is given the read lock, it then fails without changing anything
+            if (xQuery.updating(sessionContext)) {
+                return runLocked(getDatabaseLock(databaseName).writeLock(), "LocalDbAdaptor write lock " + databaseName, waitStart, sessionContext, contextTask);
+            } else {
+                return runLocked(getDatabaseLock(databaseName).readLock(), "LocalDbAdaptor read lock " + databaseName, waitStart, sessionContext, contextTask);
+            }
+        } finally {
+            sessionPool.add(sessionContext);
+        }
+    }
+
+    private <T> T runReading(String databaseName, ContextTask<T> contextTask) throws BaseXException {
+        if (sessionPool == null) {
+            return runShared(contextTask);
+        }
+        return runInSession(getDatabaseLock(databaseName).readLock(), "LocalDbAdaptor read lock " + databaseName, contextTask);
+    }
+
+    private <T> T runWriting(String databaseName, ContextTask<T> contextTask) throws BaseXException {
+        if (sessionPool == null) {
+            return runShared(contextTask);
+        }
+        return runInSession(getDatabaseLock(databaseName).writeLock(), "LocalDbAdaptor write lock " + databaseName, contextTask);
+    }
+
+    private <T> T runShared(ContextTask<T> contextTask) throws BaseXException {
+        final long waitStart = System.nanoTime();
+        synchronized (databaseLock) {
+            QueryMetrics.getSharedMetrics().recordWait("LocalDbAdaptor shared context", System.nanoTime() - waitStart);
+            return contextTask.run(context);
+        }
+    }
+
+    private <T> T runInSession(Lock lock, String waitName, ContextTask<T> contextTask) throws BaseXException {
+        final long waitStart = System.nanoTime();
+        final Context sessionContext = takeSession();
+        try {
+            return runLocked(lock, waitName, waitStart, sessionContext, contextTask);
+        } finally {
+            sessionPool.add(sessionContext);
+        }
+    }
+
+    private Context takeSession() throws BaseXException {
+        try {
+            return sessionPool.take();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new BaseXException("Interrupted while waiting for a database session");
+        }
+    }
+
+    private <T> T runLocked(Lock lock, String waitName, long waitStart, Context sessionContext, ContextTask<T> contextTask) throws BaseXException {
+        lock.lock();
+        // the wait covers both the session and the lock
+        QueryMetrics.getSharedMetrics().recordWait(waitName, System.nanoTime() - waitStart);
+        try {
+            return contextTask.run(sessionContext);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void checkDbExists(final String databaseName) throws QueryException {
+        logger.debug("databaseName: " + databaseName);
+        try {
+            runReading(databaseName, new ContextTask<Void>() {
+                @Override
+                Void run(Context sessionContext) throws BaseXException {
+                    new Open(databaseName).execute(sessionContext);
+                    new Close().execute(sessionContext);
+                    return null;
+                }
+            });
         } catch (BaseXException baseXException) {
             try {
-                synchronized (databaseLock) {
-                    new CreateDB(databaseName).execute(context);
-                }
+                runWriting(databaseName, new ContextTask<Void>() {
+                    @Override
+                    Void run(Context sessionContext) throws BaseXException {
+                        new CreateDB(databaseName).execute(sessionContext);
+                        return null;
+                    }
+                });
             } catch (BaseXException baseXException2) {
                 logger.error(baseXException2.getMessage());
                 throw new QueryException(baseXException2.getMessage(), baseXException2);
@@ -78,78 +230,192 @@ public class LocalDbAdaptor implements DbAdaptor {
         }
     }
 
-    public void dropAndRecreateDb(String databaseName) throws QueryException {
+    public void dropAndRecreateDb(final String databaseName) throws QueryException {
 //        String suffixFilter = "*.*mdi";
         try {
-            synchronized (databaseLock) {
+            runWriting(databaseName, new ContextTask<Void>() {
+                @Override
+                Void run(Context sessionContext) throws BaseXException {
 //    logger.debug(new InfoDB().execute(context));
 //    new DropIndex("text").execute(context);
 //    new DropIndex("attribute").execute(context);
 //    new DropIndex("fulltext").execute(context);
-                new DropDB(databaseName).execute(context);
+                    new DropDB(databaseName).execute(sessionContext);
 //                new Set("CREATEFILTER", suffixFilter).execute(context);
 //                final File cacheDirectory = getDatabaseProjectDirectory(databaseName);
 //                logger.debug("cacheDirectory: " + cacheDirectory);
 //                new CreateDB(databaseName, cacheDirectory.toString()).execute(context);
-                new CreateDB(databaseName).execute(context);
+                    new CreateDB(databaseName).execute(sessionContext);
 //                logger.debug("Create full text index");
 //                new CreateIndex("fulltext").execute(context); // note that the indexes appear to be created by default, so this step might be redundant
-                logger.debug(new InfoDB().execute(context));
-            }
+                    logger.debug(new InfoDB().execute(sessionContext));
+                    return null;
+                }
+            });
         } catch (BaseXException exception) {
             throw new QueryException(exception.getMessage(), exception);
         }
     }
 
-    public void addDocument(String databaseName, String documentName, String documentContents) throws QueryException {
+    public void addDocument(final String databaseName, final String documentName, final String documentContents) throws QueryException {
         try {
-            synchronized (databaseLock) {
-                new Open(databaseName).execute(context);
-                new Delete(documentName).execute(context);
-                new Add(documentName, documentContents).execute(context);
-                new Close().execute(context);
-            }
+            runWriting(databaseName, new ContextTask<Void>() {
+                @Override
+                Void run(Context sessionContext) throws BaseXException {
+                    new Open(databaseName).execute(sessionContext);
+                    new Delete(documentName).execute(sessionContext);
+                    new Add(documentName, documentContents).execute(sessionContext);
+                    new Close().execute(sessionContext);
+                    return null;
+                }
+            });
         } catch (BaseXException exception) {
             logger.debug(exception.getMessage());
             throw new QueryException("Error adding document: " + documentName, exception);
         }
     }
 
-    public void deleteDocument(String databaseName, String documentName) throws QueryException {
-        try {
-            synchronized (databaseLock) {
-                new Open(databaseName).execute(context);
-                new Delete(documentName).execute(context);
-                new Close().execute(context);
+    public void addDocuments(final String databaseName, Iterator<NamedDocument> documents) throws QueryException {
+        while (documents.hasNext()) {
+            final List<NamedDocument> documentBatch = new ArrayList<NamedDocument>();
+            while (documents.hasNext() && documentBatch.size() < documentBatchSize) {
+                documentBatch.add(documents.next());
+            }
+            try {
+                runWriting(databaseName, new ContextTask<Void>() {
+                    @Override
+                    Void run(Context sessionContext) throws BaseXException {
+                        new Open(databaseName).execute(sessionContext);
+                        // with autoflush off the whole batch is written to disk once by the flush rather than after each document
+                        new Set("AUTOFLUSH", "false").execute(sessionContext);
+                        try {
+                            for (NamedDocument namedDocument : documentBatch) {
+                                // replace adds the document when it does not yet exist, which saves the separate delete
+                                new Replace(namedDocument.getDocumentName(), namedDocument.getDocumentContents()).execute(sessionContext);
+                            }
+                            new Flush().execute(sessionContext);
+                        } finally {
+                            new Set("AUTOFLUSH", "true").execute(sessionContext);
+                            new Close().execute(sessionContext);
+                        }
+                        return null;
+                    }
+                });
+            } catch (BaseXException exception) {
+                logger.debug(exception.getMessage());
+                throw new QueryException("Error adding documents", exception);
             }
+        }
+    }
+
+    public void deleteDocument(final String databaseName, final String documentName) throws QueryException {
+        try {
+            runWriting(databaseName, new ContextTask<Void>() {
+                @Override
+                Void run(Context sessionContext) throws BaseXException {
+                    new Open(databaseName).execute(sessionContext);
+                    new Delete(documentName).execute(sessionContext);
+                    new Close().execute(sessionContext);
+                    return null;
+                }
+            });
         } catch (BaseXException exception) {
             logger.debug(exception.getMessage());
             throw new QueryException("Error deleting document", exception);
         }
     }
 
-    public String executeQuery(String databaseName, String queryString) throws QueryException {
-        try {
-            synchronized (databaseLock) {
+    public String executeQuery(String databaseName, final String queryString) throws QueryException {
+        return runQuery(databaseName, queryString, null);
+    }
+
+    public <T> T executeQuery(final String databaseName, final String queryString, QueryResultHandler<T> resultHandler) throws QueryException {
+        return streamQuery(databaseName, queryString, null, resultHandler, QueryDeadline.none);
+    }
+
+    public <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        return streamQuery(databaseName, queryString, null, resultHandler, queryDeadline);
+    }
+
+    public String executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables) throws QueryException {
+        queryTemplate.checkVariables(queryVariables);
+        return runQuery(databaseName, queryTemplate.getQueryText(), queryVariables);
+    }
+
+    public <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler) throws QueryException {
+        queryTemplate.checkVariables(queryVariables);
+        return streamQuery(databaseName, queryTemplate.getQueryText(), queryVariables, resultHandler, QueryDeadline.none);
+    }
+
+    public <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        queryTemplate.checkVariables(queryVariables);
+        return streamQuery(databaseName, queryTemplate.getQueryText(), queryVariables, resultHandler, queryDeadline);
+    }
+
+    static XQuery getBoundQuery(String queryString, Map<String, String> queryVariables) {
+        final XQuery xQuery = new XQuery(queryString);
+        if (queryVariables != null) {
+            for (Map.Entry<String, String> queryVariable : queryVariables.entrySet()) {
+                xQuery.bind(queryVariable.getKey(), queryVariable.getValue());
+            }
+        }
+        return xQuery;
+    }
+
+    private String runQuery(String databaseName, final String queryString, final Map<String, String> queryVariables) throws QueryException {
+        final XQuery xQuery = getBoundQuery(queryString, queryVariables);
+        final ContextTask<String> queryTask = new ContextTask<String>() {
+            @Override
+            String run(Context sessionContext) throws BaseXException {
 //                logger.debug("queryString: " + queryString);
-                return new XQuery(queryString).execute(context);
+                return xQuery.execute(sessionContext);
             }
+        };
+        try {
+            return runQueryTask(databaseName, xQuery, queryTask);
         } catch (BaseXException exception) {
             logger.debug(exception.getMessage());
             throw new QueryException("Error executing query", exception);
         }
     }
 
-    public void createIndexes(String databaseName) throws QueryException {
-        try {
-            synchronized (databaseLock) {
-                new Open(databaseName).execute(context);
-                new CreateIndex("text").execute(context);
-                new CreateIndex("attribute").execute(context);
-                new CreateIndex("fulltext").execute(context);
-                new OptimizeAll().execute(context);
-                new Close().execute(context);
+    private <T> T streamQuery(final String databaseName, final String queryString, final Map<String, String> queryVariables, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        // the command is created here so that it can be stopped from the cancel thread when the deadline passes
+        final XQuery xQuery = getBoundQuery(queryString, queryVariables);
+        return QueryResultPipe.pipeResult(new QueryResultPipe.ResultWriter() {
+            public void writeResult(final OutputStream outputStream) throws IOException {
+                // this is called on the pipe thread, the locks are therefore taken and released there
+                final ContextTask<Void> queryTask = new ContextTask<Void>() {
+                    @Override
+                    Void run(Context sessionContext) throws BaseXException {
+                        xQuery.execute(sessionContext, outputStream);
+                        return null;
+                    }
+                };
+                runQueryTask(databaseName, xQuery, queryTask);
             }
+        }, resultHandler, queryDeadline, new Runnable() {
+            public void run() {
+                // the query is interrupted at its next check and releases the session and lock
+                xQuery.stop();
+            }
+        });
+    }
+
+    public void createIndexes(final String databaseName) throws QueryException {
+        try {
+            runWriting(databaseName, new ContextTask<Void>() {
+                @Override
+                Void run(Context sessionContext) throws BaseXException {
+                    new Open(databaseName).execute(sessionContext);
+                    new CreateIndex("text").execute(sessionContext);
+                    new CreateIndex("attribute").execute(sessionContext);
+                    new CreateIndex("fulltext").execute(sessionContext);
+                    new OptimizeAll().execute(sessionContext);
+                    new Close().execute(sessionContext);
+                    return null;
+                }
+            });
         } catch (BaseXException exception) {
             logger.debug(exception.getMessage());
             throw new QueryException("Error creating indexes", exception);
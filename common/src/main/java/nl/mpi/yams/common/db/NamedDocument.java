@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+/**
+ * A document and the path it is to be stored under in the database, used for
+ * bulk inserts.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class NamedDocument {
+
+    final private String documentName;
+    final private String documentContents;
+
+    public NamedDocument(String documentName, String documentContents) {
+        this.documentName = documentName;
+        this.documentContents = documentContents;
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    public String getDocumentContents() {
+        return documentContents;
+    }
+}
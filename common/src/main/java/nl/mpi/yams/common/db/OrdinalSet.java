@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import nl.mpi.yams.common.data.QueryDataStructures.CriterionJoinType;
+
+/**
+ * An immutable set of document ordinals kept as a sorted array, so that the
+ * sets matched by each search criterion can be joined by merging rather than
+ * by comparing every member of one set with every member of another.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public final class OrdinalSet {
+
+    public static final OrdinalSet EMPTY = new OrdinalSet(new int[0], 0);
+    final private int[] ordinals;
+    final private int size;
+
+    private OrdinalSet(int[] ordinals, int size) {
+        this.ordinals = ordinals;
+        this.size = size;
+    }
+
+    /**
+     * @param ordinals the ordinals in any order, duplicates are removed
+     * @param count the number of ordinals in the array that are used
+     * @return the set of the ordinals
+     */
+    public static OrdinalSet fromUnsorted(int[] ordinals, int count) {
+        final int[] sortedOrdinals = Arrays.copyOf(ordinals, count);
+        Arrays.sort(sortedOrdinals);
+        int distinctCount = 0;
+        for (int index = 0; index < count; index++) {
+            if (distinctCount == 0 || sortedOrdinals[distinctCount - 1] != sortedOrdinals[index]) {
+                sortedOrdinals[distinctCount++] = sortedOrdinals[index];
+            }
+        }
+        return new OrdinalSet(sortedOrdinals, distinctCount);
+    }
+
+    public static OrdinalSet of(int... ordinals) {
+        return fromUnsorted(ordinals, ordinals.length);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int ordinal) {
+        return Arrays.binarySearch(ordinals, 0, size, ordinal) >= 0;
+    }
+
+    /**
+     * @return the ordinals in ascending order
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(ordinals, size);
+    }
+
+    /**
+     * @return the ordinals that are in both sets
+     */
+    public OrdinalSet and(OrdinalSet otherSet) {
+        final OrdinalSet smallSet = (size <= otherSet.size) ? this : otherSet;
+        final OrdinalSet largeSet = (smallSet == this) ? otherSet : this;
+        final int[] resultOrdinals = new int[smallSet.size];
+        int resultCount = 0;
+        if ((long) smallSet.size * 32 < largeSet.size) {
+            // when one set is much smaller its members are looked up in the larger set, moving the search start forward each time
+            int searchStart = 0;
+            for (int index = 0; index < smallSet.size && searchStart < largeSet.size; index++) {
+                final int foundIndex = Arrays.binarySearch(largeSet.ordinals, searchStart, largeSet.size, smallSet.ordinals[index]);
+                if (foundIndex >= 0) {
+                    resultOrdinals[resultCount++] = smallSet.ordinals[index];
+                    searchStart = foundIndex + 1;
+                } else {
+                    searchStart = -foundIndex - 1;
+                }
+            }
+        } else {
+            int smallIndex = 0;
+            int largeIndex = 0;
+            while (smallIndex < smallSet.size && largeIndex < largeSet.size) {
+                final int smallOrdinal = smallSet.ordinals[smallIndex];
+                final int largeOrdinal = largeSet.ordinals[largeIndex];
+                if (smallOrdinal < largeOrdinal) {
+                    smallIndex++;
+                } else if (smallOrdinal > largeOrdinal) {
+                    largeIndex++;
+                } else {
+                    resultOrdinals[resultCount++] = smallOrdinal;
+                    smallIndex++;
+                    largeIndex++;
+                }
+            }
+        }
+        return new OrdinalSet(resultOrdinals, resultCount);
+    }
+
+    /**
+     * @return the ordinals that are in either set
+     */
+    public OrdinalSet or(OrdinalSet otherSet) {
+        final int[] resultOrdinals = new int[size + otherSet.size];
+        int resultCount = 0;
+        int index = 0;
+        int otherIndex = 0;
+        while (index < size || otherIndex < otherSet.size) {
+            if (otherIndex >= otherSet.size || (index < size && ordinals[index] < otherSet.ordinals[otherIndex])) {
+                resultOrdinals[resultCount++] = ordinals[index++];
+            } else if (index >= size || otherSet.ordinals[otherIndex] < ordinals[index]) {
+                resultOrdinals[resultCount++] = otherSet.ordinals[otherIndex++];
+            } else {
+                resultOrdinals[resultCount++] = ordinals[index++];
+                otherIndex++;
+            }
+        }
+        return new OrdinalSet(resultOrdinals, resultCount);
+    }
+
+    /**
+     * @return the ordinals in this set that are not in the other set
+     */
+    public OrdinalSet andNot(OrdinalSet otherSet) {
+        final int[] resultOrdinals = new int[size];
+        int resultCount = 0;
+        int otherIndex = 0;
+        for (int index = 0; index < size; index++) {
+            final int ordinal = ordinals[index];
+            while (otherIndex < otherSet.size && otherSet.ordinals[otherIndex] < ordinal) {
+                otherIndex++;
+            }
+            if (otherIndex >= otherSet.size || otherSet.ordinals[otherIndex] != ordinal) {
+                resultOrdinals[resultCount++] = ordinal;
+            }
+        }
+        return new OrdinalSet(resultOrdinals, resultCount);
+    }
+
+    /**
+     * Combines the sets matched by the search criteria in the way that the
+     * search query would. The included sets are intersected smallest first so
+     * that the work done is bounded by the smallest set.
+     *
+     * @param criterionJoinType intersect or union of the included sets
+     * @param includedSets the sets matched by the "is" criteria
+     * @param excludedSets the sets matched by the "not" criteria, which are
+     * removed from the result
+     * @return the ordinals of the search results
+     */
+    public static OrdinalSet join(CriterionJoinType criterionJoinType, List<OrdinalSet> includedSets, List<OrdinalSet> excludedSets) {
+        if (includedSets.isEmpty()) {
+            return EMPTY;
+        }
+        OrdinalSet resultSet;
+        if (criterionJoinType == CriterionJoinType.intersect) {
+            final List<OrdinalSet> sortedSets = new ArrayList<OrdinalSet>(includedSets);
+            Collections.sort(sortedSets, new Comparator<OrdinalSet>() {
+                public int compare(OrdinalSet firstSet, OrdinalSet secondSet) {
+                    return (firstSet.size < secondSet.size) ? -1 : ((firstSet.size == secondSet.size) ? 0 : 1);
+                }
+            });
+            resultSet = sortedSets.get(0);
+            for (int index = 1; index < sortedSets.size() && !resultSet.isEmpty(); index++) {
+                resultSet = resultSet.and(sortedSets.get(index));
+            }
+        } else {
+            resultSet = includedSets.get(0);
+            for (int index = 1; index < includedSets.size(); index++) {
+                resultSet = resultSet.or(includedSets.get(index));
+            }
+        }
+        for (OrdinalSet excludedSet : excludedSets) {
+            if (resultSet.isEmpty()) {
+                break;
+            }
+            resultSet = resultSet.andNot(excludedSet);
+        }
+        return resultSet;
+    }
+}
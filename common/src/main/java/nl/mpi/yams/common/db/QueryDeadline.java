@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The point in time by which a query must have completed. A deadline is
+ * normally created from the time budget of the request that the query is
+ * part of and passed to each query of that request, so the queries share the
+ * one budget rather than each getting the full amount.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public final class QueryDeadline {
+
+    /**
+     * A deadline that never expires
+     */
+    public static final QueryDeadline none = new QueryDeadline(Long.MAX_VALUE);
+    // runs the cancellations of queries that pass their deadline
+    static final private ScheduledExecutorService cancelScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "QueryDeadline-cancel");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    final private long deadlineMillis;
+
+    /**
+     * Waits for a query to finish and cancels it if the deadline passes first
+     */
+    static class CancelWatch {
+
+        final private AtomicBoolean cancelled = new AtomicBoolean(false);
+        private ScheduledFuture<?> scheduledCancel = null;
+
+        /**
+         * @return true if the deadline passed and the query was cancelled
+         */
+        boolean wasCancelled() {
+            return cancelled.get();
+        }
+
+        /**
+         * Called when the query has finished, after which it will no longer
+         * be cancelled
+         */
+        void stop() {
+            if (scheduledCancel != null) {
+                scheduledCancel.cancel(false);
+            }
+        }
+    }
+
+    private QueryDeadline(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @param timeoutMillis the time from now that the query may take, zero or
+     * less means that there is no deadline
+     * @return the deadline
+     */
+    public static QueryDeadline after(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return none;
+        }
+        return new QueryDeadline(System.currentTimeMillis() + timeoutMillis);
+    }
+
+    /**
+     * @param timeoutMillis the most time from now that a part of the request
+     * may take, zero or less means that only this deadline applies
+     * @return the earlier of this deadline and the given time from now
+     */
+    public QueryDeadline limitTo(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return this;
+        }
+        final long limitMillis = System.currentTimeMillis() + timeoutMillis;
+        return (limitMillis < deadlineMillis) ? new QueryDeadline(limitMillis) : this;
+    }
+
+    public boolean isNone() {
+        return deadlineMillis == Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the time left before the deadline, which is zero once it has
+     * passed and Long.MAX_VALUE when there is no deadline
+     */
+    public long getRemainingMillis() {
+        if (isNone()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadlineMillis - System.currentTimeMillis());
+    }
+
+    public boolean hasExpired() {
+        return getRemainingMillis() == 0;
+    }
+
+    /**
+     * @param queryDescription describes the query for the exception message
+     * @throws QueryTimeoutException if the deadline has passed
+     */
+    public void checkExpired(String queryDescription) throws QueryTimeoutException {
+        if (hasExpired()) {
+            throw new QueryTimeoutException("The deadline passed before the query completed: " + queryDescription);
+        }
+    }
+
+    /**
+     * Runs the canceller when the deadline passes unless the watch is stopped
+     * first.
+     *
+     * @param canceller stops the running query, this is called on the cancel
+     * thread so it must not block
+     * @return the watch which must be stopped when the query finishes
+     */
+    CancelWatch watch(final Runnable canceller) {
+        final CancelWatch cancelWatch = new CancelWatch();
+        if (!isNone()) {
+            cancelWatch.scheduledCancel = cancelScheduler.schedule(new Runnable() {
+                public void run() {
+                    cancelWatch.cancelled.set(true);
+                    canceller.run();
+                }
+            }, getRemainingMillis(), TimeUnit.MILLISECONDS);
+        }
+        return cancelWatch;
+    }
+
+    @Override
+    public String toString() {
+        return isNone() ? "no deadline" : getRemainingMillis() + "ms remaining";
+    }
+}
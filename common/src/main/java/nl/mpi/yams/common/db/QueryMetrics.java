@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the latency, result size and error counts of database queries by
+ * query name, along with the time spent waiting for locks, sessions and
+ * connections. Latencies are counted in fixed buckets so recording is lock
+ * free and the percentiles are given as the upper bound of the bucket that
+ * they fall in.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+
+    // the upper bound in milliseconds of each latency bucket, the last bucket holds everything slower
+    static final private long[] bucketBoundsMs = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000, Long.MAX_VALUE};
+    static final private String waitPrefix = "wait ";
+    static private QueryMetrics sharedMetrics = null;
+    final private String metricsName;
+    final private ConcurrentMap<String, QueryStatistics> statisticsMap = new ConcurrentHashMap<String, QueryStatistics>();
+
+    /**
+     * The counts for one query name
+     */
+    public static class QueryStatistics {
+
+        final private AtomicLongArray bucketCounts = new AtomicLongArray(bucketBoundsMs.length);
+        final private AtomicLong queryCount = new AtomicLong();
+        final private AtomicLong errorCount = new AtomicLong();
+        final private AtomicLong timeoutCount = new AtomicLong();
+        final private AtomicLong totalNanos = new AtomicLong();
+        final private AtomicLong maxNanos = new AtomicLong();
+        final private AtomicLong resultBytes = new AtomicLong();
+
+        void record(long elapsedNanos, long resultByteCount, boolean failed, boolean timedOut) {
+            final long elapsedMs = elapsedNanos / 1000000;
+            int bucketIndex = 0;
+            while (elapsedMs > bucketBoundsMs[bucketIndex]) {
+                bucketIndex++;
+            }
+            bucketCounts.incrementAndGet(bucketIndex);
+            queryCount.incrementAndGet();
+            totalNanos.addAndGet(elapsedNanos);
+            long currentMax = maxNanos.get();
+            while (elapsedNanos > currentMax && !maxNanos.compareAndSet(currentMax, elapsedNanos)) {
+                currentMax = maxNanos.get();
+            }
+            if (resultByteCount > 0) {
+                resultBytes.addAndGet(resultByteCount);
+            }
+            if (failed) {
+                errorCount.incrementAndGet();
+            }
+            if (timedOut) {
+                timeoutCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound in milliseconds of the bucket that holds
+         * the percentile, or the maximum when that is lower
+         */
+        public long getPercentileMs(double percentile) {
+            final long totalCount = queryCount.get();
+            if (totalCount == 0) {
+                return 0;
+            }
+            final long targetRank = (long) Math.ceil(totalCount * percentile / 100.0);
+            long currentRank = 0;
+            for (int bucketIndex = 0; bucketIndex < bucketBoundsMs.length; bucketIndex++) {
+                currentRank += bucketCounts.get(bucketIndex);
+                if (currentRank >= targetRank) {
+                    return Math.min(bucketBoundsMs[bucketIndex], getMaxMs());
+                }
+            }
+            return getMaxMs();
+        }
+
+        public long getQueryCount() {
+            return queryCount.get();
+        }
+
+        public long getErrorCount() {
+            return errorCount.get();
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount.get();
+        }
+
+        public long getTotalMs() {
+            return totalNanos.get() / 1000000;
+        }
+
+        public long getMaxMs() {
+            return maxNanos.get() / 1000000;
+        }
+
+        public long getResultBytes() {
+            return resultBytes.get();
+        }
+    }
+
+    public QueryMetrics(String metricsName) {
+        this.metricsName = metricsName;
+    }
+
+    /**
+     * @return the metrics shared by all adaptors in this JVM, which are also
+     * registered with the platform MBean server
+     */
+    public static synchronized QueryMetrics getSharedMetrics() {
+        if (sharedMetrics == null) {
+            sharedMetrics = new QueryMetrics("shared");
+            sharedMetrics.registerMBean();
+        }
+        return sharedMetrics;
+    }
+
+    /**
+     * Registers these metrics as nl.mpi.yams:type=QueryMetrics,name=...,
+     * failures are logged because the metrics are still usable without JMX
+     */
+    public void registerMBean() {
+        try {
+            final ObjectName objectName = new ObjectName("nl.mpi.yams:type=QueryMetrics,name=" + ObjectName.quote(metricsName));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            }
+        } catch (JMException exception) {
+            LoggerFactory.getLogger(QueryMetrics.class).warn("Could not register the query metrics with JMX: " + exception.getMessage());
+        }
+    }
+
+    private QueryStatistics getStatistics(String queryName) {
+        QueryStatistics queryStatistics = statisticsMap.get(queryName);
+        if (queryStatistics == null) {
+            final QueryStatistics createdStatistics = new QueryStatistics();
+            queryStatistics = statisticsMap.putIfAbsent(queryName, createdStatistics);
+            if (queryStatistics == null) {
+                queryStatistics = createdStatistics;
+            }
+        }
+        return queryStatistics;
+    }
+
+    /**
+     * @param queryName the name that the query is reported under
+     * @param elapsedNanos the time taken by the query
+     * @param resultBytes the size of the result, zero when not known
+     * @param failed true if the query threw an exception
+     * @param timedOut true if the query was cancelled at its deadline
+     */
+    public void recordQuery(String queryName, long elapsedNanos, long resultBytes, boolean failed, boolean timedOut) {
+        getStatistics(queryName).record(elapsedNanos, resultBytes, failed, timedOut);
+    }
+
+    /**
+     * @param waitName what was waited for, such as a lock or connection
+     * @param elapsedNanos the time spent waiting
+     */
+    public void recordWait(String waitName, long elapsedNanos) {
+        getStatistics(waitPrefix + waitName).record(elapsedNanos, 0, false, false);
+    }
+
+    /**
+     * @param queryName the name that was passed to recordQuery, or "wait "
+     * followed by the name passed to recordWait
+     * @return the statistics or null if nothing has been recorded
+     */
+    public QueryStatistics getQueryStatistics(String queryName) {
+        return statisticsMap.get(queryName);
+    }
+
+    public String[] getQueryNames() {
+        final List<String> queryNames = new ArrayList<String>(statisticsMap.keySet());
+        Collections.sort(queryNames);
+        return queryNames.toArray(new String[queryNames.size()]);
+    }
+
+    public long getQueryCount() {
+        long totalCount = 0;
+        for (Map.Entry<String, QueryStatistics> entry : statisticsMap.entrySet()) {
+            if (!entry.getKey().startsWith(waitPrefix)) {
+                totalCount += entry.getValue().getQueryCount();
+            }
+        }
+        return totalCount;
+    }
+
+    public long getErrorCount() {
+        long totalCount = 0;
+        for (QueryStatistics queryStatistics : statisticsMap.values()) {
+            totalCount += queryStatistics.getErrorCount();
+        }
+        return totalCount;
+    }
+
+    public long getTimeoutCount() {
+        long totalCount = 0;
+        for (QueryStatistics queryStatistics : statisticsMap.values()) {
+            totalCount += queryStatistics.getTimeoutCount();
+        }
+        return totalCount;
+    }
+
+    /**
+     * @return one line per query name in a form that is easy to read and to
+     * parse with standard text tools
+     */
+    public String getReport() {
+        final StringBuilder reportBuilder = new StringBuilder();
+        reportBuilder.append("# count errors timeouts p50ms p95ms p99ms maxms totalms resultbytes name\n");
+        for (String queryName : getQueryNames()) {
+            final QueryStatistics queryStatistics = statisticsMap.get(queryName);
+            reportBuilder.append(queryStatistics.getQueryCount()).append(' ');
+            reportBuilder.append(queryStatistics.getErrorCount()).append(' ');
+            reportBuilder.append(queryStatistics.getTimeoutCount()).append(' ');
+            reportBuilder.append(queryStatistics.getPercentileMs(50)).append(' ');
+            reportBuilder.append(queryStatistics.getPercentileMs(95)).append(' ');
+            reportBuilder.append(queryStatistics.getPercentileMs(99)).append(' ');
+            reportBuilder.append(queryStatistics.getMaxMs()).append(' ');
+            reportBuilder.append(queryStatistics.getTotalMs()).append(' ');
+            reportBuilder.append(queryStatistics.getResultBytes()).append(' ');
+            reportBuilder.append(queryName).append('\n');
+        }
+        return reportBuilder.toString();
+    }
+
+    public void reset() {
+        statisticsMap.clear();
+    }
+}
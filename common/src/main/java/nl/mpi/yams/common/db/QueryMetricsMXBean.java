@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+/**
+ * The JMX view of QueryMetrics
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public interface QueryMetricsMXBean {
+
+    /**
+     * @return the names of the queries and waits that have been recorded
+     */
+    String[] getQueryNames();
+
+    long getQueryCount();
+
+    long getErrorCount();
+
+    long getTimeoutCount();
+
+    /**
+     * @return the plain text report of all queries and waits
+     */
+    String getReport();
+
+    void reset();
+}
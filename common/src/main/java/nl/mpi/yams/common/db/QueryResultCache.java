@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in memory cache of query results in front of the database, so that a
+ * repeated facet or statistics request is answered without a database query.
+ * Entries are dropped when the least recently used entries exceed the size
+ * limit, when they reach the time to live, or when the generation of their
+ * database changes. The generation is increased by every insert or delete
+ * made through a DataBaseManager in this JVM, and when ContentGenerationCache
+ * reads a new content generation stored by another process, such as a
+ * crawler on another machine.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class QueryResultCache {
+
+    static final public int defaultMaxEntries = 1000;
+    static final public long defaultTimeToLiveMs = 10 * 60 * 1000;
+    static final private ConcurrentMap<String, AtomicLong> databaseGenerations = new ConcurrentHashMap<String, AtomicLong>();
+    static private QueryResultCache sharedCache = null;
+    final private long timeToLiveMs;
+    final private Map<String, CacheEntry> cacheMap;
+    final private AtomicLong hitCount = new AtomicLong();
+    final private AtomicLong missCount = new AtomicLong();
+
+    private static class CacheEntry {
+
+        final String queryResult;
+        final long generation;
+        final long createdMs;
+
+        public CacheEntry(String queryResult, long generation, long createdMs) {
+            this.queryResult = queryResult;
+            this.generation = generation;
+            this.createdMs = createdMs;
+        }
+    }
+
+    /**
+     *
+     * @param maxEntries the number of results kept, after which the least
+     * recently used are dropped
+     * @param timeToLiveMs the age at which a result is dropped
+     */
+    public QueryResultCache(final int maxEntries, long timeToLiveMs) {
+        this.timeToLiveMs = timeToLiveMs;
+        // the access ordered map moves each entry to the end when it is read so the eldest entry is the least recently used
+        this.cacheMap = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cache shared by all DataBaseManagers in this JVM
+     */
+    public static synchronized QueryResultCache getSharedCache() {
+        if (sharedCache == null) {
+            sharedCache = new QueryResultCache(defaultMaxEntries, defaultTimeToLiveMs);
+        }
+        return sharedCache;
+    }
+
+    private static AtomicLong getGenerationCounter(String databaseName) {
+        AtomicLong generationCounter = databaseGenerations.get(databaseName);
+        if (generationCounter == null) {
+            final AtomicLong createdCounter = new AtomicLong();
+            generationCounter = databaseGenerations.putIfAbsent(databaseName, createdCounter);
+            if (generationCounter == null) {
+                generationCounter = createdCounter;
+            }
+        }
+        return generationCounter;
+    }
+
+    public static long getGeneration(String databaseName) {
+        return getGenerationCounter(databaseName).get();
+    }
+
+    /**
+     * Invalidates every cached result for the database, this is called after
+     * each change to the contents of the database
+     *
+     * @param databaseName the database that has changed
+     */
+    public static void nextGeneration(String databaseName) {
+        getGenerationCounter(databaseName).incrementAndGet();
+    }
+
+    private String getCacheKey(String databaseName, String queryKey) {
+        return databaseName + "\n" + queryKey;
+    }
+
+    /**
+     * @param databaseName the database that the query was run on
+     * @param queryKey identifies the query and its parameters, normally the
+     * query text
+     * @return the cached result or null if there is no current result
+     */
+    public String get(String databaseName, String queryKey) {
+        final String cacheKey = getCacheKey(databaseName, queryKey);
+        final long currentGeneration = getGeneration(databaseName);
+        synchronized (cacheMap) {
+            final CacheEntry cacheEntry = cacheMap.get(cacheKey);
+            if (cacheEntry != null) {
+                if (cacheEntry.generation == currentGeneration && System.currentTimeMillis() - cacheEntry.createdMs < timeToLiveMs) {
+                    hitCount.incrementAndGet();
+                    return cacheEntry.queryResult;
+                }
+                cacheMap.remove(cacheKey);
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param generation the generation of the database read before the query
+     * was run, so that a result that raced with a change is not kept
+     */
+    public void put(String databaseName, String queryKey, String queryResult, long generation) {
+        if (generation != getGeneration(databaseName)) {
+            return;
+        }
+        synchronized (cacheMap) {
+            cacheMap.put(getCacheKey(databaseName, queryKey), new CacheEntry(queryResult, generation, System.currentTimeMillis()));
+        }
+    }
+
+    public void clear() {
+        synchronized (cacheMap) {
+            cacheMap.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cacheMap) {
+            return cacheMap.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.InputStream;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+
+/**
+ * Consumes the serialised result of a query while it is being received, so
+ * that the result does not need to be held in memory as a string.
+ *
+ * @param <T> the type produced from the query result
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public interface QueryResultHandler<T> {
+
+    /**
+     * @param resultStream the UTF-8 serialised query result, this stream is
+     * closed by the adaptor after this method returns
+     * @return the object built from the query result
+     * @throws QueryException
+     */
+    T handleResult(InputStream resultStream) throws QueryException;
+}
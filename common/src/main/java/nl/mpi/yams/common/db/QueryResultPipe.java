@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects a BaseX serialiser, which writes to an output stream, to a
+ * QueryResultHandler, which reads from an input stream. The serialiser runs on
+ * a helper thread and only a fixed size buffer of the result is held in
+ * memory.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+class QueryResultPipe {
+
+    interface ResultWriter {
+
+        void writeResult(OutputStream outputStream) throws IOException;
+    }
+    // the size of the buffer between the BaseX serialiser and the result handler, which is the only copy of a streamed result held in memory
+    static final private int streamBufferSize = 64 * 1024;
+    // any locks taken by the serialiser are taken on this thread so that they are also released by it
+    static final private ExecutorService serialiserExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "QueryResultPipe-serialiser");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    static final private org.slf4j.Logger logger = LoggerFactory.getLogger(QueryResultPipe.class);
+
+    static <T> T pipeResult(final ResultWriter resultWriter, QueryResultHandler<T> resultHandler) throws QueryException {
+        return pipeResult(resultWriter, resultHandler, QueryDeadline.none, null);
+    }
+
+    /**
+     * Pipes the result as above, if the deadline passes first the canceller is
+     * called to stop the query and a QueryTimeoutException is thrown.
+     *
+     * @param queryCanceller stops the query in the database, this is called on
+     * the cancel thread while the result is still being written
+     */
+    static <T> T pipeResult(final ResultWriter resultWriter, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline, final Runnable queryCanceller) throws QueryException {
+        queryDeadline.checkExpired("before the query started");
+        final PipedInputStream resultStream = new PipedInputStream(streamBufferSize);
+        final PipedOutputStream serialiserStream;
+        try {
+            serialiserStream = new PipedOutputStream(resultStream);
+        } catch (IOException exception) {
+            throw new QueryException("Error executing query", exception);
+        }
+        final AtomicBoolean resultAbandoned = new AtomicBoolean(false);
+        final Future<Void> serialiserFuture = serialiserExecutor.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                try {
+                    resultWriter.writeResult(serialiserStream);
+                } catch (IOException exception) {
+                    if (!resultAbandoned.get()) {
+                        throw exception;
+                    }
+                    // the handler stopped reading so the closed pipe is expected here
+                } finally {
+                    try {
+                        serialiserStream.close();
+                    } catch (IOException exception) {
+                        logger.debug(exception.getMessage());
+                    }
+                }
+                return null;
+            }
+        });
+        final QueryDeadline.CancelWatch cancelWatch = queryDeadline.watch(new Runnable() {
+            public void run() {
+                resultAbandoned.set(true);
+                if (queryCanceller != null) {
+                    queryCanceller.run();
+                }
+                try {
+                    // this fails any further writes by the serialiser, which then closes its end so that the handler sees the end of the result
+                    resultStream.close();
+                } catch (IOException exception) {
+                    logger.debug(exception.getMessage());
+                }
+            }
+        });
+        T handledResult = null;
+        QueryException handlerException = null;
+        try {
+            handledResult = resultHandler.handleResult(resultStream);
+        } catch (QueryException exception) {
+            handlerException = exception;
+        } finally {
+            // the handler has stopped reading, whether at the end of the result, by returning early or by throwing, so a failed write after this is expected
+            resultAbandoned.set(true);
+            try {
+                // closing the pipe also releases the serialiser if the handler did not read to the end
+                resultStream.close();
+            } catch (IOException exception) {
+                logger.debug(exception.getMessage());
+            }
+            // this is also done when the handler throws a runtime exception, so that the serialiser and the scheduled cancel are not left behind
+            awaitSerialiser(serialiserFuture, cancelWatch);
+        }
+        if (cancelWatch.wasCancelled()) {
+            // the cancelled query may have ended quietly, in which case the result that was handled is incomplete
+            throw new QueryTimeoutException("The query was cancelled because its deadline passed");
+        }
+        if (handlerException != null) {
+            throw handlerException;
+        }
+        return handledResult;
+    }
+
+    private static void awaitSerialiser(Future<Void> serialiserFuture, QueryDeadline.CancelWatch cancelWatch) throws QueryException {
+        try {
+            // a failed query appears to the handler as a truncated result, so the query error is preferred when there is one
+            serialiserFuture.get();
+        } catch (ExecutionException exception) {
+            if (cancelWatch.wasCancelled()) {
+                throw new QueryTimeoutException("The query was cancelled because its deadline passed", exception.getCause());
+            }
+            logger.debug(exception.getCause().getMessage());
+            throw new QueryException("Error executing query", exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new QueryException("Interrupted while executing query", exception);
+        } finally {
+            cancelWatch.stop();
+        }
+    }
+}
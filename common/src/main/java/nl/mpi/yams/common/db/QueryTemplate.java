@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+
+/**
+ * A fixed XQuery that takes its values from external variables. Because the
+ * query text never changes the values do not need to be escaped into the
+ * query and the same template can be reused for every call. The database name is kept in the query text rather than passed as a variable so
+ * that BaseX can still lock only the database being read.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class QueryTemplate {
+
+    final private String queryBody;
+    final private String queryText;
+    final private List<String> variableNames;
+
+    /**
+     *
+     * @param queryBody the query which refers to each variable as $name
+     * @param variableNames the names of the external variables, without
+     * the dollar sign
+     */
+    public QueryTemplate(String queryBody, String... variableNames) {
+        this.queryBody = queryBody;
+        this.variableNames = Collections.unmodifiableList(Arrays.asList(variableNames));
+        StringBuilder queryBuilder = new StringBuilder();
+        for (String variableName : variableNames) {
+            queryBuilder.append("declare variable $").append(variableName).append(" external;\n");
+        }
+        queryBuilder.append(queryBody);
+        this.queryText = queryBuilder.toString();
+    }
+
+    public String getQueryText() {
+        return queryText;
+    }
+
+    /**
+     * @return the query without the variable declarations
+     */
+    public String getQueryBody() {
+        return queryBody;
+    }
+
+    public List<String> getVariableNames() {
+        return variableNames;
+    }
+
+    /**
+     * Checks that there is a value for each variable in the template
+     *
+     * @param queryVariables the values to be bound to the variables
+     * @throws QueryException if a value is missing
+     */
+    public void checkVariables(Map<String, String> queryVariables) throws QueryException {
+        for (String variableName : variableNames) {
+            if (queryVariables.get(variableName) == null) {
+                throw new QueryException("No value provided for the query variable: " + variableName);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return queryText;
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits and reuses the HTTP connections to one BaseX REST host. The JVM keeps
+ * idle connections alive for reuse as long as each response is read to the end
+ * and closed rather than disconnected, this class makes sure that happens and
+ * caps the number of connections in use per host. The size of the JVM idle
+ * connection cache is left alone unless configureJvmKeepAlive is called.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class RestConnectionPool {
+
+    final static public int defaultMaxConnections = 10;
+    final static private ConcurrentMap<String, RestConnectionPool> hostPools = new ConcurrentHashMap<String, RestConnectionPool>();
+    final private String hostKey;
+    final private int maxConnections;
+    final private Semaphore connectionPermits;
+    final private AtomicInteger activeConnections = new AtomicInteger();
+    final private AtomicInteger peakConnections = new AtomicInteger();
+    final private AtomicLong requestCount = new AtomicLong();
+    final private AtomicLong closedCount = new AtomicLong();
+    final private AtomicLong waitTimeMS = new AtomicLong();
+    final private org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
+
+    private RestConnectionPool(String hostKey, int maxConnections) {
+        this.hostKey = hostKey;
+        this.maxConnections = maxConnections;
+        this.connectionPermits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Sets the http.keepAlive and http.maxConnections system properties if they
+     * have not already been set. These are JVM wide and change the behaviour of
+     * every HttpURLConnection in the same JVM or servlet container, they are
+     * also only read by the JVM before the first connection is made, so this is
+     * opt-in and should be called at startup.
+     *
+     * @param maxIdleConnections the number of idle connections the JVM keeps
+     * per host
+     */
+    public static void configureJvmKeepAlive(int maxIdleConnections) {
+        if (System.getProperty("http.keepAlive") == null) {
+            System.setProperty("http.keepAlive", "true");
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(maxIdleConnections));
+        }
+    }
+
+    /**
+     * Gets the shared pool for the host of the provided URL
+     *
+     * @param restUrl the URL of the BaseX REST interface
+     * @param maxConnections the maximum number of connections to the host that
+     * can be in use at any one time, this is only used when the pool for the
+     * host is first created
+     * @return the connection pool for the host
+     */
+    public static RestConnectionPool getPool(URL restUrl, int maxConnections) {
+        final String hostKey = restUrl.getProtocol() + "://" + restUrl.getHost() + ":" + restUrl.getPort();
+        RestConnectionPool connectionPool = hostPools.get(hostKey);
+        if (connectionPool == null) {
+            final RestConnectionPool createdPool = new RestConnectionPool(hostKey, maxConnections);
+            connectionPool = hostPools.putIfAbsent(hostKey, createdPool);
+            if (connectionPool == null) {
+                connectionPool = createdPool;
+            }
+        }
+        return connectionPool;
+    }
+
+    /**
+     * Opens a connection once one is available for this host, every connection
+     * opened here must be handed back via releaseConnection
+     *
+     * @param requestUrl the URL to connect to
+     * @return an unconnected HttpURLConnection
+     * @throws IOException
+     */
+    public HttpURLConnection openConnection(URL requestUrl) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        try {
+            connectionPermits.acquire();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + hostKey);
+        }
+        waitTimeMS.addAndGet(System.currentTimeMillis() - startTime);
+        QueryMetrics.getSharedMetrics().recordWait("RestDbAdaptor connection " + hostKey, (System.currentTimeMillis() - startTime) * 1000000);
+        requestCount.incrementAndGet();
+        final int currentActive = activeConnections.incrementAndGet();
+        int currentPeak = peakConnections.get();
+        while (currentActive > currentPeak && !peakConnections.compareAndSet(currentPeak, currentActive)) {
+            currentPeak = peakConnections.get();
+        }
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) requestUrl.openConnection();
+            connection.setRequestProperty("Connection", "keep-alive");
+            return connection;
+        } catch (IOException exception) {
+            activeConnections.decrementAndGet();
+            connectionPermits.release();
+            throw exception;
+        }
+    }
+
+    /**
+     * Reads any unread part of the response and closes the streams so that the
+     * underlying socket can be reused by the next request to this host.
+     *
+     * @param connection the connection obtained from openConnection
+     * @param reusable if false the socket is closed instead of being kept
+     * alive, which should be done after a failed or abandoned response
+     */
+    public void releaseConnection(HttpURLConnection connection, boolean reusable) {
+        try {
+            if (reusable) {
+                try {
+                    drainAndClose(connection.getInputStream());
+                } catch (IOException exception) {
+                    // error responses are kept in the error stream which must also be read for the socket to be reused
+                    drainAndClose(connection.getErrorStream());
+                }
+            } else {
+                closedCount.incrementAndGet();
+                connection.disconnect();
+            }
+        } catch (IOException exception) {
+            logger.debug("Closing the connection after an unreadable response: " + exception.getMessage());
+            closedCount.incrementAndGet();
+            connection.disconnect();
+        } finally {
+            activeConnections.decrementAndGet();
+            connectionPermits.release();
+        }
+    }
+
+    private void drainAndClose(InputStream inputStream) throws IOException {
+        if (inputStream != null) {
+            final byte[] buffer = new byte[4096];
+            while (inputStream.read(buffer) != -1) {
+            }
+            inputStream.close();
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getPeakConnections() {
+        return peakConnections.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getClosedCount() {
+        return closedCount.get();
+    }
+
+    public long getWaitTimeMS() {
+        return waitTimeMS.get();
+    }
+
+    /**
+     * @return a one line summary of the pool utilisation for logging or
+     * reporting
+     */
+    public String getStatistics() {
+        return hostKey + " active=" + getActiveConnections() + " peak=" + getPeakConnections() + " max=" + maxConnections
+                + " requests=" + getRequestCount() + " closed=" + getClosedCount() + " waitms=" + getWaitTimeMS();
+    }
+}
@@ -20,11 +20,16 @@ package nl.mpi.yams.common.db;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import nl.mpi.flap.kinnate.entityindexer.QueryException;
 import org.basex.util.Base64;
 import org.slf4j.LoggerFactory;
@@ -36,26 +41,73 @@ import org.slf4j.LoggerFactory;
  */
 public class RestDbAdaptor implements DbAdaptor {
 
+    // the number of documents sent in each request by addDocuments
+    static final private int documentBatchSize = 100;
+    // reads the whole result into a string, joining the lines without a separator
+    static final private QueryResultHandler<String> lineJoiningHandler = new QueryResultHandler<String>() {
+        public String handleResult(InputStream resultStream) throws QueryException {
+            StringBuilder replaceMe = new StringBuilder();
+            try {
+                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(resultStream, "UTF-8"));
+//                logger.info("Reading response");
+                for (String line; (line = bufferedReader.readLine()) != null;) {
+//                    logger.debug("response: " + line);
+//                    System.out.print(".");
+                    replaceMe.append(line);
+                }
+            } catch (IOException exception) {
+                throw new QueryException(exception);
+            }
+            return replaceMe.toString();
+        }
+    };
     final private URL restUrl;
     final private String encodedPass;
+    final private RestConnectionPool connectionPool;
     final private org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
 
     public RestDbAdaptor(URL restUrl, String userName, String userPass) {
+        this(restUrl, userName, userPass, RestConnectionPool.defaultMaxConnections);
+    }
+
+    /**
+     *
+     * @param restUrl the URL of the BaseX REST interface
+     * @param userName the database user name
+     * @param userPass the database user password
+     * @param maxConnections the maximum number of kept alive connections to
+     * the host of the rest URL that can be in use at any one time, this is
+     * shared by all adaptors connecting to the same host
+     */
+    public RestDbAdaptor(URL restUrl, String userName, String userPass, int maxConnections) {
         this.restUrl = restUrl;
         // Encode user name and password pair with a base64 implementation.
         encodedPass = Base64.encode(userName + ":" + userPass);
+        connectionPool = RestConnectionPool.getPool(restUrl, maxConnections);
+    }
+
+    /**
+     * @return the shared connection pool for the host of this adaptor, from
+     * which the utilisation statistics can be read
+     */
+    public RestConnectionPool getConnectionPool() {
+        return connectionPool;
     }
 
     public void dropAndRecreateDb(String databaseName) throws QueryException {
         try {
             URL databaseUrl = new URL(restUrl, databaseName);
             logger.debug("dropAndRecreateDb DELETE: " + databaseUrl);
-            HttpURLConnection conn = (HttpURLConnection) databaseUrl.openConnection();
-            conn.setRequestMethod("DELETE");
-            conn.setRequestProperty("Authorization", "Basic " + encodedPass);
-            final int responseCode = conn.getResponseCode();
+            HttpURLConnection conn = connectionPool.openConnection(databaseUrl);
+            final int responseCode;
+            try {
+                conn.setRequestMethod("DELETE");
+                conn.setRequestProperty("Authorization", "Basic " + encodedPass);
+                responseCode = conn.getResponseCode();
 //            logger.debug("HTTP response: " + responseCode);            
-            conn.disconnect();
+            } finally {
+                connectionPool.releaseConnection(conn, true);
+            }
             if (responseCode != HttpURLConnection.HTTP_OK) {
 //                throw new QueryException("HTTP response: " + responseCode);
                 // this is not exceptional and will happen on the first run when the db does not exist
@@ -79,20 +131,29 @@ public class RestDbAdaptor implements DbAdaptor {
     public void checkDbExists(String databaseName) throws QueryException {
         try {
             URL databaseUrl = new URL(restUrl, databaseName);
-            HttpURLConnection connectionGet = (HttpURLConnection) databaseUrl.openConnection();
-            connectionGet.setRequestMethod("GET");
-            connectionGet.setRequestProperty("Authorization", "Basic " + encodedPass);
-            final int getResponseCode = connectionGet.getResponseCode();
+            HttpURLConnection connectionGet = connectionPool.openConnection(databaseUrl);
+            final int getResponseCode;
+            try {
+                connectionGet.setRequestMethod("GET");
+                connectionGet.setRequestProperty("Authorization", "Basic " + encodedPass);
+                getResponseCode = connectionGet.getResponseCode();
 //            logger.debug("HTTP response: " + responseCode);
-            connectionGet.disconnect();
+            } finally {
+                // the listing of the database is not needed, but is read so that the connection can be reused
+                connectionPool.releaseConnection(connectionGet, true);
+            }
             if (getResponseCode != HttpURLConnection.HTTP_OK) {
                 logger.debug("checkDbExists PUT: " + databaseUrl);
-                HttpURLConnection connectionPut = (HttpURLConnection) databaseUrl.openConnection();
-                connectionPut.setRequestMethod("PUT");
-                connectionPut.setRequestProperty("Authorization", "Basic " + encodedPass);
-                final int putResponseCode = connectionPut.getResponseCode();
+                HttpURLConnection connectionPut = connectionPool.openConnection(databaseUrl);
+                final int putResponseCode;
+                try {
+                    connectionPut.setRequestMethod("PUT");
+                    connectionPut.setRequestProperty("Authorization", "Basic " + encodedPass);
+                    putResponseCode = connectionPut.getResponseCode();
 //            logger.debug("HTTP response: " + responseCode);
-                connectionPut.disconnect();
+                } finally {
+                    connectionPool.releaseConnection(connectionPut, true);
+                }
                 if (putResponseCode != HttpURLConnection.HTTP_CREATED) {
                     throw new QueryException("HTTP response: " + putResponseCode);
                 }
@@ -104,28 +165,33 @@ public class RestDbAdaptor implements DbAdaptor {
 
     private void runCommand(String commandString) throws QueryException {
         try {
-            HttpURLConnection conn = (HttpURLConnection) restUrl.openConnection();
-            conn.setDoOutput(true);
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Authorization", "Basic " + encodedPass);
-            conn.setRequestProperty("Content-Type", "application/xml");
-            OutputStream out = conn.getOutputStream();
+            HttpURLConnection conn = connectionPool.openConnection(restUrl);
+            final int responseCode;
+            final String responseMessage;
+            try {
+                conn.setDoOutput(true);
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Authorization", "Basic " + encodedPass);
+                conn.setRequestProperty("Content-Type", "application/xml");
+                OutputStream out = conn.getOutputStream();
 //            logger.debug("executeQuery POST: " + restUrl + " : " + commandString);
-            out.write(commandString.getBytes("UTF-8"));
-            out.close();
-            final int responseCode = conn.getResponseCode();
-            final String responseMessage = conn.getResponseMessage();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                logger.debug("command ok");
-            }
-            // output the response which is only for debugging
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
-            for (String line; (line = bufferedReader.readLine()) != null;) {
-                logger.debug("response: " + line);
+                out.write(commandString.getBytes("UTF-8"));
+                out.close();
+                responseCode = conn.getResponseCode();
+                responseMessage = conn.getResponseMessage();
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    logger.debug("command ok");
+                    // output the response which is only for debugging
+                    BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+                    for (String line; (line = bufferedReader.readLine()) != null;) {
+                        logger.debug("response: " + line);
+                    }
+                    bufferedReader.close();
+                    // end output
+                }
+            } finally {
+                connectionPool.releaseConnection(conn, true);
             }
-            bufferedReader.close();
-            // end output
-            conn.disconnect();
             if (responseCode != HttpURLConnection.HTTP_OK) {
                 throw new QueryException("HTTP response: " + responseCode + " " + responseMessage);
             }
@@ -147,18 +213,23 @@ public class RestDbAdaptor implements DbAdaptor {
         try {
             URL documentUrl = new URL(restUrl, databaseName + "/" + documentName); //.replaceAll(":", "-").replaceAll("/", "-"));
             logger.debug("addDocument PUT: " + documentUrl);
-            HttpURLConnection conn = (HttpURLConnection) documentUrl.openConnection();
-            conn.setDoOutput(true);
-            conn.setRequestMethod("PUT");
-            conn.setRequestProperty("Authorization", "Basic " + encodedPass);
-            conn.setRequestProperty("Content-Type", "application/xml");
-            OutputStream out = conn.getOutputStream();
-            out.write(documentContents.getBytes("UTF-8"));
-            out.close();
-            final int responseCode = conn.getResponseCode();
-            final String responseMessage = conn.getResponseMessage();
+            HttpURLConnection conn = connectionPool.openConnection(documentUrl);
+            final int responseCode;
+            final String responseMessage;
+            try {
+                conn.setDoOutput(true);
+                conn.setRequestMethod("PUT");
+                conn.setRequestProperty("Authorization", "Basic " + encodedPass);
+                conn.setRequestProperty("Content-Type", "application/xml");
+                OutputStream out = conn.getOutputStream();
+                out.write(documentContents.getBytes("UTF-8"));
+                out.close();
+                responseCode = conn.getResponseCode();
+                responseMessage = conn.getResponseMessage();
 //            logger.debug("HTTP response: " + responseCode);
-            conn.disconnect();
+            } finally {
+                connectionPool.releaseConnection(conn, true);
+            }
             if (responseCode != HttpURLConnection.HTTP_CREATED) {
                 throw new QueryException("HTTP response: " + responseCode + " : responseMessage: " + responseMessage + " : documentUrl: " + documentUrl);
             }
@@ -167,16 +238,50 @@ public class RestDbAdaptor implements DbAdaptor {
         }
     }
 
+    public void addDocuments(String databaseName, Iterator<NamedDocument> documents) throws QueryException {
+        while (documents.hasNext()) {
+            // each batch is sent as one updating query so that BaseX stores the batch in a single transaction
+            final Map<String, String> queryVariables = new LinkedHashMap<String, String>();
+            final StringBuilder declarationsBuilder = new StringBuilder();
+            final StringBuilder updatesBuilder = new StringBuilder();
+            int documentIndex = 0;
+            while (documents.hasNext() && documentIndex < documentBatchSize) {
+                final NamedDocument namedDocument = documents.next();
+                final String nameVariable = "name" + documentIndex;
+                final String documentVariable = "document" + documentIndex;
+                queryVariables.put(nameVariable, namedDocument.getDocumentName());
+                queryVariables.put(documentVariable, namedDocument.getDocumentContents());
+                declarationsBuilder.append("declare variable $").append(nameVariable).append(" external;\n");
+                declarationsBuilder.append("declare variable $").append(documentVariable).append(" external;\n");
+                if (documentIndex > 0) {
+                    updatesBuilder.append(",\n");
+                }
+                updatesBuilder.append("db:replace(\"").append(databaseName).append("\", $").append(nameVariable).append(", parse-xml($").append(documentVariable).append("))");
+                documentIndex++;
+            }
+            logger.debug("addDocuments: " + documentIndex);
+            postQuery(declarationsBuilder.toString() + "(" + updatesBuilder.toString() + ")", queryVariables, new QueryResultHandler<Void>() {
+                public Void handleResult(InputStream resultStream) throws QueryException {
+                    return null;
+                }
+            }, QueryDeadline.none);
+        }
+    }
+
     public void deleteDocument(String databaseName, String documentName) throws QueryException {
         try {
             URL documentUrl = new URL(restUrl, databaseName + "/" + documentName); //.replaceAll(":", "-").replaceAll("/", "-"));
             logger.debug("deleteDocument DELETE: " + documentUrl);
-            HttpURLConnection conn = (HttpURLConnection) documentUrl.openConnection();
-            conn.setRequestMethod("DELETE");
-            conn.setRequestProperty("Authorization", "Basic " + encodedPass);
-            final int responseCode = conn.getResponseCode();
+            HttpURLConnection conn = connectionPool.openConnection(documentUrl);
+            final int responseCode;
+            try {
+                conn.setRequestMethod("DELETE");
+                conn.setRequestProperty("Authorization", "Basic " + encodedPass);
+                responseCode = conn.getResponseCode();
 //            logger.debug("HTTP response: " + responseCode);
-            conn.disconnect();
+            } finally {
+                connectionPool.releaseConnection(conn, true);
+            }
             if (responseCode != HttpURLConnection.HTTP_OK) {
                 throw new QueryException("HTTP response: " + responseCode);
             }
@@ -186,62 +291,162 @@ public class RestDbAdaptor implements DbAdaptor {
     }
 
     public String executeQuery(String databaseName, String queryString) throws QueryException {
-        // todo: it would be better to consume the string as it becomes available, however this will get complicated when one query depends on another such as the get missing ID list in the crawler.
-        StringBuilder replaceMe = new StringBuilder();
+        return executeQuery(databaseName, queryString, lineJoiningHandler);
+    }
+
+    public String executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables) throws QueryException {
+        return executeQuery(databaseName, queryTemplate, queryVariables, lineJoiningHandler);
+    }
+
+    public <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler) throws QueryException {
+        queryTemplate.checkVariables(queryVariables);
+        return postQuery(queryTemplate.getQueryText(), queryVariables, resultHandler, QueryDeadline.none);
+    }
+
+    public <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler) throws QueryException {
+        return postQuery(queryString, null, resultHandler, QueryDeadline.none);
+    }
+
+    public <T> T executeQuery(String databaseName, String queryString, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        return postQuery(queryString, null, resultHandler, queryDeadline);
+    }
+
+    public <T> T executeQuery(String databaseName, QueryTemplate queryTemplate, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        queryTemplate.checkVariables(queryVariables);
+        return postQuery(queryTemplate.getQueryText(), queryVariables, resultHandler, queryDeadline);
+    }
+
+    /**
+     * Posts the query to the rest interface with the variables sent as
+     * external variable bindings in the query envelope. When the deadline
+     * passes the connection is dropped, the rest interface has no way to stop
+     * the query itself so it runs on until the server next writes to the
+     * closed connection or reaches its own TIMEOUT setting.
+     */
+    private <T> T postQuery(String queryString, Map<String, String> queryVariables, QueryResultHandler<T> resultHandler, QueryDeadline queryDeadline) throws QueryException {
+        queryDeadline.checkExpired("before the query was sent");
+        QueryDeadline.CancelWatch cancelWatch = null;
         try {
 //            long startTime = System.currentTimeMillis();
-            HttpURLConnection conn = (HttpURLConnection) restUrl.openConnection();
-            conn.setDoOutput(true);
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Authorization", "Basic " + encodedPass);
-            conn.setRequestProperty("Content-Type", "application/xml");
-            OutputStream out = conn.getOutputStream();
-            String bodyString = "<query xmlns=\"http://basex.org/rest\">\n"
-                    + "  <text><![CDATA[" + queryString + "]]></text>\n"
-                    + "</query>";
+            final HttpURLConnection conn = connectionPool.openConnection(restUrl);
+            final int responseCode;
+            final String responseMessage;
+            T handledResult = null;
+            boolean responseComplete = false;
+            try {
+                if (!queryDeadline.isNone()) {
+                    // the read timeout also ends a wait for a response that has not yet started
+                    conn.setReadTimeout((int) Math.max(1, Math.min(Integer.MAX_VALUE, queryDeadline.getRemainingMillis())));
+                    cancelWatch = queryDeadline.watch(new Runnable() {
+                        public void run() {
+                            conn.disconnect();
+                        }
+                    });
+                }
+                conn.setDoOutput(true);
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Authorization", "Basic " + encodedPass);
+                conn.setRequestProperty("Content-Type", "application/xml");
+                OutputStream out = conn.getOutputStream();
+                StringBuilder bodyBuilder = new StringBuilder();
+                bodyBuilder.append("<query xmlns=\"http://basex.org/rest\">\n");
+                bodyBuilder.append("  <text><![CDATA[").append(queryString).append("]]></text>\n");
+                if (queryVariables != null) {
+                    for (Map.Entry<String, String> queryVariable : queryVariables.entrySet()) {
+                        bodyBuilder.append("  <variable name=\"").append(queryVariable.getKey()).append("\" value=\"").append(escapeAttributeValue(queryVariable.getValue())).append("\"/>\n");
+                    }
+                }
+                bodyBuilder.append("</query>");
+                String bodyString = bodyBuilder.toString();
 //            logger.debug("executeQuery POST: " + restUrl + " : " + bodyString);
-            out.write(bodyString.getBytes("UTF-8"));
-            out.close();
-            final int responseCode = conn.getResponseCode();
-            final String responseMessage = conn.getResponseMessage();
+                out.write(bodyString.getBytes("UTF-8"));
+                out.close();
+                responseCode = conn.getResponseCode();
+                responseMessage = conn.getResponseMessage();
 //            long responseMils = System.currentTimeMillis() - startTime;
 //            String queryTimeString = "response time: " + responseMils + "ms";
 //            logger.debug(queryTimeString);
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
-//                logger.info("Reading response");
-                for (String line; (line = bufferedReader.readLine()) != null;) {
-//                    logger.debug("response: " + line);
-//                    System.out.print(".");
-                    replaceMe.append(line);
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    // the handler reads directly from the socket so the result is never held here as a whole
+                    final InputStream resultStream = conn.getInputStream();
+                    handledResult = resultHandler.handleResult(resultStream);
+                    resultStream.close();
+                }
+                responseComplete = true;
+            } finally {
+                if (cancelWatch != null) {
+                    cancelWatch.stop();
+                    responseComplete = responseComplete && !cancelWatch.wasCancelled();
                 }
-                bufferedReader.close();
+                // a response that was not read to the end leaves the socket in an unknown state so it is not reused
+                connectionPool.releaseConnection(conn, responseComplete);
+            }
+            if (cancelWatch != null && cancelWatch.wasCancelled()) {
+                throw new QueryTimeoutException("The query was cancelled because its deadline passed");
             }
 //            logger.debug(".");
-            conn.disconnect();
 //            long totalMils = System.currentTimeMillis() - startTime;
 //            String totalTimeString = "total time: " + totalMils + "ms";
 //            logger.debug(totalTimeString);
             if (responseCode != HttpURLConnection.HTTP_OK) {
                 throw new QueryException("HTTP response: " + responseCode + " " + responseMessage);
             }
-            return replaceMe.toString();
+            return handledResult;
+        } catch (SocketTimeoutException exception) {
+            throw new QueryTimeoutException("The query did not respond before its deadline", exception);
         } catch (IOException exception) {
+            if (cancelWatch != null && cancelWatch.wasCancelled()) {
+                throw new QueryTimeoutException("The query was cancelled because its deadline passed", exception);
+            }
             throw new QueryException(exception);
         }
     }
 
+    private static String escapeAttributeValue(String attributeValue) {
+        final StringBuilder escapedBuilder = new StringBuilder(attributeValue.length());
+        for (char currentChar : attributeValue.toCharArray()) {
+            switch (currentChar) {
+                case '&':
+                    escapedBuilder.append("&amp;");
+                    break;
+                case '<':
+                    escapedBuilder.append("&lt;");
+                    break;
+                case '"':
+                    escapedBuilder.append("&quot;");
+                    break;
+                // white space is escaped because attribute value normalisation would otherwise turn it into spaces
+                case '\n':
+                    escapedBuilder.append("&#10;");
+                    break;
+                case '\r':
+                    escapedBuilder.append("&#13;");
+                    break;
+                case '\t':
+                    escapedBuilder.append("&#9;");
+                    break;
+                default:
+                    escapedBuilder.append(currentChar);
+            }
+        }
+        return escapedBuilder.toString();
+    }
+
     public void createIndexes(String databaseName) throws QueryException {
         try {
             for (String command : new String[]{"CREATE+INDEX+TEXT", "CREATE+INDEX+ATTRIBUTE", "CREATE+INDEX+FULLTEXT", "optimize+all"}) {
                 URL databaseUrl = new URL(restUrl, databaseName + "?command=" + command);
                 logger.debug("createIndexes GET: " + databaseUrl);
-                HttpURLConnection conn = (HttpURLConnection) databaseUrl.openConnection();
-                conn.setRequestMethod("GET");
-                conn.setRequestProperty("Authorization", "Basic " + encodedPass);
-                final int responseCode = conn.getResponseCode();
+                HttpURLConnection conn = connectionPool.openConnection(databaseUrl);
+                final int responseCode;
+                try {
+                    conn.setRequestMethod("GET");
+                    conn.setRequestProperty("Authorization", "Basic " + encodedPass);
+                    responseCode = conn.getResponseCode();
 //            logger.debug("HTTP response: " + responseCode);
-                conn.disconnect();
+                } finally {
+                    connectionPool.releaseConnection(conn, true);
+                }
                 if (responseCode != HttpURLConnection.HTTP_OK) {
                     throw new QueryException("HTTP response: " + responseCode);
                 }
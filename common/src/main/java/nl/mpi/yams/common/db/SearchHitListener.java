@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+
+/**
+ * Receives the results of a streamed search or node query one node at a
+ * time.
+ *
+ * @param <D> the data node type of the results
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public interface SearchHitListener<D> {
+
+    /**
+     * @param dataNode a node that matched the search, with the fields that
+     * matched as its highlights, or a node read by one of the stream methods
+     * @throws QueryException to stop reading the results, for instance when
+     * the receiver of the results has gone away
+     */
+    void searchHitFound(D dataNode) throws QueryException;
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.mpi.yams.common.data.QueryDataStructures.CriterionJoinType;
+import nl.mpi.yams.common.data.QueryDataStructures.SearchNegator;
+import nl.mpi.yams.common.data.SearchParameters;
+
+/**
+ * An in memory cache of search results, so that repeated searches, such as
+ * those from bookmarked pages, and requests for further pages of a search are
+ * answered without running the search again. The cache is bounded by the
+ * estimated memory used by its result sets and the least recently used are
+ * dropped first. Results are invalidated with the database generations kept
+ * by QueryResultCache and expire after the time to live.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class SearchResultCache {
+
+    static final public long defaultMaxBytes = 64L * 1024 * 1024;
+    static final public long defaultTimeToLiveMs = 10 * 60 * 1000;
+    static private SearchResultCache sharedCache = null;
+    final private long maxBytes;
+    final private long timeToLiveMs;
+    final private LinkedHashMap<String, CacheEntry> cacheMap = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    private long cachedBytes = 0;
+    final private AtomicLong hitCount = new AtomicLong();
+    final private AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Where the matches of a search were found, the field value index and the
+     * database match the text differently so their results are kept apart
+     */
+    public enum SearchMode {
+
+        database, fieldValueIndex
+    }
+
+    private static class CacheEntry {
+
+        final SearchResultSet resultSet;
+        final long generation;
+        final long createdMs;
+
+        public CacheEntry(SearchResultSet resultSet, long generation, long createdMs) {
+            this.resultSet = resultSet;
+            this.generation = generation;
+            this.createdMs = createdMs;
+        }
+    }
+
+    /**
+     * @param maxBytes the estimated size of all cached results, after which
+     * the least recently used are dropped
+     * @param timeToLiveMs the age at which a result is dropped
+     */
+    public SearchResultCache(long maxBytes, long timeToLiveMs) {
+        this.maxBytes = maxBytes;
+        this.timeToLiveMs = timeToLiveMs;
+    }
+
+    /**
+     * @return the cache shared by all DataBaseManagers in this JVM
+     */
+    public static synchronized SearchResultCache getSharedCache() {
+        if (sharedCache == null) {
+            sharedCache = new SearchResultCache(defaultMaxBytes, defaultTimeToLiveMs);
+        }
+        return sharedCache;
+    }
+
+    /**
+     * Makes the key for a search so that searches which must give the same
+     * result share a cache entry. The parameters are kept in their order and
+     * the join type is left out when it cannot change the result.
+     *
+     * @param searchMode where the matches are found
+     * @param criterionJoinType the join type of the search
+     * @param searchParametersList the parameters of the search
+     * @return the cache key
+     */
+    public static String getSearchKey(SearchMode searchMode, CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) {
+        final StringBuilder keyBuilder = new StringBuilder();
+        keyBuilder.append(searchMode.name());
+        keyBuilder.append("\t");
+        int includedCount = 0;
+        for (SearchParameters searchParameters : searchParametersList) {
+            if (searchParameters.getSearchNegator() == SearchNegator.is) {
+                includedCount++;
+            }
+        }
+        keyBuilder.append((includedCount > 1) ? criterionJoinType.name() : "single");
+        for (SearchParameters searchParameters : searchParametersList) {
+            keyBuilder.append("\n");
+            keyBuilder.append(getKeyPart((searchParameters.getFileType() == null) ? null : searchParameters.getFileType().getType()));
+            keyBuilder.append("\t");
+            keyBuilder.append(getKeyPart((searchParameters.getFieldType() == null) ? null : searchParameters.getFieldType().getPath()));
+            keyBuilder.append("\t");
+            keyBuilder.append(searchParameters.getSearchNegator().name());
+            keyBuilder.append("\t");
+            keyBuilder.append(searchParameters.getSearchType().name());
+            keyBuilder.append("\t");
+            keyBuilder.append(getKeyPart(searchParameters.getSearchString()));
+        }
+        return keyBuilder.toString();
+    }
+
+    private static String getKeyPart(String value) {
+        // a null value and an empty string can give different queries, so only values are prefixed
+        return (value == null) ? "" : "'" + value;
+    }
+
+    private String getCacheKey(String databaseName, String searchKey) {
+        return databaseName + "\n" + searchKey;
+    }
+
+    /**
+     * @param databaseName the database that was searched
+     * @param searchKey the key from getSearchKey
+     * @return the cached result or null if there is no current result
+     */
+    public SearchResultSet get(String databaseName, String searchKey) {
+        final String cacheKey = getCacheKey(databaseName, searchKey);
+        final long currentGeneration = QueryResultCache.getGeneration(databaseName);
+        synchronized (cacheMap) {
+            final CacheEntry cacheEntry = cacheMap.get(cacheKey);
+            if (cacheEntry != null) {
+                if (cacheEntry.generation == currentGeneration && System.currentTimeMillis() - cacheEntry.createdMs < timeToLiveMs) {
+                    hitCount.incrementAndGet();
+                    return cacheEntry.resultSet;
+                }
+                cacheMap.remove(cacheKey);
+                cachedBytes -= cacheEntry.resultSet.getEstimatedBytes();
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param generation the generation of the database read before the search
+     * was run, so that a result that raced with a change is not kept
+     */
+    public void put(String databaseName, String searchKey, SearchResultSet resultSet, long generation) {
+        if (generation != QueryResultCache.getGeneration(databaseName) || resultSet.getEstimatedBytes() > maxBytes) {
+            return;
+        }
+        synchronized (cacheMap) {
+            final CacheEntry replacedEntry = cacheMap.put(getCacheKey(databaseName, searchKey), new CacheEntry(resultSet, generation, System.currentTimeMillis()));
+            if (replacedEntry != null) {
+                cachedBytes -= replacedEntry.resultSet.getEstimatedBytes();
+            }
+            cachedBytes += resultSet.getEstimatedBytes();
+            // the iterator of the access ordered map starts with the least recently used entry
+            final Iterator<Map.Entry<String, CacheEntry>> entryIterator = cacheMap.entrySet().iterator();
+            while (cachedBytes > maxBytes && entryIterator.hasNext()) {
+                cachedBytes -= entryIterator.next().getValue().resultSet.getEstimatedBytes();
+                entryIterator.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (cacheMap) {
+            cacheMap.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (cacheMap) {
+            return cacheMap.size();
+        }
+    }
+
+    public long getCachedBytes() {
+        synchronized (cacheMap) {
+            return cachedBytes;
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The complete result of a search reduced to the ordered IDs of the matching
+ * nodes and the paths of the fields that matched in each, which is small
+ * enough to be cached and from which any page of the results can be made.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class SearchResultSet {
+
+    final private List<String> resultIds;
+    final private Map<String, List<String>> highlightPaths;
+    final private long estimatedBytes;
+
+    /**
+     * @param resultIds the IDs of the matching nodes in the order that they
+     * are returned
+     * @param highlightPaths the paths of the matching fields for each node ID
+     */
+    public SearchResultSet(List<String> resultIds, Map<String, List<String>> highlightPaths) {
+        this.resultIds = Collections.unmodifiableList(new ArrayList<String>(resultIds));
+        this.highlightPaths = new HashMap<String, List<String>>(highlightPaths);
+        // a rough count of the string data and the object overhead, used only to bound the cache
+        long byteCount = 0;
+        for (String resultId : resultIds) {
+            byteCount += 64 + resultId.length() * 2;
+        }
+        for (List<String> pathList : highlightPaths.values()) {
+            for (String highlightPath : pathList) {
+                byteCount += 48 + ((highlightPath == null) ? 0 : highlightPath.length() * 2);
+            }
+        }
+        this.estimatedBytes = byteCount;
+    }
+
+    public int getResultCount() {
+        return resultIds.size();
+    }
+
+    public List<String> getResultIds() {
+        return resultIds;
+    }
+
+    /**
+     * @param start the index of the first ID to return
+     * @param end the index after the last ID to return
+     * @return the IDs within the range, or fewer if the range is past the end
+     * of the results
+     */
+    public List<String> getResultIds(int start, int end) {
+        final int fromIndex = Math.min(Math.max(0, start), resultIds.size());
+        final int toIndex = Math.min(Math.max(fromIndex, end), resultIds.size());
+        return resultIds.subList(fromIndex, toIndex);
+    }
+
+    /**
+     * @param resultId the ID of a matching node
+     * @return the paths of the fields that matched, a path can be null when
+     * the field has none
+     */
+    public List<String> getHighlightPaths(String resultId) {
+        final List<String> pathList = highlightPaths.get(resultId);
+        if (pathList == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(pathList);
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.IOException;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import org.basex.BaseXServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Runs the DataBaseManager tests against a BaseX server via the client/server
+ * protocol.
+ *
+ * @author Peter Withers
+ */
+public class BaseXClientDataBaseManagerTest extends DataBaseManagerTest {
+
+    static String serverPort = "9987";
+    static String eventPort = "9986";
+    private static BaseXServer baseXServer;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        System.out.println(Thread.currentThread().getName() + " - Starting BaseX server for test on port " + serverPort);
+        baseXServer = new BaseXServer("-p" + serverPort, "-e" + eventPort); //start on non-standard ports to prevent clashes
+        Thread.sleep(1000);
+    }
+
+    @AfterClass
+    public static void cleanUpClass() throws Exception {
+        System.out.println(Thread.currentThread().getName() + " - Stopping BaseX server running on port " + serverPort);
+        baseXServer.stop();
+        Thread.sleep(1000);
+    }
+
+    @Override
+    DbAdaptor getDbAdaptor() throws IOException, QueryException {
+        return new BaseXClientDbAdaptor("basex://localhost:" + serverPort, DataBaseManagerTest.restUser, DataBaseManagerTest.restPass);
+    }
+}
@@ -20,12 +20,20 @@ package nl.mpi.yams.common.db;
 
 import com.google.common.collect.Sets;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import javax.swing.ImageIcon;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -41,11 +49,14 @@ import nl.mpi.flap.plugin.PluginException;
 import nl.mpi.yams.common.data.DataNodeId;
 import nl.mpi.yams.common.data.DatabaseLinks;
 import nl.mpi.yams.common.data.DatabaseList;
+import nl.mpi.yams.common.data.DatabaseSearchResult;
 import nl.mpi.yams.common.data.DatabaseStats;
+import nl.mpi.yams.common.data.FederatedSearchResult;
 import nl.mpi.yams.common.data.HighlightableDataNode;
 import nl.mpi.yams.common.data.IconTable;
 import nl.mpi.yams.common.data.IconTableBase64;
 import nl.mpi.yams.common.data.MetadataFileType;
+import nl.mpi.yams.common.data.NodeSummary;
 import nl.mpi.yams.common.data.NodeTypeImage;
 import nl.mpi.yams.common.data.QueryDataStructures;
 import nl.mpi.yams.common.data.SearchParameters;
@@ -204,6 +215,142 @@ public abstract class DataBaseManagerTest {
         assertFalse("Failed to clear the db stats cache", databaseStats.isIsCachedResults());
     }
 
+    /**
+     * Test that the stats document is kept up to date by the inserts, the
+     * link updates and deleteBranch, so that it matches freshly calculated
+     * stats without being cleared.
+     */
+    @Test
+    public void testIncrementalDatabaseStats() throws Exception {
+        System.out.println("incrementalDatabaseStats");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(false);
+        // create the stats document before anything is inserted
+        assertEquals(0, dbManager.getDatabaseStats().getKnownDocumentsCount());
+        JAXBContext jaxbContext = JAXBContext.newInstance(SerialisableDataNode.class, DataField.class, DataField.class, DataNodeType.class);
+        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+        DatabaseLinks databaseLinks = new DatabaseLinks();
+        for (String testFileName : TestData.testFiles) {
+            SerialisableDataNode dataNode = (SerialisableDataNode) unmarshaller.unmarshal(new StreamSource(DataBaseManagerTest.class.getResourceAsStream("/testdata/" + testFileName)), SerialisableDataNode.class).getValue();
+            dbManager.insertIntoDatabase(dataNode, true);
+            final DataNodeLink dataNodeLink = new DataNodeLink();
+            dataNodeLink.setIdString(dataNode.getID());
+            databaseLinks.insertRootLink(dataNodeLink);
+            databaseLinks.insertLinks(dataNodeLink, dataNode);
+        }
+        dbManager.getHandlesOfMissing(databaseLinks, 0, null);
+        DatabaseStats databaseStats = dbManager.getDatabaseStats();
+        assertTrue("The stats document should have been updated rather than recalculated", databaseStats.isIsCachedResults());
+        assertEquals(28, databaseStats.getKnownDocumentsCount());
+        assertEquals(34, databaseStats.getMisingDocumentsCount());
+        assertEquals(28, databaseStats.getRootDocumentsCount());
+        dbManager.deleteBranch("0f4d9cdcd07a1d0c642bb11a0dd1cf2e");
+        final DatabaseStats updatedStats = dbManager.getDatabaseStats();
+        assertTrue(updatedStats.isIsCachedResults());
+        dbManager.clearDatabaseStats();
+        final DatabaseStats calculatedStats = dbManager.getDatabaseStats();
+        assertFalse(calculatedStats.isIsCachedResults());
+        assertEquals(calculatedStats.getKnownDocumentsCount(), updatedStats.getKnownDocumentsCount());
+        assertEquals(calculatedStats.getMisingDocumentsCount(), updatedStats.getMisingDocumentsCount());
+        assertEquals(calculatedStats.getRootDocumentsCount(), updatedStats.getRootDocumentsCount());
+        assertEquals(new HashSet<DataNodeId>(Arrays.asList(calculatedStats.getRootDocumentsIDs())), new HashSet<DataNodeId>(Arrays.asList(updatedStats.getRootDocumentsIDs())));
+    }
+
+    /**
+     * Test of insertAllIntoDatabase method, of class DataBaseManager.
+     */
+    @Test
+    public void testInsertAllIntoDatabase() throws Exception {
+        System.out.println("insertAllIntoDatabase");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(false);
+        JAXBContext jaxbContext = JAXBContext.newInstance(SerialisableDataNode.class, DataField.class, DataField.class, DataNodeType.class);
+        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+        final List<SerialisableDataNode> dataNodes = new ArrayList<SerialisableDataNode>();
+        final Set<String> dataNodeIds = new HashSet<String>();
+        for (String testFileName : TestData.testFiles) {
+            SerialisableDataNode dataNode = (SerialisableDataNode) unmarshaller.unmarshal(new StreamSource(DataBaseManagerTest.class.getResourceAsStream("/testdata/" + testFileName)), SerialisableDataNode.class).getValue();
+            dataNodes.add(dataNode);
+            dataNodeIds.add(dataNode.getID());
+        }
+        final String countQuery = "count(collection(\"unit-test-database\")/DataNode)";
+        dbManager.insertAllIntoDatabase(dataNodes, true);
+        assertEquals(Integer.toString(dataNodeIds.size()), dbManager.dbAdaptor.executeQuery(testDatabaseName, countQuery));
+        // existing documents are skipped
+        dbManager.insertAllIntoDatabase(dataNodes, false);
+        assertEquals(Integer.toString(dataNodeIds.size()), dbManager.dbAdaptor.executeQuery(testDatabaseName, countQuery));
+        try {
+            dbManager.insertAllIntoDatabase(dataNodes, true);
+            Assert.fail("Existing documents were not reported");
+        } catch (QueryException exception) {
+            // expected because the documents are already in the database
+        }
+    }
+
+    /**
+     * Test of getChildNodesOfId and getChildSummariesOfId, the children are
+     * paged from the child index of the parent node.
+     */
+    @Test
+    public void testGetChildSummariesOfId() throws Exception {
+        System.out.println("getChildSummariesOfId");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(false);
+        JAXBContext jaxbContext = JAXBContext.newInstance(SerialisableDataNode.class, DataField.class, DataField.class, DataNodeType.class);
+        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+        final String[] nodeDocuments = new String[]{
+            "<DataNode ID=\"child-index-parent\" Label=\"Parent\" URI=\"http://example.org/parent.cmdi\"><Type Format=\"cmdi\" ID=\"corpus\" Name=\"Corpus\"/>"
+            + "<ChildLink ID=\"child-index-first\" URI=\"http://example.org/first.cmdi\"/>"
+            + "<ChildLink ID=\"child-index-second\" URI=\"http://example.org/second.cmdi\"/>"
+            + "<ChildLink ID=\"child-index-missing\" URI=\"http://example.org/missing.cmdi\"/></DataNode>",
+            "<DataNode ID=\"child-index-first\" Label=\"First\" URI=\"http://example.org/first.cmdi\"><Type Format=\"cmdi\" ID=\"session\" Name=\"Session\"/>"
+            + "<ChildLink ID=\"child-index-leaf\" URI=\"http://example.org/leaf.cmdi\"/></DataNode>",
+            "<DataNode ID=\"child-index-second\" Label=\"Second\" URI=\"http://example.org/second.cmdi\"><Type Format=\"cmdi\" ID=\"session\" Name=\"Session\"/></DataNode>"};
+        final List<SerialisableDataNode> dataNodes = new ArrayList<SerialisableDataNode>();
+        for (String nodeDocument : nodeDocuments) {
+            dataNodes.add((SerialisableDataNode) unmarshaller.unmarshal(new StreamSource(new StringReader(nodeDocument)), SerialisableDataNode.class).getValue());
+        }
+        dbManager.insertAllIntoDatabase(dataNodes, true);
+        // the missing child is skipped
+        assertEquals(2, dbManager.getChildNodesOfId("child-index-parent", 0, 10).getChildList().size());
+        final List<? extends SerialisableDataNode> secondPage = dbManager.getChildNodesOfId("child-index-parent", 1, 2).getChildList();
+        assertEquals(1, secondPage.size());
+        assertEquals("child-index-second", secondPage.get(0).getID());
+        final List<NodeSummary> childSummaries = dbManager.getChildSummariesOfId("child-index-parent", 0, 10);
+        assertEquals(2, childSummaries.size());
+        assertEquals("child-index-first", childSummaries.get(0).getDataNodeId());
+        assertEquals("First", childSummaries.get(0).getLabel());
+        assertEquals(dataNodes.get(1).getType().getLabel(), childSummaries.get(0).getType());
+        assertEquals(Integer.valueOf(1), childSummaries.get(0).getChildCount());
+        assertEquals(Integer.valueOf(0), childSummaries.get(1).getChildCount());
+        // the child index of a deleted node is removed with it
+        dbManager.deleteBranch("child-index-first");
+        assertEquals(1, dbManager.getChildSummariesOfId("child-index-parent", 0, 10).size());
+    }
+
+    /**
+     * Test that the inserts still find the existing documents when the known
+     * ID filter is used.
+     */
+    @Test
+    public void testLoadKnownIdFilter() throws Exception {
+        System.out.println("loadKnownIdFilter");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        assertEquals(28, dbManager.loadKnownIdFilter());
+        JAXBContext jaxbContext = JAXBContext.newInstance(SerialisableDataNode.class, DataField.class, DataField.class, DataNodeType.class);
+        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+        final SerialisableDataNode dataNode = (SerialisableDataNode) unmarshaller.unmarshal(new StreamSource(DataBaseManagerTest.class.getResourceAsStream("/testdata/" + TestData.testFiles[0])), SerialisableDataNode.class).getValue();
+        try {
+            dbManager.insertIntoDatabase(dataNode, true);
+            Assert.fail("Existing document was not reported");
+        } catch (QueryException exception) {
+            // expected because the document is already in the database
+        }
+        try {
+            dbManager.insertAllIntoDatabase(Arrays.asList(dataNode), true);
+            Assert.fail("Existing documents were not reported");
+        } catch (QueryException exception) {
+            // expected because the document is already in the database
+        }
+    }
+
     @Test
     public void testGetNodeDatasByIDs() throws QueryException, IOException, JAXBException, PluginException, ModelException {
         final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
@@ -214,6 +361,57 @@ public abstract class DataBaseManagerTest {
         assertEquals(1, dataNode.getChildList().size());
     }
 
+    /**
+     * Test of executeQuery with a QueryTemplate, the values are bound rather
+     * than escaped into the query so quotes must not break the query.
+     */
+    @Test
+    public void testExecuteQueryTemplate() throws Exception {
+        System.out.println("executeQueryTemplate");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        final QueryTemplate queryTemplate = new QueryTemplate("count(collection(\"unit-test-database\")/DataNode[@ID = $nodeId])", "nodeId");
+        final HashMap<String, String> queryVariables = new HashMap<String, String>();
+        queryVariables.put("nodeId", "0a4f1304c0f5d6a5a3c2f0076f68af1d");
+        assertEquals("1", dbManager.dbAdaptor.executeQuery(testDatabaseName, queryTemplate, queryVariables));
+        queryVariables.put("nodeId", "it's \"quoted\" & <escaped>");
+        assertEquals("0", dbManager.dbAdaptor.executeQuery(testDatabaseName, queryTemplate, queryVariables));
+        try {
+            dbManager.dbAdaptor.executeQuery(testDatabaseName, queryTemplate, new HashMap<String, String>());
+            Assert.fail("The missing variable was not reported");
+        } catch (QueryException exception) {
+            // expected because nodeId has no value
+        }
+    }
+
+    /**
+     * Test that a query running past its deadline is cancelled.
+     */
+    @Test
+    public void testQueryDeadline() throws Exception {
+        System.out.println("queryDeadline");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        final QueryResultHandler<String> resultHandler = new QueryResultHandler<String>() {
+            public String handleResult(InputStream resultStream) throws QueryException {
+                try {
+                    while (resultStream.read() != -1) {
+                    }
+                } catch (IOException exception) {
+                    throw new QueryException(exception);
+                }
+                return "read";
+            }
+        };
+        assertEquals("read", dbManager.dbAdaptor.executeQuery(testDatabaseName, "count(collection(\"unit-test-database\")/DataNode)", resultHandler, QueryDeadline.after(60000)));
+        final long startTime = System.currentTimeMillis();
+        try {
+            dbManager.dbAdaptor.executeQuery(testDatabaseName, "sum(for $value in 1 to 2000000000 return $value mod 7)", resultHandler, QueryDeadline.after(500));
+            Assert.fail("The query was not cancelled at its deadline");
+        } catch (QueryTimeoutException exception) {
+            // expected because the query takes much longer than the deadline
+        }
+        assertTrue("The cancelled query did not return promptly", System.currentTimeMillis() - startTime < 30000);
+    }
+
     /**
      * Test of getMetadataTypes method, of class DataBaseManager.
      */
@@ -418,6 +616,203 @@ public abstract class DataBaseManagerTest {
         assertEquals(9, searchResult4.getHighlights().size());
     }
 
+    /**
+     * Test of getSearchResult method with paging, of class DataBaseManager.
+     */
+    @Test
+    public void testGetSearchResultPaged() throws Exception {
+        System.out.println("getSearchResultPaged");
+        MetadataFileType metadataFileType1 = new MetadataFileType() {
+            @Override
+            public String getType() {
+                return "Session";
+            }
+
+            @Override
+            public String getPath() {
+                return "Description";
+            }
+        };
+        ArrayList<SearchParameters> searchParametersList = new ArrayList<SearchParameters>();
+        searchParametersList.add(new SearchParameters(metadataFileType1, metadataFileType1, QueryDataStructures.SearchNegator.is, QueryDataStructures.SearchType.contains, "Author: not applicable"));
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        HighlightableDataNode firstPage = dbManager.getSearchResult(QueryDataStructures.CriterionJoinType.intersect, searchParametersList, 0, 10);
+        assertEquals(Integer.valueOf(19), firstPage.getResultCount());
+        assertEquals(Integer.valueOf(0), firstPage.getResultStart());
+        assertEquals(10, firstPage.getChildIds().size());
+        assertEquals(10, firstPage.getChildList().size());
+        assertEquals(10, firstPage.getHighlights().size());
+        HighlightableDataNode secondPage = dbManager.getSearchResult(QueryDataStructures.CriterionJoinType.intersect, searchParametersList, 10, 20);
+        assertEquals(Integer.valueOf(19), secondPage.getResultCount());
+        assertEquals(Integer.valueOf(10), secondPage.getResultStart());
+        assertEquals(9, secondPage.getChildIds().size());
+        // the pages are in a stable order and do not overlap
+        for (DataNodeLink firstPageLink : firstPage.getChildIds()) {
+            for (DataNodeLink secondPageLink : secondPage.getChildIds()) {
+                assertFalse(firstPageLink.getIdString().equals(secondPageLink.getIdString()));
+            }
+        }
+    }
+
+    /**
+     * Test of getFederatedSearchResult method, of class DataBaseManager.
+     */
+    @Test
+    public void testGetFederatedSearchResult() throws Exception {
+        System.out.println("getFederatedSearchResult");
+        MetadataFileType metadataFileType1 = new MetadataFileType() {
+            @Override
+            public String getType() {
+                return "Session";
+            }
+
+            @Override
+            public String getPath() {
+                return "Description";
+            }
+        };
+        ArrayList<SearchParameters> searchParametersList = new ArrayList<SearchParameters>();
+        searchParametersList.add(new SearchParameters(metadataFileType1, metadataFileType1, QueryDataStructures.SearchNegator.is, QueryDataStructures.SearchType.contains, "Author: not applicable"));
+        final List<DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>> databaseManagers = new ArrayList<DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>>();
+        databaseManagers.add(getDataBaseManager(true));
+        databaseManagers.add(new DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>(HighlightableDataNode.class, DataField.class, MetadataFileType.class, getDbAdaptor(), "yams-missing-test-data"));
+        final ExecutorService queryExecutor = AsyncDataBaseManager.createQueryExecutor(2, 2);
+        final FederatedSearchResult federatedSearchResult = DataBaseManager.getFederatedSearchResult(databaseManagers, queryExecutor, 30000, QueryDataStructures.CriterionJoinType.intersect, searchParametersList, 0, 10);
+        queryExecutor.shutdown();
+        assertEquals(2, federatedSearchResult.getDatabaseResults().size());
+        final DatabaseSearchResult testDatabaseResult = federatedSearchResult.getDatabaseResults().get(0);
+        assertEquals(testDatabaseName, testDatabaseResult.getDatabaseName());
+        assertEquals(DatabaseSearchResult.SearchStatus.completed, testDatabaseResult.getSearchStatus());
+        assertEquals(19, testDatabaseResult.getResultCount());
+        assertEquals(10, testDatabaseResult.getSearchResult().getChildIds().size());
+        // the database that does not exist fails without failing the search of the other database
+        final DatabaseSearchResult missingDatabaseResult = federatedSearchResult.getDatabaseResults().get(1);
+        assertEquals(DatabaseSearchResult.SearchStatus.failed, missingDatabaseResult.getSearchStatus());
+        assertEquals(null, missingDatabaseResult.getSearchResult());
+        assertEquals(19, federatedSearchResult.getTotalResultCount());
+        assertTrue(federatedSearchResult.isPartial());
+    }
+
+    /**
+     * Test of streamSearchResult method, of class DataBaseManager.
+     */
+    @Test
+    public void testStreamSearchResult() throws Exception {
+        System.out.println("streamSearchResult");
+        MetadataFileType metadataFileType1 = new MetadataFileType() {
+            @Override
+            public String getType() {
+                return "Session";
+            }
+
+            @Override
+            public String getPath() {
+                return "Description";
+            }
+        };
+        ArrayList<SearchParameters> searchParametersList = new ArrayList<SearchParameters>();
+        searchParametersList.add(new SearchParameters(metadataFileType1, metadataFileType1, QueryDataStructures.SearchNegator.is, QueryDataStructures.SearchType.contains, "Author: not applicable"));
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        final List<HighlightableDataNode> searchHits = new ArrayList<HighlightableDataNode>();
+        final int hitCount = dbManager.streamSearchResult(QueryDataStructures.CriterionJoinType.intersect, searchParametersList, new SearchHitListener<HighlightableDataNode>() {
+
+            public void searchHitFound(HighlightableDataNode dataNode) throws QueryException {
+                searchHits.add(dataNode);
+            }
+        });
+        assertEquals(19, hitCount);
+        assertEquals(19, searchHits.size());
+        final Set<String> hitIds = new HashSet<String>();
+        final List<String> orderedIds = new ArrayList<String>();
+        for (HighlightableDataNode searchHit : searchHits) {
+            assertEquals(1, searchHit.getHighlights().size());
+            assertEquals(searchHit.getID(), searchHit.getHighlights().get(0).getDataNodeId());
+            hitIds.add(searchHit.getID());
+            orderedIds.add(searchHit.getID());
+        }
+        assertEquals(19, hitIds.size());
+        // the hits are streamed in the order of the search results
+        final List<String> resultIds = new ArrayList<String>();
+        for (DataNodeLink resultLink : dbManager.getSearchResultLinks(QueryDataStructures.CriterionJoinType.intersect, searchParametersList, 0, 30).getChildIds()) {
+            resultIds.add(resultLink.getIdString());
+        }
+        assertEquals(resultIds, orderedIds);
+    }
+
+    /**
+     * Test of the stream methods, which give the same nodes as the methods
+     * that read the whole result, of class DataBaseManager.
+     */
+    @Test
+    public void testStreamNodes() throws Exception {
+        System.out.println("streamNodes");
+        MetadataFileType metadataFileType1 = new MetadataFileType() {
+            @Override
+            public String getType() {
+                return "Session";
+            }
+
+            @Override
+            public String getPath() {
+                return "Description";
+            }
+        };
+        ArrayList<SearchParameters> searchParametersList = new ArrayList<SearchParameters>();
+        searchParametersList.add(new SearchParameters(metadataFileType1, metadataFileType1, QueryDataStructures.SearchNegator.is, QueryDataStructures.SearchType.contains, "Author: not applicable"));
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        final List<String> streamedIds = new ArrayList<String>();
+        final SearchHitListener<HighlightableDataNode> idCollector = new SearchHitListener<HighlightableDataNode>() {
+            public void searchHitFound(HighlightableDataNode dataNode) throws QueryException {
+                streamedIds.add(dataNode.getID());
+            }
+        };
+        final List<? extends SerialisableDataNode> rootNodes = dbManager.getRootNodes().getChildList();
+        assertEquals(rootNodes.size(), dbManager.streamRootNodes(idCollector));
+        assertEquals(rootNodes.get(0).getID(), streamedIds.get(0));
+        // the links of a page are read without the nodes, which are then streamed in the order of the results
+        final HighlightableDataNode pageLinks = dbManager.getSearchResultLinks(QueryDataStructures.CriterionJoinType.intersect, searchParametersList, 0, 10);
+        assertEquals(Integer.valueOf(19), pageLinks.getResultCount());
+        assertEquals(10, pageLinks.getChildIds().size());
+        assertTrue(pageLinks.getChildList() == null || pageLinks.getChildList().isEmpty());
+        final List<String> pageIds = new ArrayList<String>();
+        for (DataNodeLink pageLink : pageLinks.getChildIds()) {
+            pageIds.add(pageLink.getIdString());
+        }
+        streamedIds.clear();
+        assertEquals(10, dbManager.streamNodeDatasInOrder(pageIds, idCollector));
+        assertEquals(pageIds, streamedIds);
+        final List<? extends SerialisableDataNode> pageNodes = dbManager.getSearchResult(QueryDataStructures.CriterionJoinType.intersect, searchParametersList, 0, 10).getChildList();
+        for (int index = 0; index < pageNodes.size(); index++) {
+            assertEquals(pageNodes.get(index).getID(), streamedIds.get(index));
+        }
+        final List<DataNodeId> nodeIds = new ArrayList<DataNodeId>();
+        nodeIds.add(new DataNodeId(pageIds.get(0)));
+        nodeIds.add(new DataNodeId(pageIds.get(1)));
+        assertEquals(2, dbManager.streamNodeDatasByIDs(nodeIds, idCollector));
+        assertEquals(0, dbManager.streamNodeDatasInOrder(new ArrayList<String>(), idCollector));
+    }
+
+    /**
+     * Test of getContentGeneration and updateContentGeneration, of class
+     * DataBaseManager, with the ContentGenerationCache that reads them.
+     */
+    @Test
+    public void testContentGeneration() throws Exception {
+        System.out.println("contentGeneration");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        final String contentGeneration = dbManager.updateContentGeneration();
+        assertFalse(contentGeneration.isEmpty());
+        assertEquals(contentGeneration, dbManager.getContentGeneration());
+        final ContentGenerationCache generationCache = new ContentGenerationCache(60000);
+        assertEquals(contentGeneration, generationCache.getGeneration(dbManager));
+        dbManager.deleteBranch(dbManager.getRootNodes().getChildList().get(0).getID());
+        final String updatedGeneration = dbManager.getContentGeneration();
+        assertFalse(contentGeneration.equals(updatedGeneration));
+        // the cached generation is kept until the refresh time has passed
+        assertEquals(contentGeneration, generationCache.getGeneration(dbManager));
+        assertEquals(updatedGeneration, new ContentGenerationCache(0).getGeneration(dbManager));
+    }
+
     /**
      * Test of insertNodeIconsIntoDatabase method, of class DataBaseManager.
      */
@@ -485,7 +880,7 @@ public abstract class DataBaseManagerTest {
         String initialCounts = dbManager.getDatabaseLinksCounts();
         // check the number of actual documents in the database before and after deleteBranch has been run
         assertEquals("34 28 28", initialCounts);
-        dbManager.deleteBranch("0f4d9cdcd07a1d0c642bb11a0dd1cf2e");
+        assertEquals(3, dbManager.deleteBranch("0f4d9cdcd07a1d0c642bb11a0dd1cf2e"));
         // the subsequent tests here checks that the correct number of IDs have been removed from /DatabaseLinks/RecentDocumentLinks 
         // and that the correct number of IDs have been added to /DatabaseLinks/MissingDocumentLinks 
         // and that the actual number of documents in the database match what has been deleted
@@ -493,6 +888,45 @@ public abstract class DataBaseManagerTest {
         assertEquals("37 25 25", modifiedCounts);
     }
 
+    /**
+     * Test that deleteBranch removes the deleted nodes from the field value
+     * index, so that they are no longer found by searches.
+     */
+    @Test
+    public void testDeleteBranchFromFieldValueIndex() throws Exception {
+        System.out.println("deleteBranchFromFieldValueIndex");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        final File indexDirectory = File.createTempFile("yams-field-index", "");
+        indexDirectory.delete();
+        dbManager.setFieldValueIndex(FieldValueIndex.getSharedIndex(indexDirectory, true));
+        try {
+            dbManager.rebuildFieldValueIndex();
+            final String deletedId = "0f4d9cdcd07a1d0c642bb11a0dd1cf2e";
+            // an empty search string matches every node that has fields
+            final SearchParameters searchParameters = new SearchParameters(new MetadataFileType(), new MetadataFileType(), QueryDataStructures.SearchNegator.is, QueryDataStructures.SearchType.contains, "");
+            final Map<String, List<String>> initialMatches = dbManager.getFieldValueIndex().search(searchParameters);
+            assertTrue(initialMatches.containsKey(deletedId));
+            assertEquals(3, dbManager.deleteBranch(deletedId));
+            final Map<String, List<String>> remainingMatches = dbManager.getFieldValueIndex().search(searchParameters);
+            assertFalse(remainingMatches.containsKey(deletedId));
+            assertTrue(remainingMatches.size() < initialMatches.size());
+            final ArrayList<SearchParameters> searchParametersList = new ArrayList<SearchParameters>();
+            searchParametersList.add(searchParameters);
+            final HighlightableDataNode searchResult = dbManager.getSearchResult(QueryDataStructures.CriterionJoinType.union, searchParametersList);
+            assertEquals(remainingMatches.size(), searchResult.getChildIds().size());
+            for (DataNodeLink childLink : searchResult.getChildIds()) {
+                assertFalse(deletedId.equals(childLink.getIdString()));
+            }
+        } finally {
+            dbManager.setFieldValueIndex(null);
+            FieldValueIndex.closeSharedIndex(indexDirectory);
+            for (File indexFile : indexDirectory.listFiles()) {
+                indexFile.delete();
+            }
+            indexDirectory.delete();
+        }
+    }
+
     /**
      * Test of getDatabaseList method, of class DataBaseManager.
      */
@@ -578,4 +1012,35 @@ public abstract class DataBaseManagerTest {
         Set<DataNodeLink> result3 = dbManager.getHandlesOfMissing(new DatabaseLinks(), 100, "corpus1.mpi.nl");
         assertEquals(34, result3.size());
     }
+
+    /**
+     * Test of the streamed executeQuery method, of class DbAdaptor.
+     */
+    @Test
+    public void testExecuteQueryStreamed() throws Exception {
+        System.out.println("executeQueryStreamed");
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> dbManager = getDataBaseManager(true);
+        final String countQuery = "count(collection(\"unit-test-database\")/DatabaseLinks/RootDocumentLinks)";
+        final String streamedResult = dbManager.dbAdaptor.executeQuery(testDatabaseName, countQuery, new QueryResultHandler<String>() {
+            public String handleResult(InputStream resultStream) throws QueryException {
+                try {
+                    final BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(resultStream, "UTF-8"));
+                    return bufferedReader.readLine();
+                } catch (IOException exception) {
+                    throw new QueryException(exception);
+                }
+            }
+        });
+        assertEquals(dbManager.dbAdaptor.executeQuery(testDatabaseName, countQuery), streamedResult);
+        try {
+            dbManager.dbAdaptor.executeQuery(testDatabaseName, "this is not a query", new QueryResultHandler<String>() {
+                public String handleResult(InputStream resultStream) throws QueryException {
+                    return "no error";
+                }
+            });
+            Assert.fail("The query error was not reported");
+        } catch (QueryException exception) {
+            // the query error must reach the caller even though the handler completed
+        }
+    }
 }
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import nl.mpi.flap.model.DataField;
+import nl.mpi.flap.model.SerialisableDataNode;
+import nl.mpi.yams.common.data.HighlightableDataNode;
+import nl.mpi.yams.common.data.MetadataFileType;
+import nl.mpi.yams.common.data.QueryDataStructures.SearchNegator;
+import nl.mpi.yams.common.data.QueryDataStructures.SearchType;
+import nl.mpi.yams.common.data.SearchParameters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class FieldValueIndexTest {
+
+    private File indexDirectory;
+    private FieldValueIndex fieldValueIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        indexDirectory = File.createTempFile("yams-field-index", "");
+        indexDirectory.delete();
+        fieldValueIndex = FieldValueIndex.getSharedIndex(indexDirectory, true);
+        final JaxbCodec jaxbCodec = JaxbCodec.getCodec(HighlightableDataNode.class, DataField.class, MetadataFileType.class);
+        final SerialisableDataNode sessionNode = jaxbCodec.unmarshal("<DataNode Label=\"Typology\" ID=\"node-a\">"
+                + "<FieldGroup Label=\"Name\"><FieldData Path=\".Session.Name\" FieldValue=\"Sign Language Typology\"/></FieldGroup>"
+                + "<FieldGroup Label=\"Description\"><FieldData Path=\".Session.Description\" FieldValue=\"Recorded in Troms\u00f8\"/></FieldGroup>"
+                + "<Type Label=\"Session\"/>"
+                + "</DataNode>", HighlightableDataNode.class);
+        final SerialisableDataNode corpusNode = jaxbCodec.unmarshal("<DataNode Label=\"Archive\" ID=\"node-b\">"
+                + "<FieldGroup Label=\"Name\"><FieldData Path=\".Corpus.Name\" FieldValue=\"Language Archive\"/></FieldGroup>"
+                + "<Type Label=\"Corpus\"/>"
+                + "</DataNode>", HighlightableDataNode.class);
+        fieldValueIndex.addDataNodes(Arrays.asList(sessionNode, corpusNode));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FieldValueIndex.closeSharedIndex(indexDirectory);
+        for (File indexFile : indexDirectory.listFiles()) {
+            indexFile.delete();
+        }
+        indexDirectory.delete();
+    }
+
+    private Map<String, List<String>> search(String type, String path, SearchType searchType, String searchString) throws Exception {
+        return fieldValueIndex.search(new SearchParameters(new MetadataFileType(type, null, null), new MetadataFileType(null, path, null), SearchNegator.is, searchType, searchString));
+    }
+
+    /**
+     * Test of search method, of class FieldValueIndex.
+     */
+    @Test
+    public void testSearch() throws Exception {
+        assertEquals(2, search(null, null, SearchType.contains, "language").size());
+        final Map<String, List<String>> sessionResult = search("Session", null, SearchType.contains, "language");
+        assertEquals(1, sessionResult.size());
+        assertEquals(Arrays.asList(".Session.Name"), sessionResult.get("node-a"));
+        assertEquals(1, search(null, null, SearchType.contains, "sign language").size());
+        assertEquals(0, search(null, null, SearchType.contains, "language sign").size());
+        // case and diacritics are ignored
+        assertTrue(search(null, null, SearchType.contains, "TROMSO").containsKey("node-a"));
+        assertEquals(0, search(null, "Description", SearchType.contains, "language").size());
+        assertTrue(search(null, null, SearchType.equals, "Language Archive").containsKey("node-b"));
+        assertEquals(0, search(null, null, SearchType.equals, "language archive").size());
+        assertTrue(search(null, null, SearchType.fuzzy, "Typologie").containsKey("node-a"));
+        // an empty search string matches every node that has fields
+        assertEquals(2, search(null, null, SearchType.contains, "").size());
+    }
+
+    /**
+     * Test of getFieldValues method, of class FieldValueIndex.
+     */
+    @Test
+    public void testGetFieldValues() throws Exception {
+        assertEquals(Arrays.asList("Language Archive", "Sign Language Typology"), fieldValueIndex.getFieldValues(null, "Name", null, 10));
+        assertEquals(Arrays.asList("Sign Language Typology"), fieldValueIndex.getFieldValues("Session", "Name", null, 10));
+        assertEquals(Arrays.asList("Language Archive"), fieldValueIndex.getFieldValues(null, "Name", "archive", 10));
+        assertEquals(Arrays.asList("Language Archive"), fieldValueIndex.getFieldValues(null, null, null, 1));
+    }
+
+    /**
+     * Test of addDataNodes method, of class FieldValueIndex.
+     */
+    @Test
+    public void testReplaceDataNode() throws Exception {
+        assertEquals(3, fieldValueIndex.getFieldCount());
+        final JaxbCodec jaxbCodec = JaxbCodec.getCodec(HighlightableDataNode.class, DataField.class, MetadataFileType.class);
+        final SerialisableDataNode updatedNode = jaxbCodec.unmarshal("<DataNode Label=\"Archive\" ID=\"node-b\">"
+                + "<FieldGroup Label=\"Name\"><FieldData Path=\".Corpus.Name\" FieldValue=\"Dialect Archive\"/></FieldGroup>"
+                + "<Type Label=\"Corpus\"/>"
+                + "</DataNode>", HighlightableDataNode.class);
+        fieldValueIndex.addDataNodes(Arrays.asList(updatedNode));
+        assertEquals(3, fieldValueIndex.getFieldCount());
+        assertEquals(1, search(null, null, SearchType.contains, "language").size());
+        assertTrue(search(null, null, SearchType.contains, "dialect").containsKey("node-b"));
+    }
+
+    /**
+     * Test of deleteDataNodes method, of class FieldValueIndex.
+     */
+    @Test
+    public void testDeleteDataNodes() throws Exception {
+        fieldValueIndex.deleteDataNodes(Arrays.asList("node-b"));
+        assertEquals(2, fieldValueIndex.getFieldCount());
+        final Map<String, List<String>> result = search(null, null, SearchType.contains, "language");
+        assertEquals(1, result.size());
+        assertTrue(result.containsKey("node-a"));
+        assertEquals(0, search(null, null, SearchType.contains, "archive").size());
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class GroupedCountQueryTest {
+
+    /**
+     * Test of getQuery method, of class GroupedCountQuery.
+     */
+    @Test
+    public void testGetQuery() {
+        System.out.println("getQuery");
+        assertEquals("for $value in $values\n"
+                + "let $label := $value\n"
+                + "group by $label\n"
+                + "let $count := count($value)\n"
+                + "order by $label\n"
+                + "return <Count>{$count}</Count>", new GroupedCountQuery("$values").getQuery("<Count>{$count}</Count>"));
+        assertEquals("subsequence((\n"
+                + "for $value in $values\n"
+                + "let $label := $value\n"
+                + "group by $label\n"
+                + "let $count := count($value)\n"
+                + "where $count ge 3\n"
+                + "order by $count descending, $label\n"
+                + "return <Count>{$count}</Count>\n"
+                + "), 1, 10)", new GroupedCountQuery("$values", 3, 10).getQuery("<Count>{$count}</Count>"));
+    }
+}
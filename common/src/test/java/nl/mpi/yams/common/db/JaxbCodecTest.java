@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.transform.stream.StreamSource;
+import nl.mpi.flap.model.DataField;
+import nl.mpi.flap.model.SerialisableDataNode;
+import nl.mpi.yams.common.data.HighlightableDataNode;
+import nl.mpi.yams.common.data.MetadataFileType;
+import org.junit.Ignore;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class JaxbCodecTest {
+
+    private List<SerialisableDataNode> getTestNodes() throws Exception {
+        final JaxbCodec jaxbCodec = JaxbCodec.getCodec(HighlightableDataNode.class, DataField.class, MetadataFileType.class);
+        final List<SerialisableDataNode> dataNodes = new ArrayList<SerialisableDataNode>();
+        for (String testFileName : TestData.testFiles) {
+            dataNodes.add(jaxbCodec.unmarshal(new StreamSource(JaxbCodecTest.class.getResourceAsStream("/testdata/" + testFileName)), HighlightableDataNode.class));
+        }
+        return dataNodes;
+    }
+
+    /**
+     * Test of getCodec and marshal, of class JaxbCodec.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        System.out.println("roundTrip");
+        final JaxbCodec jaxbCodec = JaxbCodec.getCodec(HighlightableDataNode.class, DataField.class, MetadataFileType.class);
+        assertSame(jaxbCodec, JaxbCodec.getCodec(HighlightableDataNode.class, DataField.class, MetadataFileType.class));
+        for (SerialisableDataNode dataNode : getTestNodes()) {
+            final String documentString = jaxbCodec.marshal(dataNode);
+            assertFalse("The output should not be formatted", documentString.contains("\n    <"));
+            final HighlightableDataNode readNode = jaxbCodec.unmarshal(documentString, HighlightableDataNode.class);
+            assertEquals(dataNode.getID(), readNode.getID());
+            assertEquals(documentString, jaxbCodec.marshal(readNode));
+        }
+    }
+
+    /**
+     * Compares the per document cost of serialising the test documents the
+     * way insertIntoDatabase used to, with a new JAXBContext and formatted
+     * output for each document, against the shared codec. This only prints
+     * the timings, so it is left out of the normal test run and is run by
+     * hand when the codec is changed.
+     */
+    @Ignore("benchmark without assertions, run by hand to compare the per document cost")
+    @Test
+    public void testMarshalCost() throws Exception {
+        System.out.println("marshalCost");
+        final List<SerialisableDataNode> dataNodes = getTestNodes();
+        final int rounds = 10;
+        final long contextStart = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (SerialisableDataNode dataNode : dataNodes) {
+                JAXBContext jaxbContext = JAXBContext.newInstance(HighlightableDataNode.class, DataField.class, MetadataFileType.class);
+                Marshaller marshaller = jaxbContext.createMarshaller();
+                StringWriter stringWriter = new StringWriter();
+                marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+                marshaller.marshal(dataNode, stringWriter);
+            }
+        }
+        final long contextNanos = System.nanoTime() - contextStart;
+        final JaxbCodec jaxbCodec = JaxbCodec.getCodec(HighlightableDataNode.class, DataField.class, MetadataFileType.class);
+        final long codecStart = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (SerialisableDataNode dataNode : dataNodes) {
+                jaxbCodec.marshal(dataNode);
+            }
+        }
+        final long codecNanos = System.nanoTime() - codecStart;
+        final int documentCount = rounds * dataNodes.size();
+        System.out.println("JAXBContext per document: " + (contextNanos / documentCount / 1000) + "us per document");
+        System.out.println("JaxbCodec: " + (codecNanos / documentCount / 1000) + "us per document");
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class KnownIdFilterTest {
+
+    /**
+     * Test of mightBeKnown method, of class KnownIdFilter.
+     */
+    @Test
+    public void testMightBeKnown() {
+        final KnownIdFilter knownIdFilter = new KnownIdFilter(1000);
+        for (int idIndex = 0; idIndex < 1000; idIndex++) {
+            knownIdFilter.addLoadedId("loaded" + idIndex);
+        }
+        for (int idIndex = 0; idIndex < 1000; idIndex++) {
+            assertTrue(knownIdFilter.mightBeKnown("loaded" + idIndex));
+            assertFalse(knownIdFilter.isKnown("loaded" + idIndex));
+        }
+        int falsePositives = 0;
+        for (int idIndex = 0; idIndex < 10000; idIndex++) {
+            if (knownIdFilter.mightBeKnown("unknown" + idIndex)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 200);
+    }
+
+    /**
+     * Test of addInsertedId and removeId methods, of class KnownIdFilter.
+     */
+    @Test
+    public void testInsertedIds() {
+        final KnownIdFilter knownIdFilter = new KnownIdFilter(0);
+        assertFalse(knownIdFilter.mightBeKnown("inserted"));
+        knownIdFilter.addInsertedId("inserted");
+        assertTrue(knownIdFilter.isKnown("inserted"));
+        assertTrue(knownIdFilter.mightBeKnown("inserted"));
+        knownIdFilter.removeId("inserted");
+        assertFalse(knownIdFilter.isKnown("inserted"));
+        // the filter bits remain so the database would still be asked
+        assertTrue(knownIdFilter.mightBeKnown("inserted"));
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import org.basex.core.Context;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the DataBaseManager tests against the LocalDbAdaptor in multi session
+ * mode
+ *
+ * @author Peter Withers
+ */
+public class MultiSessionDataBaseManagerTest extends DataBaseManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Override
+    DbAdaptor getDbAdaptor() throws IOException, QueryException {
+        final File databaseDirectory = folder.newFolder("DatabaseDirectory");
+        new File(databaseDirectory, ".basexhome").createNewFile();
+        Properties props = System.getProperties();
+        props.setProperty("org.basex.path", databaseDirectory.getAbsolutePath());
+        return new LocalDbAdaptor(4);
+    }
+
+    private boolean isUpdatingQuery(Context sessionContext, String queryString, Map<String, String> queryVariables) {
+        return LocalDbAdaptor.getBoundQuery(queryString, queryVariables).updating(sessionContext);
+    }
+
+    /**
+     * Test of the lock choice of LocalDbAdaptor, which uses the updating flag
+     * of the bound query parsed on the session context.
+     */
+    @Test
+    public void testIsUpdatingQuery() {
+        final Context sessionContext = new Context();
+        try {
+            final Map<String, String> queryVariables = new HashMap<String, String>();
+            queryVariables.put("attributeValues", "first");
+            assertFalse(isUpdatingQuery(sessionContext, "count(collection(\"unit-test-database\")/DataNode)", null));
+            assertFalse(isUpdatingQuery(sessionContext, "collection(\"unit-test-database\")/DataNode[@ID eq 'delete']", null));
+            // update keywords in a search term do not make the query updating
+            assertFalse(isUpdatingQuery(sessionContext, "collection(\"unit-test-database\")/DataNode[FieldGroup/FieldData/@FieldValue contains text 'delete node db:replace(']", null));
+            assertFalse(isUpdatingQuery(sessionContext, "collection(\"unit-test-database\")/DataNode[@ID = tokenize($attributeValues, ' ')]", queryVariables));
+            assertTrue(isUpdatingQuery(sessionContext, "delete node collection(\"unit-test-database\")/DataNode[@ID = tokenize($attributeValues, ' ')]", queryVariables));
+            assertTrue(isUpdatingQuery(sessionContext, "for $n in collection(\"unit-test-database\")/DatabaseLinks/ChildLinks return rename node $n as 'MissingDocumentLinks'", null));
+            assertTrue(isUpdatingQuery(sessionContext, "insert node <RootDocumentLinks/> into collection(\"unit-test-database\")/DatabaseLinks", null));
+            assertTrue(isUpdatingQuery(sessionContext, "db:replace('unit-test-database', 'a', <a/>)", null));
+            // updating functions that are not XQuery Update expressions are also found
+            assertTrue(isUpdatingQuery(sessionContext, "db:output('done')", null));
+        } finally {
+            sessionContext.close();
+        }
+    }
+}
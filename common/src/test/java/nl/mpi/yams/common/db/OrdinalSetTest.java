@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import nl.mpi.yams.common.data.QueryDataStructures.CriterionJoinType;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class OrdinalSetTest {
+
+    /**
+     * Test of fromUnsorted method, of class OrdinalSet.
+     */
+    @Test
+    public void testFromUnsorted() {
+        final OrdinalSet ordinalSet = OrdinalSet.fromUnsorted(new int[]{9, 3, 7, 3, 1, 9, 0}, 6);
+        assertArrayEquals(new int[]{1, 3, 7, 9}, ordinalSet.toArray());
+        assertEquals(4, ordinalSet.size());
+        assertTrue(ordinalSet.contains(7));
+        assertFalse(ordinalSet.contains(0));
+        assertTrue(OrdinalSet.of().isEmpty());
+    }
+
+    /**
+     * Test of and, or and andNot methods, of class OrdinalSet.
+     */
+    @Test
+    public void testSetOperations() {
+        final OrdinalSet firstSet = OrdinalSet.of(1, 4, 6, 10, 15);
+        final OrdinalSet secondSet = OrdinalSet.of(2, 4, 10, 11, 15, 20);
+        assertArrayEquals(new int[]{4, 10, 15}, firstSet.and(secondSet).toArray());
+        assertArrayEquals(new int[]{1, 2, 4, 6, 10, 11, 15, 20}, firstSet.or(secondSet).toArray());
+        assertArrayEquals(new int[]{1, 6}, firstSet.andNot(secondSet).toArray());
+        assertArrayEquals(new int[]{2, 11, 20}, secondSet.andNot(firstSet).toArray());
+        assertTrue(firstSet.and(OrdinalSet.EMPTY).isEmpty());
+        assertArrayEquals(firstSet.toArray(), firstSet.or(OrdinalSet.EMPTY).toArray());
+    }
+
+    /**
+     * Test of and method with sets of very different sizes, of class
+     * OrdinalSet.
+     */
+    @Test
+    public void testAndSkewed() {
+        final int[] largeOrdinals = new int[10000];
+        for (int index = 0; index < largeOrdinals.length; index++) {
+            largeOrdinals[index] = index * 3;
+        }
+        final OrdinalSet largeSet = OrdinalSet.of(largeOrdinals);
+        final OrdinalSet smallSet = OrdinalSet.of(-5, 0, 4, 9, 2999, 3000, 29997, 40000);
+        assertArrayEquals(new int[]{0, 9, 3000, 29997}, smallSet.and(largeSet).toArray());
+        assertArrayEquals(new int[]{0, 9, 3000, 29997}, largeSet.and(smallSet).toArray());
+    }
+
+    /**
+     * Test of join method, of class OrdinalSet.
+     */
+    @Test
+    public void testJoin() {
+        final List<OrdinalSet> includedSets = Arrays.asList(OrdinalSet.of(1, 2, 3, 4, 5, 6), OrdinalSet.of(2, 4, 6, 8), OrdinalSet.of(4, 5, 6, 7));
+        final List<OrdinalSet> excludedSets = Arrays.asList(OrdinalSet.of(6));
+        final List<OrdinalSet> noSets = new ArrayList<OrdinalSet>();
+        assertArrayEquals(new int[]{4, 6}, OrdinalSet.join(CriterionJoinType.intersect, includedSets, noSets).toArray());
+        assertArrayEquals(new int[]{4}, OrdinalSet.join(CriterionJoinType.intersect, includedSets, excludedSets).toArray());
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5, 6, 7, 8}, OrdinalSet.join(CriterionJoinType.union, includedSets, noSets).toArray());
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5, 7, 8}, OrdinalSet.join(CriterionJoinType.union, includedSets, excludedSets).toArray());
+        assertTrue(OrdinalSet.join(CriterionJoinType.union, noSets, excludedSets).isEmpty());
+    }
+}
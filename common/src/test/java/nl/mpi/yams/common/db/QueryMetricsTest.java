@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class QueryMetricsTest {
+
+    /**
+     * Test of recordQuery and the percentiles, of class QueryMetrics.
+     */
+    @Test
+    public void testRecordQuery() {
+        System.out.println("recordQuery");
+        final QueryMetrics instance = new QueryMetrics("unit-test");
+        for (int index = 0; index < 90; index++) {
+            instance.recordQuery("fast", 3 * 1000000L, 10, false, false);
+        }
+        for (int index = 0; index < 10; index++) {
+            instance.recordQuery("fast", 700 * 1000000L, 10, true, index == 0);
+        }
+        final QueryMetrics.QueryStatistics statistics = instance.getQueryStatistics("fast");
+        assertEquals(100, statistics.getQueryCount());
+        assertEquals(10, statistics.getErrorCount());
+        assertEquals(1, statistics.getTimeoutCount());
+        assertEquals(1000, statistics.getResultBytes());
+        assertEquals(5, statistics.getPercentileMs(50));
+        assertEquals(700, statistics.getPercentileMs(95));
+        assertEquals(700, statistics.getMaxMs());
+        instance.recordWait("lock", 1000000L);
+        assertEquals(100, instance.getQueryCount());
+        assertEquals(2, instance.getQueryNames().length);
+        instance.reset();
+        assertNull(instance.getQueryStatistics("fast"));
+    }
+
+    /**
+     * Test of getQueryName method, of class InstrumentedDbAdaptor.
+     */
+    @Test
+    public void testGetQueryName() {
+        System.out.println("getQueryName");
+        assertEquals("for $n in collection(?)/DataNode[@ID = ?] [#] return $n", InstrumentedDbAdaptor.getQueryName("for $n in collection(\"yams-data\")/DataNode[@ID = 'abc']\n  [12]\treturn $n"));
+        assertEquals(InstrumentedDbAdaptor.getQueryName("contains text 'Comic'"), InstrumentedDbAdaptor.getQueryName("contains text 'Books'"));
+    }
+
+    /**
+     * Test of withQueryName method, of class InstrumentedDbAdaptor.
+     */
+    @Test
+    public void testWithQueryName() throws Exception {
+        System.out.println("withQueryName");
+        final DbAdaptor resultAdaptor = (DbAdaptor) Proxy.newProxyInstance(DbAdaptor.class.getClassLoader(), new Class<?>[]{DbAdaptor.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "result";
+            }
+        });
+        final QueryMetrics queryMetrics = new QueryMetrics("unit-test");
+        final InstrumentedDbAdaptor instrumentedAdaptor = new InstrumentedDbAdaptor(resultAdaptor, queryMetrics);
+        instrumentedAdaptor.withQueryName("node count").executeQuery("yams-data", "count(collection(\"yams-data\")/DataNode[@ID = 'abc'])");
+        instrumentedAdaptor.withQueryName("node count").executeQuery("yams-data", "count(collection(\"yams-data\")/DataNode[not(@ID)])");
+        assertEquals(2, queryMetrics.getQueryStatistics("node count").getQueryCount());
+        // without a name the shape of the query is used
+        instrumentedAdaptor.executeQuery("yams-data", "db:list()");
+        assertEquals(1, queryMetrics.getQueryStatistics("db:list()").getQueryCount());
+        assertEquals(2, queryMetrics.getQueryNames().length);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class QueryResultCacheTest {
+
+    /**
+     * Test of get and put, of class QueryResultCache.
+     */
+    @Test
+    public void testGeneration() {
+        System.out.println("generation");
+        final QueryResultCache instance = new QueryResultCache(10, 60000);
+        instance.put("cache-test-database", "query", "result", QueryResultCache.getGeneration("cache-test-database"));
+        assertEquals("result", instance.get("cache-test-database", "query"));
+        assertNull(instance.get("other-database", "query"));
+        QueryResultCache.nextGeneration("cache-test-database");
+        assertNull(instance.get("cache-test-database", "query"));
+        // a result from before the change is not kept
+        final long staleGeneration = QueryResultCache.getGeneration("cache-test-database") - 1;
+        instance.put("cache-test-database", "query", "stale", staleGeneration);
+        assertNull(instance.get("cache-test-database", "query"));
+    }
+
+    /**
+     * Test that the least recently used and expired entries are dropped.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        System.out.println("eviction");
+        final QueryResultCache instance = new QueryResultCache(2, 60000);
+        final long generation = QueryResultCache.getGeneration("cache-test-database");
+        instance.put("cache-test-database", "first", "1", generation);
+        instance.put("cache-test-database", "second", "2", generation);
+        assertEquals("1", instance.get("cache-test-database", "first"));
+        instance.put("cache-test-database", "third", "3", generation);
+        assertEquals(2, instance.size());
+        assertNull(instance.get("cache-test-database", "second"));
+        assertEquals("1", instance.get("cache-test-database", "first"));
+        final QueryResultCache expiringCache = new QueryResultCache(2, 1);
+        expiringCache.put("cache-test-database", "first", "1", generation);
+        Thread.sleep(10);
+        assertNull(expiringCache.get("cache-test-database", "first"));
+    }
+}
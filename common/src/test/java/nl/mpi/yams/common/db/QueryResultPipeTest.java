@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class QueryResultPipeTest {
+
+    // more than the pipe buffer so that the writer blocks until the handler reads or closes the pipe
+    private static final int resultSize = 1024 * 1024;
+
+    private QueryResultPipe.ResultWriter getResultWriter(final AtomicBoolean writerFinished) {
+        return new QueryResultPipe.ResultWriter() {
+            public void writeResult(OutputStream outputStream) throws IOException {
+                try {
+                    for (int byteCount = 0; byteCount < resultSize; byteCount++) {
+                        outputStream.write('a');
+                    }
+                } finally {
+                    writerFinished.set(true);
+                }
+            }
+        };
+    }
+
+    /**
+     * Test of pipeResult with a handler that stops reading early, which is
+     * not a query error.
+     */
+    @Test
+    public void testEarlyReturn() throws QueryException {
+        System.out.println("earlyReturn");
+        final AtomicBoolean writerFinished = new AtomicBoolean(false);
+        final Integer firstByte = QueryResultPipe.pipeResult(getResultWriter(writerFinished), new QueryResultHandler<Integer>() {
+            public Integer handleResult(InputStream resultStream) throws QueryException {
+                try {
+                    return resultStream.read();
+                } catch (IOException exception) {
+                    throw new QueryException("Error reading the result", exception);
+                }
+            }
+        });
+        assertEquals(Integer.valueOf('a'), firstByte);
+        assertTrue(writerFinished.get());
+    }
+
+    /**
+     * Test of pipeResult with a handler that throws a runtime exception, after
+     * which the writer must not be left blocked on the pipe.
+     */
+    @Test
+    public void testHandlerRuntimeException() throws QueryException {
+        System.out.println("handlerRuntimeException");
+        final AtomicBoolean writerFinished = new AtomicBoolean(false);
+        try {
+            QueryResultPipe.pipeResult(getResultWriter(writerFinished), new QueryResultHandler<Integer>() {
+                public Integer handleResult(InputStream resultStream) throws QueryException {
+                    throw new NumberFormatException("not a number");
+                }
+            });
+            fail("the exception of the handler should be thrown");
+        } catch (NumberFormatException exception) {
+            assertEquals("not a number", exception.getMessage());
+        }
+        assertTrue(writerFinished.get());
+    }
+
+    /**
+     * Test of pipeResult with a writer that fails, which is reported as a
+     * query error even though the handler read the result to its end.
+     */
+    @Test
+    public void testWriterError() {
+        System.out.println("writerError");
+        try {
+            QueryResultPipe.pipeResult(new QueryResultPipe.ResultWriter() {
+                public void writeResult(OutputStream outputStream) throws IOException {
+                    outputStream.write('a');
+                    throw new IOException("the query failed");
+                }
+            }, new QueryResultHandler<Integer>() {
+                public Integer handleResult(InputStream resultStream) throws QueryException {
+                    try {
+                        int byteCount = 0;
+                        while (resultStream.read() >= 0) {
+                            byteCount++;
+                        }
+                        return byteCount;
+                    } catch (IOException exception) {
+                        throw new QueryException("Error reading the result", exception);
+                    }
+                }
+            });
+            fail("the error of the writer should be thrown");
+        } catch (QueryException exception) {
+            assertEquals("the query failed", exception.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.common.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import nl.mpi.yams.common.data.MetadataFileType;
+import nl.mpi.yams.common.data.QueryDataStructures;
+import nl.mpi.yams.common.data.SearchParameters;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class SearchResultCacheTest {
+
+    private List<SearchParameters> getSearchParameters(String... searchStrings) {
+        final List<SearchParameters> searchParametersList = new ArrayList<SearchParameters>();
+        for (String searchString : searchStrings) {
+            searchParametersList.add(new SearchParameters(new MetadataFileType("Session", null, null), new MetadataFileType(null, "Name", null), QueryDataStructures.SearchNegator.is, QueryDataStructures.SearchType.contains, searchString));
+        }
+        return searchParametersList;
+    }
+
+    private SearchResultSet getResultSet(String... resultIds) {
+        final Map<String, List<String>> highlightPaths = new HashMap<String, List<String>>();
+        for (String resultId : resultIds) {
+            highlightPaths.put(resultId, Arrays.asList(".Session.Name"));
+        }
+        return new SearchResultSet(Arrays.asList(resultIds), highlightPaths);
+    }
+
+    /**
+     * Test of getSearchKey method, of class SearchResultCache.
+     */
+    @Test
+    public void testGetSearchKey() {
+        System.out.println("getSearchKey");
+        // the join type makes no difference to a search with one parameter
+        assertEquals(SearchResultCache.getSearchKey(SearchResultCache.SearchMode.database, QueryDataStructures.CriterionJoinType.union, getSearchParameters("Books")), SearchResultCache.getSearchKey(SearchResultCache.SearchMode.database, QueryDataStructures.CriterionJoinType.intersect, getSearchParameters("Books")));
+        assertFalse(SearchResultCache.getSearchKey(SearchResultCache.SearchMode.database, QueryDataStructures.CriterionJoinType.union, getSearchParameters("Books", "Comic")).equals(SearchResultCache.getSearchKey(SearchResultCache.SearchMode.database, QueryDataStructures.CriterionJoinType.intersect, getSearchParameters("Books", "Comic"))));
+        assertFalse(SearchResultCache.getSearchKey(SearchResultCache.SearchMode.database, QueryDataStructures.CriterionJoinType.union, getSearchParameters("Books")).equals(SearchResultCache.getSearchKey(SearchResultCache.SearchMode.database, QueryDataStructures.CriterionJoinType.union, getSearchParameters("books"))));
+        // the index and the database can give different results for the same search
+        assertFalse(SearchResultCache.getSearchKey(SearchResultCache.SearchMode.database, QueryDataStructures.CriterionJoinType.union, getSearchParameters("Books")).equals(SearchResultCache.getSearchKey(SearchResultCache.SearchMode.fieldValueIndex, QueryDataStructures.CriterionJoinType.union, getSearchParameters("Books"))));
+    }
+
+    /**
+     * Test of get and put, of class SearchResultCache.
+     */
+    @Test
+    public void testGetPut() {
+        System.out.println("getPut");
+        final SearchResultCache instance = new SearchResultCache(1024 * 1024, 60000);
+        final String searchKey = SearchResultCache.getSearchKey(SearchResultCache.SearchMode.database, QueryDataStructures.CriterionJoinType.union, getSearchParameters("Books"));
+        final SearchResultSet resultSet = getResultSet("a", "b", "c");
+        instance.put("search-cache-test-database", searchKey, resultSet, QueryResultCache.getGeneration("search-cache-test-database"));
+        assertSame(resultSet, instance.get("search-cache-test-database", searchKey));
+        assertEquals(Arrays.asList("b", "c"), instance.get("search-cache-test-database", searchKey).getResultIds(1, 10));
+        QueryResultCache.nextGeneration("search-cache-test-database");
+        assertNull(instance.get("search-cache-test-database", searchKey));
+        assertEquals(0, instance.getCachedBytes());
+    }
+
+    /**
+     * Test that the least recently used results are dropped when the cache is
+     * full.
+     */
+    @Test
+    public void testEviction() {
+        System.out.println("eviction");
+        final SearchResultSet resultSet = getResultSet("a", "b", "c");
+        final SearchResultCache instance = new SearchResultCache(resultSet.getEstimatedBytes() * 2, 60000);
+        final long generation = QueryResultCache.getGeneration("search-cache-test-database");
+        instance.put("search-cache-test-database", "first", resultSet, generation);
+        instance.put("search-cache-test-database", "second", resultSet, generation);
+        instance.get("search-cache-test-database", "first");
+        instance.put("search-cache-test-database", "third", resultSet, generation);
+        assertEquals(2, instance.size());
+        assertNull(instance.get("search-cache-test-database", "second"));
+        assertSame(resultSet, instance.get("search-cache-test-database", "first"));
+        assertEquals(resultSet.getEstimatedBytes() * 2, instance.getCachedBytes());
+    }
+}
@@ -0,0 +1,409 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.crawler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import nl.mpi.flap.model.DataNodeLink;
+import nl.mpi.yams.common.data.DatabaseLinks;
+
+/**
+ * Keeps the root, missing and recently crawled links of a crawl in memory
+ * with an append only log file, so that the crawler does not have to merge
+ * each batch of links into the DatabaseLinks document in the database. When
+ * the file is opened again the log is replayed, and compacted if most of its
+ * lines have been superseded.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class CrawlFrontier {
+
+    private static final char ROOT_ENTRY = 'R';
+    // a missing entry is ignored when the link has already been crawled
+    private static final char MISSING_ENTRY = 'M';
+    // an uncrawled entry makes a crawled link missing again, as when a branch is deleted from the database
+    private static final char UNCRAWLED_ENTRY = 'U';
+    private static final char CRAWLED_ENTRY = 'C';
+    private static final int minimumCompactionLines = 10000;
+    private final File logFile;
+    private final Map<String, DataNodeLink> knownLinks = new HashMap<String, DataNodeLink>();
+    private final Set<String> rootIds = new LinkedHashSet<String>();
+    // kept in the order that the links were found so that the crawl stays breadth first
+    private final Set<String> missingIds = new LinkedHashSet<String>();
+    private final Set<String> recentIds = new HashSet<String>();
+    // the URL words of each missing link, found once when the link becomes missing
+    private final Map<String, List<String>> missingTokens = new HashMap<String, List<String>>();
+    // the missing links that match each selection filter, in the same order as missingIds and kept up to date as links are found and crawled
+    private final Map<List<String>, Set<String>> filteredMissingIds = new HashMap<List<String>, Set<String>>();
+    private Writer logWriter = null;
+    private int logLineCount = 0;
+
+    /**
+     * Opens the frontier from its log file, which is created if it does not
+     * exist
+     *
+     * @param logFile the log file of the frontier
+     * @throws CrawlerException
+     */
+    public CrawlFrontier(File logFile) throws CrawlerException {
+        this.logFile = logFile;
+        try {
+            if (logFile.exists()) {
+                readLog();
+                if (logLineCount > minimumCompactionLines && logLineCount > 2 * knownLinks.size()) {
+                    compactLog();
+                }
+            }
+            logWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8"));
+        } catch (IOException exception) {
+            throw new CrawlerException(exception);
+        }
+    }
+
+    public int getRootCount() {
+        return rootIds.size();
+    }
+
+    public int getMissingCount() {
+        return missingIds.size();
+    }
+
+    public int getRecentCount() {
+        return recentIds.size();
+    }
+
+    public boolean isEmpty() {
+        return knownLinks.isEmpty();
+    }
+
+    public boolean isMissing(DataNodeLink dataNodeLink) {
+        return missingIds.contains(dataNodeLink.getIdString());
+    }
+
+    public boolean isCrawled(DataNodeLink dataNodeLink) {
+        return recentIds.contains(dataNodeLink.getIdString());
+    }
+
+    /**
+     * Adds the links collected by the crawler since the last batch, the child
+     * links become missing unless they have already been crawled
+     *
+     * @param databaseLinks the links of the documents that were crawled
+     * @throws CrawlerException
+     */
+    public void addCrawledLinks(DatabaseLinks databaseLinks) throws CrawlerException {
+        for (DataNodeLink rootLink : databaseLinks.getRootLinks()) {
+            writeEntry(ROOT_ENTRY, rootLink);
+        }
+        for (DataNodeLink recentLink : databaseLinks.getRecentLinks()) {
+            writeEntry(CRAWLED_ENTRY, recentLink);
+        }
+        for (DataNodeLink childLink : databaseLinks.getChildLinks()) {
+            writeEntry(MISSING_ENTRY, childLink);
+        }
+        flush();
+    }
+
+    /**
+     * Adds the links stored in the database, where the missing links take
+     * precedence so that branches deleted from the database are crawled
+     * again
+     *
+     * @param databaseLinks the links read from the database
+     * @throws CrawlerException
+     */
+    public void mergeDatabaseLinks(DatabaseLinks databaseLinks) throws CrawlerException {
+        for (DataNodeLink rootLink : databaseLinks.getRootLinks()) {
+            writeEntry(ROOT_ENTRY, rootLink);
+        }
+        for (DataNodeLink recentLink : databaseLinks.getRecentLinks()) {
+            if (!recentIds.contains(recentLink.getIdString())) {
+                writeEntry(CRAWLED_ENTRY, recentLink);
+            }
+        }
+        for (DataNodeLink missingLink : databaseLinks.getChildLinks()) {
+            if (!missingIds.contains(missingLink.getIdString())) {
+                writeEntry(UNCRAWLED_ENTRY, missingLink);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Gets the next missing links in the order that they were found, the
+     * links stay missing until they are added as crawled
+     *
+     * @param numberToGet maximum number of links to return
+     * @param selectionFilter if not null only links with URLs that contain
+     * this phrase are returned, matched as the database does with contains
+     * text
+     * @return the next missing links
+     */
+    public Set<DataNodeLink> getMissingLinks(int numberToGet, String selectionFilter) {
+        final Set<DataNodeLink> missingLinks = new LinkedHashSet<DataNodeLink>();
+        final Set<String> selectedIds = (selectionFilter == null) ? missingIds : getFilteredMissingIds(getTokens(selectionFilter));
+        for (String missingId : selectedIds) {
+            if (missingLinks.size() >= numberToGet) {
+                break;
+            }
+            missingLinks.add(knownLinks.get(missingId));
+        }
+        return missingLinks;
+    }
+
+    private Set<String> getFilteredMissingIds(List<String> filterTokens) {
+        Set<String> filteredIds = filteredMissingIds.get(filterTokens);
+        if (filteredIds == null) {
+            // the first call with a filter looks at every missing link, after that the set is updated as the links change
+            filteredIds = new LinkedHashSet<String>();
+            for (String missingId : missingIds) {
+                if (isMatch(missingTokens.get(missingId), filterTokens)) {
+                    filteredIds.add(missingId);
+                }
+            }
+            filteredMissingIds.put(filterTokens, filteredIds);
+        }
+        return filteredIds;
+    }
+
+    private boolean isMatch(List<String> uriTokens, List<String> filterTokens) {
+        // a link without a URL does not match any filter
+        return uriTokens != null && Collections.indexOfSubList(uriTokens, filterTokens) >= 0;
+    }
+
+    /**
+     * Splits the text into words as the default full text options of BaseX
+     * do, so that the words can be compared ignoring case and diacritics
+     *
+     * @param text the text to split
+     * @return the lower case words of the text without diacritics
+     */
+    static List<String> getTokens(String text) {
+        final String normalisedText = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{InCombiningDiacriticalMarks}+", "").toLowerCase(Locale.ENGLISH);
+        final List<String> tokens = new ArrayList<String>();
+        for (String token : normalisedText.split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the current state of the frontier in the form that is stored in
+     * the database
+     */
+    public DatabaseLinks getDatabaseLinks() {
+        final DatabaseLinks databaseLinks = new DatabaseLinks();
+        for (String rootId : rootIds) {
+            databaseLinks.insertRootLink(knownLinks.get(rootId));
+        }
+        for (String missingId : missingIds) {
+            databaseLinks.insertChildLink(knownLinks.get(missingId));
+        }
+        for (String recentId : recentIds) {
+            databaseLinks.insertRecentLink(knownLinks.get(recentId));
+        }
+        return databaseLinks;
+    }
+
+    /**
+     * Removes all links and truncates the log, as when the database is
+     * dropped
+     *
+     * @throws CrawlerException
+     */
+    public void clear() throws CrawlerException {
+        knownLinks.clear();
+        rootIds.clear();
+        missingIds.clear();
+        recentIds.clear();
+        missingTokens.clear();
+        filteredMissingIds.clear();
+        try {
+            logWriter.close();
+            logWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, false), "UTF-8"));
+            logLineCount = 0;
+        } catch (IOException exception) {
+            throw new CrawlerException(exception);
+        }
+    }
+
+    public void flush() throws CrawlerException {
+        try {
+            logWriter.flush();
+        } catch (IOException exception) {
+            throw new CrawlerException(exception);
+        }
+    }
+
+    public void close() throws CrawlerException {
+        try {
+            logWriter.close();
+        } catch (IOException exception) {
+            throw new CrawlerException(exception);
+        }
+    }
+
+    private void writeEntry(char entryType, DataNodeLink dataNodeLink) throws CrawlerException {
+        if (applyEntry(entryType, dataNodeLink)) {
+            try {
+                writeEntry(logWriter, entryType, dataNodeLink);
+                logLineCount++;
+            } catch (IOException exception) {
+                throw new CrawlerException(exception);
+            }
+        }
+    }
+
+    private void writeEntry(Writer writer, char entryType, DataNodeLink dataNodeLink) throws IOException {
+        writer.write(entryType);
+        writer.write('\t');
+        writer.write(dataNodeLink.getIdString());
+        writer.write('\t');
+        writer.write(getField(dataNodeLink.getNodeUriString()));
+        writer.write('\t');
+        writer.write(getField(dataNodeLink.getArchiveHandle()));
+        writer.write('\n');
+    }
+
+    private String getField(String value) {
+        // the tab separated fields cannot contain line breaks or tabs, which are not valid in URLs anyway
+        return (value == null) ? "" : value.replaceAll("[\t\r\n]", " ");
+    }
+
+    /**
+     * Applies a state change to the in memory sets
+     *
+     * @return true if the state changed and so needs to be logged
+     */
+    private boolean applyEntry(char entryType, DataNodeLink dataNodeLink) {
+        final String linkId = dataNodeLink.getIdString();
+        if (linkId == null || linkId.isEmpty()) {
+            return false;
+        }
+        if (!knownLinks.containsKey(linkId)) {
+            knownLinks.put(linkId, dataNodeLink);
+        }
+        switch (entryType) {
+            case ROOT_ENTRY:
+                return rootIds.add(linkId);
+            case MISSING_ENTRY:
+                if (recentIds.contains(linkId)) {
+                    return false;
+                }
+                return addMissing(linkId);
+            case UNCRAWLED_ENTRY:
+                recentIds.remove(linkId);
+                return addMissing(linkId);
+            case CRAWLED_ENTRY:
+                removeMissing(linkId);
+                return recentIds.add(linkId);
+            default:
+                return false;
+        }
+    }
+
+    private boolean addMissing(String linkId) {
+        if (!missingIds.add(linkId)) {
+            return false;
+        }
+        final String nodeUri = knownLinks.get(linkId).getNodeUriString();
+        if (nodeUri != null) {
+            final List<String> uriTokens = getTokens(nodeUri);
+            missingTokens.put(linkId, uriTokens);
+            for (Map.Entry<List<String>, Set<String>> filteredEntry : filteredMissingIds.entrySet()) {
+                if (isMatch(uriTokens, filteredEntry.getKey())) {
+                    filteredEntry.getValue().add(linkId);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void removeMissing(String linkId) {
+        if (missingIds.remove(linkId)) {
+            missingTokens.remove(linkId);
+            for (Set<String> filteredIds : filteredMissingIds.values()) {
+                filteredIds.remove(linkId);
+            }
+        }
+    }
+
+    private void readLog() throws IOException {
+        final BufferedReader logReader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+        try {
+            for (String line; (line = logReader.readLine()) != null;) {
+                final String[] fields = line.split("\t", -1);
+                // a line cut short when the crawler was stopped is skipped
+                if (fields.length == 4 && fields[0].length() == 1) {
+                    final DataNodeLink dataNodeLink = new DataNodeLink(fields[2], (fields[3].isEmpty()) ? null : fields[3]);
+                    dataNodeLink.setIdString(fields[1]);
+                    applyEntry(fields[0].charAt(0), dataNodeLink);
+                    logLineCount++;
+                }
+            }
+        } finally {
+            logReader.close();
+        }
+    }
+
+    private void compactLog() throws IOException {
+        final File compactedFile = new File(logFile.getParentFile(), logFile.getName() + ".compacted");
+        final Writer compactedWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compactedFile, false), "UTF-8"));
+        int compactedLineCount = 0;
+        try {
+            for (String rootId : rootIds) {
+                writeEntry(compactedWriter, ROOT_ENTRY, knownLinks.get(rootId));
+                compactedLineCount++;
+            }
+            for (String recentId : recentIds) {
+                writeEntry(compactedWriter, CRAWLED_ENTRY, knownLinks.get(recentId));
+                compactedLineCount++;
+            }
+            for (String missingId : missingIds) {
+                writeEntry(compactedWriter, MISSING_ENTRY, knownLinks.get(missingId));
+                compactedLineCount++;
+            }
+        } finally {
+            compactedWriter.close();
+        }
+        if (!logFile.delete() || !compactedFile.renameTo(logFile)) {
+            throw new IOException("Could not replace the crawl frontier log with the compacted log: " + compactedFile);
+        }
+        logLineCount = compactedLineCount;
+    }
+}
@@ -18,6 +18,7 @@
  */
 package nl.mpi.yams.crawler;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -49,6 +50,7 @@ public class Main {
     private final static String DEFAULT_DATABASE_NAME = "YAMS-DB";
     private final static String DEFAULT_DATABASE_USER = "admin";
     private final static String DEFAULT_DATABASE_PASSWORD = "admin";
+    private final static int DEFAULT_LOCAL_SESSIONS = 1;
     // thestatic  crawlFilter limits to the domain (string prefix)that can be crawled 
     private final static String DEFAULT_CRAWL_FILTER = "http://lux16.mpi.nl/";
     private final static String DEFAULT_PERMISSIONS_SERVICE_URI = "https://lux16.mpi.nl/ds/yams-cs-connector/rest/node?id=";
@@ -100,6 +102,7 @@ public class Main {
         String databasePassword = DEFAULT_DATABASE_PASSWORD;
         String crawlFilter = DEFAULT_CRAWL_FILTER;
         String permissionsServiceUri = DEFAULT_PERMISSIONS_SERVICE_URI;
+        int localSessionCount = DEFAULT_LOCAL_SESSIONS;
 
         boolean crawlOption = line.hasOption(OPTION_CRAWL);
         if (line.hasOption(OPTION_TARGET)) {
@@ -127,11 +130,20 @@ public class Main {
         if (line.hasOption(OPTION_AMS)) {
             permissionsServiceUri = line.getOptionValue(OPTION_AMS);
         }
+        if (line.hasOption(OPTION_SESSIONS)) {
+            localSessionCount = Integer.parseInt(line.getOptionValue(OPTION_SESSIONS));
+        }
 
         // options have been analysed, so start execution!
         try {
             // initalize crawler
-            final RemoteArchiveCrawler archiveCrawler = new RemoteArchiveCrawler(numberToCrawl, crawlFilter, databaseUrl, databaseName, databaseUser, databasePassword, permissionsServiceUri);
+            final RemoteArchiveCrawler archiveCrawler = new RemoteArchiveCrawler(numberToCrawl, crawlFilter, databaseUrl, databaseName, databaseUser, databasePassword, permissionsServiceUri, localSessionCount);
+            if (line.hasOption(OPTION_INDEX)) {
+                archiveCrawler.useFieldValueIndex(new File(line.getOptionValue(OPTION_INDEX), databaseName));
+            }
+            if (line.hasOption(OPTION_FRONTIER)) {
+                archiveCrawler.useCrawlFrontier(new File(line.getOptionValue(OPTION_FRONTIER), databaseName + ".frontier"));
+            }
             // run the crawler according to the options
             runCrawler(archiveCrawler, crawlOption, startUrl, line);
             return true;
@@ -144,11 +156,14 @@ public class Main {
         } catch (PluginException exception) {
             logger.error("Error inserting icons", exception);
             System.err.println(exception.getMessage());
+        } catch (CrawlerException exception) {
+            logger.error("Crawl frontier error", exception);
+            System.err.println(exception.getMessage());
         }
         return false;
     }
 
-    private static void runCrawler(RemoteArchiveCrawler archiveCrawler, boolean doCrawl, String startUrl, final CommandLine cmdLineOptions) throws URISyntaxException, PluginException, QueryException {
+    private static void runCrawler(RemoteArchiveCrawler archiveCrawler, boolean doCrawl, String startUrl, final CommandLine cmdLineOptions) throws URISyntaxException, PluginException, QueryException, CrawlerException {
         if (cmdLineOptions.hasOption(OPTION_DROP)) {
             System.out.println("Dropping and crawing from scratch");
             archiveCrawler.dropAllRecords();
@@ -157,7 +172,11 @@ public class Main {
         } else {
             // make sure the db exists
             archiveCrawler.checkDbExists();
+            // an index added to an existing database starts with the documents already crawled
+            archiveCrawler.fillEmptyFieldValueIndex();
         }
+        // inserts then only ask the database about IDs that the filter might contain
+        archiveCrawler.loadKnownIds();
 
         if (doCrawl) {
             final URI startURI = new URI(startUrl);
@@ -176,6 +195,9 @@ public class Main {
             archiveCrawler.clearAndCalculateDbStats();
             archiveCrawler.preloadFacets();
         }
+        archiveCrawler.closeFieldValueIndex();
+        archiveCrawler.closeCrawlFrontier();
+        logger.info("Query metrics:\n{}", archiveCrawler.getQueryMetricsReport());
         logger.info("Done");
     }
 
@@ -206,6 +228,9 @@ public class Main {
     }
 
     private static final String OPTION_DEBUG = "x";
+    private static final String OPTION_INDEX = "i";
+    private static final String OPTION_FRONTIER = "fr";
+    private static final String OPTION_SESSIONS = "ls";
     private static final String OPTION_AMS = "ams";
     private static final String OPTION_LIMIT = "l";
     private static final String OPTION_DBPASSWD = "p";
@@ -229,12 +254,15 @@ public class Main {
         options.addOption(OPTION_APPEND, "append", false, "Restart crawling adding missing documents.");
         options.addOption(OPTION_NUMBER, "number", true, "Number of documents to insert (default: " + DEFAULT_NUMBER_TO_CRAWL + ").");
         options.addOption(OPTION_TARGET, "target", true, "Target URL of the start documents to crawl (default: " + DEFAULT_START_URL + "). This option implies the c option.");
-        options.addOption(OPTION_SERVER, "server", true, "Data base server URL or file path (when a file path is provided it is used as the local basex directory via the java bindings rather than the REST interface), default is to use the un mondified local basex directory");
+        options.addOption(OPTION_SERVER, "server", true, "Data base server URL or file path (when a file path is provided it is used as the local basex directory via the java bindings rather than the REST interface, a basex://host:port URL connects to a BaseX server via the client/server protocol), default is to use the un mondified local basex directory");
         options.addOption(OPTION_DBNAME, "dbname", true, "Name of the database to use (default: " + DEFAULT_DATABASE_NAME + ").");
         options.addOption(OPTION_DBUSER, "user", true, "Data base user name, (default: " + DEFAULT_DATABASE_USER + ").");
         options.addOption(OPTION_DBPASSWD, "password", true, "Data base password, (default: " + DEFAULT_DATABASE_PASSWORD + ").");
         options.addOption(OPTION_LIMIT, "limit", true, "Limit crawling to URLs which contain the provided string (default: " + DEFAULT_CRAWL_FILTER + ").");
         options.addOption(OPTION_AMS, "amspermissions", true, "REST service URL where permissions information from AMS can be obtained (default: " + DEFAULT_PERMISSIONS_SERVICE_URI + ").");
+        options.addOption(OPTION_INDEX, "index", true, "Directory of the optional Lucene field value index that is updated as documents are inserted, a sub directory is used for each database. A new index is first filled from the documents already in the database.");
+        options.addOption(OPTION_FRONTIER, "frontier", true, "Directory of the optional crawl frontier log, which holds the root, missing and crawled links while crawling so that only the final state is written to the database. A file is used for each database.");
+        options.addOption(OPTION_SESSIONS, "localsessions", true, "Number of sessions used with a local basex directory, more than one lets read only queries run in parallel while writes to the same database are still serialised (default: " + DEFAULT_LOCAL_SESSIONS + ").");
         options.addOption(OPTION_DEBUG, "debug", false, "Display debug output");
         return options;
     }
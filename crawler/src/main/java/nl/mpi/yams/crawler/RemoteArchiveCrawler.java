@@ -26,8 +26,9 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
 import nl.mpi.arbil.data.ArbilDataNode;
@@ -42,9 +43,13 @@ import nl.mpi.flap.plugin.PluginArbilDataNodeLoader;
 import nl.mpi.flap.plugin.PluginException;
 import nl.mpi.yams.common.data.DatabaseStats;
 import nl.mpi.yams.common.data.MetadataFileType;
+import nl.mpi.yams.common.db.BaseXClientDbAdaptor;
 import nl.mpi.yams.common.db.DataBaseManager;
 import nl.mpi.yams.common.db.DbAdaptor;
-import nl.mpi.yams.common.db.LocalDbAdaptor;
+import nl.mpi.yams.common.db.DbAdaptorFactory;
+import nl.mpi.yams.common.db.FieldValueIndex;
+import nl.mpi.yams.common.db.InstrumentedDbAdaptor;
+import nl.mpi.yams.common.db.QueryMetrics;
 import nl.mpi.yams.common.db.RestDbAdaptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,11 +68,26 @@ public class RemoteArchiveCrawler {
     final private int numberToInsert;
     private int numberInserted = 0;
     private int totalLoaded = 0;
+    // crawled nodes are inserted in batches, these must be flushed before the database is asked for missing documents
+    private static final int insertBatchSize = 100;
+    private final List<SerialisableDataNode> pendingInserts = new ArrayList<SerialisableDataNode>();
     public static final String HANDLE_SERVER_URI = "http://hdl.handle.net/";
     private String crawlFilter;
+    private File fieldIndexDirectory = null;
+    // when set the links are kept here while crawling and only written to the database at the end
+    private CrawlFrontier crawlFrontier = null;
     private final static Logger logger = LoggerFactory.getLogger(RemoteArchiveCrawler.class);
 
     public RemoteArchiveCrawler(int numberToInsert, String crawlFilter, String databaseUrl, String databaseName, String databaseUser, String databasePassword, String permissionsServiceUri) throws QueryException {
+        this(numberToInsert, crawlFilter, databaseUrl, databaseName, databaseUser, databasePassword, permissionsServiceUri, 1);
+    }
+
+    /**
+     * @param localSessionCount the number of session contexts used when the
+     * database URL is a local BaseX directory, more than one lets the read only
+     * queries run in parallel with each other
+     */
+    public RemoteArchiveCrawler(int numberToInsert, String crawlFilter, String databaseUrl, String databaseName, String databaseUser, String databasePassword, String permissionsServiceUri, int localSessionCount) throws QueryException {
         System.out.println("numberToInsert:" + numberToInsert);
         System.out.println("numberToInsert:" + databaseUrl);
         System.out.println("numberToInsert:" + databaseName);
@@ -84,23 +104,16 @@ public class RemoteArchiveCrawler {
         dataNodeLoader = BlockingDataNodeLoader.getBlockingDataNodeLoader(cacheDirectory);
         try {
             DbAdaptor dbAdaptor;
-            if (databaseUrl.startsWith("http://")) {
+            if (BaseXClientDbAdaptor.isServerUrl(databaseUrl)) {
+                dbAdaptor = new BaseXClientDbAdaptor(databaseUrl, databaseUser, databasePassword);
+            } else if (databaseUrl.startsWith("http://")) {
                 dbAdaptor = new RestDbAdaptor(new URL(databaseUrl), databaseUser, databasePassword);
             } else {
-                if (!databaseUrl.isEmpty()) {
-                    // be Unix friendly and replace ~/ with actual home dir
-                    databaseUrl = databaseUrl.replaceAll("^~/", System.getProperty("user.home") + "/");
-                    final File databaseDirectory = new File(databaseUrl);
-                    final File basexHome = new File(databaseDirectory, ".basexhome");
-                    if(basexHome.createNewFile()) {
-                        logger.info("Created .basexhome in {}", databaseDirectory);
-                    }
-                    Properties props = System.getProperties();
-                    props.setProperty("org.basex.path", databaseDirectory.getAbsolutePath());
-                }
-                dbAdaptor = new LocalDbAdaptor();
+                dbAdaptor = DbAdaptorFactory.getLocalDbAdaptor(databaseUrl, localSessionCount);
             }
 //        final DbAdaptor dbAdaptor = new LocalDbAdaptor(new File());
+            // the crawler reports these metrics when it finishes, they are also available over JMX while it runs
+            dbAdaptor = new InstrumentedDbAdaptor(dbAdaptor, QueryMetrics.getSharedMetrics());
             yamsDatabase = new DataBaseManager<SerialisableDataNode, DataField, MetadataFileType>(SerialisableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, databaseName);
 //            yamsDatabase.clearDatabaseStats();
         } catch (MalformedURLException exception) {
@@ -110,6 +123,10 @@ public class RemoteArchiveCrawler {
         }
     }
 
+    public String getQueryMetricsReport() {
+        return QueryMetrics.getSharedMetrics().getReport();
+    }
+
     public void clearAndCalculateDbStats() throws QueryException {
         logger.info("Calculating statistics");
         System.out.println("Removing the old database statistics");
@@ -121,11 +138,13 @@ public class RemoteArchiveCrawler {
         System.out.println("KnownDocumentsCount: " + databaseStats.getKnownDocumentsCount());
         System.out.println("MissingDocumentsCount: " + databaseStats.getMisingDocumentsCount());
         System.out.println("RootDocumentsCount: " + databaseStats.getRootDocumentsCount());
+        yamsDatabase.updateContentGeneration();
     }
 
     public void insertKnowIcons() throws PluginException, QueryException {
         System.out.println("Inserting the known icons");
         yamsDatabase.insertNodeIconsIntoDatabase(iconTable);
+        yamsDatabase.updateContentGeneration();
     }
 
     public void preloadFacets() throws QueryException {
@@ -175,7 +194,8 @@ public class RemoteArchiveCrawler {
             while (continueGetting) {
                 System.out.println("Links read: " + databaseLinks.getRecentLinks().size());
                 System.out.println("Links found: " + databaseLinks.getChildLinks().size());
-                final Set<DataNodeLink> handlesOfMissing = yamsDatabase.getHandlesOfMissing(databaseLinks, 1000, crawlFilter);
+                flushPendingInserts();
+                final Set<DataNodeLink> handlesOfMissing = getHandlesOfMissing(databaseLinks, 1000);
                 if (handlesOfMissing.isEmpty()) {
                     continueGetting = false;
                 }
@@ -193,8 +213,9 @@ public class RemoteArchiveCrawler {
                     loadAndInsert(yamsDatabase, dataNode, databaseLinks);
                 }
             }
+            flushPendingInserts();
             // store the current state
-            yamsDatabase.getHandlesOfMissing(databaseLinks, 0, crawlFilter);
+            storeDatabaseLinks(databaseLinks);
             System.out.println("Update complete");
         } catch (URISyntaxException exception) {
             System.out.println(exception.getMessage());
@@ -226,6 +247,7 @@ public class RemoteArchiveCrawler {
             StringTokenizer stringTokenizer = null;
             while (continueGetting) {
                 if (stringTokenizer == null) {
+                    flushPendingInserts();
                     String handlesOfMissing = yamsDatabase.getHandlesOfMissing();
                     System.out.println("Nodes to get length: " + handlesOfMissing.length());
                     stringTokenizer = new StringTokenizer(handlesOfMissing);
@@ -252,6 +274,7 @@ public class RemoteArchiveCrawler {
                     stringTokenizer = null;
                 }
             }
+            flushPendingInserts();
             System.out.println("Update complete");
         } catch (URISyntaxException exception) {
             System.out.println(exception.getMessage());
@@ -274,6 +297,89 @@ public class RemoteArchiveCrawler {
         }
     }
 
+    /**
+     * Keeps a Lucene index of the field values up to date as documents are
+     * inserted, the services use it for searching when they are configured
+     * with the same directory.
+     *
+     * @param indexDirectory the directory of the index for this database
+     * @throws QueryException
+     */
+    public void useFieldValueIndex(File indexDirectory) throws QueryException {
+        System.out.println("Using the field value index: " + indexDirectory);
+        fieldIndexDirectory = indexDirectory;
+        yamsDatabase.setFieldValueIndex(FieldValueIndex.getSharedIndex(indexDirectory, true));
+    }
+
+    public void fillEmptyFieldValueIndex() throws QueryException {
+        final FieldValueIndex fieldValueIndex = yamsDatabase.getFieldValueIndex();
+        if (fieldValueIndex != null && fieldValueIndex.getFieldCount() == 0) {
+            System.out.println("Adding the existing documents to the field value index");
+            final int indexedCount = yamsDatabase.rebuildFieldValueIndex();
+            System.out.println("Indexed documents: " + indexedCount);
+        }
+    }
+
+    public void closeFieldValueIndex() throws QueryException {
+        if (fieldIndexDirectory != null) {
+            FieldValueIndex.closeSharedIndex(fieldIndexDirectory);
+            yamsDatabase.setFieldValueIndex(null);
+        }
+    }
+
+    /**
+     * Keeps the crawl frontier in a log file rather than merging each batch of
+     * links into the DatabaseLinks document, the frontier is brought up to
+     * date with the links in the database when it is opened.
+     *
+     * @param frontierFile the log file of the frontier for this database
+     * @throws QueryException
+     * @throws PluginException
+     * @throws CrawlerException
+     */
+    public void useCrawlFrontier(File frontierFile) throws QueryException, PluginException, CrawlerException {
+        System.out.println("Using the crawl frontier: " + frontierFile);
+        crawlFrontier = new CrawlFrontier(frontierFile);
+        crawlFrontier.mergeDatabaseLinks(yamsDatabase.getDatabaseLinks());
+        System.out.println("Missing links: " + crawlFrontier.getMissingCount());
+    }
+
+    public void closeCrawlFrontier() throws CrawlerException {
+        if (crawlFrontier != null) {
+            crawlFrontier.close();
+            crawlFrontier = null;
+        }
+    }
+
+    private Set<DataNodeLink> getHandlesOfMissing(DatabaseLinks databaseLinks, int numberToGet) throws PluginException, QueryException, CrawlerException {
+        final Set<DataNodeLink> missingLinks;
+        if (crawlFrontier == null) {
+            missingLinks = yamsDatabase.getHandlesOfMissing(databaseLinks, numberToGet, crawlFilter);
+        } else {
+            crawlFrontier.addCrawledLinks(databaseLinks);
+            missingLinks = crawlFrontier.getMissingLinks(numberToGet, crawlFilter);
+        }
+        // the ETags of the REST service change with each batch that has been inserted
+        yamsDatabase.updateContentGeneration();
+        return missingLinks;
+    }
+
+    private void storeDatabaseLinks(DatabaseLinks databaseLinks) throws PluginException, QueryException, CrawlerException {
+        if (crawlFrontier == null) {
+            yamsDatabase.getHandlesOfMissing(databaseLinks, 0, crawlFilter);
+        } else {
+            crawlFrontier.addCrawledLinks(databaseLinks);
+            yamsDatabase.replaceDatabaseLinks(crawlFrontier.getDatabaseLinks());
+        }
+        yamsDatabase.updateContentGeneration();
+    }
+
+    public void loadKnownIds() throws QueryException {
+        System.out.println("Reading the IDs of the crawled documents");
+        final int knownCount = yamsDatabase.loadKnownIdFilter();
+        System.out.println("Known documents: " + knownCount);
+    }
+
     public void checkDbExists() {
         try {
             System.out.println("Checking the database exists");
@@ -288,9 +394,15 @@ public class RemoteArchiveCrawler {
         try {
             System.out.println("Dropping old crawled data");
             yamsDatabase.dropAllRecords(); // this will drop the old data and may drop the database depending on the database module used
+            if (crawlFrontier != null) {
+                crawlFrontier.clear();
+            }
         } catch (QueryException exception) {
             System.out.println(exception.getMessage());
             System.exit(-1);
+        } catch (CrawlerException exception) {
+            System.out.println(exception.getMessage());
+            System.exit(-1);
         }
     }
 
@@ -303,8 +415,9 @@ public class RemoteArchiveCrawler {
             // because we add the root link before the node is loaded the archive handle is not known
             databaseLinks.insertRootLink(new DataNodeLink(dataNode.getUrlString(), dataNode.archiveHandle));
             loadAndInsert(yamsDatabase, dataNode, databaseLinks);
+            flushPendingInserts();
             // store the current state
-            yamsDatabase.getHandlesOfMissing(databaseLinks, 0, crawlFilter);
+            storeDatabaseLinks(databaseLinks);
             System.out.println("Crawl complete");
         } catch (InterruptedException exception) {
             System.out.println(exception.getMessage());
@@ -355,14 +468,25 @@ public class RemoteArchiveCrawler {
             databaseLinks.insertLinks(new DataNodeLink(dataNode.getUrlString(), dataNode.archiveHandle), arbilDataNodeWrapper);
             //            arbilDataNodeWrapper.checkChildNodesLoaded();
             if (arbilDataNodeWrapper.getID() != null && !arbilDataNodeWrapper.getID().isEmpty()) {
-                arbilDatabase.insertIntoDatabase(arbilDataNodeWrapper, false);
+                pendingInserts.add(arbilDataNodeWrapper);
                 numberInserted++;
+                if (pendingInserts.size() >= insertBatchSize) {
+                    flushPendingInserts();
+                }
             } else {
                 throw new CrawlerException("No ID found");
             }
         }
     }
 
+    private void flushPendingInserts() throws PluginException, QueryException, ModelException {
+        if (!pendingInserts.isEmpty()) {
+            logger.info("Inserting {} documents", pendingInserts.size());
+            yamsDatabase.insertAllIntoDatabase(pendingInserts, false);
+            pendingInserts.clear();
+        }
+    }
+
     private void loadChildNodes(ArbilDataNode dataNode) throws InterruptedException {
         for (ArbilDataNode childNode : dataNode.getChildArray()) {
             if (childNode.getLoadingState() == ArbilDataNode.LoadingState.UNLOADED) {
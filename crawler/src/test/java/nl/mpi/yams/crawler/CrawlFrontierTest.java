@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.crawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import junit.framework.TestCase;
+import nl.mpi.flap.model.DataNodeLink;
+import nl.mpi.yams.common.data.DatabaseLinks;
+
+/**
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class CrawlFrontierTest extends TestCase {
+
+    private File logFile;
+
+    @Override
+    protected void setUp() throws IOException {
+        logFile = File.createTempFile("yams-frontier", ".log");
+        logFile.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        logFile.delete();
+    }
+
+    private DataNodeLink getLink(String idString) {
+        final DataNodeLink dataNodeLink = new DataNodeLink("http://example.org/" + idString + ".cmdi", null);
+        dataNodeLink.setIdString(idString);
+        return dataNodeLink;
+    }
+
+    /**
+     * Test of addCrawledLinks and getMissingLinks, of class CrawlFrontier.
+     */
+    public void testGetMissingLinks() throws CrawlerException {
+        System.out.println("getMissingLinks");
+        final CrawlFrontier crawlFrontier = new CrawlFrontier(logFile);
+        final DatabaseLinks databaseLinks = new DatabaseLinks();
+        databaseLinks.insertRootLink(getLink("root"));
+        databaseLinks.insertRecentLink(getLink("root"));
+        databaseLinks.insertChildLink(getLink("first"));
+        databaseLinks.insertChildLink(getLink("second"));
+        databaseLinks.insertChildLink(getLink("root"));
+        crawlFrontier.addCrawledLinks(databaseLinks);
+        assertEquals(1, crawlFrontier.getRootCount());
+        assertEquals(1, crawlFrontier.getRecentCount());
+        // the crawled root is not missing even though it was also found as a child link
+        assertEquals(2, crawlFrontier.getMissingCount());
+        assertEquals(1, crawlFrontier.getMissingLinks(1, null).size());
+        final Set<DataNodeLink> filteredLinks = crawlFrontier.getMissingLinks(10, "second");
+        assertEquals(1, filteredLinks.size());
+        assertEquals("second", filteredLinks.iterator().next().getIdString());
+        final DatabaseLinks crawledLinks = new DatabaseLinks();
+        crawledLinks.insertRecentLink(getLink("second"));
+        crawlFrontier.addCrawledLinks(crawledLinks);
+        assertEquals(1, crawlFrontier.getMissingCount());
+        assertTrue(crawlFrontier.isCrawled(getLink("second")));
+        crawlFrontier.close();
+    }
+
+    /**
+     * Test that the selection filter of getMissingLinks matches the words of
+     * the URLs ignoring case, as the contains text filter of the database.
+     */
+    public void testGetMissingLinksFilter() throws CrawlerException {
+        System.out.println("getMissingLinksFilter");
+        final CrawlFrontier crawlFrontier = new CrawlFrontier(logFile);
+        final DatabaseLinks databaseLinks = new DatabaseLinks();
+        databaseLinks.insertChildLink(getLink("Corpus-Second"));
+        databaseLinks.insertChildLink(getLink("corpus-first"));
+        databaseLinks.insertChildLink(getLink("corpusthird"));
+        crawlFrontier.addCrawledLinks(databaseLinks);
+        assertEquals(2, crawlFrontier.getMissingLinks(10, "CORPUS").size());
+        final Set<DataNodeLink> phraseLinks = crawlFrontier.getMissingLinks(10, "corpus first");
+        assertEquals(1, phraseLinks.size());
+        assertEquals("corpus-first", phraseLinks.iterator().next().getIdString());
+        assertEquals(0, crawlFrontier.getMissingLinks(10, "first corpus").size());
+        assertEquals(Arrays.asList("http", "example", "org", "cafe", "cmdi"), CrawlFrontier.getTokens("http://example.org/Caf\u00e9.cmdi"));
+        crawlFrontier.close();
+    }
+
+    /**
+     * Test that the links returned for a selection filter follow the links
+     * that are found and crawled after the filter was first used.
+     */
+    public void testGetMissingLinksFilterUpdates() throws CrawlerException {
+        System.out.println("getMissingLinksFilterUpdates");
+        final CrawlFrontier crawlFrontier = new CrawlFrontier(logFile);
+        final DatabaseLinks databaseLinks = new DatabaseLinks();
+        databaseLinks.insertChildLink(getLink("corpus-first"));
+        databaseLinks.insertChildLink(getLink("session-first"));
+        crawlFrontier.addCrawledLinks(databaseLinks);
+        assertEquals(1, crawlFrontier.getMissingLinks(10, "corpus").size());
+        final DatabaseLinks foundLinks = new DatabaseLinks();
+        foundLinks.insertRecentLink(getLink("corpus-first"));
+        foundLinks.insertChildLink(getLink("corpus-second"));
+        foundLinks.insertChildLink(getLink("corpus-third"));
+        crawlFrontier.addCrawledLinks(foundLinks);
+        final Set<DataNodeLink> corpusLinks = crawlFrontier.getMissingLinks(10, "Corpus");
+        assertEquals(2, corpusLinks.size());
+        assertEquals("corpus-second", corpusLinks.iterator().next().getIdString());
+        assertEquals(1, crawlFrontier.getMissingLinks(1, "corpus").size());
+        // a crawled link that is missing again is selected after the links already missing
+        final DatabaseLinks uncrawledLinks = new DatabaseLinks();
+        uncrawledLinks.insertChildLink(getLink("corpus-first"));
+        crawlFrontier.mergeDatabaseLinks(uncrawledLinks);
+        assertEquals(3, crawlFrontier.getMissingLinks(10, "corpus").size());
+        assertEquals("corpus-second", crawlFrontier.getMissingLinks(1, "corpus").iterator().next().getIdString());
+        crawlFrontier.clear();
+        assertEquals(0, crawlFrontier.getMissingLinks(10, "corpus").size());
+        crawlFrontier.close();
+    }
+
+    /**
+     * Test that the log is replayed when the frontier is opened again.
+     */
+    public void testReopen() throws CrawlerException {
+        System.out.println("reopen");
+        final CrawlFrontier crawlFrontier = new CrawlFrontier(logFile);
+        final DatabaseLinks databaseLinks = new DatabaseLinks();
+        databaseLinks.insertRootLink(getLink("root"));
+        databaseLinks.insertRecentLink(getLink("root"));
+        databaseLinks.insertChildLink(getLink("first"));
+        databaseLinks.insertChildLink(getLink("second"));
+        crawlFrontier.addCrawledLinks(databaseLinks);
+        final DatabaseLinks crawledLinks = new DatabaseLinks();
+        crawledLinks.insertRecentLink(getLink("first"));
+        crawlFrontier.addCrawledLinks(crawledLinks);
+        crawlFrontier.close();
+        final CrawlFrontier reopenedFrontier = new CrawlFrontier(logFile);
+        assertEquals(1, reopenedFrontier.getRootCount());
+        assertEquals(2, reopenedFrontier.getRecentCount());
+        assertEquals(1, reopenedFrontier.getMissingCount());
+        assertTrue(reopenedFrontier.isMissing(getLink("second")));
+        assertEquals(1, reopenedFrontier.getDatabaseLinks().getChildLinks().size());
+        reopenedFrontier.clear();
+        reopenedFrontier.close();
+        assertTrue(new CrawlFrontier(logFile).isEmpty());
+    }
+
+    /**
+     * Test of mergeDatabaseLinks, links that are missing in the database are
+     * crawled again.
+     */
+    public void testMergeDatabaseLinks() throws CrawlerException {
+        System.out.println("mergeDatabaseLinks");
+        final CrawlFrontier crawlFrontier = new CrawlFrontier(logFile);
+        final DatabaseLinks databaseLinks = new DatabaseLinks();
+        databaseLinks.insertRecentLink(getLink("deleted"));
+        databaseLinks.insertRecentLink(getLink("kept"));
+        crawlFrontier.addCrawledLinks(databaseLinks);
+        final DatabaseLinks storedLinks = new DatabaseLinks();
+        storedLinks.insertRecentLink(getLink("kept"));
+        storedLinks.insertChildLink(getLink("deleted"));
+        crawlFrontier.mergeDatabaseLinks(storedLinks);
+        assertTrue(crawlFrontier.isMissing(getLink("deleted")));
+        assertTrue(crawlFrontier.isCrawled(getLink("kept")));
+        crawlFrontier.close();
+    }
+}
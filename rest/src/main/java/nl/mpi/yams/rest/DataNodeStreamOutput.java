@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import nl.mpi.yams.common.db.QueryTimeoutException;
+import nl.mpi.yams.common.db.SearchHitListener;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Writes data nodes as a JSON array while they are being read from the
+ * database, so that a request holds one node at a time in memory rather than
+ * the whole list as objects, XML and JSON together. When a page node is given
+ * the output is that node with the streamed nodes as its child list, which is
+ * the form of a page of search results.
+ *
+ * @param <D> the data node type of the results
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public abstract class DataNodeStreamOutput<D> implements StreamingOutput {
+
+    private static final ObjectMapper objectMapper = SearchStreamOutput.createObjectMapper();
+    // the JSON name of the child list of a data node
+    private static final String childListName = "DataNode";
+    private final Object pageNode;
+
+    public DataNodeStreamOutput() {
+        this.pageNode = null;
+    }
+
+    /**
+     * @param pageNode the node that the streamed nodes are the children of,
+     * its own child list is not written
+     */
+    public DataNodeStreamOutput(Object pageNode) {
+        this.pageNode = pageNode;
+    }
+
+    /**
+     * Runs the query that reads the nodes
+     *
+     * @param searchHitListener receives each node as it is read
+     * @return the number of nodes
+     * @throws QueryException
+     */
+    protected abstract int streamNodes(SearchHitListener<D> searchHitListener) throws QueryException;
+
+    public void write(OutputStream output) throws IOException {
+        final JsonGenerator jsonGenerator = objectMapper.getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+        final IOException[] writeException = new IOException[]{null};
+        if (pageNode != null) {
+            jsonGenerator.writeStartObject();
+            final JsonNode pageTree = objectMapper.valueToTree(pageNode);
+            final Iterator<Map.Entry<String, JsonNode>> pageFields = pageTree.getFields();
+            while (pageFields.hasNext()) {
+                final Map.Entry<String, JsonNode> pageField = pageFields.next();
+                if (!childListName.equals(pageField.getKey())) {
+                    jsonGenerator.writeFieldName(pageField.getKey());
+                    // written through the generator, which unlike the mapper does not flush
+                    jsonGenerator.writeTree(pageField.getValue());
+                }
+            }
+            jsonGenerator.writeFieldName(childListName);
+        }
+        jsonGenerator.writeStartArray();
+        try {
+            streamNodes(new SearchHitListener<D>() {
+
+                public void searchHitFound(D dataNode) throws QueryException {
+                    try {
+                        objectMapper.writeValue(jsonGenerator, dataNode);
+                    } catch (IOException exception) {
+                        // the client has most likely gone away, so the query is stopped
+                        writeException[0] = exception;
+                        throw new QueryException("Could not send the data node", exception);
+                    }
+                }
+            });
+        } catch (QueryTimeoutException exception) {
+            // the output is normally still buffered until the first node, so a query that fails before then still gets the usual error response
+            throw new WebApplicationException(exception, new QueryTimeoutMapper().toResponse(exception));
+        } catch (QueryException exception) {
+            if (writeException[0] != null) {
+                throw writeException[0];
+            }
+            throw new WebApplicationException(exception);
+        }
+        jsonGenerator.writeEndArray();
+        if (pageNode != null) {
+            jsonGenerator.writeEndObject();
+        }
+        jsonGenerator.flush();
+    }
+}
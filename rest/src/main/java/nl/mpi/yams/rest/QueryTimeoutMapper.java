@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.rest;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+import nl.mpi.yams.common.db.QueryTimeoutException;
+
+/**
+ * Sends a query that was cancelled at its deadline as 503 Service Unavailable
+ * rather than a generic server error, so that clients can retry or show the
+ * results they already have.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+@Provider
+public class QueryTimeoutMapper implements ExceptionMapper<QueryTimeoutException> {
+
+    public Response toResponse(QueryTimeoutException exception) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(exception.getMessage()).type(MediaType.TEXT_PLAIN).header("Access-Control-Allow-Origin", "*").build();
+    }
+}
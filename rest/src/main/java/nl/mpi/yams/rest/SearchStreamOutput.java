@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for
+ * Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package nl.mpi.yams.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.StreamingOutput;
+import nl.mpi.flap.kinnate.entityindexer.QueryException;
+import nl.mpi.flap.model.DataField;
+import nl.mpi.yams.common.data.HighlightableDataNode;
+import nl.mpi.yams.common.data.MetadataFileType;
+import nl.mpi.yams.common.data.QueryDataStructures;
+import nl.mpi.yams.common.data.SearchParameters;
+import nl.mpi.yams.common.db.DataBaseManager;
+import nl.mpi.yams.common.db.SearchHitListener;
+import org.codehaus.jackson.map.AnnotationIntrospector;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.JacksonAnnotationIntrospector;
+import org.codehaus.jackson.xc.JaxbAnnotationIntrospector;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the results of a search as newline delimited JSON while they are
+ * being read from the database. Each line is one matching data node with its
+ * highlights and the last line is a summary of the counts and time taken.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class SearchStreamOutput implements StreamingOutput {
+
+    final private org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
+    private static final ObjectMapper objectMapper = createObjectMapper();
+    private final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> yamsDatabase;
+    private final QueryDataStructures.CriterionJoinType criterionJoinType;
+    private final List<SearchParameters> searchParametersList;
+
+    public SearchStreamOutput(DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> yamsDatabase, QueryDataStructures.CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) {
+        this.yamsDatabase = yamsDatabase;
+        this.criterionJoinType = criterionJoinType;
+        this.searchParametersList = searchParametersList;
+    }
+
+    static ObjectMapper createObjectMapper() {
+        // the JAXB annotations are used as they are by the Jersey JSON provider, so that the nodes have the same form as in the other services
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.setAnnotationIntrospector(new AnnotationIntrospector.Pair(new JacksonAnnotationIntrospector(), new JaxbAnnotationIntrospector()));
+        return mapper;
+    }
+
+    public void write(OutputStream output) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        final Writer writer = new OutputStreamWriter(output, "UTF-8");
+        final int[] highlightCount = new int[]{0};
+        final IOException[] writeException = new IOException[]{null};
+        int resultCount = 0;
+        String errorMessage = null;
+        try {
+            resultCount = yamsDatabase.streamSearchResult(criterionJoinType, searchParametersList, new SearchHitListener<HighlightableDataNode>() {
+
+                public void searchHitFound(HighlightableDataNode dataNode) throws QueryException {
+                    try {
+                        writer.write(objectMapper.writeValueAsString(dataNode));
+                        writer.write("\n");
+                        // each line is sent as it is made so that the client can show it straight away
+                        writer.flush();
+                        highlightCount[0] += dataNode.getHighlights().size();
+                    } catch (IOException exception) {
+                        // the client has most likely gone away, so the query is stopped
+                        writeException[0] = exception;
+                        throw new QueryException("Could not send the search result", exception);
+                    }
+                }
+            });
+        } catch (QueryException exception) {
+            if (writeException[0] != null) {
+                throw writeException[0];
+            }
+            logger.error("The streamed search failed", exception);
+            errorMessage = exception.getMessage();
+        }
+        // the results have already been sent, so an error can only be reported in the summary
+        final Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("ResultCount", resultCount);
+        summary.put("HighlightCount", highlightCount[0]);
+        summary.put("QueryMs", System.currentTimeMillis() - startTime);
+        if (errorMessage != null) {
+            summary.put("Error", errorMessage);
+        }
+        final Map<String, Object> summaryLine = new LinkedHashMap<String, Object>();
+        summaryLine.put("Summary", summary);
+        writer.write(objectMapper.writeValueAsString(summaryLine));
+        writer.write("\n");
+        writer.flush();
+    }
+}
@@ -18,15 +18,23 @@
  */
 package nl.mpi.yams.rest;
 
+import java.io.File;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.ws.rs.DefaultValue;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.Path;
 import javax.ws.rs.GET;
@@ -37,17 +45,28 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import nl.mpi.flap.kinnate.entityindexer.QueryException;
 import nl.mpi.flap.model.DataField;
+import nl.mpi.flap.model.DataNodeLink;
+import nl.mpi.flap.model.ModelException;
 import nl.mpi.flap.model.SerialisableDataNode;
 import nl.mpi.yams.common.data.DataNodeId;
 import nl.mpi.yams.common.data.DatabaseList;
 import nl.mpi.yams.common.data.DatabaseStats;
+import nl.mpi.yams.common.data.FederatedSearchResult;
 import nl.mpi.yams.common.data.HighlightableDataNode;
+import nl.mpi.yams.common.data.IconTableBase64;
 import nl.mpi.yams.common.data.MetadataFileType;
 import nl.mpi.yams.common.data.QueryDataStructures;
 import nl.mpi.yams.common.data.SearchParameters;
+import nl.mpi.yams.common.db.AsyncDataBaseManager;
+import nl.mpi.yams.common.db.ContentGenerationCache;
 import nl.mpi.yams.common.db.DataBaseManager;
 import nl.mpi.yams.common.db.DbAdaptor;
-import nl.mpi.yams.common.db.RestDbAdaptor;
+import nl.mpi.yams.common.db.DbAdaptorFactory;
+import nl.mpi.yams.common.db.FieldValueIndex;
+import nl.mpi.yams.common.db.QueryDeadline;
+import nl.mpi.yams.common.db.QueryMetrics;
+import nl.mpi.yams.common.db.RestConnectionPool;
+import nl.mpi.yams.common.db.SearchHitListener;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -60,12 +79,20 @@ import org.slf4j.LoggerFactory;
 public class service {
 
     final private org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
+    // shared by all requests so that the number of parallel queries sent to the database is bounded
+    private static final ExecutorService queryExecutor = AsyncDataBaseManager.createQueryExecutor(8, 64);
+    private static final long defaultQueryTimeoutMs = 30000;
+    private static final long defaultDatabaseTimeoutMs = 10000;
+    // the lifetime of a response whose URL names the content generation that it was made from
+    private static final int immutableMaxAgeSeconds = 365 * 24 * 60 * 60;
     @Context
     private UriInfo context;
     @Context
     ServletConfig servletConfig;
     @Context
     ServletContext servletContext;
+    @Context
+    Request request;
 
     /**
      * Creates a new instance of service
@@ -79,12 +106,16 @@ public class service {
         StringBuilder stringBuilder = new StringBuilder();
         DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(DataBaseManager.defaultDataBase);
         stringBuilder.append("<a href=\"./dbinfo\">dbinfo</a><br>");
+        stringBuilder.append("<a href=\"./metrics\">query metrics</a><br>");
         for (String dbName : yamsDatabase.getDatabaseList()) {
             stringBuilder.append("<h3>");
             stringBuilder.append(dbName);
             stringBuilder.append("</h3><a href=\"./dbinfo/");
             stringBuilder.append(dbName);
             stringBuilder.append("\">dbinfo</a><br>");
+            stringBuilder.append("<a href=\"./overview/");
+            stringBuilder.append(dbName);
+            stringBuilder.append("\">overview</a><br>");
             stringBuilder.append("<a href=\"./stats/");
             stringBuilder.append(dbName);
             stringBuilder.append("\">db stats</a><br>");
@@ -123,6 +154,45 @@ public class service {
         return new Date(System.currentTimeMillis() + (hours * 60 * 60 * 1000));
     }
 
+    /**
+     * @return the ETag of the current contents of the database, or null when
+     * no content generation has been stored in the database yet
+     */
+    private EntityTag getEntityTag(DataBaseManager<?, ?, ?> yamsDatabase) throws QueryException {
+        final String contentGeneration = ContentGenerationCache.getSharedCache().getGeneration(yamsDatabase);
+        // weak because the same contents can be serialised differently, for instance by a newer version of this service
+        return (contentGeneration.isEmpty()) ? null : new EntityTag(contentGeneration, true);
+    }
+
+    /**
+     * @return a 304 response when the If-None-Match header of the request
+     * matches the ETag, otherwise null in which case the query must be run
+     */
+    private Response getNotModified(EntityTag entityTag) {
+        if (entityTag == null) {
+            return null;
+        }
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+        return (notModified == null) ? null : setCacheHeaders(notModified, entityTag).build();
+    }
+
+    private Response.ResponseBuilder setCacheHeaders(Response.ResponseBuilder responseBuilder, EntityTag entityTag) {
+        responseBuilder.header("Access-Control-Allow-Origin", "*");
+        if (entityTag == null) {
+            return responseBuilder.expires(getExpireDate());
+        }
+        final CacheControl cacheControl = new CacheControl();
+        if (entityTag.getValue().equals(context.getQueryParameters().getFirst("g"))) {
+            // the client named the generation in the URL (g=), so this URL will always get the same response
+            cacheControl.setMaxAge(immutableMaxAgeSeconds);
+        } else {
+            // the response can be kept but must be checked each time, which is answered from the generation cache
+            cacheControl.setMaxAge(0);
+            cacheControl.setMustRevalidate(true);
+        }
+        return responseBuilder.tag(entityTag).cacheControl(cacheControl);
+    }
+
     @GET
     @Path("/dbinfo")
     @Produces({MediaType.APPLICATION_JSON})
@@ -137,17 +207,56 @@ public class service {
     @Produces({MediaType.APPLICATION_JSON})
     public Response getDatabaseInfo(@PathParam("dbname") String dbName) throws QueryException {
         DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
+        }
         DatabaseStats databaseStats = yamsDatabase.getDatabaseStats();
-        return Response.ok(databaseStats).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+        return setCacheHeaders(Response.ok(databaseStats), entityTag).build();
     }
 
     @GET
     @Produces({MediaType.APPLICATION_JSON})
     @Path("/data/{dbname}")
     public Response getRootNode(@PathParam("dbname") String dbName) throws QueryException {
-        DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
-        final SerialisableDataNode rootNodes = yamsDatabase.getRootNodes();
-        return Response.ok(rootNodes.getChildList()).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+        final DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
+        }
+        final DataNodeStreamOutput<SerialisableDataNode> rootNodes = new DataNodeStreamOutput<SerialisableDataNode>() {
+            @Override
+            protected int streamNodes(SearchHitListener<SerialisableDataNode> searchHitListener) throws QueryException {
+                return yamsDatabase.streamRootNodes(searchHitListener);
+            }
+        };
+        return setCacheHeaders(Response.ok(rootNodes), entityTag).build();
+    }
+
+    @GET
+    @Produces({MediaType.APPLICATION_JSON})
+    @Path("/overview/{dbname}")
+    public Response getOverview(@PathParam("dbname") String dbName) throws QueryException {
+        final DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> databaseManager = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(databaseManager);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
+        }
+        // these queries are independent so they are all started before waiting on any of them
+        final AsyncDataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = new AsyncDataBaseManager<SerialisableDataNode, DataField, MetadataFileType>(databaseManager, queryExecutor);
+        final Future<DatabaseStats> databaseStats = yamsDatabase.getDatabaseStats();
+        final Future<IconTableBase64> nodeIcons = yamsDatabase.getNodeIconsBase64();
+        final Future<SerialisableDataNode> rootNodes = yamsDatabase.getRootNodes();
+        final Future<MetadataFileType[]> metadataTypes = yamsDatabase.getMetadataTypes(null);
+        final Map<String, Object> overview = new HashMap<String, Object>();
+        overview.put("stats", AsyncDataBaseManager.getResult(databaseStats));
+        overview.put("icons", AsyncDataBaseManager.getResult(nodeIcons));
+        overview.put("rootNodes", AsyncDataBaseManager.getResult(rootNodes).getChildList());
+        overview.put("types", AsyncDataBaseManager.getResult(metadataTypes));
+        return setCacheHeaders(Response.ok(overview), entityTag).build();
     }
 
     @GET
@@ -155,16 +264,25 @@ public class service {
     @Path("/data/{dbname}/linksof")
 //    @Path("hdl{hdl}")
     public Response getChildDataNodes(@PathParam("dbname") String dbName, @QueryParam("id") final String identifier, @QueryParam("start") @DefaultValue("0") final int start, @QueryParam("end") @DefaultValue("30") final int end) throws QueryException {
-        DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
-        final SerialisableDataNode childNodes;
-        if (identifier.startsWith("hdl:")) {
-            childNodes = yamsDatabase.getChildNodesOfHdl(identifier, start, end);
-        } else if (identifier.startsWith("http:") || identifier.startsWith("https:")) {
-            childNodes = yamsDatabase.getChildNodesOfUrl(identifier, start, end);
-        } else {
-            childNodes = yamsDatabase.getChildNodesOfId(identifier, start, end);
+        final DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
         }
-        return Response.ok(childNodes.getChildList()).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+        final DataNodeStreamOutput<SerialisableDataNode> childNodes = new DataNodeStreamOutput<SerialisableDataNode>() {
+            @Override
+            protected int streamNodes(SearchHitListener<SerialisableDataNode> searchHitListener) throws QueryException {
+                if (identifier.startsWith("hdl:")) {
+                    return yamsDatabase.streamChildNodesOfHdl(identifier, start, end, searchHitListener);
+                } else if (identifier.startsWith("http:") || identifier.startsWith("https:")) {
+                    return yamsDatabase.streamChildNodesOfUrl(identifier, start, end, searchHitListener);
+                } else {
+                    return yamsDatabase.streamChildNodesOfId(identifier, start, end, searchHitListener);
+                }
+            }
+        };
+        return setCacheHeaders(Response.ok(childNodes), entityTag).build();
     }
 
     @GET
@@ -172,8 +290,13 @@ public class service {
     @Path("/types/{dbname}")
     public Response getTypeOptions(@PathParam("dbname") String dbName) throws QueryException {
         DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
+        }
         final MetadataFileType[] metadataTypes = yamsDatabase.getMetadataTypes(null);
-        return Response.ok(metadataTypes).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+        return setCacheHeaders(Response.ok(metadataTypes), entityTag).build();
     }
 
     @GET
@@ -181,8 +304,13 @@ public class service {
     @Path("/paths/{dbname}")
     public Response getPathOptions(@PathParam("dbname") String dbName, @QueryParam("type") final String type) throws QueryException {
         DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
+        }
         final MetadataFileType[] metadataTypes = yamsDatabase.getMetadataPaths(new MetadataFileType(type, null, null));
-        return Response.ok(metadataTypes).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+        return setCacheHeaders(Response.ok(metadataTypes), entityTag).build();
     }
 
     @GET
@@ -191,8 +319,13 @@ public class service {
     public Response getHints(@PathParam("dbname") String dbName, @QueryParam("type") final String type, @QueryParam("path") final String path, @QueryParam("text") final String text, @QueryParam("max") @DefaultValue("5") final int max) throws QueryException {
         final MetadataFileType options = new MetadataFileType(type, path, text);
         DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
+        }
         MetadataFileType[] metadataFieldTypes = yamsDatabase.getMetadataFieldValues(options, max);
-        return Response.ok(metadataFieldTypes).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+        return setCacheHeaders(Response.ok(metadataFieldTypes), entityTag).build();
     }
 
     @GET
@@ -200,23 +333,32 @@ public class service {
     @Path("/data/{dbname}/node")
 //    @Path("hdl{hdl}")
     public Response getDataNode(@PathParam("dbname") String dbName, @QueryParam("id") final String identifier) throws QueryException {
-        DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
-        final SerialisableDataNode childNodes;
-        //logger.info(identifier);
-        if (identifier.startsWith("hdl:")) {
-            List<String> identifierList = new ArrayList<String>();
-            identifierList.add(identifier);
-            childNodes = yamsDatabase.getNodeDatasByHdls(identifierList);
-        } else if (identifier.startsWith("http:") || identifier.startsWith("https:")) {
-            List<String> identifierList = new ArrayList<String>();
-            identifierList.add(identifier);
-            childNodes = yamsDatabase.getNodeDatasByUrls(identifierList);
-        } else {
-            List<DataNodeId> identifierList = new ArrayList<DataNodeId>();
-            identifierList.add(new DataNodeId(identifier));
-            childNodes = yamsDatabase.getNodeDatasByIDs(identifierList);
+        final DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
         }
-        return Response.ok(childNodes.getChildList()).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+        //logger.info(identifier);
+        final DataNodeStreamOutput<SerialisableDataNode> childNodes = new DataNodeStreamOutput<SerialisableDataNode>() {
+            @Override
+            protected int streamNodes(SearchHitListener<SerialisableDataNode> searchHitListener) throws QueryException {
+                if (identifier.startsWith("hdl:")) {
+                    List<String> identifierList = new ArrayList<String>();
+                    identifierList.add(identifier);
+                    return yamsDatabase.streamNodeDatasByHdls(identifierList, searchHitListener);
+                } else if (identifier.startsWith("http:") || identifier.startsWith("https:")) {
+                    List<String> identifierList = new ArrayList<String>();
+                    identifierList.add(identifier);
+                    return yamsDatabase.streamNodeDatasByUrls(identifierList, searchHitListener);
+                } else {
+                    List<DataNodeId> identifierList = new ArrayList<DataNodeId>();
+                    identifierList.add(new DataNodeId(identifier));
+                    return yamsDatabase.streamNodeDatasByIDs(identifierList, searchHitListener);
+                }
+            }
+        };
+        return setCacheHeaders(Response.ok(childNodes), entityTag).build();
     }
 
     @GET
@@ -231,24 +373,102 @@ public class service {
             @QueryParam("s") @DefaultValue("") final List<String> text,
             @QueryParam("start") @DefaultValue("0") final int start,
             @QueryParam("end") @DefaultValue("30") final int end) throws QueryException {
-        String basexRestUrl = getBasexRestUrl();
+        final DbAdaptor dbAdaptor = getDbAdaptor();
+        final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> yamsDatabase = new DataBaseManager(HighlightableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, dbName);
+        yamsDatabase.setQueryDeadline(getRequestDeadline());
+        yamsDatabase.setFieldValueIndex(getFieldValueIndex(dbName));
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
+        }
+        final List<SearchParameters> parameters = getSearchParameters(searchNegator, searchType, type, path, text);
+//            arrayList.add(new SearchParameters(new MetadataFileType(), new MetadataFileType(), QueryDataStructures.SearchNegator.is, QueryDataStructures.SearchType.contains, "Books"));
+        // the search is run before the response is started so that a failed search gets an error status, only the nodes of the page are streamed
+        final HighlightableDataNode pageNode = yamsDatabase.getSearchResultLinks(QueryDataStructures.CriterionJoinType.valueOf(joinType), parameters, start, end);
+        final List<String> pageIds = new ArrayList<String>();
         try {
-            final DbAdaptor dbAdaptor = new RestDbAdaptor(new URL(basexRestUrl), getBasexUser(), getBasexPass());
-            DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> yamsDatabase = new DataBaseManager(HighlightableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, dbName);
-            final ArrayList<SearchParameters> parameters = new ArrayList<SearchParameters>();
-            for (int index = 0; index < text.size(); index++) {
-                final MetadataFileType metadataFileType = (type.size() < index || type.get(index).isEmpty()) ? new MetadataFileType(null, null, null) : new MetadataFileType(type.get(index), null, null);
-                final MetadataFileType metadataPathType = (path.size() < index || path.get(index).isEmpty()) ? new MetadataFileType(null, null, null) : new MetadataFileType(null, path.get(index), null);
-                final QueryDataStructures.SearchNegator currentNegator = (searchNegator.size() < index) ? QueryDataStructures.SearchNegator.valueOf(searchNegator.get(searchNegator.size() - 1)) : QueryDataStructures.SearchNegator.valueOf(searchNegator.get(index));
-                final QueryDataStructures.SearchType currentType = (searchType.size() < index) ? QueryDataStructures.SearchType.valueOf(searchType.get(searchType.size() - 1)) : QueryDataStructures.SearchType.valueOf(searchType.get(index));
-                parameters.add(new SearchParameters(metadataFileType, metadataPathType, currentNegator, currentType, text.get(index)));
+            for (DataNodeLink childLink : pageNode.getChildIds()) {
+                pageIds.add(childLink.getIdString());
             }
-//            arrayList.add(new SearchParameters(new MetadataFileType(), new MetadataFileType(), QueryDataStructures.SearchNegator.is, QueryDataStructures.SearchType.contains, "Books"));
-            final HighlightableDataNode foundNodes = yamsDatabase.getSearchResult(QueryDataStructures.CriterionJoinType.valueOf(joinType), parameters);
-            return Response.ok(foundNodes).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
-        } catch (MalformedURLException exception) {
-            throw new QueryException("Failed to open the database connection at: " + basexRestUrl + " " + exception.getMessage());
+        } catch (ModelException exception) {
+            throw new QueryException("Error reading the search results", exception);
+        }
+        final DataNodeStreamOutput<HighlightableDataNode> foundNodes = new DataNodeStreamOutput<HighlightableDataNode>(pageNode) {
+            @Override
+            protected int streamNodes(SearchHitListener<HighlightableDataNode> searchHitListener) throws QueryException {
+                // as for getSearchResult the unpaged results are links without the full nodes
+                return (end >= 0) ? yamsDatabase.streamNodeDatasInOrder(pageIds, searchHitListener) : 0;
+            }
+        };
+        return setCacheHeaders(Response.ok(foundNodes), entityTag).build();
+    }
+
+    /**
+     * Runs the search on each of the listed databases, or on every database
+     * when none are listed, and returns one page of results per database with
+     * the result counts and query times. The databases that do not answer in
+     * time are marked as timed out rather than failing the request.
+     */
+    @GET
+    @Produces({MediaType.APPLICATION_JSON})
+    @Path("/federatedsearch/{jointype}")
+    public Response perfomFederatedSearch(@PathParam("jointype") String joinType,
+            @QueryParam("db") final List<String> dbNames,
+            @QueryParam("sn") @DefaultValue("is") final List<String> searchNegator,
+            @QueryParam("st") @DefaultValue("equals") final List<String> searchType,
+            @QueryParam("ft") @DefaultValue("") final List<String> type,
+            @QueryParam("p") @DefaultValue("") final List<String> path,
+            @QueryParam("s") @DefaultValue("") final List<String> text,
+            @QueryParam("start") @DefaultValue("0") final int start,
+            @QueryParam("end") @DefaultValue("30") final int end) throws QueryException {
+        final DbAdaptor dbAdaptor = getDbAdaptor();
+        final List<String> searchedDbNames = (dbNames == null || dbNames.isEmpty()) ? Arrays.asList(getDatabase(DataBaseManager.defaultDataBase).getDatabaseList()) : dbNames;
+        final List<DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>> databaseManagers = new ArrayList<DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>>();
+        for (String dbName : searchedDbNames) {
+            DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> yamsDatabase = new DataBaseManager(HighlightableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, dbName);
+            yamsDatabase.setQueryDeadline(getRequestDeadline());
+            yamsDatabase.setFieldValueIndex(getFieldValueIndex(dbName));
+            databaseManagers.add(yamsDatabase);
         }
+        final List<SearchParameters> parameters = getSearchParameters(searchNegator, searchType, type, path, text);
+        final FederatedSearchResult federatedSearchResult = DataBaseManager.getFederatedSearchResult(databaseManagers, queryExecutor, getDatabaseTimeoutMs(), QueryDataStructures.CriterionJoinType.valueOf(joinType), parameters, start, end);
+        return Response.ok(federatedSearchResult).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+    }
+
+    private List<SearchParameters> getSearchParameters(List<String> searchNegator, List<String> searchType, List<String> type, List<String> path, List<String> text) {
+        final List<SearchParameters> parameters = new ArrayList<SearchParameters>();
+        for (int index = 0; index < text.size(); index++) {
+            final MetadataFileType metadataFileType = (type.size() < index || type.get(index).isEmpty()) ? new MetadataFileType(null, null, null) : new MetadataFileType(type.get(index), null, null);
+            final MetadataFileType metadataPathType = (path.size() < index || path.get(index).isEmpty()) ? new MetadataFileType(null, null, null) : new MetadataFileType(null, path.get(index), null);
+            final QueryDataStructures.SearchNegator currentNegator = (searchNegator.size() < index) ? QueryDataStructures.SearchNegator.valueOf(searchNegator.get(searchNegator.size() - 1)) : QueryDataStructures.SearchNegator.valueOf(searchNegator.get(index));
+            final QueryDataStructures.SearchType currentType = (searchType.size() < index) ? QueryDataStructures.SearchType.valueOf(searchType.get(searchType.size() - 1)) : QueryDataStructures.SearchType.valueOf(searchType.get(index));
+            parameters.add(new SearchParameters(metadataFileType, metadataPathType, currentNegator, currentType, text.get(index)));
+        }
+        return parameters;
+    }
+
+    /**
+     * Streams the search results as newline delimited JSON, one data node
+     * with its highlights per line followed by a summary line, so that the
+     * client can show the first results while the rest are being found.
+     */
+    @GET
+    @Produces({"application/x-ndjson"})
+    @Path("/searchstream/{dbname}/{jointype}")
+    public Response perfomSearchStream(@PathParam("dbname") String dbName,
+            @PathParam("jointype") String joinType,
+            @QueryParam("sn") @DefaultValue("is") final List<String> searchNegator,
+            @QueryParam("st") @DefaultValue("equals") final List<String> searchType,
+            @QueryParam("ft") @DefaultValue("") final List<String> type,
+            @QueryParam("p") @DefaultValue("") final List<String> path,
+            @QueryParam("s") @DefaultValue("") final List<String> text) throws QueryException {
+        final DbAdaptor dbAdaptor = getDbAdaptor();
+        DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> yamsDatabase = new DataBaseManager(HighlightableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, dbName);
+        yamsDatabase.setQueryDeadline(getRequestDeadline());
+        yamsDatabase.setFieldValueIndex(getFieldValueIndex(dbName));
+        final List<SearchParameters> parameters = getSearchParameters(searchNegator, searchType, type, path, text);
+        return Response.ok(new SearchStreamOutput(yamsDatabase, QueryDataStructures.CriterionJoinType.valueOf(joinType), parameters)).header("Access-Control-Allow-Origin", "*").build();
     }
 
     @GET
@@ -256,6 +476,11 @@ public class service {
     @Produces({MediaType.TEXT_PLAIN})
     public Response getStats(@PathParam("dbname") String dbName) throws MalformedURLException, QueryException {
         DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(dbName);
+        final EntityTag entityTag = getEntityTag(yamsDatabase);
+        final Response notModified = getNotModified(entityTag);
+        if (notModified != null) {
+            return notModified;
+        }
         String jsonDataDetailed = "[[0,0,0,0]]";
         String queryStringDetailed = " ('[[0,0,0,0,0,0]',\n" //[''timestamp'', ''linkcount'', ''documentcount'', ''queryms'']',\n"
                 + "let $dbName := '" + dbName + "'\n"
@@ -276,9 +501,17 @@ public class service {
                 + "let $freebytes := string(($crawlerStats/@freebytes) div 1048576.0)\n"
                 + "let $totalbytes := string(($crawlerStats/@totalbytes) div 1048576.0)\n"
                 + "return (',[',string-join(($jsDateTime,$linkcount,$documentcount,$querytime,$freebytes,$totalbytes,$maxMemory),','),']'),']')\n";
-        final DbAdaptor dbAdaptor = new RestDbAdaptor(new URL(getBasexRestUrl()), getBasexUser(), getBasexPass());
+        final DbAdaptor dbAdaptor = getDbAdaptor();
         jsonDataDetailed = dbAdaptor.executeQuery(DataBaseManager.defaultDataBase, queryStringDetailed);
-        return Response.ok(jsonDataDetailed).header("Access-Control-Allow-Origin", "*").expires(getExpireDate()).build();
+        return setCacheHeaders(Response.ok(jsonDataDetailed), entityTag).build();
+    }
+
+    @GET
+    @Path("/metrics")
+    @Produces({MediaType.TEXT_PLAIN})
+    public Response getQueryMetrics() {
+        // not cached because the values change with every query
+        return Response.ok(QueryMetrics.getSharedMetrics().getReport()).header("Access-Control-Allow-Origin", "*").build();
     }
 
 //    @GET
@@ -346,6 +579,7 @@ public class service {
 //        return Response.ok(childNodes).header("Access-Control-Allow-Origin", "*").build();
 //    }
     private String getBasexRestUrl() {
+        configureKeepAlive();
         final String initParameterRestUrl = servletContext.getInitParameter("basexRestUrl");
         return initParameterRestUrl;
     }
@@ -360,13 +594,53 @@ public class service {
         return initParameterPass;
     }
 
-    private DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> getDatabase(String databaseName) throws QueryException {
-        String basexRestUrl = getBasexRestUrl();
-        try {
-            final DbAdaptor dbAdaptor = new RestDbAdaptor(new URL(basexRestUrl), getBasexUser(), getBasexPass());
-            return new DataBaseManager(SerialisableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, databaseName);
-        } catch (MalformedURLException exception) {
-            throw new QueryException("Failed to open the database connection at: " + basexRestUrl + " " + exception.getMessage());
+    private QueryDeadline getRequestDeadline() {
+        // the time allowed for the queries of one request, a query still running after this is cancelled and QueryTimeoutMapper sends a 503
+        final String initParameterTimeout = servletContext.getInitParameter("queryTimeoutMs");
+        if (initParameterTimeout == null || initParameterTimeout.isEmpty()) {
+            return QueryDeadline.after(defaultQueryTimeoutMs);
+        }
+        return QueryDeadline.after(Long.parseLong(initParameterTimeout));
+    }
+
+    private long getDatabaseTimeoutMs() {
+        // the time allowed for each database of a federated search, so that one slow database does not hold back the results of the others
+        final String initParameterTimeout = servletContext.getInitParameter("databaseTimeoutMs");
+        if (initParameterTimeout == null || initParameterTimeout.isEmpty()) {
+            return defaultDatabaseTimeoutMs;
         }
+        return Long.parseLong(initParameterTimeout);
+    }
+
+    private void configureKeepAlive() {
+        // optional because the keep-alive system properties apply to every HttpURLConnection in the servlet container
+        final String initParameterKeepAlive = servletContext.getInitParameter("restKeepAliveConnections");
+        if (initParameterKeepAlive != null && !initParameterKeepAlive.isEmpty()) {
+            RestConnectionPool.configureJvmKeepAlive(Integer.parseInt(initParameterKeepAlive));
+        }
+    }
+
+    private DbAdaptor getDbAdaptor() throws QueryException {
+        // a basexRestUrl that is a local directory opens the database in this JVM, the optional localDbSessions then lets its read only queries run in parallel
+        final String initParameterSessions = servletContext.getInitParameter("localDbSessions");
+        final int localSessionCount = (initParameterSessions == null || initParameterSessions.isEmpty()) ? 1 : Integer.parseInt(initParameterSessions);
+        return DbAdaptorFactory.getDbAdaptor(getBasexRestUrl(), getBasexUser(), getBasexPass(), localSessionCount);
+    }
+
+    private FieldValueIndex getFieldValueIndex(String databaseName) throws QueryException {
+        // the index is optional and is only used once the crawler has created it for this database
+        final String initParameterIndex = servletContext.getInitParameter("fieldIndexDirectory");
+        if (initParameterIndex == null || initParameterIndex.isEmpty()) {
+            return null;
+        }
+        return FieldValueIndex.getSharedIndex(new File(initParameterIndex, databaseName), false);
+    }
+
+    private DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> getDatabase(String databaseName) throws QueryException {
+        final DbAdaptor dbAdaptor = getDbAdaptor();
+        final DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = new DataBaseManager(SerialisableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, databaseName);
+        yamsDatabase.setQueryDeadline(getRequestDeadline());
+        yamsDatabase.setFieldValueIndex(getFieldValueIndex(databaseName));
+        return yamsDatabase;
     }
 }
@@ -18,6 +18,7 @@
 package nl.mpi.yams.client;
 
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JavaScriptException;
 import com.google.gwt.core.client.JsArray;
 import com.google.gwt.core.client.JsonUtils;
 import com.google.gwt.http.client.Request;
@@ -25,20 +26,14 @@ import com.google.gwt.http.client.RequestBuilder;
 import com.google.gwt.http.client.RequestCallback;
 import com.google.gwt.http.client.RequestException;
 import com.google.gwt.http.client.Response;
+import com.google.gwt.xhr.client.ReadyStateChangeHandler;
+import com.google.gwt.xhr.client.XMLHttpRequest;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import nl.mpi.flap.model.DataNodeLink;
-import nl.mpi.flap.model.DataNodeType;
-import nl.mpi.flap.model.DataNodePermissions;
-import nl.mpi.flap.model.FieldGroup;
-import nl.mpi.flap.model.ModelException;
 import nl.mpi.flap.model.PluginDataNode;
-import nl.mpi.flap.model.SerialisableDataNode;
-import nl.mpi.yams.common.data.DataNodeHighlight;
 import nl.mpi.yams.common.data.DataNodeId;
-import nl.mpi.yams.common.data.HighlightableDataNode;
 import nl.mpi.yams.common.data.QueryDataStructures;
 import nl.mpi.yams.common.data.SearchParameters;
 import nl.mpi.yams.shared.JsonDataNode;
@@ -169,113 +164,43 @@ public class DataNodeLoaderJson implements DataNodeLoader {
     }
 
     public void performSearch(String databaseName, QueryDataStructures.CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, final DataNodeSearchListener dataNodeSearchListener) {
-        String searchUrl = serviceLocations.jsonSearchUrl(serviceLocations.jsonBasexAdaptorUrl(), databaseName, criterionJoinType.name());
+        String searchUrl = serviceLocations.jsonSearchStreamUrl(serviceLocations.jsonBasexAdaptorUrl(), databaseName, criterionJoinType.name());
         for (SearchParameters parameters : searchParametersList) {
             final String type = (parameters.getFileType().getType() == null) ? "" : parameters.getFileType().getType();
             final String path = (parameters.getFieldType().getPath() == null) ? "" : parameters.getFieldType().getPath();
             searchUrl = serviceLocations.jsonSearchParam(searchUrl, parameters.getSearchNegator().name(), parameters.getSearchType().name(), type, path, parameters.getSearchString());
         }
         final String searchParamUrl = searchUrl;
-        final RequestBuilder builder = new RequestBuilder(RequestBuilder.GET, searchUrl);
-        try {
-            final Request request = builder.sendRequest(null, new RequestCallback() {
-                public void onError(Request request, Throwable exception) {
-                    dataNodeSearchListener.dataNodeLoadFailed(exception);
-                    logger.warning("Couldn't retrieve JSON from: ");
-                    logger.warning(builder.getUrl());
-                }
-
-                public void onResponseReceived(Request request, Response response) {
-                    if (200 == response.getStatusCode()) {
-                        final String text = response.getText();
-//                        logger.info("onResponseReceived");
-                        logger.info(searchParamUrl);
-//                        logger.info(text);
-                        final String textCleaned = (text.startsWith("[")) ? text : "[" + text + "]";
-//                        logger.info(textCleaned);
-//                        logger.info("onResponseReceivedEnd");
-                        final JsArray<JsonDataNode> jsonArray = JsonUtils.safeEval(textCleaned);
-                        List<HighlightableDataNode> dataNodes = new ArrayList<HighlightableDataNode>();
-                        for (int index = 0; index < jsonArray.length(); index++) {
-                            final JsonDataNode jsonDataNode = (JsonDataNode) jsonArray.get(index);
-                            dataNodes.add(new HighlightableDataNode() {
-
-                                @Override
-                                public List<DataNodeHighlight> getHighlights() {
-                                    List<DataNodeHighlight> highlights = new ArrayList<DataNodeHighlight>();
-                                    for (int index = 0; index < jsonDataNode.getHighlightCount(); index++) {
-                                        final DataNodeHighlight dataNodeHighlight = new DataNodeHighlight();
-                                        dataNodeHighlight.setDataNodeId(jsonDataNode.getHighlightId(index));
-                                        dataNodeHighlight.setHighlightPath(jsonDataNode.getHighlightPath(index));
-                                        highlights.add(dataNodeHighlight);
-                                    }
-                                    return highlights;
-                                }
-
-                                @Override
-                                public List<? extends SerialisableDataNode> getChildList() {
-                                    throw new UnsupportedOperationException("Not supported yet.");
-                                }
-
-                                @Override
-                                public Integer getLinkCount() {
-                                    throw new UnsupportedOperationException("Not supported yet.");
-                                }
-
-                                @Override
-                                public List<DataNodeLink> getChildIds() throws ModelException {
-                                    return jsonDataNode.getChildIds();
-                                }
-
-                                @Override
-                                public List<FieldGroup> getFieldGroups() {
-                                    throw new UnsupportedOperationException("Not supported yet.");
-                                }
-
-                                @Override
-                                public DataNodePermissions getPermissions() {
-                                    throw new UnsupportedOperationException("Not supported yet.");
-                                }
-
-                                @Override
-                                public DataNodeType getType() {
-                                    throw new UnsupportedOperationException("Not supported yet.");
-                                }
-
-                                @Override
-                                public String getLabel() {
-                                    return jsonDataNode.getLabel();
-                                }
-
-                                @Override
-                                public String getArchiveHandle() {
-                                    throw new UnsupportedOperationException("Not supported yet.");
-                                }
-
-                                @Override
-                                public String getURI() throws ModelException {
-                                    throw new UnsupportedOperationException("Not supported yet.");
-                                }
-
-                                @Override
-                                public String getID() throws ModelException {
-                                    throw new UnsupportedOperationException("Not supported yet.");
-                                }
-                            });
-                        }
-                        dataNodeSearchListener.dataNodeLoaded(dataNodes);
+        final SearchStreamReader searchStreamReader = new SearchStreamReader(dataNodeSearchListener);
+        // XMLHttpRequest is used directly because RequestBuilder only gives the response once it is complete
+        final XMLHttpRequest xmlHttpRequest = XMLHttpRequest.create();
+        xmlHttpRequest.setOnReadyStateChange(new ReadyStateChangeHandler() {
+
+            public void onReadyStateChange(XMLHttpRequest xhr) {
+                if (xhr.getReadyState() == XMLHttpRequest.LOADING && xhr.getStatus() == 200) {
+                    // the response text grows as the lines arrive, so the results can be shown before the search has finished
+                    searchStreamReader.readLines(xhr.getResponseText(), false);
+                } else if (xhr.getReadyState() == XMLHttpRequest.DONE) {
+                    xhr.clearOnReadyStateChange();
+                    logger.info(searchParamUrl);
+                    if (xhr.getStatus() == 200) {
+                        searchStreamReader.readLines(xhr.getResponseText(), true);
                     } else {
-                        dataNodeSearchListener.dataNodeLoadFailed(new WebQueryException("Couldn't retrieve JSON: " + response.getStatusCode()));
+                        dataNodeSearchListener.dataNodeLoadFailed(new WebQueryException("Couldn't retrieve JSON: " + xhr.getStatus()));
                         logger.warning("Couldn't retrieve JSON");
                         logger.warning(searchParamUrl);
-                        logger.warning(response.getStatusText());
+                        logger.warning(xhr.getStatusText());
                     }
                 }
-            });
-        } catch (RequestException e) {
-            dataNodeSearchListener.dataNodeLoadFailed(e);
+            }
+        });
+        try {
+            xmlHttpRequest.open("GET", searchUrl);
+            xmlHttpRequest.send();
+        } catch (JavaScriptException exception) {
+            dataNodeSearchListener.dataNodeLoadFailed(exception);
             logger.warning("Couldn't retrieve JSON");
-            logger.log(Level.SEVERE, "requestLoadRoot", e);
+            logger.log(Level.SEVERE, "performSearch", exception);
         }
     }
 
@@ -26,7 +26,21 @@ import nl.mpi.yams.common.data.HighlightableDataNode;
  */
 public interface DataNodeSearchListener {
 
+    /**
+     * Receives the results found so far, for a streamed search this is called
+     * once for each batch of results as they arrive
+     *
+     * @param dataNodeList the results, each with its child links and
+     * highlights
+     */
     void dataNodeLoaded(List<HighlightableDataNode> dataNodeList);
 
+    /**
+     * Called once after the last results have been passed to dataNodeLoaded
+     *
+     * @param resultCount the total number of results
+     */
+    void searchComplete(int resultCount);
+
     void dataNodeLoadFailed(Throwable caught);
 }
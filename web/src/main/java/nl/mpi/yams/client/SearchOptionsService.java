@@ -25,6 +25,7 @@ import nl.mpi.flap.model.SerialisableDataNode;
 import nl.mpi.yams.common.data.DataNodeId;
 import nl.mpi.yams.common.data.DatabaseList;
 import nl.mpi.yams.common.data.DatabaseStats;
+import nl.mpi.yams.common.data.FederatedSearchResult;
 import nl.mpi.yams.common.data.HighlightableDataNode;
 import nl.mpi.yams.common.data.IconTableBase64;
 import nl.mpi.yams.common.data.MetadataFileType;
@@ -52,7 +53,9 @@ public interface SearchOptionsService extends RemoteService {
 
     MetadataFileType[] getTreeFacets(String databaseName, MetadataFileType[] metadataFileTypes) throws WebQueryException;
 
-    HighlightableDataNode performSearch(String databaseName, QueryDataStructures.CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) throws WebQueryException;
+    HighlightableDataNode performSearch(String databaseName, QueryDataStructures.CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, int start, int end) throws WebQueryException;
+
+    FederatedSearchResult performFederatedSearch(List<String> databaseNames, QueryDataStructures.CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, int start, int end) throws WebQueryException;
 
     List<SerialisableDataNode> getDataNodesByHdl(String databaseName, List<String> hdlList) throws WebQueryException;
 
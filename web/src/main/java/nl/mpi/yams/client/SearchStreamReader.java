@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsonUtils;
+import java.util.ArrayList;
+import java.util.List;
+import nl.mpi.flap.model.DataNodeLink;
+import nl.mpi.yams.common.data.DataNodeHighlight;
+import nl.mpi.yams.common.data.HighlightableDataNode;
+import nl.mpi.yams.shared.JsonDataNode;
+import nl.mpi.yams.shared.JsonSearchSummary;
+import nl.mpi.yams.shared.WebQueryException;
+
+/**
+ * Reads the newline delimited JSON of a streamed search while it arrives and
+ * passes the results to the listener in batches. The first results are passed
+ * on as soon as they arrive, after that they are collected into batches so
+ * that the results tree is not rebuilt for every line.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public class SearchStreamReader {
+
+    private static final int BATCH_SIZE = 100;
+    private final DataNodeSearchListener dataNodeSearchListener;
+    private int readPosition = 0;
+    private boolean firstBatchSent = false;
+    private List<DataNodeLink> batchIds = new ArrayList<DataNodeLink>();
+    private List<DataNodeHighlight> batchHighlights = new ArrayList<DataNodeHighlight>();
+    private JsonSearchSummary searchSummary = null;
+
+    public SearchStreamReader(DataNodeSearchListener dataNodeSearchListener) {
+        this.dataNodeSearchListener = dataNodeSearchListener;
+    }
+
+    /**
+     * Reads the lines that have been completed since the last call
+     *
+     * @param responseText the response received so far
+     * @param complete true when the whole response has been received
+     */
+    public void readLines(String responseText, boolean complete) {
+        int lineEnd = responseText.indexOf('\n', readPosition);
+        while (lineEnd >= 0) {
+            readLine(responseText.substring(readPosition, lineEnd));
+            readPosition = lineEnd + 1;
+            lineEnd = responseText.indexOf('\n', readPosition);
+        }
+        if (complete) {
+            if (readPosition < responseText.length()) {
+                readLine(responseText.substring(readPosition));
+                readPosition = responseText.length();
+            }
+            sendBatch();
+            if (searchSummary == null) {
+                dataNodeSearchListener.dataNodeLoadFailed(new WebQueryException("The search results ended without a summary"));
+            } else if (searchSummary.getError() != null) {
+                dataNodeSearchListener.dataNodeLoadFailed(new WebQueryException(searchSummary.getError()));
+            } else {
+                dataNodeSearchListener.searchComplete(searchSummary.getResultCount());
+            }
+        } else if ((!firstBatchSent && !batchIds.isEmpty()) || batchIds.size() >= BATCH_SIZE) {
+            sendBatch();
+        }
+    }
+
+    private void readLine(String line) {
+        if (line.trim().length() == 0) {
+            return;
+        }
+        final JavaScriptObject lineObject = JsonUtils.safeEval(line);
+        final JsonSearchSummary lineSummary = JsonSearchSummary.getSummary(lineObject);
+        if (lineSummary != null) {
+            searchSummary = lineSummary;
+        } else {
+            final JsonDataNode jsonDataNode = lineObject.cast();
+            final DataNodeLink dataNodeLink = new DataNodeLink();
+            dataNodeLink.setIdString(jsonDataNode.getID());
+            batchIds.add(dataNodeLink);
+            for (int index = 0; index < jsonDataNode.getHighlightCount(); index++) {
+                final DataNodeHighlight dataNodeHighlight = new DataNodeHighlight();
+                dataNodeHighlight.setDataNodeId(jsonDataNode.getHighlightId(index));
+                dataNodeHighlight.setHighlightPath(jsonDataNode.getHighlightPath(index));
+                batchHighlights.add(dataNodeHighlight);
+            }
+        }
+    }
+
+    private void sendBatch() {
+        if (!batchIds.isEmpty()) {
+            final HighlightableDataNode batchNode = new HighlightableDataNode();
+            batchNode.setChildIds(batchIds);
+            batchNode.setHighlights(batchHighlights);
+            batchIds = new ArrayList<DataNodeLink>();
+            batchHighlights = new ArrayList<DataNodeHighlight>();
+            firstBatchSent = true;
+            final List<HighlightableDataNode> dataNodeList = new ArrayList<HighlightableDataNode>();
+            dataNodeList.add(batchNode);
+            dataNodeSearchListener.dataNodeLoaded(dataNodeList);
+        }
+    }
+}
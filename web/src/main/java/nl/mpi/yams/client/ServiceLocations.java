@@ -86,6 +86,9 @@ public interface ServiceLocations extends Messages {
     @Key("nl.mpi.yams.jsonSearchUrl")
     String jsonSearchUrl(String serviceUrl, String databaseName, String joinType);
 
+    @Key("nl.mpi.yams.jsonSearchStreamUrl")
+    String jsonSearchStreamUrl(String serviceUrl, String databaseName, String joinType);
+
     @Key("nl.mpi.yams.jsonSearchParam")
     String jsonSearchParam(String searchUrl, String searchNegator, String searchType, String type, String path, String text);
 
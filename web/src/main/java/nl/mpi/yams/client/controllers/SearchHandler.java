@@ -24,6 +24,7 @@ import com.google.gwt.event.dom.client.KeyCodes;
 import com.google.gwt.event.dom.client.KeyUpEvent;
 import com.google.gwt.event.dom.client.KeyUpHandler;
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.VerticalPanel;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,6 +36,7 @@ import nl.mpi.yams.client.DatabaseInformation;
 import nl.mpi.yams.client.SearchOptionsServiceAsync;
 import nl.mpi.yams.client.ui.ResultsPanel;
 import nl.mpi.yams.common.data.HighlightableDataNode;
+import nl.mpi.yams.shared.WebQueryTimeoutException;
 
 /**
  * Created on : Feb 4, 2013, 11:07:09 AM
@@ -109,15 +111,29 @@ public abstract class SearchHandler implements ClickHandler, KeyUpHandler {
         logger.info("performSearchJson");
         final long startTime = System.currentTimeMillis();
         dataNodeLoader.performSearch(historyController.getDatabaseName(), historyController.getCriterionJoinType(), historyController.getSearchParametersList(), new DataNodeSearchListener() {
+            // the results arrive in batches which are all added to the same tab
+            private VerticalPanel resultsTab = null;
 
             public void dataNodeLoaded(List<HighlightableDataNode> dataNodeList) {
+                final String databaseName = historyController.getDatabaseName();
+                if (resultsTab == null) {
+                    long responseMils = System.currentTimeMillis() - startTime;
+                    logger.log(Level.INFO, "PerformSearch first results time: " + responseMils + " ms");
+                    resultsTab = resultsPanel.addStreamedResultsTab("Search Results");
+                }
+                for (HighlightableDataNode result : dataNodeList) {
+                    resultsPanel.addStreamedResults(resultsTab, databaseName, databaseInfo.getDatabaseIcons(databaseName), result);
+                }
+            }
+
+            public void searchComplete(int resultCount) {
                 long responseMils = System.currentTimeMillis() - startTime;
                 final String searchTimeMessage = "PerformSearch response time: " + responseMils + " ms";
                 logger.log(Level.INFO, searchTimeMessage);
-                final String databaseName = historyController.getDatabaseName();
-                for (HighlightableDataNode result : dataNodeList) {
-                    resultsPanel.addResultsTree(databaseName, databaseInfo.getDatabaseIcons(databaseName), result, responseMils);
+                if (resultsTab == null) {
+                    resultsTab = resultsPanel.addStreamedResultsTab("Search Results");
                 }
+                resultsPanel.setStreamedResultsCount(resultsTab, resultCount, responseMils);
                 signalSearchDone();
                 finaliseSearch();
                 historyController.updateHistory(false);
@@ -134,9 +150,14 @@ public abstract class SearchHandler implements ClickHandler, KeyUpHandler {
     protected void performSearchRpc() {
         logger.info("performSearchRpc");
         final long startTime = System.currentTimeMillis();
-        searchOptionsService.performSearch(historyController.getDatabaseName(), historyController.getCriterionJoinType(), historyController.getSearchParametersList(), new AsyncCallback<HighlightableDataNode>() {
+        searchOptionsService.performSearch(historyController.getDatabaseName(), historyController.getCriterionJoinType(), historyController.getSearchParametersList(), 0, ResultsPanel.RESULTS_PAGE_SIZE, new AsyncCallback<HighlightableDataNode>() {
             public void onFailure(Throwable caught) {
-                logger.log(Level.SEVERE, caught.getMessage());
+                if (caught instanceof WebQueryTimeoutException) {
+                    // the search was cancelled on the server, the results already shown are kept
+                    logger.log(Level.WARNING, "The search did not complete in the time allowed: " + caught.getMessage());
+                } else {
+                    logger.log(Level.SEVERE, caught.getMessage());
+                }
                 signalSearchDone();
                 finaliseSearch();
             }
@@ -19,6 +19,7 @@ package nl.mpi.yams.client.ui;
 
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.CheckBox;
 import com.google.gwt.user.client.ui.HTML;
@@ -27,6 +28,7 @@ import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.TabPanel;
 import com.google.gwt.user.client.ui.VerticalPanel;
 import com.google.gwt.user.client.ui.Widget;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,6 +41,8 @@ import nl.mpi.yams.client.SearchOptionsServiceAsync;
 import nl.mpi.yams.client.TreeNodeCheckboxListener;
 import nl.mpi.yams.common.data.HighlightableDataNode;
 import nl.mpi.yams.common.data.IconTableBase64;
+import nl.mpi.yams.common.data.QueryDataStructures;
+import nl.mpi.yams.common.data.SearchParameters;
 
 /**
  * @since Feb 06, 2014 11:37 AM (creation date)
@@ -47,6 +51,10 @@ import nl.mpi.yams.common.data.IconTableBase64;
 public class ResultsPanel extends TabPanel implements HistoryListener {
 
     private static final Logger logger = Logger.getLogger("");
+    /**
+     * The number of search results requested from the server at a time
+     */
+    public static final int RESULTS_PAGE_SIZE = 100;
     private final SearchOptionsServiceAsync searchOptionsService;
     private final HistoryController historyController;
     private final TreeNodeCheckboxListener checkboxListener;
@@ -97,12 +105,12 @@ public class ResultsPanel extends TabPanel implements HistoryListener {
             VerticalPanel verticalPanel = new VerticalPanel();
             final List<DataNodeLink> childIds = dataNode.getChildIds();
             if (childIds != null) {
-                final DataNodeTree dataNodeTree = new DataNodeTree(checkboxListener, treeActionPanelClickListener, searchOptionsService, iconTableBase64, false);
-                dataNodeTree.addResultsToTree(databaseName, childIds, dataNode, false);
                 // add a label showing the time taken by a search and the result count
-                final Label timeLabel = new Label("found " + childIds.size() + " in " + responseTimeMils + "ms");
+                final int resultCount = (dataNode.getResultCount() != null) ? dataNode.getResultCount() : childIds.size();
+                final Label timeLabel = new Label("found " + resultCount + " in " + responseTimeMils + "ms");
                 verticalPanel.add(timeLabel);
-                verticalPanel.add(dataNodeTree);
+                // the search parameters are kept so that further pages can be requested after the search options have changed
+                addResultsPage(verticalPanel, databaseName, iconTableBase64, historyController.getCriterionJoinType(), new ArrayList<SearchParameters>(historyController.getSearchParametersList()), dataNode);
             } else {
                 final Label label = new Label("No results found");
                 verticalPanel.add(label);
@@ -117,6 +125,78 @@ public class ResultsPanel extends TabPanel implements HistoryListener {
         this.setVisible(true);
     }
 
+    /**
+     * Adds a results tab that the results of a streamed search are added to
+     * as they arrive
+     *
+     * @param tabLabel the text of the tab
+     * @return the panel to which the results are added
+     */
+    public VerticalPanel addStreamedResultsTab(String tabLabel) {
+        final VerticalPanel verticalPanel = new VerticalPanel();
+        verticalPanel.add(new Label("searching"));
+        this.addClosableTab(verticalPanel, tabLabel);
+        this.selectTab(this.getWidgetIndex(verticalPanel));
+        this.setVisible(true);
+        return verticalPanel;
+    }
+
+    public void addStreamedResults(VerticalPanel resultsTab, String databaseName, IconTableBase64 iconTableBase64, HighlightableDataNode dataNode) {
+        // streamed results have no result count, so no paging button is added
+        addResultsPage(resultsTab, databaseName, iconTableBase64, null, null, dataNode);
+    }
+
+    public void setStreamedResultsCount(VerticalPanel resultsTab, int resultCount, long responseTimeMils) {
+        final Label timeLabel = (Label) resultsTab.getWidget(0);
+        if (resultCount > 0) {
+            timeLabel.setText("found " + resultCount + " in " + responseTimeMils + "ms");
+        } else {
+            timeLabel.setText("No results found " + responseTimeMils + "ms");
+        }
+    }
+
+    private void addResultsPage(final VerticalPanel verticalPanel, final String databaseName, final IconTableBase64 iconTableBase64, final QueryDataStructures.CriterionJoinType criterionJoinType, final List<SearchParameters> searchParametersList, HighlightableDataNode dataNode) {
+        try {
+            final List<DataNodeLink> childIds = dataNode.getChildIds();
+            if (childIds != null) {
+                final DataNodeTree dataNodeTree = new DataNodeTree(checkboxListener, treeActionPanelClickListener, searchOptionsService, iconTableBase64, false);
+                dataNodeTree.addResultsToTree(databaseName, childIds, dataNode, false);
+                verticalPanel.add(dataNodeTree);
+                if (searchOptionsService != null && dataNode.getResultCount() != null && dataNode.getResultStart() != null) {
+                    final int nextStart = dataNode.getResultStart() + childIds.size();
+                    if (!childIds.isEmpty() && nextStart < dataNode.getResultCount()) {
+                        addNextPageButton(verticalPanel, databaseName, iconTableBase64, criterionJoinType, searchParametersList, nextStart, dataNode.getResultCount());
+                    }
+                }
+            }
+        } catch (ModelException exception) {
+            logger.log(Level.SEVERE, "Failed to get child IDs", exception);
+        }
+    }
+
+    private void addNextPageButton(final VerticalPanel verticalPanel, final String databaseName, final IconTableBase64 iconTableBase64, final QueryDataStructures.CriterionJoinType criterionJoinType, final List<SearchParameters> searchParametersList, final int nextStart, final int resultCount) {
+        final Button nextPageButton = new Button("show results " + (nextStart + 1) + " to " + Math.min(nextStart + RESULTS_PAGE_SIZE, resultCount) + " of " + resultCount);
+        nextPageButton.addClickHandler(new ClickHandler() {
+
+            public void onClick(ClickEvent event) {
+                nextPageButton.setEnabled(false);
+                searchOptionsService.performSearch(databaseName, criterionJoinType, searchParametersList, nextStart, nextStart + RESULTS_PAGE_SIZE, new AsyncCallback<HighlightableDataNode>() {
+
+                    public void onFailure(Throwable caught) {
+                        logger.log(Level.SEVERE, caught.getMessage());
+                        nextPageButton.setEnabled(true);
+                    }
+
+                    public void onSuccess(HighlightableDataNode result) {
+                        verticalPanel.remove(nextPageButton);
+                        addResultsPage(verticalPanel, databaseName, iconTableBase64, criterionJoinType, searchParametersList, result);
+                    }
+                });
+            }
+        });
+        verticalPanel.add(nextPageButton);
+    }
+
     private void addClosableTab(final Widget widget, String text) {
         final HorizontalPanel horizontalPanel = new HorizontalPanel();
         final Label label = new Label(text);
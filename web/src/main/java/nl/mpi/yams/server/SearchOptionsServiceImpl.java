@@ -19,9 +19,11 @@
 package nl.mpi.yams.server;
 
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import nl.mpi.flap.kinnate.entityindexer.QueryException;
 import nl.mpi.flap.model.DataField;
 import nl.mpi.flap.model.SerialisableDataNode;
@@ -30,15 +32,22 @@ import nl.mpi.yams.client.SearchOptionsService;
 import nl.mpi.yams.common.data.DataNodeId;
 import nl.mpi.yams.common.data.DatabaseList;
 import nl.mpi.yams.common.data.DatabaseStats;
+import nl.mpi.yams.common.data.FederatedSearchResult;
 import nl.mpi.yams.common.data.HighlightableDataNode;
 import nl.mpi.yams.common.data.IconTableBase64;
 import nl.mpi.yams.common.data.MetadataFileType;
 import nl.mpi.yams.common.data.QueryDataStructures;
 import nl.mpi.yams.common.data.SearchParameters;
+import nl.mpi.yams.common.db.AsyncDataBaseManager;
 import nl.mpi.yams.common.db.DataBaseManager;
 import nl.mpi.yams.common.db.DbAdaptor;
-import nl.mpi.yams.common.db.RestDbAdaptor;
+import nl.mpi.yams.common.db.DbAdaptorFactory;
+import nl.mpi.yams.common.db.FieldValueIndex;
+import nl.mpi.yams.common.db.QueryDeadline;
+import nl.mpi.yams.common.db.QueryTimeoutException;
+import nl.mpi.yams.common.db.RestConnectionPool;
 import nl.mpi.yams.shared.WebQueryException;
+import nl.mpi.yams.shared.WebQueryTimeoutException;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -51,8 +60,13 @@ import org.slf4j.LoggerFactory;
 public class SearchOptionsServiceImpl extends RemoteServiceServlet implements SearchOptionsService {
 
     final private org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
+    final static private long defaultQueryTimeoutMs = 30000;
+    final static private long defaultDatabaseTimeoutMs = 10000;
+    // shared by all requests so that the number of parallel queries sent to the database is bounded
+    final static private ExecutorService queryExecutor = AsyncDataBaseManager.createQueryExecutor(8, 64);
 
     private String getBasexRestUrl() {
+        configureKeepAlive();
         final String initParameterRestUrl = getServletContext().getInitParameter("basexRestUrl");
         return initParameterRestUrl;
 //        return (initParameterRestUrl != null && !initParameterRestUrl.isEmpty()) ? initParameterRestUrl : "http://localhost:8984/rest/";
@@ -75,6 +89,24 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
 //        return "admin";
     }
 
+    private QueryDeadline getRequestDeadline() {
+        // the time allowed for the queries of one RPC request, so that a slow search is cancelled rather than holding the servlet thread and database session
+        final String initParameterTimeout = getServletContext().getInitParameter("queryTimeoutMs");
+        if (initParameterTimeout == null || initParameterTimeout.isEmpty()) {
+            return QueryDeadline.after(defaultQueryTimeoutMs);
+        }
+        return QueryDeadline.after(Long.parseLong(initParameterTimeout));
+    }
+
+    private long getDatabaseTimeoutMs() {
+        // the time allowed for each database of a federated search, so that one slow database does not hold back the results of the others
+        final String initParameterTimeout = getServletContext().getInitParameter("databaseTimeoutMs");
+        if (initParameterTimeout == null || initParameterTimeout.isEmpty()) {
+            return defaultDatabaseTimeoutMs;
+        }
+        return Long.parseLong(initParameterTimeout);
+    }
+
     public DatabaseList getDatabaseList() throws WebQueryException {
 //        logger.info("getDatabaseList");
         try {
@@ -97,19 +129,39 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
         }
     }
 
+    private void configureKeepAlive() {
+        // optional because the keep-alive system properties apply to every HttpURLConnection in the servlet container
+        final String initParameterKeepAlive = getServletContext().getInitParameter("restKeepAliveConnections");
+        if (initParameterKeepAlive != null && !initParameterKeepAlive.isEmpty()) {
+            RestConnectionPool.configureJvmKeepAlive(Integer.parseInt(initParameterKeepAlive));
+        }
+    }
+
+    private DbAdaptor getDbAdaptor() throws QueryException {
+        // a basexRestUrl that is a local directory opens the database in this JVM, the optional localDbSessions then lets its read only queries run in parallel
+        final String initParameterSessions = getServletContext().getInitParameter("localDbSessions");
+        final int localSessionCount = (initParameterSessions == null || initParameterSessions.isEmpty()) ? 1 : Integer.parseInt(initParameterSessions);
+        return DbAdaptorFactory.getDbAdaptor(getBasexRestUrl(), getBasexUser(), getBasexPass(), localSessionCount);
+    }
+
+    private FieldValueIndex getFieldValueIndex(String databaseName) throws QueryException {
+        // the index is optional and is only used once the crawler has created it for this database
+        final String initParameterIndex = getServletContext().getInitParameter("fieldIndexDirectory");
+        if (initParameterIndex == null || initParameterIndex.isEmpty()) {
+            return null;
+        }
+        return FieldValueIndex.getSharedIndex(new File(initParameterIndex, databaseName), false);
+    }
+
     private DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> getDatabase(String databaseName) throws QueryException {
-        // the LocalDbAdaptor version of the Arbil database is not intended to multi entry and has be replaced by a REST version
-//        final DbAdaptor dbAdaptor = new LocalDbAdaptor(new File(System.getProperty("user.dir"), "yams-data"));
-        String basexRestUrl = getBasexRestUrl();
-//        System.out.println("basexRestUrl: " + basexRestUrl);
+        // with a local directory a single session serialises every request, so localDbSessions should be set for a busy site
         //logger.info("getDatabase:" + databaseName);
         //System.out.println("getDatabase: " + databaseName);
-        try {
-            final DbAdaptor dbAdaptor = new RestDbAdaptor(new URL(basexRestUrl), getBasexUser(), getBasexPass());
-            return new DataBaseManager<SerialisableDataNode, DataField, MetadataFileType>(SerialisableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, databaseName);
-        } catch (MalformedURLException exception) {
-            throw new QueryException("Failed to open the database connection at: " + basexRestUrl, exception);
-        }
+        final DbAdaptor dbAdaptor = getDbAdaptor();
+        final DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = new DataBaseManager<SerialisableDataNode, DataField, MetadataFileType>(SerialisableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, databaseName);
+        yamsDatabase.setQueryDeadline(getRequestDeadline());
+        yamsDatabase.setFieldValueIndex(getFieldValueIndex(databaseName));
+        return yamsDatabase;
     }
 
     public MetadataFileType[] getTypeOptions(String databaseName, MetadataFileType metadataFileType) throws WebQueryException {
@@ -138,6 +190,8 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
             DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(databaseName);
             MetadataFileType[] metadataFieldTypes = yamsDatabase.getMetadataFieldValues(metadataFileType, 5);
             return metadataFieldTypes;
+        } catch (QueryTimeoutException exception) {
+            throw new WebQueryTimeoutException("getValueOptions", exception);
         } catch (QueryException exception) {
             throw new WebQueryException("getValueOptions", exception);
         }
@@ -148,23 +202,22 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
             DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(databaseName);
             MetadataFileType[] metadataFieldTypes = yamsDatabase.getTreeFacetTypes(metadataFileTypes);
             return metadataFieldTypes;
+        } catch (QueryTimeoutException exception) {
+            throw new WebQueryTimeoutException("getTreeFacets", exception);
         } catch (QueryException exception) {
             throw new WebQueryException("getTreeFacets", exception);
         }
     }
 
-    public HighlightableDataNode performSearch(String databaseName, QueryDataStructures.CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList) throws WebQueryException {
+    public HighlightableDataNode performSearch(String databaseName, QueryDataStructures.CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, int start, int end) throws WebQueryException {
 //        return new YamsDataNode(criterionJoinType.name());
         try {
-            String basexRestUrl = getBasexRestUrl();
-            try {
-                final DbAdaptor dbAdaptor = new RestDbAdaptor(new URL(basexRestUrl), getBasexUser(), getBasexPass());
-                DataBaseManager yamsDatabase = new DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>(HighlightableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, databaseName);
-                HighlightableDataNode yamsDataNode = (HighlightableDataNode) yamsDatabase.getSearchResult(criterionJoinType, searchParametersList);
-                return yamsDataNode;
-            } catch (MalformedURLException exception) {
-                throw new QueryException("Failed to open the database connection at: " + basexRestUrl, exception);
-            }
+            final DbAdaptor dbAdaptor = getDbAdaptor();
+            DataBaseManager yamsDatabase = new DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>(HighlightableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, databaseName);
+            yamsDatabase.setQueryDeadline(getRequestDeadline());
+            yamsDatabase.setFieldValueIndex(getFieldValueIndex(databaseName));
+            HighlightableDataNode yamsDataNode = (HighlightableDataNode) yamsDatabase.getSearchResult(criterionJoinType, searchParametersList, start, end);
+            return yamsDataNode;
             //logger.info("databaseName:" + databaseName);
 
 //            ArrayList<String> returnList = new ArrayList<String>();
@@ -172,12 +225,32 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
 //                returnList.add(metadataFileType.getFieldName());
 //            };
 //            return returnList.toArray(new String[0]);
+        } catch (QueryTimeoutException exception) {
+            throw new WebQueryTimeoutException("performSearch:" + databaseName + ":" + criterionJoinType.name(), exception);
         } catch (QueryException exception) {
             //exception.printStackTrace();
             throw new WebQueryException("performSearch:" + databaseName + ":" + criterionJoinType.name() + ":" + searchParametersList.size(), exception);
         }
     }
 
+    public FederatedSearchResult performFederatedSearch(List<String> databaseNames, QueryDataStructures.CriterionJoinType criterionJoinType, List<SearchParameters> searchParametersList, int start, int end) throws WebQueryException {
+        try {
+            final DbAdaptor dbAdaptor = getDbAdaptor();
+            // when no databases are given every database is searched
+            final List<String> searchedDatabaseNames = (databaseNames == null || databaseNames.isEmpty()) ? Arrays.asList(getDatabase(DataBaseManager.defaultDataBase).getDatabaseList()) : databaseNames;
+            final List<DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>> databaseManagers = new ArrayList<DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>>();
+            for (String databaseName : searchedDatabaseNames) {
+                final DataBaseManager<HighlightableDataNode, DataField, MetadataFileType> yamsDatabase = new DataBaseManager<HighlightableDataNode, DataField, MetadataFileType>(HighlightableDataNode.class, DataField.class, MetadataFileType.class, dbAdaptor, databaseName);
+                yamsDatabase.setQueryDeadline(getRequestDeadline());
+                yamsDatabase.setFieldValueIndex(getFieldValueIndex(databaseName));
+                databaseManagers.add(yamsDatabase);
+            }
+            return DataBaseManager.getFederatedSearchResult(databaseManagers, queryExecutor, getDatabaseTimeoutMs(), criterionJoinType, searchParametersList, start, end);
+        } catch (QueryException exception) {
+            throw new WebQueryException("performFederatedSearch:" + criterionJoinType.name() + ":" + searchParametersList.size(), exception);
+        }
+    }
+
     public List<SerialisableDataNode> getDataNodesByHdl(String databaseName, List<String> hdlList) throws WebQueryException {
         try {
             DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(databaseName);
@@ -185,6 +258,8 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
             final List<SerialisableDataNode> name = (List<SerialisableDataNode>) yamsDataNode.getChildList();
             //logger.info("getDataNodesByHdl:done:" + yamsDataNode.getChildList().size());
             return name;
+        } catch (QueryTimeoutException exception) {
+            throw new WebQueryTimeoutException("getDataNodesByHdl", exception);
         } catch (QueryException exception) {
             throw new WebQueryException("getDataNodesByHdl", exception);
         }
@@ -195,6 +270,8 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
             DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(databaseName);
             SerialisableDataNode yamsDataNode = yamsDatabase.getNodeDatasByUrls(urlList);
             return (List<SerialisableDataNode>) yamsDataNode.getChildList();
+        } catch (QueryTimeoutException exception) {
+            throw new WebQueryTimeoutException("getDataNodesByUrl", exception);
         } catch (QueryException exception) {
             throw new WebQueryException("getDataNodesByUrl", exception);
         }
@@ -208,6 +285,8 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
             DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(databaseName);
             SerialisableDataNode yamsDataNode = yamsDatabase.getNodeDatasByIDs(dataNodeIds);
             return (List<SerialisableDataNode>) yamsDataNode.getChildList();
+        } catch (QueryTimeoutException exception) {
+            throw new WebQueryTimeoutException("getDataNodes", exception);
         } catch (QueryException exception) {
             throw new WebQueryException("getDataNodes", exception);
         }
@@ -232,6 +311,8 @@ public class SearchOptionsServiceImpl extends RemoteServiceServlet implements Se
             DataBaseManager<SerialisableDataNode, DataField, MetadataFileType> yamsDatabase = getDatabase(databaseName);
             SerialisableDataNode yamsDataNode = yamsDatabase.getRootNodes();
             return (List<SerialisableDataNode>) yamsDataNode.getChildList();
+        } catch (QueryTimeoutException exception) {
+            throw new WebQueryTimeoutException("getRootDataNodes", exception);
         } catch (QueryException exception) {
             throw new WebQueryException("getRootDataNodes", exception);
         }
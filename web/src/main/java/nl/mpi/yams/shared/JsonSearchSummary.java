@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 The Language Archive, Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package nl.mpi.yams.shared;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * The last line of a streamed search, which gives the number of results and
+ * any error that stopped the search.
+ *
+ * @author Peter Withers <peter.withers@mpi.nl>
+ */
+public final class JsonSearchSummary extends JavaScriptObject {
+
+    protected JsonSearchSummary() {
+    }
+
+    /**
+     * @param lineObject one parsed line of a streamed search
+     * @return the summary or null if the line is a search result
+     */
+    public static native JsonSearchSummary getSummary(JavaScriptObject lineObject) /*-{ if (lineObject.Summary != null) return lineObject.Summary; else return null; }-*/;
+
+    public final native int getResultCount() /*-{ return parseInt(this.ResultCount); }-*/;
+
+    public final native String getError() /*-{ if (this.Error != null) return this.Error; else return null; }-*/;
+}